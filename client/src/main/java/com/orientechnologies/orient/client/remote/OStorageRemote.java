@@ -98,7 +98,6 @@ public class OStorageRemote extends OStorageAbstract {
 
 	public void open(final int iRequesterId, final String iUserName, final String iUserPassword) {
 		addUser();
-		cache.addUser();
 
 		boolean locked = lock.acquireExclusiveLock();
 
@@ -180,7 +179,6 @@ public class OStorageRemote extends OStorageAbstract {
 
 			// serviceThread.join();
 
-			cache.removeUser();
 			cache.clear();
 
 			open = false;
@@ -276,7 +274,7 @@ public class OStorageRemote extends OStorageAbstract {
 					while (network.readByte() == 2) {
 						ORecordInternal<?> record = readRecordFromNetwork(iDatabase);
 						// PUT IN THE CLIENT LOCAL CACHE
-						cache.pushRecord(record.getIdentity().toString(),
+						cache.pushRecord(record.getIdentity().getClusterId(), record.getIdentity().getClusterPosition(),
 								new ORawBuffer(record.toStream(), record.getVersion(), record.getRecordType()));
 					}
 					return buffer;
@@ -516,7 +514,7 @@ public class OStorageRemote extends OStorageAbstract {
 
 							case 2:
 								// PUT IN THE CLIENT LOCAL CACHE
-								cache.pushRecord(record.getIdentity().toString(),
+								cache.pushRecord(record.getIdentity().getClusterId(), record.getIdentity().getClusterPosition(),
 										new ORawBuffer(record.toStream(), record.getVersion(), record.getRecordType()));
 							}
 						}
@@ -1039,6 +1037,8 @@ public class OStorageRemote extends OStorageAbstract {
 		try {
 			beginRequest(OChannelBinaryProtocol.REQUEST_DB_OPEN);
 			network.writeString(name).writeString(userName).writeString(userPassword);
+			// ASK FOR THE CHANGES OF THE RECORDS ONLY IF THEY CAN BE CACHED
+			network.writeByte((byte) (isCacheInvalidationNeeded() ? 1 : 0));
 		} finally {
 			endRequest();
 		}
@@ -1069,6 +1069,11 @@ public class OStorageRemote extends OStorageAbstract {
 		open = true;
 	}
 
+	protected boolean isCacheInvalidationNeeded() {
+		return OGlobalConfiguration.NETWORK_BINARY_CACHE_INVALIDATION.getValueAsBoolean()
+				&& OGlobalConfiguration.DB_USE_CACHE.getValueAsBoolean() && cache.getMaxSize() > 0;
+	}
+
 	public OChannelBinaryAsynch getNetwork() {
 		return network;
 	}
@@ -15,7 +15,9 @@
  */
 package com.orientechnologies.orient.client.remote;
 
+import com.orientechnologies.common.profiler.OProfiler;
 import com.orientechnologies.common.thread.OSoftThread;
+import com.orientechnologies.orient.enterprise.channel.binary.OChannelBinaryAsynch;
 import com.orientechnologies.orient.enterprise.channel.distributed.OChannelDistributedProtocol;
 
 /**
@@ -26,8 +28,6 @@ import com.orientechnologies.orient.enterprise.channel.distributed.OChannelDistr
 public class OStorageRemoteServiceThread extends OSoftThread {
 	private final OStorageRemote	storage;
 
-	private static final int			REQ_ID	= -10;
-
 	public OStorageRemoteServiceThread(final OStorageRemote iStorageRemote) {
 		super("ClientService");
 		storage = iStorageRemote;
@@ -37,7 +37,7 @@ public class OStorageRemoteServiceThread extends OSoftThread {
 	@Override
 	protected void execute() throws Exception {
 		try {
-			storage.getNetwork().beginResponse(REQ_ID);
+			storage.getNetwork().beginResponse(OChannelDistributedProtocol.PUSH_REQUESTER_ID);
 
 			final byte request = storage.getNetwork().readByte();
 
@@ -45,6 +45,22 @@ public class OStorageRemoteServiceThread extends OSoftThread {
 			case OChannelDistributedProtocol.PUSH_DISTRIBUTED_CONFIG:
 				storage.updateClusterConfiguration(storage.getNetwork().readBytes());
 				break;
+
+			case OChannelDistributedProtocol.PUSH_RECORDS_INVALIDATION:
+				// RECORDS CHANGED BY OTHER CLIENTS
+				final OChannelBinaryAsynch network = storage.getNetwork();
+				final int records = network.readInt();
+				for (int i = 0; i < records; ++i)
+					storage.getCache().invalidateRecord(network.readShort(), network.readLong(), network.readInt());
+
+				OProfiler.getInstance().updateCounter("OStorageRemote.invalidatedRecords", records);
+				break;
+
+			case OChannelDistributedProtocol.PUSH_CACHE_CLEAR:
+				// TOO MANY RECORDS CHANGED TO SEND THEM ALL
+				storage.getCache().clear();
+				OProfiler.getInstance().updateCounter("OStorageRemote.clearedCaches", +1);
+				break;
 			}
 
 			// NOT IN FINALLY BECAUSE IF THE SOCKET IS KILLED COULD HAVE NOT THE LOCK
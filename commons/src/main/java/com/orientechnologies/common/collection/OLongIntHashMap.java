@@ -0,0 +1,168 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.common.collection;
+
+import java.util.Arrays;
+
+/**
+ * Hash map of long keys and not negative int values kept in two arrays, so no object is created by the lookups and by the
+ * insertions. Uses open addressing with linear probing and is enlarged when half full. Not thread safe.
+ */
+public class OLongIntHashMap {
+	public static final int	NOT_FOUND	= -1;
+
+	private long[]					keys;
+	private int[]						values;
+	private boolean[]				used;
+	private int							mask;
+	private int							size;
+
+	public OLongIntHashMap() {
+		this(16);
+	}
+
+	public OLongIntHashMap(final int iExpectedSize) {
+		int capacity = 4;
+		while (capacity < iExpectedSize * 2)
+			capacity <<= 1;
+		init(capacity);
+	}
+
+	/**
+	 * Returns the value of the key, or NOT_FOUND.
+	 */
+	public int get(final long iKey) {
+		final int slot = find(iKey);
+		return slot > -1 ? values[slot] : NOT_FOUND;
+	}
+
+	/**
+	 * Puts the value of the key.
+	 *
+	 * @return The previous value or NOT_FOUND
+	 */
+	public int put(final long iKey, final int iValue) {
+		final int slot = find(iKey);
+		if (slot > -1) {
+			final int previous = values[slot];
+			values[slot] = iValue;
+			return previous;
+		}
+
+		if (size + 1 > keys.length / 2) {
+			resize(keys.length * 2);
+			insert(iKey, iValue);
+		} else {
+			final int free = -slot - 1;
+			keys[free] = iKey;
+			values[free] = iValue;
+			used[free] = true;
+			size++;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Removes the key.
+	 *
+	 * @return The value removed or NOT_FOUND
+	 */
+	public int remove(final long iKey) {
+		int free = find(iKey);
+		if (free < 0)
+			return NOT_FOUND;
+
+		final int value = values[free];
+		used[free] = false;
+		size--;
+
+		// MOVE BACK THE FOLLOWING KEYS OF THE SAME PROBING SEQUENCE
+		int slot = free;
+		while (true) {
+			slot = (slot + 1) & mask;
+			if (!used[slot])
+				return value;
+
+			final int home = hash(keys[slot]) & mask;
+			if (free <= slot ? (home <= free || home > slot) : (home <= free && home > slot)) {
+				keys[free] = keys[slot];
+				values[free] = values[slot];
+				used[free] = true;
+				used[slot] = false;
+				free = slot;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * Returns the slot containing the key, or -(free slot + 1) if not found.
+	 */
+	private int find(final long iKey) {
+		int slot = hash(iKey) & mask;
+		while (used[slot]) {
+			if (keys[slot] == iKey)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	private void insert(final long iKey, final int iValue) {
+		final int slot = -find(iKey) - 1;
+		keys[slot] = iKey;
+		values[slot] = iValue;
+		used[slot] = true;
+		size++;
+	}
+
+	private void resize(final int iCapacity) {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		final boolean[] oldUsed = used;
+
+		init(iCapacity);
+		for (int i = 0; i < oldKeys.length; ++i)
+			if (oldUsed[i])
+				insert(oldKeys[i], oldValues[i]);
+	}
+
+	private void init(final int iCapacity) {
+		keys = new long[iCapacity];
+		values = new int[iCapacity];
+		used = new boolean[iCapacity];
+		mask = iCapacity - 1;
+		size = 0;
+	}
+
+	private static int hash(final long iKey) {
+		long hash = iKey * 0x9e3779b97f4a7c15L;
+		hash ^= hash >>> 29;
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
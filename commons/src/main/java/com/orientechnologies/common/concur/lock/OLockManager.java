@@ -2,163 +2,339 @@ package com.orientechnologies.common.concur.lock;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.orientechnologies.common.profiler.OProfiler;
 
 /**
- * Manage the locks across all the client connections. To optimize speed and space in memory the shared lock map holds the client
- * connections directly if only one client is locking the resource. When multiple clients acquire the same resource, then a List is
- * put in place of the single object.<br/>
- * On lock removing the list is maintained even if the client remains only one because the cost to replace the List to the object
- * directly is higher then just remove the item and the probability to add another again is high.
+ * Manage the locks across all the requesters. The resources are spread across a fixed number of stripes, each one with its own map
+ * and monitor, so requesters working on different resources rarely contend for the same monitor. To optimize speed and space in
+ * memory the lock entry holds the shared owners in a List created only when needed, and the entry is removed as soon as nobody owns
+ * or waits for the resource.<br/>
+ * Locks are reentrant: the same requester can acquire the same lock multiple times and must release it the same number of times. A
+ * requester that owns the only shared lock on a resource can promote it to exclusive.<br/>
+ * While a requester waits, the graph of the requesters waiting for the resources owned by other waiting requesters is checked: if
+ * the requester is waiting for itself through the graph, the lock is not acquired and an OLockException is thrown.
  */
-@SuppressWarnings("unchecked")
 public class OLockManager<RESOURCE_TYPE, REQUESTER_TYPE> {
 	public enum LOCK {
 		SHARED, EXCLUSIVE
 	}
 
-	private static final int														DEFAULT_ACQUIRE_TIMEOUT				= 5000;
-	private static final int														DEFAULT_CONCURRENCY_LEVEL			= 1;
+	private static final int														DEFAULT_ACQUIRE_TIMEOUT		= 5000;
+	private static final int														DEFAULT_CONCURRENCY_LEVEL	= 16;
+	private static final int														DEADLOCK_CHECK_DELAY			= 200;
 
-	protected final OLockQueue<RESOURCE_TYPE>						lockQueue											= new OLockQueue<RESOURCE_TYPE>();
-	protected final Map<RESOURCE_TYPE, Object>					sharedLocks										= new HashMap<RESOURCE_TYPE, Object>();
-	protected final Map<RESOURCE_TYPE, REQUESTER_TYPE>	exclusiveLocks								= new HashMap<RESOURCE_TYPE, REQUESTER_TYPE>();
-	protected int																				concurrencyLevel							= DEFAULT_CONCURRENCY_LEVEL;
-	protected boolean																		downsizeSharedLockRetainList	= true;
-	protected final long																acquireTimeout								= DEFAULT_ACQUIRE_TIMEOUT;											// MS
+	protected final Map<RESOURCE_TYPE, OLockEntry>[]		stripes;
+	protected final Map<REQUESTER_TYPE, RESOURCE_TYPE>	waitingRequesters					= new ConcurrentHashMap<REQUESTER_TYPE, RESOURCE_TYPE>();
+	protected final int																	concurrencyLevel;
+	protected final long																acquireTimeout;																												// MS
+
+	/**
+	 * Status of the lock of a resource.
+	 */
+	protected static class OLockEntry {
+		private Object				exclusiveOwner;
+		private int						exclusiveCount;
+		private List<Object>	sharedOwners;
+		private int						waiters;
+
+		private boolean isFree() {
+			return exclusiveOwner == null && (sharedOwners == null || sharedOwners.isEmpty()) && waiters == 0;
+		}
+	}
 
 	public OLockManager() {
+		this(DEFAULT_CONCURRENCY_LEVEL, DEFAULT_ACQUIRE_TIMEOUT);
+	}
+
+	/**
+	 * Creates a lock manager.
+	 *
+	 * @param iConcurrencyLevel
+	 *          Number of stripes, rounded to the next power of 2
+	 * @param iAcquireTimeout
+	 *          Default timeout in ms to acquire a lock. 0 means wait forever
+	 */
+	public OLockManager(final int iConcurrencyLevel, final long iAcquireTimeout) {
+		int level = 1;
+		while (level < iConcurrencyLevel)
+			level <<= 1;
+
+		concurrencyLevel = level;
+		acquireTimeout = iAcquireTimeout;
+
+		stripes = newStripes(concurrencyLevel);
+		for (int i = 0; i < stripes.length; ++i)
+			stripes[i] = new HashMap<RESOURCE_TYPE, OLockEntry>();
 	}
 
-	public void acquireLock(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId, LOCK iLockType, long iTimeout) {
-		if (tryToAcquireLock(iRequester, iResourceId, iLockType))
-			return;
+	/**
+	 * Acquires the lock using the default timeout.
+	 *
+	 * @see #acquireLock(Object, Object, LOCK, long)
+	 */
+	public void acquireLock(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId, final LOCK iLockType) {
+		acquireLock(iRequester, iResourceId, iLockType, acquireTimeout);
+	}
+
+	/**
+	 * Acquires the lock on the resource, waiting until it's released by the other requesters.
+	 *
+	 * @param iTimeout
+	 *          Maximum time to wait in ms. 0 means wait forever
+	 * @throws OLockException
+	 *           if the timeout expires or a deadlock is detected
+	 */
+	public void acquireLock(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId, final LOCK iLockType,
+			final long iTimeout) {
+		final Map<RESOURCE_TYPE, OLockEntry> stripe = getStripe(iResourceId);
+
+		synchronized (stripe) {
+			OLockEntry entry = stripe.get(iResourceId);
+			if (entry == null) {
+				entry = new OLockEntry();
+				stripe.put(iResourceId, entry);
+			}
+
+			if (tryToAcquireLock(iRequester, entry, iLockType))
+				return;
+
+			entry.waiters++;
+		}
+
+		// PUT CURRENT THREAD IN WAIT UNTIL TIMEOUT OR UNLOCK BY ANOTHER REQUESTER
+		OProfiler.getInstance().updateCounter("OLockManager.waits", +1);
 
-		// PUT CURRENT THREAD IN WAIT UNTIL TIMEOUT OR UNLOCK BY ANOTHER THREAD THAT UNLOCK THE RESOURCE
-		if (lockQueue.waitForResource(iResourceId, iTimeout))
-			// TIMEOUT EXPIRED
-			throw new OLockException("Resource " + iResourceId + " is locked");
+		final long deadline = iTimeout > 0 ? System.currentTimeMillis() + iTimeout : 0;
+		boolean acquired = false;
+		waitingRequesters.put(iRequester, iResourceId);
+		try {
+			while (true) {
+				if (isDeadlocked(iRequester, iResourceId)) {
+					OProfiler.getInstance().updateCounter("OLockManager.deadlocks", +1);
+					throw new OLockException("Deadlock detected: the requester " + iRequester + " can't acquire the " + iLockType
+							+ " lock on resource " + iResourceId + " since it's locked by requesters waiting for it");
+				}
+
+				synchronized (stripe) {
+					OLockEntry entry = stripe.get(iResourceId);
+					if (entry == null) {
+						// REMOVED BY CLEAR()
+						entry = new OLockEntry();
+						entry.waiters = 1;
+						stripe.put(iResourceId, entry);
+					}
+
+					if (tryToAcquireLock(iRequester, entry, iLockType)) {
+						acquired = true;
+						entry.waiters--;
+						return;
+					}
+
+					long toWait = DEADLOCK_CHECK_DELAY;
+					if (deadline > 0) {
+						final long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							OProfiler.getInstance().updateCounter("OLockManager.timeouts", +1);
+							throw new OLockException("Timeout on acquiring the " + iLockType + " lock on resource " + iResourceId
+									+ " by the requester " + iRequester + ": the resource is locked");
+						}
+						toWait = Math.min(remaining, toWait);
+					}
 
-		// THREAD UNLOCKED: TRY TO RE-ACQUIRE
-		if (!tryToAcquireLock(iRequester, iResourceId, iLockType))
-			// TIMEOUT EXPIRED
-			throw new OLockException("Resource " + iResourceId + " is locked");
+					try {
+						stripe.wait(toWait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new OLockException("Interrupted while waiting for the lock on resource " + iResourceId);
+					}
+				}
+			}
+		} finally {
+			waitingRequesters.remove(iRequester);
+
+			if (!acquired)
+				// GIVE UP: UNREGISTER THE WAITER
+				synchronized (stripe) {
+					final OLockEntry entry = stripe.get(iResourceId);
+					if (entry != null) {
+						entry.waiters--;
+						removeIfFree(stripe, iResourceId, entry);
+					}
+				}
+		}
 	}
 
-	public synchronized void releaseLock(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId, final LOCK iLockType)
+	public void releaseLock(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId, final LOCK iLockType)
 			throws OLockException {
-		if (iLockType == LOCK.SHARED) {
-			final Object sharedLock = sharedLocks.get(iResourceId);
-			if (sharedLock == null)
-				throw new OLockException("Error on releasing a non acquired SHARED lock by the requester " + iRequester + " on resource: "
-						+ iResourceId);
-
-			downsizeSharedLock(iResourceId, sharedLock);
-		} else {
-			final REQUESTER_TYPE exclusiveLock = exclusiveLocks.remove(iResourceId);
-			if (exclusiveLock == null)
-				throw new OLockException("Error on releasing a non acquired EXCLUSIVE lock by the requester " + iRequester
-						+ " on resource: " + iResourceId);
+		final Map<RESOURCE_TYPE, OLockEntry> stripe = getStripe(iResourceId);
+
+		synchronized (stripe) {
+			final OLockEntry entry = stripe.get(iResourceId);
+
+			if (iLockType == LOCK.SHARED) {
+				if (entry == null || entry.sharedOwners == null || !entry.sharedOwners.remove(iRequester))
+					throw new OLockException("Error on releasing a non acquired SHARED lock by the requester " + iRequester
+							+ " on resource: " + iResourceId);
+			} else {
+				if (entry == null || entry.exclusiveOwner == null || !entry.exclusiveOwner.equals(iRequester))
+					throw new OLockException("Error on releasing a non acquired EXCLUSIVE lock by the requester " + iRequester
+							+ " on resource: " + iResourceId);
+
+				if (--entry.exclusiveCount == 0)
+					entry.exclusiveOwner = null;
+			}
+
+			if (entry.waiters > 0)
+				// WAKE UP THE WAITERS OF THE STRIPE: EACH ONE CHECKS ITS OWN RESOURCE
+				stripe.notifyAll();
+			else
+				removeIfFree(stripe, iResourceId, entry);
 		}
-		lockQueue.wakeupWaiters(iResourceId);
 	}
 
-	public int getConcurrencyLevel() {
-		return concurrencyLevel;
+	/**
+	 * Tells if the resource is locked in any mode by any requester.
+	 */
+	public boolean isLocked(final RESOURCE_TYPE iResourceId) {
+		final Map<RESOURCE_TYPE, OLockEntry> stripe = getStripe(iResourceId);
+
+		synchronized (stripe) {
+			final OLockEntry entry = stripe.get(iResourceId);
+			return entry != null && (entry.exclusiveOwner != null || (entry.sharedOwners != null && !entry.sharedOwners.isEmpty()));
+		}
 	}
 
-	public void setDefaultConcurrencyLevel(final int concurrencyLevel) {
-		this.concurrencyLevel = concurrencyLevel;
+	/**
+	 * Returns the number of resources with a lock or a waiter.
+	 */
+	public int getLockedResources() {
+		int total = 0;
+		for (Map<RESOURCE_TYPE, OLockEntry> stripe : stripes)
+			synchronized (stripe) {
+				total += stripe.size();
+			}
+		return total;
 	}
 
-	public boolean isDownsizeSharedLockRetainList() {
-		return downsizeSharedLockRetainList;
+	public int getConcurrencyLevel() {
+		return concurrencyLevel;
 	}
 
-	public void setDownsizeSharedLockRetainList(final boolean downsizeSharedLockRetainList) {
-		this.downsizeSharedLockRetainList = downsizeSharedLockRetainList;
+	public long getAcquireTimeout() {
+		return acquireTimeout;
 	}
 
-	protected synchronized boolean tryToAcquireLock(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId,
-			final LOCK iLockType) {
-		OProfiler.getInstance().updateCounter("LockMgr.tryToAcquire", +1);
+	public void clear() {
+		for (Map<RESOURCE_TYPE, OLockEntry> stripe : stripes)
+			synchronized (stripe) {
+				stripe.clear();
+				stripe.notifyAll();
+			}
+		waitingRequesters.clear();
+	}
 
-		REQUESTER_TYPE client = exclusiveLocks.get(iResourceId);
-		if (client != null) {
-			// THE RESOURCE IS ALREADY LOCKED IN EXCLUSIVE MODE
-			OProfiler.getInstance().updateCounter("LockMgr.tryToAcquire.locked", +1);
+	protected boolean tryToAcquireLock(final REQUESTER_TYPE iRequester, final OLockEntry iEntry, final LOCK iLockType) {
+		if (iEntry.exclusiveOwner != null && !iEntry.exclusiveOwner.equals(iRequester))
+			// THE RESOURCE IS ALREADY LOCKED IN EXCLUSIVE MODE BY ANOTHER REQUESTER
 			return false;
+
+		if (iLockType == LOCK.SHARED) {
+			if (iEntry.sharedOwners == null)
+				iEntry.sharedOwners = new ArrayList<Object>(2);
+
+			// ADD THE SHARED LOCK
+			iEntry.sharedOwners.add(iRequester);
+			return true;
 		}
 
-		// CHECK IF THERE ALREADY ARE SHARED LOCKS
-		final Object sharedLock = sharedLocks.get(iResourceId);
-		List<REQUESTER_TYPE> clients;
+		// CHECK IF CAN GAIN THE EXCLUSIVE LOCK: THE ONLY SHARED OWNER CAN BE THE REQUESTER ITSELF (PROMOTION)
+		if (iEntry.sharedOwners != null)
+			for (Object owner : iEntry.sharedOwners)
+				if (!owner.equals(iRequester))
+					return false;
 
-		if (iLockType == LOCK.SHARED) {
-			if (sharedLock == null) {
-				// CREATE IT
-				sharedLocks.put(iResourceId, iRequester);
-				return true;
-			}
+		iEntry.exclusiveOwner = iRequester;
+		iEntry.exclusiveCount++;
+		return true;
+	}
 
-			if (sharedLock instanceof List<?>) {
-				clients = (List<REQUESTER_TYPE>) sharedLock;
-			} else {
-				// FROM 1 TO 2 MULTIPLE SHARED CLIENTS: CREATE A LIST TO PUT ALL TOGETHER IN PLACE OF SINGLE OBJECT
-				clients = new ArrayList<REQUESTER_TYPE>(concurrencyLevel);
-				sharedLocks.put(iResourceId, clients);
+	/**
+	 * Follows the owners of the resource the requester waits for: if one of them waits, directly or through other waiting owners, for
+	 * a resource owned by the requester the lock can never be acquired.
+	 */
+	protected boolean isDeadlocked(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId) {
+		final Set<Object> visited = new HashSet<Object>();
+		visited.add(iRequester);
 
-				// ADD THE FIRST CLIENT
-				clients.add((REQUESTER_TYPE) sharedLock);
-			}
+		final LinkedList<RESOURCE_TYPE> resourcesToCheck = new LinkedList<RESOURCE_TYPE>();
+		resourcesToCheck.add(iResourceId);
 
-			// ADD THE SHARED LOCK
-			clients.add(iRequester);
-		} else {
-			if (sharedLock == null) {
-				// NO ONE IS LOCKING IN SHARED MODE: ACQUIRE THE EXCLUSIVE LOCK
-				exclusiveLocks.put(iResourceId, iRequester);
-				return true;
-			}
+		RESOURCE_TYPE resource;
+		boolean first = true;
+		while (!resourcesToCheck.isEmpty()) {
+			resource = resourcesToCheck.removeFirst();
+
+			for (Object owner : getOwners(resource)) {
+				if (owner.equals(iRequester)) {
+					if (!first)
+						// THE CHAIN OF WAITING REQUESTERS IS BACK TO THE REQUESTER
+						return true;
 
-			// CHECK IF CAN GAIN THE EXCLUSIVE LOCK
-			if (sharedLock instanceof List<?>) {
-				clients = (List<REQUESTER_TYPE>) sharedLock;
-				if (clients.size() == 1 && clients.get(0).equals(iRequester)) {
-					// EXCALATION FROM SHARED TO EXCLUSIVE LOCK
-					promoteLock(iRequester, iResourceId, sharedLock);
-					return true;
+					// THE REQUESTER OWNS A SHARED LOCK ON THE RESOURCE IT'S PROMOTING
+					continue;
 				}
-			} else {
-				if (sharedLock.equals(iRequester)) {
-					// EXCALATION FROM SHARED TO EXCLUSIVE LOCK
-					promoteLock(iRequester, iResourceId, sharedLock);
-					return true;
+
+				if (visited.add(owner)) {
+					final RESOURCE_TYPE waitingFor = waitingRequesters.get(owner);
+					if (waitingFor != null)
+						resourcesToCheck.add(waitingFor);
 				}
 			}
+
+			first = false;
 		}
 		return false;
 	}
 
-	private void promoteLock(final REQUESTER_TYPE iRequester, final RESOURCE_TYPE iResourceId, final Object iSharedLock) {
-		downsizeSharedLock(iResourceId, iSharedLock);
-		exclusiveLocks.put(iResourceId, iRequester);
+	private List<Object> getOwners(final RESOURCE_TYPE iResourceId) {
+		final Map<RESOURCE_TYPE, OLockEntry> stripe = getStripe(iResourceId);
+		final List<Object> owners = new ArrayList<Object>();
+
+		synchronized (stripe) {
+			final OLockEntry entry = stripe.get(iResourceId);
+			if (entry != null) {
+				if (entry.exclusiveOwner != null)
+					owners.add(entry.exclusiveOwner);
+				if (entry.sharedOwners != null)
+					owners.addAll(entry.sharedOwners);
+			}
+		}
+		return owners;
 	}
 
-	private void downsizeSharedLock(final RESOURCE_TYPE iResourceId, final Object iSharedLock) {
-		if (downsizeSharedLockRetainList && iSharedLock instanceof List<?>)
-			// RETAIN THE LIST FOR FUTURE DOWNGRADE TO SHARED
-			((List<REQUESTER_TYPE>) iSharedLock).clear();
-		else
-			// REMOVE THE SHARED LOCK
-			sharedLocks.remove(iResourceId);
+	private void removeIfFree(final Map<RESOURCE_TYPE, OLockEntry> iStripe, final RESOURCE_TYPE iResourceId, final OLockEntry iEntry) {
+		if (iEntry.isFree())
+			iStripe.remove(iResourceId);
 	}
 
-	public void clear() {
-		sharedLocks.clear();
-		exclusiveLocks.clear();
+	private Map<RESOURCE_TYPE, OLockEntry> getStripe(final RESOURCE_TYPE iResourceId) {
+		// SPREAD THE HASH CODE BITS SINCE THE STRIPES ARE SELECTED BY THE LOWER ONES
+		int h = iResourceId.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return stripes[h & (concurrencyLevel - 1)];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K> Map<K, OLockEntry>[] newStripes(final int iSize) {
+		// GENERIC ARRAYS CAN'T BE CREATED: THE ARRAY OF WILDCARD MAPS IS SAFE SINCE IT'S FILLED ONLY BY THE CONSTRUCTOR
+		return (Map<K, OLockEntry>[]) new Map<?, ?>[iSize];
 	}
 }
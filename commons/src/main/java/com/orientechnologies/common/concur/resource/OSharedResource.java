@@ -18,6 +18,15 @@ public class OSharedResource {
 		lock.writeLock().lock();
 	}
 
+	/**
+	 * Acquires the exclusive lock only if not held by another thread.
+	 * 
+	 * @return true if acquired
+	 */
+	protected boolean tryAcquireExclusiveLock() {
+		return lock.writeLock().tryLock();
+	}
+
 	protected void releaseExclusiveLock() {
 		lock.writeLock().unlock();
 	}
@@ -1,8 +1,11 @@
 package com.orientechnologies.common.concur.resource;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.orientechnologies.common.concur.lock.OLockException;
+
 public class OSharedResourceAdaptive {
 	private static final int	UNLOCKED_WAIT_TIME	= 30;
 	private ReadWriteLock			lock								= new ReentrantReadWriteLock();
@@ -28,6 +31,47 @@ public class OSharedResourceAdaptive {
 		return false;
 	}
 
+	/**
+	 * Acquires the exclusive lock waiting at most iTimeout ms.
+	 * 
+	 * @throws OLockException
+	 *           if the lock is not acquired in time
+	 */
+	protected boolean acquireExclusiveLock(final long iTimeout) {
+		if (iTimeout <= 0)
+			return acquireExclusiveLock();
+
+		if (users > 1) {
+			final long deadline = System.currentTimeMillis() + iTimeout;
+
+			try {
+				if (!lock.writeLock().tryLock(iTimeout, TimeUnit.MILLISECONDS))
+					throw new OLockException("Timeout on acquiring the exclusive lock of " + this + " after " + iTimeout + "ms");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OLockException("Interrupted while acquiring the exclusive lock of " + this, e);
+			}
+
+			// WAIT UNTIL THE UNIQUE THREAD IS RUNNING WITHOUT LOCK FINISHES
+			while (runningWithoutLock) {
+				if (System.currentTimeMillis() >= deadline) {
+					lock.writeLock().unlock();
+					throw new OLockException("Timeout on acquiring the exclusive lock of " + this + " after " + iTimeout + "ms");
+				}
+
+				try {
+					Thread.sleep(UNLOCKED_WAIT_TIME);
+				} catch (InterruptedException e) {
+				}
+			}
+
+			return true;
+		}
+
+		runningWithoutLock = true;
+		return false;
+	}
+
 	protected boolean acquireSharedLock() {
 		if (users > 1) {
 			lock.readLock().lock();
@@ -12,6 +12,11 @@ public class OSharedResourceAdaptiveExternal extends OSharedResourceAdaptive {
 		return super.acquireExclusiveLock();
 	}
 
+	@Override
+	public boolean acquireExclusiveLock(final long iTimeout) {
+		return super.acquireExclusiveLock(iTimeout);
+	}
+
 	@Override
 	public boolean acquireSharedLock() {
 		return super.acquireSharedLock();
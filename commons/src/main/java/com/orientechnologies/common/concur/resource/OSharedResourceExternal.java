@@ -12,6 +12,11 @@ public class OSharedResourceExternal extends OSharedResource {
 		super.acquireSharedLock();
 	}
 
+	@Override
+	public boolean tryAcquireExclusiveLock() {
+		return super.tryAcquireExclusiveLock();
+	}
+
 	@Override
 	public void releaseExclusiveLock() {
 		super.releaseExclusiveLock();
@@ -22,6 +22,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Profiling utility class. Handles chronos (times), statistics and counters. By default it's used as Singleton but you can create
@@ -37,6 +38,7 @@ public class OProfiler implements OProfilerMBean {
 	private Map<String, Long>						counters;
 	private Map<String, OProfilerEntry>	chronos;
 	private Map<String, OProfilerEntry>	stats;
+	private Map<String, OProfilerHookValue>	hooks;
 	private Date												lastReset;
 
 	protected static final OProfiler		instance	= new OProfiler();
@@ -118,7 +120,7 @@ public class OProfiler implements OProfilerMBean {
 	 * @see com.orientechnologies.common.profiler.ProfileMBean#dump()
 	 */
 	public synchronized String dump() {
-		return "\n" + dumpCounters() + "\n\n" + dumpStats() + "\n\n" + dumpChronos();
+		return "\n" + dumpCounters() + "\n\n" + dumpStats() + "\n\n" + dumpChronos() + "\n\n" + dumpHookValues();
 	}
 
 	// ----------------------------------------------------------------------------
@@ -195,6 +197,53 @@ public class OProfiler implements OProfilerMBean {
 	 * 
 	 * @see com.orientechnologies.common.profiler.ProfileMBean#getStatistics()
 	 */
+	/**
+	 * Dumps the current values of the hooks. The hooks are always active since they are read only when dumped.
+	 */
+	public synchronized String dumpHookValues() {
+		final StringBuilder buffer = new StringBuilder();
+
+		buffer.append("DUMPING HOOK VALUES...");
+
+		buffer.append(String.format("\n%45s +-------------------------------------------------------------------+", ""));
+		buffer.append(String.format("\n%45s | Value                                                             |", "Name"));
+		buffer.append(String.format("\n%45s +-------------------------------------------------------------------+", ""));
+		for (Entry<String, Object> entry : getHookValues().entrySet())
+			buffer.append(String.format("\n%45s | %s", entry.getKey(), entry.getValue()));
+
+		return buffer.toString();
+	}
+
+	/**
+	 * Registers a value computed only when read, such as the size of a structure.
+	 */
+	public synchronized void registerHookValue(final String iName, final OProfilerHookValue iHookValue) {
+		hooks.put(iName, iHookValue);
+	}
+
+	public synchronized void unregisterHookValue(final String iName) {
+		hooks.remove(iName);
+	}
+
+	/**
+	 * Returns the current values of the hooks sorted by name.
+	 */
+	public synchronized Map<String, Object> getHookValues() {
+		final Map<String, Object> values = new TreeMap<String, Object>();
+		for (Entry<String, OProfilerHookValue> entry : hooks.entrySet())
+			values.put(entry.getKey(), entry.getValue().getValue());
+		return values;
+	}
+
+	public String[] getHookValuesAsString() {
+		final Map<String, Object> values = getHookValues();
+		final String[] output = new String[values.size()];
+		int i = 0;
+		for (Entry<String, Object> entry : values.entrySet())
+			output[i++] = entry.getKey() + ": " + entry.getValue();
+		return output;
+	}
+
 	public String[] getCountersAsString() {
 		String[] output = new String[counters.size()];
 		int i = 0;
@@ -266,6 +315,7 @@ public class OProfiler implements OProfilerMBean {
 		counters = new HashMap<String, Long>();
 		chronos = new HashMap<String, OProfilerEntry>();
 		stats = new HashMap<String, OProfilerEntry>();
+		hooks = new HashMap<String, OProfilerHookValue>();
 
 		lastReset = new Date();
 	}
@@ -38,6 +38,10 @@ public interface OProfilerMBean {
 
 	public String[] getChronosAsString();
 
+	public String dumpHookValues();
+
+	public String[] getHookValuesAsString();
+
 	public Date getLastReset();
 
 	public boolean isRecording();
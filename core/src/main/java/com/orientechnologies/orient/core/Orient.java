@@ -37,6 +37,7 @@ import com.orientechnologies.orient.core.engine.memory.OEngineMemory;
 import com.orientechnologies.orient.core.exception.OConfigurationException;
 import com.orientechnologies.orient.core.storage.OStorage;
 import com.orientechnologies.orient.core.storage.fs.OMMapManager;
+import com.orientechnologies.orient.core.storage.fs.OPageCache;
 
 public class Orient extends OSharedResource {
 	public static final String								URL_SYNTAX						= "<engine>:<db-type>:<db-name>[?<db-param>=<db-value>[&]]*";
@@ -225,6 +226,7 @@ public class Orient extends OSharedResource {
 			}
 
 			OMMapManager.shutdown();
+			OPageCache.shutdown();
 			active = false;
 
 			// STOP ALL THE PENDING THREADS
@@ -0,0 +1,162 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.cache;
+
+import java.nio.ByteBuffer;
+
+import com.orientechnologies.common.collection.OLongIntHashMap;
+import com.orientechnologies.orient.core.storage.ORawBuffer;
+
+/**
+ * Second level of a stripe of the record cache: keeps the records evicted from the Java heap in direct memory, so a warm record is
+ * copied back from memory instead of being read from the storage and its content doesn't weigh on the garbage collector. The
+ * memory is divided in slabs allocated the first time are needed and written sequentially as a ring: when the ring is full the
+ * oldest slab is emptied, so the eviction is FIFO and the memory never fragments. Every record is written with its key, version,
+ * type and size before the content.<br/>
+ * Not thread safe: it's used under the lock of the stripe.
+ */
+public class OCacheOffHeapTier {
+	private static final int				HEADER_SIZE		= 8 + 4 + 1 + 4;
+	private static final int				VERSION_OFFSET	= 8;
+	private static final int				TYPE_OFFSET		= 12;
+	private static final int				SIZE_OFFSET		= 13;
+
+	private final int								slabSize;
+	private final ByteBuffer[]			slabs;
+	private final int[]							slabFilled;
+	private final OLongIntHashMap		index					= new OLongIntHashMap();
+	private int											currentSlab		= -1;
+
+	/**
+	 * Creates a tier of iMaxMemory bytes, at least one slab.
+	 */
+	public OCacheOffHeapTier(final long iMaxMemory, final int iSlabSize) {
+		final long maxMemory = Math.min(iMaxMemory, Integer.MAX_VALUE);
+		slabSize = (int) Math.max(Math.min(iSlabSize, maxMemory), HEADER_SIZE);
+		slabs = new ByteBuffer[(int) Math.max(maxMemory / slabSize, 1)];
+		slabFilled = new int[slabs.length];
+	}
+
+	/**
+	 * Copies the record in the tier. Records bigger than a slab are not kept.
+	 *
+	 * @return true if the record has been stored
+	 */
+	public boolean put(final long iKey, final ORawBuffer iContent) {
+		final int length = HEADER_SIZE + iContent.buffer.length;
+		if (length > slabSize) {
+			remove(iKey);
+			return false;
+		}
+
+		if (currentSlab < 0 || slabFilled[currentSlab] + length > slabSize)
+			nextSlab();
+
+		final ByteBuffer slab = slabs[currentSlab];
+		final int offset = slabFilled[currentSlab];
+
+		slab.putLong(offset, iKey);
+		slab.putInt(offset + VERSION_OFFSET, iContent.version);
+		slab.put(offset + TYPE_OFFSET, iContent.recordType);
+		slab.putInt(offset + SIZE_OFFSET, iContent.buffer.length);
+		slab.position(offset + HEADER_SIZE);
+		slab.put(iContent.buffer);
+
+		slabFilled[currentSlab] += length;
+
+		// THE PREVIOUS COPY, IF ANY, IS LEFT IN ITS SLAB UNTIL THE SLAB IS EMPTIED
+		index.put(iKey, currentSlab * slabSize + offset);
+		return true;
+	}
+
+	/**
+	 * Removes the record from the tier and returns a copy of it on the heap.
+	 *
+	 * @return The record or null if not found
+	 */
+	public ORawBuffer pop(final long iKey) {
+		final int position = index.remove(iKey);
+		if (position == OLongIntHashMap.NOT_FOUND)
+			return null;
+
+		final ByteBuffer slab = slabs[position / slabSize];
+		final int offset = position % slabSize;
+
+		final byte[] content = new byte[slab.getInt(offset + SIZE_OFFSET)];
+		slab.position(offset + HEADER_SIZE);
+		slab.get(content);
+
+		return new ORawBuffer(content, slab.getInt(offset + VERSION_OFFSET), slab.get(offset + TYPE_OFFSET));
+	}
+
+	public void remove(final long iKey) {
+		index.remove(iKey);
+	}
+
+	public void clear() {
+		index.clear();
+		for (int i = 0; i < slabFilled.length; ++i)
+			slabFilled[i] = 0;
+		currentSlab = -1;
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the direct memory allocated by the slabs.
+	 */
+	public long getMemory() {
+		long memory = 0;
+		for (ByteBuffer slab : slabs)
+			if (slab != null)
+				memory += slab.capacity();
+		return memory;
+	}
+
+	/**
+	 * Moves to the next slab of the ring, allocating it the first time or emptying it.
+	 */
+	private void nextSlab() {
+		currentSlab = (currentSlab + 1) % slabs.length;
+
+		if (slabs[currentSlab] == null)
+			slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+		else
+			emptySlab(currentSlab);
+	}
+
+	/**
+	 * Removes from the index the records of the slab that have not been written again in another place.
+	 */
+	private void emptySlab(final int iSlab) {
+		final ByteBuffer slab = slabs[iSlab];
+		final int filled = slabFilled[iSlab];
+		final int base = iSlab * slabSize;
+
+		long key;
+		int offset = 0;
+		while (offset < filled) {
+			key = slab.getLong(offset);
+			if (index.get(key) == base + offset)
+				index.remove(key);
+			offset += HEADER_SIZE + slab.getInt(offset + SIZE_OFFSET);
+		}
+
+		slabFilled[iSlab] = 0;
+	}
+}
@@ -15,117 +15,583 @@
  */
 package com.orientechnologies.orient.core.cache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.List;
 
-import com.orientechnologies.common.concur.resource.OSharedResourceAdaptive;
+import com.orientechnologies.common.collection.OLongIntHashMap;
 import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.common.profiler.OProfilerHookValue;
 import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.config.OStorageClusterCacheConfiguration;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.storage.ORawBuffer;
 
 /**
- * Per-database cache containing all the record buffers parked in memory to improve access. The cache is of type LRU to keep the
- * Last Recent records in memory and evict the others.
- * 
+ * Per-database cache containing all the record buffers parked in memory to improve access. Records are identified by cluster id
+ * and position packed in a long, so no key object is created by a lookup. The cache is divided in "storage.cache.stripes" stripes,
+ * each one with its own lock and a share of the "storage.cache.size" entries, to let the threads to access different records in
+ * parallel.<br/>
+ * Every stripe evicts with the CLOCK algorithm: a read sets the reference count of the entry, the clock hand decrements the counts
+ * and evicts the first entry found at zero. A new record takes the place of the evicted one only if it has been accessed at least
+ * as frequently, as estimated by a small frequency sketch (TinyLFU admission): a scan of records never read again can't flush the
+ * records read often.<br/>
+ * Besides the number of entries the cache is bound by the size of the record contents, "storage.cache.maxMemory" bytes, so a few
+ * big records can't fill the heap. When "storage.cache.offHeap.maxMemory" is set, the records evicted and the ones not admitted
+ * are copied out of the Java heap in direct memory, where they can be found again without reading the storage.<br/>
+ * Every cluster can have its own policy: the records of a disabled cluster are never cached, the priority gives to the records
+ * more rounds of the clock to survive without being read, the pinned records are never evicted and the admission can be disabled
+ * for the clusters whose records are read right after written.
+ *
+ * @see OStorageClusterCacheConfiguration
+ *
  * @author Luca Garulli
- * 
+ *
  */
-@SuppressWarnings("serial")
-public class OCacheRecord extends OSharedResourceAdaptive {
-	private final int													maxSize;
-	private LinkedHashMap<String, ORawBuffer>	cache;
+public class OCacheRecord {
+	private static final int	MAX_CLUSTER_ID		= 0xFFFF;
+	private static final long	MAX_POSITION			= 0xFFFFFFFFFFFFL;
+
+	private final int					maxSize;
+	private final long				maxMemory;
+	private final OCacheStripe[]	stripes;
+	private final int					stripeMask;
+	// POLICIES BY CLUSTER ID, NULL FOR THE DEFAULT ONE. REPLACED ON EVERY CHANGE TO READ IT WITHOUT LOCKS
+	private volatile OStorageClusterCacheConfiguration[]	policies	= new OStorageClusterCacheConfiguration[0];
 
 	/**
-	 * Create the cache of iMaxSize size.
-	 * 
-	 * @param iMaxSize
-	 *          Maximum number of elements for the cache
+	 * Records of a stripe. Entries are kept compact in the first "size" slots of the arrays, the index maps the keys to the entries.
+	 * The entries evicted are moved in the off-heap tier, if any.
 	 */
-	public OCacheRecord() {
-		maxSize = OGlobalConfiguration.STORAGE_CACHE_SIZE.getValueAsInteger();
+	private static class OCacheStripe {
+		private static final byte				MAX_REFERENCE	= 3;
+
+		private final int								capacity;
+		private final long							maxMemory;
+		private final long[]						keys;
+		private final ORawBuffer[]			values;
+		private final int[]							weights;
+		private final byte[]						references;
+		private final byte[]						priorities;
+		private final boolean[]					pinned;
+		private final OLongIntHashMap		index;
+		private final OFrequencySketch	sketch;
+		private final OCacheOffHeapTier	offHeap;
+		// MINIMUM VERSIONS OF THE RECORDS INVALIDATED, TO REFUSE THE COPIES READ BEFORE THE CHANGE
+		private final OLongIntHashMap		invalidated		= new OLongIntHashMap();
+		private int											size;
+		private long										memory;
+		private int											hand;
+		private int											pinnedCount;
+		private long										hits;
+		private long										offHeapHits;
+		private long										misses;
+
+		OCacheStripe(final int iCapacity, final long iMaxMemory, final OCacheOffHeapTier iOffHeap) {
+			capacity = iCapacity;
+			maxMemory = iMaxMemory;
+			keys = new long[iCapacity];
+			values = new ORawBuffer[iCapacity];
+			weights = new int[iCapacity];
+			references = new byte[iCapacity];
+			priorities = new byte[iCapacity];
+			pinned = new boolean[iCapacity];
+			index = new OLongIntHashMap(iCapacity);
+			sketch = new OFrequencySketch(iCapacity);
+			offHeap = iOffHeap;
+		}
+
+		synchronized ORawBuffer get(final long iKey, final boolean iCount, final OStorageClusterCacheConfiguration iPolicy) {
+			sketch.increment(iKey);
+
+			final int entry = index.get(iKey);
+			if (entry > -1) {
+				if (references[entry] < MAX_REFERENCE + priorities[entry])
+					references[entry]++;
+
+				if (iCount)
+					hits++;
+				return values[entry];
+			}
+
+			if (offHeap != null) {
+				final ORawBuffer buffer = offHeap.pop(iKey);
+				if (buffer != null) {
+					// FOUND OUT OF THE HEAP: MOVE IT BACK TO THE HEAP
+					if (iCount)
+						offHeapHits++;
+					insert(iKey, buffer, iPolicy);
+					return buffer;
+				}
+			}
+
+			if (iCount)
+				misses++;
+			return null;
+		}
+
+		synchronized void put(final long iKey, final ORawBuffer iValue, final OStorageClusterCacheConfiguration iPolicy) {
+			if (!invalidated.isEmpty()) {
+				final int minVersion = invalidated.get(iKey);
+				if (minVersion != OLongIntHashMap.NOT_FOUND) {
+					if (iValue.version < minVersion)
+						// READ BEFORE THE LAST CHANGE
+						return;
+					invalidated.remove(iKey);
+				}
+			}
+
+			final int entry = index.get(iKey);
+			if (entry > -1)
+				// UPDATE: THE NEW CONTENT REPLACES THE OLD ONE WITHOUT ADMISSION
+				removeEntry(entry);
+			else {
+				if (offHeap != null)
+					// THE COPY OUT OF THE HEAP IS STALE
+					offHeap.remove(iKey);
+
+				sketch.increment(iKey);
+
+				if (size > 0 && isFull(iValue.buffer.length) && isScanResistant(iPolicy) && !isPinned(iPolicy)) {
+					final int victim = selectVictim();
+					if (victim == -1 || sketch.frequency(iKey) < sketch.frequency(keys[victim])) {
+						// THE RECORD TO EVICT IS MORE USED THAN THE NEW ONE: KEEP IT
+						if (offHeap != null)
+							offHeap.put(iKey, iValue);
+						return;
+					}
+				}
+			}
+
+			insert(iKey, iValue, iPolicy);
+		}
+
+		/**
+		 * Adds the record only if the stripe has room for it without evicting other records.
+		 *
+		 * @return false if the stripe is full
+		 */
+		synchronized boolean putIfRoom(final long iKey, final ORawBuffer iValue, final OStorageClusterCacheConfiguration iPolicy) {
+			if (index.get(iKey) > -1)
+				return true;
+
+			if (isFull(iValue.buffer.length))
+				return false;
+
+			if (offHeap != null)
+				offHeap.remove(iKey);
 
-		cache = new LinkedHashMap<String, ORawBuffer>(maxSize, 0.75f, true) {
-			@Override
-			protected boolean removeEldestEntry(java.util.Map.Entry<String, ORawBuffer> iEldest) {
-				return size() > maxSize;
+			sketch.increment(iKey);
+			insert(iKey, iValue, iPolicy);
+			return true;
+		}
+
+		synchronized ORawBuffer remove(final long iKey) {
+			final int entry = index.get(iKey);
+			if (entry > -1) {
+				final ORawBuffer value = values[entry];
+				removeEntry(entry);
+				if (offHeap != null)
+					offHeap.remove(iKey);
+				return value;
 			}
-		};
+
+			return offHeap != null ? offHeap.pop(iKey) : null;
+		}
+
+		/**
+		 * Removes the record if older than iVersion and refuses the copies older than iVersion pushed later. The versions are
+		 * remembered up to the capacity of the stripe, then forgotten all together.
+		 */
+		synchronized void invalidate(final long iKey, final int iVersion) {
+			final int entry = index.get(iKey);
+			if (entry > -1) {
+				if (values[entry].version >= iVersion)
+					// ALREADY UPDATED
+					return;
+				removeEntry(entry);
+			}
+
+			if (offHeap != null)
+				offHeap.remove(iKey);
+
+			if (invalidated.size() >= capacity)
+				invalidated.clear();
+			invalidated.put(iKey, Math.max(iVersion, invalidated.get(iKey)));
+		}
+
+		synchronized void clear() {
+			index.clear();
+			invalidated.clear();
+			Arrays.fill(values, 0, size, null);
+			size = 0;
+			memory = 0;
+			hand = 0;
+			pinnedCount = 0;
+			sketch.clear();
+			if (offHeap != null)
+				offHeap.clear();
+		}
+
+		/**
+		 * Removes the records of a cluster. The records out of the heap are not indexed by cluster, so all of them are discarded.
+		 */
+		synchronized void removeCluster(final int iClusterId) {
+			for (int i = size - 1; i > -1; --i)
+				if ((int) (keys[i] >>> 48) == iClusterId)
+					removeEntry(i);
+
+			if (offHeap != null)
+				offHeap.clear();
+		}
+
+		synchronized void collectKeys(final List<Long> iKeys) {
+			for (int i = 0; i < size; ++i)
+				iKeys.add(keys[i]);
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized long getMemory() {
+			return memory;
+		}
+
+		synchronized long getOffHeapMemory() {
+			return offHeap != null ? offHeap.getMemory() : 0;
+		}
+
+		synchronized long getHits() {
+			return hits;
+		}
+
+		synchronized long getOffHeapHits() {
+			return offHeapHits;
+		}
+
+		synchronized long getMisses() {
+			return misses;
+		}
+
+		private boolean isFull(final int iWeight) {
+			return size >= capacity || memory + iWeight > maxMemory;
+		}
+
+		/**
+		 * Adds the record evicting the others until there is room. A record bigger than the whole stripe, or that finds the stripe
+		 * full of pinned records, is kept only off-heap.
+		 */
+		private void insert(final long iKey, final ORawBuffer iValue, final OStorageClusterCacheConfiguration iPolicy) {
+			final int weight = iValue.buffer.length;
+			if (weight > maxMemory) {
+				if (offHeap != null)
+					offHeap.put(iKey, iValue);
+				return;
+			}
+
+			while (size > 0 && isFull(weight)) {
+				final int victim = selectVictim();
+				if (victim == -1) {
+					if (offHeap != null)
+						offHeap.put(iKey, iValue);
+					return;
+				}
+				evict(victim);
+			}
+
+			final int entry = size++;
+			keys[entry] = iKey;
+			values[entry] = iValue;
+			weights[entry] = weight;
+			// THE PRIORITY IS GIVEN AS ROUNDS OF THE CLOCK TO SURVIVE
+			priorities[entry] = (byte) (iPolicy != null ? iPolicy.priority : 0);
+			references[entry] = priorities[entry];
+			pinned[entry] = isPinned(iPolicy);
+			if (pinned[entry])
+				pinnedCount++;
+			memory += weight;
+			index.put(iKey, entry);
+		}
+
+		private void evict(final int iEntry) {
+			final long key = keys[iEntry];
+			final ORawBuffer value = values[iEntry];
+			removeEntry(iEntry);
+
+			if (offHeap != null)
+				offHeap.put(key, value);
+		}
+
+		private void removeEntry(final int iEntry) {
+			index.remove(keys[iEntry]);
+			memory -= weights[iEntry];
+			if (pinned[iEntry])
+				pinnedCount--;
+
+			// MOVE THE LAST ENTRY IN THE FREE PLACE TO KEEP THE ENTRIES COMPACT
+			final int last = --size;
+			if (iEntry != last) {
+				keys[iEntry] = keys[last];
+				values[iEntry] = values[last];
+				weights[iEntry] = weights[last];
+				references[iEntry] = references[last];
+				priorities[iEntry] = priorities[last];
+				pinned[iEntry] = pinned[last];
+				index.put(keys[iEntry], iEntry);
+			}
+			values[last] = null;
+
+			if (hand >= size)
+				hand = 0;
+		}
+
+		/**
+		 * Moves the clock hand until an entry not referenced and not pinned is found. The hand stops on it, so the same entry is
+		 * returned until it's evicted or referenced again.
+		 *
+		 * @return The entry to evict or -1 if all the entries are pinned
+		 */
+		private int selectVictim() {
+			if (pinnedCount >= size)
+				return -1;
+
+			while (true) {
+				if (hand >= size)
+					hand = 0;
+
+				if (!pinned[hand]) {
+					if (references[hand] == 0)
+						return hand;
+
+					references[hand]--;
+				}
+				hand++;
+			}
+		}
+
+		private static boolean isPinned(final OStorageClusterCacheConfiguration iPolicy) {
+			return iPolicy != null && iPolicy.pinned;
+		}
+
+		private static boolean isScanResistant(final OStorageClusterCacheConfiguration iPolicy) {
+			return iPolicy == null || iPolicy.scanResistant;
+		}
 	}
 
-	public void pushRecord(final String iRecord, ORawBuffer iContent) {
-		if (maxSize == 0)
-			return;
+	/**
+	 * Count-min sketch of 4 bits counters estimating how many times every key has been accessed recently. All the counters are
+	 * halved after 10 accesses per entry of the stripe to forget the old history.
+	 */
+	private static class OFrequencySketch {
+		private static final long[]	SEEDS				= { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L							};
+		private static final long		RESET_MASK	= 0x7777777777777777L;
+
+		private final long[]				table;
+		private final int						tableMask;
+		private final int						sampleSize;
+		private int									additions;
+
+		OFrequencySketch(final int iCapacity) {
+			int tableSize = 1;
+			while (tableSize < iCapacity)
+				tableSize <<= 1;
+			table = new long[tableSize];
+			tableMask = tableSize - 1;
+			sampleSize = Math.max(iCapacity, 1) * 10;
+		}
 
-		final boolean locked = acquireExclusiveLock();
+		void increment(final long iKey) {
+			final int hash = hash(iKey);
+			final int start = (hash & 3) << 2;
+
+			boolean added = false;
+			for (int i = 0; i < 4; ++i) {
+				final int counter = indexOf(hash, i);
+				final int offset = (start + i) << 2;
+				final long mask = 0xfL << offset;
+				if ((table[counter] & mask) != mask) {
+					table[counter] += 1L << offset;
+					added = true;
+				}
+			}
 
-		try {
-			if (iContent == null || iContent.buffer == null || iContent.buffer.length == 0)
-				// NULL RECORD: REMOVE FROM THE CACHE TO SAVE SPACE
-				cache.remove(iRecord);
-			else
-				cache.put(iRecord, iContent);
+			if (added && ++additions == sampleSize)
+				reset();
+		}
+
+		int frequency(final long iKey) {
+			final int hash = hash(iKey);
+			final int start = (hash & 3) << 2;
+
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; ++i) {
+				final int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void clear() {
+			Arrays.fill(table, 0);
+			additions = 0;
+		}
 
-		} finally {
-			releaseExclusiveLock(locked);
+		private void reset() {
+			for (int i = 0; i < table.length; ++i)
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			additions /= 2;
+		}
+
+		private int indexOf(final int iHash, final int i) {
+			long hash = (iHash + SEEDS[i]) * SEEDS[i];
+			hash += hash >>> 32;
+			return (int) hash & tableMask;
 		}
 	}
 
+	/**
+	 * Create the cache of "storage.cache.size" entries and "storage.cache.maxMemory" bytes.
+	 */
+	public OCacheRecord() {
+		maxSize = Math.max(OGlobalConfiguration.STORAGE_CACHE_SIZE.getValueAsInteger(), 0);
+
+		// THE NUMBER OF STRIPES IS A POWER OF 2 NOT BIGGER THAN THE ENTRIES
+		int stripeCount = 1;
+		final int maxStripes = Math.min(OGlobalConfiguration.STORAGE_CACHE_STRIPES.getValueAsInteger(), maxSize);
+		while (stripeCount * 2 <= maxStripes)
+			stripeCount <<= 1;
+
+		stripes = new OCacheStripe[maxSize == 0 ? 0 : stripeCount];
+		stripeMask = stripeCount - 1;
+
+		final int configuredMemory = OGlobalConfiguration.STORAGE_CACHE_MAX_MEMORY.getValueAsInteger();
+		maxMemory = configuredMemory > 0 ? configuredMemory : Long.MAX_VALUE;
+
+		final long offHeapMemory = Math.max(OGlobalConfiguration.STORAGE_CACHE_OFF_HEAP_MEMORY.getValueAsInteger(), 0) / stripeCount;
+		final int slabSize = Math.max(OGlobalConfiguration.STORAGE_CACHE_OFF_HEAP_SLAB_SIZE.getValueAsInteger(), 1024);
+
+		final int stripeCapacity = maxSize / stripeCount;
+		for (int i = 0; i < stripes.length; ++i)
+			stripes[i] = new OCacheStripe(i < maxSize % stripeCount ? stripeCapacity + 1 : stripeCapacity, maxMemory == Long.MAX_VALUE
+					? maxMemory : maxMemory / stripeCount, offHeapMemory > 0 ? new OCacheOffHeapTier(offHeapMemory, slabSize) : null);
+	}
+
+	public void pushRecord(final int iClusterId, final long iPosition, final ORawBuffer iContent) {
+		if (maxSize == 0 || !isCacheable(iClusterId, iPosition))
+			return;
+
+		final long key = getKey(iClusterId, iPosition);
+		final OStorageClusterCacheConfiguration policy = getPolicy(iClusterId);
+
+		if (iContent == null || iContent.buffer == null || iContent.buffer.length == 0 || (policy != null && !policy.enabled))
+			// NULL RECORD OR CLUSTER NOT CACHED: REMOVE FROM THE CACHE TO SAVE SPACE
+			getStripe(key).remove(key);
+		else
+			getStripe(key).put(key, iContent, policy);
+	}
+
+	public void pushRecord(final String iRecord, final ORawBuffer iContent) {
+		final ORecordId rid = new ORecordId(iRecord);
+		pushRecord(rid.clusterId, rid.clusterPosition, iContent);
+	}
+
+	/**
+	 * Find a record in cache by cluster id and position.
+	 *
+	 * @return The record buffer if found, otherwise null
+	 */
+	public ORawBuffer getRecord(final int iClusterId, final long iPosition) {
+		if (maxSize == 0 || !isCacheable(iClusterId, iPosition))
+			return null;
+
+		final OStorageClusterCacheConfiguration policy = getPolicy(iClusterId);
+		if (policy != null && !policy.enabled)
+			return null;
+
+		final long key = getKey(iClusterId, iPosition);
+		return getStripe(key).get(key, true, policy);
+	}
+
 	/**
 	 * Find a record in cache by String
-	 * 
+	 *
 	 * @param iRecord
 	 *          String instance
 	 * @return The record buffer if found, otherwise null
 	 */
 	public ORawBuffer getRecord(final String iRecord) {
-		if (maxSize == 0)
-			return null;
+		final ORecordId rid = new ORecordId(iRecord);
+		return getRecord(rid.clusterId, rid.clusterPosition);
+	}
 
-		final boolean locked = acquireSharedLock();
+	/**
+	 * Returns the record if it's in cache without counting it as a hit or a miss.
+	 */
+	public ORawBuffer peekRecord(final int iClusterId, final long iPosition) {
+		if (maxSize == 0 || !isCacheable(iClusterId, iPosition))
+			return null;
 
-		try {
-			return cache.get(iRecord);
+		final OStorageClusterCacheConfiguration policy = getPolicy(iClusterId);
+		if (policy != null && !policy.enabled)
+			return null;
 
-		} finally {
-			releaseSharedLock(locked);
-		}
+		final long key = getKey(iClusterId, iPosition);
+		return getStripe(key).get(key, false, policy);
 	}
 
-	public ORawBuffer popRecord(final String iRecord) {
-		if (maxSize == 0)
+	public ORawBuffer popRecord(final int iClusterId, final long iPosition) {
+		if (maxSize == 0 || !isCacheable(iClusterId, iPosition))
 			return null;
 
-		final boolean locked = acquireExclusiveLock();
+		final long key = getKey(iClusterId, iPosition);
+		final ORawBuffer buffer = getStripe(key).remove(key);
 
-		try {
-			ORawBuffer buffer = cache.remove(iRecord);
+		if (buffer != null)
+			OProfiler.getInstance().updateCounter("Cache.reused", +1);
 
-			if (buffer != null)
-				OProfiler.getInstance().updateCounter("Cache.reused", +1);
+		return buffer;
+	}
 
-			return buffer;
-		} finally {
-			releaseExclusiveLock(locked);
-		}
+	public ORawBuffer popRecord(final String iRecord) {
+		final ORecordId rid = new ORecordId(iRecord);
+		return popRecord(rid.clusterId, rid.clusterPosition);
 	}
 
-	public void removeRecord(final String iRecord) {
-		if (maxSize == 0)
+	public void removeRecord(final int iClusterId, final long iPosition) {
+		if (maxSize == 0 || !isCacheable(iClusterId, iPosition))
 			return;
 
-		final boolean locked = acquireExclusiveLock();
-
-		try {
-			cache.remove(iRecord);
+		final long key = getKey(iClusterId, iPosition);
+		getStripe(key).remove(key);
+	}
 
-		} finally {
-			releaseExclusiveLock(locked);
-		}
+	public void removeRecord(final String iRecord) {
+		final ORecordId rid = new ORecordId(iRecord);
+		removeRecord(rid.clusterId, rid.clusterPosition);
 	}
 
 	/**
-	 * Remove multiple records from the cache in one shot saving the cost of locking for each record.
+	 * Removes the record if the copy in cache is older than iVersion. The copies older than iVersion pushed after, read before the
+	 * change, are refused.
 	 * 
+	 * @param iVersion
+	 *          The minimum version of the valid copies of the record
+	 */
+	public void invalidateRecord(final int iClusterId, final long iPosition, final int iVersion) {
+		if (maxSize == 0 || !isCacheable(iClusterId, iPosition))
+			return;
+
+		final long key = getKey(iClusterId, iPosition);
+		getStripe(key).invalidate(key, iVersion);
+	}
+
+	/**
+	 * Remove multiple records from the cache.
+	 *
 	 * @param iRecords
 	 *          List of RIDs as RecordID instances or Strings
 	 */
@@ -133,49 +599,232 @@ public class OCacheRecord extends OSharedResourceAdaptive {
 		if (maxSize == 0)
 			return;
 
-		final boolean locked = acquireExclusiveLock();
-
-		try {
-			for (Object id : iRecords)
-				cache.remove(id.toString());
-
-		} finally {
-			releaseExclusiveLock(locked);
-		}
+		for (Object id : iRecords)
+			if (id instanceof ORID)
+				removeRecord(((ORID) id).getClusterId(), ((ORID) id).getClusterPosition());
+			else
+				removeRecord(id.toString());
 	}
 
 	public void clear() {
-		if (maxSize == 0)
+		for (OCacheStripe stripe : stripes)
+			stripe.clear();
+	}
+
+	/**
+	 * Sets how the records of a cluster are cached. The records of the cluster already in cache are removed to be cached again with
+	 * the new policy.
+	 *
+	 * @param iPolicy
+	 *          The policy or null to use the default one
+	 */
+	public synchronized void setClusterConfiguration(final int iClusterId, final OStorageClusterCacheConfiguration iPolicy) {
+		if (iClusterId < 0 || iClusterId > MAX_CLUSTER_ID)
 			return;
 
-		final boolean locked = acquireExclusiveLock();
+		final OStorageClusterCacheConfiguration policy = iPolicy == null || iPolicy.isDefault() ? null
+				: new OStorageClusterCacheConfiguration(iPolicy.enabled, iPolicy.priority, iPolicy.pinned, iPolicy.scanResistant,
+						iPolicy.warmUp);
 
-		try {
-			cache.clear();
+		final OStorageClusterCacheConfiguration[] current = policies;
+		if (policy == null && (iClusterId >= current.length || current[iClusterId] == null))
+			// ALREADY DEFAULT
+			return;
 
-		} finally {
-			releaseExclusiveLock(locked);
-		}
+		final OStorageClusterCacheConfiguration[] newPolicies = Arrays.copyOf(current, Math.max(current.length, iClusterId + 1));
+		newPolicies[iClusterId] = policy;
+		policies = newPolicies;
+
+		removeCluster(iClusterId);
+	}
+
+	/**
+	 * Removes all the records of a cluster from the cache.
+	 */
+	public void removeCluster(final int iClusterId) {
+		for (OCacheStripe stripe : stripes)
+			stripe.removeCluster(iClusterId);
+	}
+
+	/**
+	 * Returns the ids of the records in the heap.
+	 */
+	public List<ORecordId> getRecordIds() {
+		final List<Long> keys = new ArrayList<Long>();
+		for (OCacheStripe stripe : stripes)
+			stripe.collectKeys(keys);
+
+		final List<ORecordId> result = new ArrayList<ORecordId>(keys.size());
+		for (long key : keys)
+			result.add(new ORecordId((int) (key >>> 48), key & MAX_POSITION));
+		return result;
+	}
+
+	/**
+	 * Adds the record only if its stripe has room for it without evicting other records. Used to load the cache without replacing
+	 * the records already loaded.
+	 *
+	 * @return false if the stripe of the record is full, so the cache is about full
+	 */
+	public boolean pushRecordIfRoom(final int iClusterId, final long iPosition, final ORawBuffer iContent) {
+		if (maxSize == 0 || !isCacheable(iClusterId, iPosition))
+			return false;
+
+		final long key = getKey(iClusterId, iPosition);
+		final OStorageClusterCacheConfiguration policy = getPolicy(iClusterId);
+
+		if (iContent == null || iContent.buffer == null || iContent.buffer.length == 0 || (policy != null && !policy.enabled))
+			// NOT CACHED
+			return true;
+
+		return getStripe(key).putIfRoom(key, iContent, policy);
 	}
 
 	public int getMaxSize() {
 		return maxSize;
 	}
 
+	/**
+	 * Returns the maximum size in bytes of the record contents kept in the heap, Long.MAX_VALUE if not bound.
+	 */
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * Returns the size in bytes of the record contents kept in the heap.
+	 */
+	public long getMemory() {
+		long memory = 0;
+		for (OCacheStripe stripe : stripes)
+			memory += stripe.getMemory();
+		return memory;
+	}
+
+	/**
+	 * Returns the direct memory allocated to keep the records out of the heap.
+	 */
+	public long getOffHeapMemory() {
+		long memory = 0;
+		for (OCacheStripe stripe : stripes)
+			memory += stripe.getOffHeapMemory();
+		return memory;
+	}
+
 	public int size() {
-		final boolean locked = acquireSharedLock();
+		int size = 0;
+		for (OCacheStripe stripe : stripes)
+			size += stripe.size();
+		return size;
+	}
 
-		try {
-			return cache.size();
+	public long getHits() {
+		long hits = 0;
+		for (OCacheStripe stripe : stripes)
+			hits += stripe.getHits();
+		return hits;
+	}
 
-		} finally {
-			releaseSharedLock(locked);
-		}
+	/**
+	 * Returns the number of records found out of the heap.
+	 */
+	public long getOffHeapHits() {
+		long hits = 0;
+		for (OCacheStripe stripe : stripes)
+			hits += stripe.getOffHeapHits();
+		return hits;
+	}
+
+	public long getMisses() {
+		long misses = 0;
+		for (OCacheStripe stripe : stripes)
+			misses += stripe.getMisses();
+		return misses;
+	}
+
+	/**
+	 * Returns the percentage of the lookups found in cache, in the heap or out of it.
+	 */
+	public float getHitRatio() {
+		final long hits = getHits() + getOffHeapHits();
+		final long total = hits + getMisses();
+		return total > 0 ? hits * 100f / total : 0f;
+	}
+
+	/**
+	 * Publishes size, memory, hits, misses and hit ratio of the cache to the profiler with the names starting with iPrefix.
+	 */
+	public void registerProfilerHooks(final String iPrefix) {
+		OProfiler.getInstance().registerHookValue(iPrefix + "size", new OProfilerHookValue() {
+			public Object getValue() {
+				return size();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(iPrefix + "hits", new OProfilerHookValue() {
+			public Object getValue() {
+				return getHits();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(iPrefix + "memory", new OProfilerHookValue() {
+			public Object getValue() {
+				return getMemory();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(iPrefix + "offHeapHits", new OProfilerHookValue() {
+			public Object getValue() {
+				return getOffHeapHits();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(iPrefix + "offHeapMemory", new OProfilerHookValue() {
+			public Object getValue() {
+				return getOffHeapMemory();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(iPrefix + "misses", new OProfilerHookValue() {
+			public Object getValue() {
+				return getMisses();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(iPrefix + "hitRatio", new OProfilerHookValue() {
+			public Object getValue() {
+				return getHitRatio();
+			}
+		});
+	}
+
+	public void unregisterProfilerHooks(final String iPrefix) {
+		for (String hook : new String[] { "size", "memory", "hits", "offHeapHits", "offHeapMemory", "misses", "hitRatio" })
+			OProfiler.getInstance().unregisterHookValue(iPrefix + hook);
 	}
 
 	@Override
 	public String toString() {
-		return "Cached items=" + cache.size() + ", maxSize=" + maxSize;
+		return "Cached items=" + size() + ", maxSize=" + maxSize + ", memory=" + getMemory() + ", hitRatio=" + getHitRatio() + "%";
+	}
+
+	private OCacheStripe getStripe(final long iKey) {
+		return stripes[(hash(iKey) >>> 16) & stripeMask];
 	}
 
+	private OStorageClusterCacheConfiguration getPolicy(final int iClusterId) {
+		final OStorageClusterCacheConfiguration[] current = policies;
+		return iClusterId < current.length ? current[iClusterId] : null;
+	}
+
+	private static boolean isCacheable(final int iClusterId, final long iPosition) {
+		return iClusterId >= 0 && iClusterId <= MAX_CLUSTER_ID && iPosition >= 0 && iPosition <= MAX_POSITION;
+	}
+
+	/**
+	 * Packs the cluster id in the highest 16 bits and the position in the lowest 48 bits.
+	 */
+	private static long getKey(final int iClusterId, final long iPosition) {
+		return ((long) iClusterId << 48) | iPosition;
+	}
+
+	private static int hash(final long iKey) {
+		long hash = iKey * 0x9e3779b97f4a7c15L;
+		hash ^= hash >>> 29;
+		return (int) (hash ^ (hash >>> 32));
+	}
 }
@@ -48,9 +48,115 @@ public enum OGlobalConfiguration {
 
 	STORAGE_CACHE_SIZE("storage.cache.size", "Size of the cache that keep the record in memory", Integer.class, 1000),
 
+	STORAGE_CACHE_STRIPES("storage.cache.stripes",
+			"Number of parts of the record cache locked separately. It's rounded to a power of 2", Integer.class, 16),
+
+	STORAGE_CACHE_MAX_MEMORY("storage.cache.maxMemory",
+			"Maximum size in bytes of the record contents kept by the cache in the Java heap. 0 means no limit", Integer.class, 67108864),
+
+	STORAGE_CACHE_OFF_HEAP_MEMORY("storage.cache.offHeap.maxMemory",
+			"Size in bytes of the direct memory where the cache keeps the records evicted from the Java heap. 0 means disabled",
+			Integer.class, 0),
+
+	STORAGE_CACHE_OFF_HEAP_SLAB_SIZE("storage.cache.offHeap.slabSize",
+			"Size in bytes of the blocks of direct memory allocated by the cache. Records bigger than a block are not kept", Integer.class,
+			1048576),
+
+	STORAGE_CACHE_WARM_UP_SNAPSHOT("storage.cache.warmUp.snapshot",
+			"Saves the ids of the records in cache when the storage is closed and loads them again in cache when it's opened",
+			Boolean.class, false),
+
+	STORAGE_RECORD_LOCK_TIMEOUT("storage.record.lockTimeout",
+			"Maximum time in ms to wait for the lock of a record before to throw an exception. 0 means wait forever", Integer.class, 5000),
+
+	STORAGE_BROWSE_BATCH_SIZE("storage.browse.batchSize",
+			"Number of cluster entries read with one access to the file while browsing the clusters", Integer.class, 256),
+
+	STORAGE_BROWSE_PARALLELISM("storage.browse.parallelism",
+			"Number of threads used by the queries to browse the clusters in parallel. 1 browses the clusters in the caller thread, 0 uses a thread per processor",
+			Integer.class, 1),
+
+	STORAGE_BROWSE_PARALLEL_RANGE("storage.browse.parallelRange",
+			"Number of cluster entries browsed by each task of the parallel browsing", Integer.class, 10000),
+
+	STORAGE_BROWSE_PARALLEL_RANGE_MEMORY("storage.browse.parallelRangeMemory",
+			"Maximum bytes of the records read ahead by each task of the parallel browsing. The rest of the range is read when reached",
+			Integer.class, 1048576),
+
+	STORAGE_DATA_SEGMENT_STRATEGY("storage.dataSegment.strategy",
+			"Strategy to choose the data segment of the new records for the clusters that don't set their own: first, round-robin, affinity, least-filled or record-size",
+			String.class, "first"),
+
+	STORAGE_DATA_SEGMENT_LARGE_RECORD("storage.dataSegment.largeRecordSize",
+			"Size in bytes from which the record-size strategy writes the records in the data segment of the large records",
+			Integer.class, 65536),
+
+	STORAGE_CLUSTER_APPEND_RESERVE("storage.cluster.appendReserve",
+			"Number of entries reserved at once by the physical clusters in append mode. The inserts use them without locking the cluster",
+			Integer.class, 512),
+
+	STORAGE_BULK_LOAD_DATA_CHUNK("storage.bulkLoad.dataChunk",
+			"Size in bytes of the blocks of data segment written at once by the bulk loader", Integer.class, 1048576),
+
+	STORAGE_BULK_LOAD_CLUSTER_CHUNK("storage.bulkLoad.clusterChunk",
+			"Number of cluster entries written at once by the bulk loader", Integer.class, 4096),
+
+	STORAGE_BULK_LOAD_LOCK_TIMEOUT("storage.bulkLoad.lockTimeout",
+			"Maximum time in ms the bulk loader waits for the exclusive lock of the storage before to throw an exception. 0 means wait forever",
+			Integer.class, 30000),
+
+	STORAGE_DEFRAG_STEP_RECORDS("storage.defrag.stepRecords",
+			"Maximum number of records moved by the defragmentation while the storage is locked", Integer.class, 100),
+
+	STORAGE_DEFRAG_STEP_DELAY("storage.defrag.stepDelay",
+			"Delay time in ms between two steps of the defragmentation to let the other operations to run", Integer.class, 50),
+
+	STORAGE_DEFRAG_PASS_RECORDS("storage.defrag.passRecords",
+			"Maximum number of records collected at each pass of the defragmentation starting from the end of the data segment",
+			Integer.class, 10000),
+
+	STORAGE_PREALLOCATE_ENABLED("storage.preallocate.enabled",
+			"Enlarges in background the files of the local storages before the inserts need the space", Boolean.class, Boolean.TRUE),
+
+	STORAGE_PREALLOCATE_INTERVAL("storage.preallocate.interval",
+			"Delay time in ms between two checks of the free space left in the files of the local storages", Integer.class, 500),
+
+	STORAGE_PREALLOCATE_FACTOR("storage.preallocate.factor",
+			"Free space kept at the end of the files as multiple of the space filled in the last interval", Integer.class, 2),
+
+	STORAGE_PREALLOCATE_MIN_SIZE("storage.preallocate.minSize",
+			"Minimum size in bytes of every background enlargement of a file", Integer.class, 1048576),
+
+	STORAGE_MEMORY_PAGE_SIZE("storage.memory.pageSize",
+			"Size in bytes of the pages where the memory storages keep the content of the records", Integer.class, 1048576),
+
+	STORAGE_MEMORY_OFF_HEAP("storage.memory.offHeap",
+			"Keeps the content of the records of the memory storages out of the Java heap using direct buffers", Boolean.class,
+			Boolean.FALSE),
+
+	// TRANSACTIONS
+	TX_LOG_SYNCH(
+			"tx.log.synch",
+			"Durability of the transaction log: 'commit' synchronizes at every commit grouping the concurrent commits in one synch, 'interval' synchronizes in background every tx.log.synchInterval ms, 'os' leaves it to the Operating System",
+			String.class, "commit"),
+
+	TX_LOG_SYNCH_INTERVAL("tx.log.synchInterval", "Delay in ms between two background synchronizations when tx.log.synch is 'interval'",
+			Integer.class, 100),
+
+	TX_LOG_CHECKPOINT_SIZE("tx.log.checkpointSize",
+			"Size in bytes of the transaction log that starts a checkpoint writing the storage to the disk", Integer.class, 8388608),
+
+	TX_LOG_CHECKPOINT_INTERVAL("tx.log.checkpointInterval",
+			"Delay in ms between two periodic checkpoints of the transaction log. 0 means only by size", Integer.class, 60000),
+
 	// DATABASE
 	DB_USE_CACHE("db.cache.enabled", "Uses the storage cache", Boolean.class, true),
 
+	DB_DOCUMENT_SERIALIZER(
+			"db.document.serializer",
+			"Format of the documents saved: 'ORecordDocument2csv' (text) or 'ORecordDocument2binary' (binary, reads single fields without parsing the others). A database can contain both the formats",
+			String.class, "ORecordDocument2csv"),
+
 	OBJECT_SAVE_ONLY_DIRTY("object.saveOnlyDirty", "Object Database saves only object bound to dirty records", Boolean.class, false),
 
 	// TREEMAP
@@ -84,6 +190,21 @@ public enum OGlobalConfiguration {
 	FILE_MMAP_FORCE_RETRY("file.mmap.forceRetry", "Number of times the memory mapped block will try to flush to the disk",
 			Integer.class, 10),
 
+	FILE_MMAP_FLUSH_INTERVAL("file.mmap.flushInterval",
+			"Delay time in ms between two background writes of the changed memory mapped blocks to the disk", Integer.class, 1000),
+
+	FILE_MMAP_FLUSH_RATE("file.mmap.flushRate",
+			"Maximum number of memory mapped blocks written to the disk per second by the background flusher. 0 means no limit",
+			Integer.class, 200),
+
+	FILE_CACHE_PAGE_SIZE("file.cache.pageSize", "Size in bytes of the pages of the files of type 'cached'", Integer.class, 65536),
+
+	FILE_CACHE_MAX_MEMORY("file.cache.maxMemory", "Max memory in bytes used out of the Java heap by the pages of the files of type 'cached'",
+			Integer.class, 67108864),
+
+	FILE_DEFAULT_TYPE("file.defaultType", "Type of the files of the new storages: 'mmap', 'classic' or 'cached'", String.class,
+			"mmap"),
+
 	// NETWORK
 	NETWORK_SOCKET_BUFFER_SIZE("network.socketBufferSize", "TCP/IP Socket buffer size", Integer.class, 32768),
 
@@ -100,6 +221,14 @@ public enum OGlobalConfiguration {
 
 	NETWORK_BINARY_DEBUG("network.binary.debug", "Debug mode: print all the incoming data on binary channel", Boolean.class, false),
 
+	NETWORK_BINARY_CACHE_INVALIDATION("network.binary.cacheInvalidation",
+			"The client asks the server to push the changes of the records it could have in cache, to keep the cache up to date",
+			Boolean.class, true),
+
+	NETWORK_BINARY_CACHE_INVALIDATION_QUEUE_SIZE("network.binary.cacheInvalidation.queueSize",
+			"Max changes of the records waiting to be pushed to a client. Over this size the client is asked to clear its whole cache",
+			Integer.class, 10000),
+
 	NETWORK_HTTP_MAX_CONTENT_LENGTH("network.http.maxLength", "TCP/IP max content length in bytes of HTTP requests", Integer.class,
 			100000),
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.config;
+
+/**
+ * How the records of a cluster are kept in the record cache.
+ */
+public class OStorageClusterCacheConfiguration {
+	public static final int	MAX_PRIORITY	= 3;
+
+	// THE RECORDS OF THE CLUSTER ARE KEPT IN CACHE
+	public boolean					enabled				= true;
+	// 0-3: EVERY LEVEL LETS THE RECORDS SURVIVE ONE MORE ROUND OF THE CLOCK WITHOUT BEING READ
+	public int							priority;
+	// THE RECORDS ARE NEVER EVICTED. USE IT ONLY FOR SMALL CLUSTERS OF RECORDS ALWAYS USED
+	public boolean					pinned;
+	// A NEW RECORD TAKES THE PLACE OF THE EVICTED ONE ONLY IF ACCESSED AS OFTEN. DISABLE IT FOR RECORDS READ RIGHT AFTER WRITTEN
+	public boolean					scanResistant	= true;
+	// THE RECORDS ARE LOADED IN CACHE WHEN THE STORAGE IS OPENED
+	public boolean					warmUp;
+
+	public OStorageClusterCacheConfiguration() {
+	}
+
+	public OStorageClusterCacheConfiguration(final boolean iEnabled, final int iPriority, final boolean iPinned,
+			final boolean iScanResistant, final boolean iWarmUp) {
+		enabled = iEnabled;
+		priority = Math.max(0, Math.min(iPriority, MAX_PRIORITY));
+		pinned = iPinned;
+		scanResistant = iScanResistant;
+		warmUp = iWarmUp;
+	}
+
+	/**
+	 * Returns true if the records are cached as the ones of any other cluster.
+	 */
+	public boolean isDefault() {
+		return enabled && priority == 0 && !pinned && scanResistant;
+	}
+
+	@Override
+	public String toString() {
+		return "enabled=" + enabled + ", priority=" + priority + ", pinned=" + pinned + ", scanResistant=" + scanResistant
+				+ ", warmUp=" + warmUp;
+	}
+}
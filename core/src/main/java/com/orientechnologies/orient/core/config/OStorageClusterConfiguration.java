@@ -20,4 +20,6 @@ public interface OStorageClusterConfiguration {
 	public String getName();
 
 	public int getId();
+
+	public OStorageClusterCacheConfiguration getCacheConfiguration();
 }
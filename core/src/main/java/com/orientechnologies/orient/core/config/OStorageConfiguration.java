@@ -33,8 +33,13 @@ import com.orientechnologies.orient.core.storage.OStorage;
 
 public class OStorageConfiguration implements OSerializableStream {
 	public static final int										CONFIG_RECORD_NUM	= 0;
+	// VERSION 1 ADDS THE LOCATION OF THE SEGMENTS AND THE DATA SEGMENT STRATEGY OF THE PHYSICAL CLUSTERS
+	// VERSION 2 ADDS THE APPEND MODE OF THE PHYSICAL CLUSTERS
+	// VERSION 3 ADDS THE PAGED FORMAT OF THE LOGICAL CLUSTERS
+	// VERSION 4 ADDS THE CACHE CONFIGURATION OF THE CLUSTERS
+	public static final int										CURRENT_VERSION		= 4;
 
-	public int																version						= 0;
+	public int																version						= CURRENT_VERSION;
 	public String															name;
 	public String															schemaRecordId;
 	public String															dictionaryRecordId;
@@ -166,17 +171,28 @@ public class OStorageConfiguration implements OSerializableStream {
 				index = phySegmentFromStream(values, index, phyCluster);
 				phyCluster.holeFile = new OStorageClusterHoleConfiguration(phyCluster, read(values[index++]), read(values[index++]),
 						read(values[index++]));
+				if (version > 0) {
+					phyCluster.dataSegmentStrategy = read(values[index++]);
+					phyCluster.dataSegments = read(values[index++]);
+				}
+				if (version > 1)
+					phyCluster.append = Boolean.parseBoolean(read(values[index++]));
 				clusters.set(clusterId, phyCluster);
 			} else if (clusterType.equals("l")) {
 				// LOGICAL CLUSTER
 				logCluster = new OStorageLogicalClusterConfiguration(clusterName, clusterId, Integer.parseInt(read(values[index++])),
 						new ORecordId(values[index++]));
+				if (version > 2)
+					logCluster.paged = Boolean.parseBoolean(read(values[index++]));
 				clusters.set(clusterId, logCluster);
 			} else {
 				// MEMORY CLUSTER
 				memCluster = new OStorageMemoryClusterConfiguration(clusterName, clusterId);
 				clusters.set(clusterId, memCluster);
 			}
+
+			if (version > 3)
+				index = cacheFromStream(values, index, clusters.get(clusterId).getCacheConfiguration());
 		}
 
 		// PREPARE THE LIST OF DATA SEGS
@@ -193,6 +209,7 @@ public class OStorageConfiguration implements OSerializableStream {
 			dataName = read(values[index++]);
 
 			data = new OStorageDataConfiguration(this, dataName);
+			data.id = dataId;
 			index = phySegmentFromStream(values, index, data);
 			data.holeFile = new OStorageDataHoleConfiguration(data, read(values[index++]), read(values[index++]), read(values[index++]));
 			dataSegments.set(dataId, data);
@@ -213,6 +230,8 @@ public class OStorageConfiguration implements OSerializableStream {
 	public byte[] toStream() throws OSerializationException {
 		StringBuilder buffer = new StringBuilder();
 
+		// ALWAYS WRITE IN THE CURRENT FORMAT
+		version = CURRENT_VERSION;
 		write(buffer, version);
 		write(buffer, name);
 
@@ -239,6 +258,9 @@ public class OStorageConfiguration implements OSerializableStream {
 				write(buffer, "p");
 				phySegmentToStream(buffer, (OStoragePhysicalClusterConfiguration) c);
 				fileToStream(buffer, ((OStoragePhysicalClusterConfiguration) c).holeFile);
+				write(buffer, ((OStoragePhysicalClusterConfiguration) c).dataSegmentStrategy);
+				write(buffer, ((OStoragePhysicalClusterConfiguration) c).dataSegments);
+				write(buffer, ((OStoragePhysicalClusterConfiguration) c).append);
 			} else if (c instanceof OStorageLogicalClusterConfiguration) {
 				// LOGICAL
 				write(buffer, "l");
@@ -247,6 +269,8 @@ public class OStorageConfiguration implements OSerializableStream {
 				// MEMORY
 				write(buffer, "m");
 			}
+
+			cacheToStream(buffer, c.getCacheConfiguration());
 		}
 
 		write(buffer, dataSegments.size());
@@ -287,6 +311,8 @@ public class OStorageConfiguration implements OSerializableStream {
 		iSegment.fileMaxSize = read(values[index++]);
 		iSegment.fileIncrementSize = read(values[index++]);
 		iSegment.defrag = read(values[index++]);
+		if (version > 0)
+			iSegment.location = read(values[index++]);
 
 		final int size = Integer.parseInt(read(values[index++]));
 		iSegment.infoFiles = new OStorageFileConfiguration[size];
@@ -305,15 +331,34 @@ public class OStorageConfiguration implements OSerializableStream {
 		write(iBuffer, iSegment.fileMaxSize);
 		write(iBuffer, iSegment.fileIncrementSize);
 		write(iBuffer, iSegment.defrag);
+		write(iBuffer, iSegment.location);
 
 		write(iBuffer, iSegment.infoFiles.length);
 		for (OStorageFileConfiguration f : iSegment.infoFiles)
 			fileToStream(iBuffer, f);
 	}
 
+	private int cacheFromStream(final String[] iValues, int index, final OStorageClusterCacheConfiguration iCache) {
+		iCache.enabled = Boolean.parseBoolean(read(iValues[index++]));
+		iCache.priority = Integer.parseInt(read(iValues[index++]));
+		iCache.pinned = Boolean.parseBoolean(read(iValues[index++]));
+		iCache.scanResistant = Boolean.parseBoolean(read(iValues[index++]));
+		iCache.warmUp = Boolean.parseBoolean(read(iValues[index++]));
+		return index;
+	}
+
+	private void cacheToStream(final StringBuilder iBuffer, final OStorageClusterCacheConfiguration iCache) {
+		write(iBuffer, iCache.enabled);
+		write(iBuffer, iCache.priority);
+		write(iBuffer, iCache.pinned);
+		write(iBuffer, iCache.scanResistant);
+		write(iBuffer, iCache.warmUp);
+	}
+
 	private void logSegmentToStream(final StringBuilder iBuffer, final OStorageLogicalClusterConfiguration iSegment) {
 		write(iBuffer, iSegment.physicalClusterId);
 		write(iBuffer, iSegment.map.toString());
+		write(iBuffer, iSegment.paged);
 	}
 
 	private void fileToStream(final StringBuilder iBuffer, final OStorageFileConfiguration iFile) {
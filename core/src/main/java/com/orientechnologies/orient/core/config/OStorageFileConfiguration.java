@@ -20,7 +20,7 @@ public class OStorageFileConfiguration {
 	public transient OStorageSegmentConfiguration	parent;
 
 	public String																	path;
-	public String																	type					= "mmap";
+	public String																	type					= OGlobalConfiguration.FILE_DEFAULT_TYPE.getValueAsString();
 	public String																	maxSize				= null;
 	public String																	incrementSize	= "50%";
 
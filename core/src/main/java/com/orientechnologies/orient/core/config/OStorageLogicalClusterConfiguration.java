@@ -22,6 +22,8 @@ public class OStorageLogicalClusterConfiguration implements OStorageClusterConfi
 	public int		id;
 	public int		physicalClusterId;
 	public ORID		map;
+	public boolean	paged;
+	public OStorageClusterCacheConfiguration	cache	= new OStorageClusterCacheConfiguration();
 
 	public OStorageLogicalClusterConfiguration(final String name, final int id, final int iPhysicalClusterId, final ORID map) {
 		this.name = name;
@@ -38,6 +40,10 @@ public class OStorageLogicalClusterConfiguration implements OStorageClusterConfi
 		return id;
 	}
 
+	public OStorageClusterCacheConfiguration getCacheConfiguration() {
+		return cache;
+	}
+
 	public void setId(final int iId) {
 		id = iId;
 	}
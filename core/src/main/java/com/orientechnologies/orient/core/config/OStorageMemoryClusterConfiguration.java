@@ -19,6 +19,7 @@ package com.orientechnologies.orient.core.config;
 public class OStorageMemoryClusterConfiguration implements OStorageClusterConfiguration {
   public String name;
   public int    id;
+  public OStorageClusterCacheConfiguration cache = new OStorageClusterCacheConfiguration();
 
   public OStorageMemoryClusterConfiguration(final String name, final int id) {
     this.name = name;
@@ -33,6 +34,10 @@ public class OStorageMemoryClusterConfiguration implements OStorageClusterConfig
     return id;
   }
 
+  public OStorageClusterCacheConfiguration getCacheConfiguration() {
+    return cache;
+  }
+
   public void setId(final int iId) {
     id = iId;
   }
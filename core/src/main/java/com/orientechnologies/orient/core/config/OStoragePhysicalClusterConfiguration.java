@@ -18,6 +18,13 @@ package com.orientechnologies.orient.core.config;
 public class OStoragePhysicalClusterConfiguration extends OStorageSegmentConfiguration implements OStorageClusterConfiguration {
 
 	public OStorageFileConfiguration	holeFile;
+	// STRATEGY TO CHOOSE THE DATA SEGMENT OF THE NEW RECORDS. NULL MEANS THE GLOBAL ONE
+	public String											dataSegmentStrategy;
+	// COMMA SEPARATED NAMES OF THE DATA SEGMENTS USED BY THE CLUSTER. NULL MEANS ALL
+	public String											dataSegments;
+	// APPEND MODE: THE NEW RECORDS ARE ALWAYS ADDED AT THE END WITHOUT REUSING THE HOLES
+	public boolean										append;
+	public OStorageClusterCacheConfiguration	cache				= new OStorageClusterCacheConfiguration();
 
 	private static final String				START_SIZE	= "1Mb";
 
@@ -46,6 +53,10 @@ public class OStoragePhysicalClusterConfiguration extends OStorageSegmentConfigu
 		return id;
 	}
 
+	public OStorageClusterCacheConfiguration getCacheConfiguration() {
+		return cache;
+	}
+
 	@Override
 	public void setRoot(OStorageConfiguration root) {
 		super.setRoot(root);
@@ -21,11 +21,13 @@ public class OStorageSegmentConfiguration {
 	public int															id;
 	public String														name;
 	public String														maxSize						= "0";
-	public String														fileType					= "mmap";
+	public String														fileType					= OGlobalConfiguration.FILE_DEFAULT_TYPE.getValueAsString();
 	public String														fileStartSize			= "500Kb";
 	public String														fileMaxSize				= "500Mb";
 	public String														fileIncrementSize	= "50%";
 	public String														defrag						= "auto";
+	// DIRECTORY OF THE SEGMENT FILES. NULL MEANS THE STORAGE DIRECTORY
+	public String														location;
 
 	public OStorageFileConfiguration[]			infoFiles;
 
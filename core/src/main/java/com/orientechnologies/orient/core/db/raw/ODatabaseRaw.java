@@ -33,7 +33,6 @@ import com.orientechnologies.orient.core.db.ODatabaseListener;
 import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
 import com.orientechnologies.orient.core.exception.ODatabaseException;
 import com.orientechnologies.orient.core.exception.ORecordNotFoundException;
-import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.intent.OIntent;
 import com.orientechnologies.orient.core.storage.ORawBuffer;
 import com.orientechnologies.orient.core.storage.OStorage;
@@ -186,15 +185,12 @@ public class ODatabaseRaw implements ODatabase {
 			return null;
 
 		try {
-
-			final String recId = ORecordId.generateString(iClusterId, iPosition);
-
 			// SEARCH IT IN CACHE
 			ORawBuffer result;
 
 			if (useCache) {
 				// FIND IN CACHE
-				result = getCache().getRecord(recId);
+				result = getCache().getRecord(iClusterId, iPosition);
 
 				if (result != null)
 					// FOUND: JUST RETURN IT
@@ -205,7 +201,7 @@ public class ODatabaseRaw implements ODatabase {
 
 			if (useCache)
 				// ADD THE RECORD TO THE LOCAL CACHE
-				getCache().pushRecord(recId, result);
+				getCache().pushRecord(iClusterId, iPosition, result);
 
 			return result;
 
@@ -223,7 +219,7 @@ public class ODatabaseRaw implements ODatabase {
 
 				if (useCache)
 					// ADD/UPDATE IT IN CACHE
-					getCache().pushRecord(ORecordId.generateString(iClusterId, iPosition), new ORawBuffer(iContent, 0, iRecordType));
+					getCache().pushRecord(iClusterId, iPosition, new ORawBuffer(iContent, 0, iRecordType));
 
 				return iPosition;
 			} else {
@@ -232,7 +228,7 @@ public class ODatabaseRaw implements ODatabase {
 
 				if (useCache)
 					// ADD/UPDATE IT IN CACHE
-					getCache().pushRecord(ORecordId.generateString(iClusterId, iPosition), new ORawBuffer(iContent, newVersion, iRecordType));
+					getCache().pushRecord(iClusterId, iPosition, new ORawBuffer(iContent, newVersion, iRecordType));
 
 				return newVersion;
 			}
@@ -252,7 +248,7 @@ public class ODatabaseRaw implements ODatabase {
 
 			// DELETE IT ALSO IN CACHE
 			if (useCache)
-				getCache().removeRecord(ORecordId.generateString(iClusterId, iPosition));
+				getCache().removeRecord(iClusterId, iPosition);
 
 		} catch (Exception e) {
 			OLogManager.instance().exception("Error on deleting record #%d in cluster '%s'", e, ODatabaseException.class, iPosition,
@@ -423,7 +423,7 @@ public abstract class ODatabaseRecordAbstract<REC extends ORecordInternal<?>> ex
 					// RECORD SAVED DURING PREVIOUS STREAMING PHASE: THIS HAPPENS FOR CIRCULAR REFERENCED RECORDS
 					if (underlying.isUseCache())
 						// ADD/UPDATE IT IN CACHE
-						getCache().pushRecord(iRecord.getIdentity().toString(),
+						getCache().pushRecord(iRecord.getIdentity().getClusterId(), iRecord.getIdentity().getClusterPosition(),
 								new ORawBuffer(iRecord.toStream(), iRecord.getVersion(), iRecordType));
 					return;
 				}
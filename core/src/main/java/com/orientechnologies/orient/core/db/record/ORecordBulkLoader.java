@@ -0,0 +1,130 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.db.record;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.orientechnologies.orient.core.exception.ODatabaseException;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OProperty;
+import com.orientechnologies.orient.core.metadata.security.ODatabaseSecurityResources;
+import com.orientechnologies.orient.core.metadata.security.ORole;
+import com.orientechnologies.orient.core.record.ORecord.STATUS;
+import com.orientechnologies.orient.core.record.ORecordInternal;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocalBulkLoader;
+
+/**
+ * Loads a large amount of new records in a database with a local storage using the OStorageLocalBulkLoader. The hooks are not
+ * called and the indexes are not updated while loading: the indexes of the classes of the loaded documents are rebuilt by close().
+ * Records are not put in cache. Usage:
+ *
+ * <pre>
+ * ORecordBulkLoader&lt;ODocument&gt; loader = new ORecordBulkLoader&lt;ODocument&gt;(db);
+ * try {
+ *   for (...)
+ *     loader.add(doc);
+ * } finally {
+ *   loader.close();
+ * }
+ * </pre>
+ *
+ * The storage is locked in exclusive mode until close(), so the loader must be used by one thread only.
+ */
+public class ORecordBulkLoader<REC extends ORecordInternal<?>> {
+	private final ODatabaseRecord<?>				database;
+	private final OStorageLocalBulkLoader	loader;
+	private final Set<Integer>							checkedClusters	= new HashSet<Integer>();
+	private final Set<OClass>								classes					= new HashSet<OClass>();
+
+	public ORecordBulkLoader(final ODatabaseRecord<?> iDatabase) {
+		final OStorage storage = iDatabase.getStorage();
+		if (!(storage instanceof OStorageLocal))
+			throw new ODatabaseException("Bulk load is supported only by local storages, while the database uses: " + storage);
+
+		database = iDatabase;
+		loader = ((OStorageLocal) storage).bulkLoad();
+	}
+
+	/**
+	 * Adds a new record in the default cluster of its class if it's a document with a class, otherwise in the default cluster of the
+	 * database.
+	 */
+	public ORecordBulkLoader<REC> add(final REC iRecord) {
+		return add(iRecord, null);
+	}
+
+	/**
+	 * Adds a new record in the requested cluster.
+	 */
+	public ORecordBulkLoader<REC> add(final REC iRecord, final String iClusterName) {
+		if (!iRecord.getIdentity().isNew())
+			throw new ODatabaseException("Can't bulk load the record " + iRecord.getIdentity() + " because it's not new");
+
+		OClass cls = null;
+		if (iRecord instanceof ODocument) {
+			cls = ((ODocument) iRecord).getSchemaClass();
+			if (cls != null)
+				classes.add(cls);
+		}
+
+		final int clusterId;
+		if (iClusterName != null)
+			clusterId = database.getClusterIdByName(iClusterName);
+		else if (cls != null)
+			clusterId = cls.getDefaultClusterId();
+		else
+			clusterId = database.getDefaultClusterId();
+
+		if (!checkedClusters.contains(clusterId)) {
+			// CHECK ACCESS ON CLUSTER ONLY THE FIRST TIME
+			database.checkSecurity(ODatabaseSecurityResources.CLUSTER, ORole.PERMISSION_CREATE, database.getClusterNameById(clusterId),
+					clusterId);
+			checkedClusters.add(clusterId);
+		}
+
+		if (iRecord.getDatabase() == null)
+			iRecord.setDatabase(database);
+
+		final long position = loader.addRecord(clusterId, iRecord.toStream(), iRecord.getRecordType());
+
+		iRecord.unsetDirty();
+		iRecord.fill(iRecord.getDatabase(), clusterId, position, 0);
+		iRecord.setStatus(STATUS.LOADED);
+		return this;
+	}
+
+	public long getRecords() {
+		return loader.getRecords();
+	}
+
+	/**
+	 * Ends the load and rebuilds the indexes of the classes of the loaded documents.
+	 */
+	public void close() {
+		loader.close();
+
+		for (OClass cls : classes)
+			for (OProperty prop : cls.properties())
+				if (prop.getIndex() != null)
+					prop.getIndex().rebuild();
+
+		classes.clear();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.db.tool;
+
+import com.orientechnologies.orient.core.command.OCommandOutputListener;
+import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
+import com.orientechnologies.orient.core.exception.ODatabaseException;
+import com.orientechnologies.orient.core.record.ORecordInternal;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.serialization.serializer.record.ORecordSerializer;
+import com.orientechnologies.orient.core.serialization.serializer.record.ORecordSerializerFactory;
+import com.orientechnologies.orient.core.serialization.serializer.record.string.ORecordSerializerDocument2Binary;
+import com.orientechnologies.orient.core.serialization.serializer.record.string.ORecordSerializerSchemaAware2CSV;
+
+/**
+ * Rewrites the documents of a database in another format, for example from CSV to binary. Only the documents in a different
+ * format are saved. Since both the formats are always readable the database can be used during the migration, and new documents
+ * are written in the format configured in "db.document.serializer".
+ *
+ * @see ORecordSerializerDocument2Binary
+ */
+public class ODatabaseMigrate extends ODatabaseImpExpAbstract {
+	private final ORecordSerializer	format;
+	private final boolean						binary;
+
+	public ODatabaseMigrate(final ODatabaseRecord<?> iDatabase, final String iFormat, final OCommandOutputListener iListener) {
+		super(iDatabase, null, iListener);
+
+		format = ORecordSerializerFactory.instance().getFormat(iFormat);
+		if (!(format instanceof ORecordSerializerSchemaAware2CSV) && !(format instanceof ORecordSerializerDocument2Binary))
+			throw new IllegalArgumentException("Document format '" + iFormat + "' not supported. Use "
+					+ ORecordSerializerSchemaAware2CSV.NAME + " or " + ORecordSerializerDocument2Binary.NAME);
+
+		binary = format instanceof ORecordSerializerDocument2Binary;
+	}
+
+	public ODatabaseMigrate migrateDatabase() {
+		try {
+			listener.onMessage("\nStarted migration of database '" + database.getName() + "' to format " + format + "...");
+
+			final long time = System.currentTimeMillis();
+
+			final long totalMigrated = migrateRecords();
+
+			listener.onMessage("\n\nDatabase migration completed in " + (System.currentTimeMillis() - time) + "ms. Rewritten "
+					+ totalMigrated + " documents\n");
+
+		} catch (Exception e) {
+			throw new ODatabaseException("Error on migrating database '" + database.getName() + "' to format " + format, e);
+		}
+
+		return this;
+	}
+
+	public long migrateRecords() {
+		long totalMigrated = 0;
+
+		for (String clusterName : database.getClusterNames()) {
+			// CHECK IF THE CLUSTER IS INCLUDED
+			if (includeClusters != null) {
+				if (!includeClusters.contains(clusterName))
+					continue;
+			} else if (excludeClusters != null) {
+				if (excludeClusters.contains(clusterName))
+					continue;
+			}
+
+			listener.onMessage("\n- Migrating documents of cluster '" + clusterName + "'...");
+
+			long migrated = 0;
+			for (ORecordInternal<?> rec : database.browseCluster(clusterName)) {
+				if (!(rec instanceof ODocument))
+					continue;
+
+				// CHECK IF THE CLASS OF THE DOCUMENT IS INCLUDED
+				final ODocument doc = (ODocument) rec;
+				if (includeClasses != null) {
+					if (!includeClasses.contains(doc.getClassName()))
+						continue;
+				} else if (excludeClasses != null) {
+					if (excludeClasses.contains(doc.getClassName()))
+						continue;
+				}
+
+				if (migrateDocument(doc))
+					migrated++;
+			}
+
+			listener.onMessage("OK (documents=" + migrated + ")");
+
+			totalMigrated += migrated;
+		}
+
+		return totalMigrated;
+	}
+
+	/**
+	 * Saves the document in the target format if written in another one. The documents that can't be read back from the CSV format,
+	 * like the ones with collections of items of different types, are left in binary format.
+	 *
+	 * @return true if the document has been rewritten
+	 */
+	protected boolean migrateDocument(final ODocument iDocument) {
+		final byte[] source = iDocument.toStream();
+		if (ORecordSerializerDocument2Binary.isBinary(source) == binary)
+			return false;
+
+		// READ ALL THE FIELDS BEFORE TO LOSE THE CONTENT
+		iDocument.fieldNames();
+
+		iDocument.setRecordFormat(format);
+		iDocument.setDirty();
+
+		if (!binary)
+			try {
+				final ODocument check = new ODocument(database);
+				check.fromStream(iDocument.toStream());
+				check.fieldNames();
+			} catch (Exception e) {
+				listener.onMessage("\n- Document " + iDocument.getIdentity() + " left in binary format: " + e.getMessage());
+				iDocument.setRecordFormat(ORecordSerializerDocument2Binary.INSTANCE);
+				iDocument.fromStream(source);
+				return false;
+			}
+
+		iDocument.save();
+		return true;
+	}
+}
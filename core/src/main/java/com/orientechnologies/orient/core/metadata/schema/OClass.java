@@ -236,20 +236,20 @@ public class OClass extends ODocumentWrapperNoClass {
 
 	public void fromStream() {
 		name = document.field("name");
-		id = ((Long) document.field("id")).intValue();
-		defaultClusterId = ((Long) document.field("defaultClusterId")).intValue();
+		id = ((Number) document.field("id")).intValue();
+		defaultClusterId = ((Number) document.field("defaultClusterId")).intValue();
 
-		Collection<Long> coll = document.field("clusterIds");
+		Collection<Number> coll = document.field("clusterIds");
 		clusterIds = new int[coll.size()];
 		int i = 0;
-		for (Long item : coll)
+		for (Number item : coll)
 			clusterIds[i++] = item.intValue();
 
 		polymorphicClusterIds = clusterIds;
 
 		// READ PROPERTIES
 		OProperty prop;
-		List<ODocument> storedProperties = document.field("properties");
+		Collection<ODocument> storedProperties = document.field("properties");
 		for (ODocument p : storedProperties) {
 			p.setDatabase(document.getDatabase());
 			prop = new OProperty(this, p);
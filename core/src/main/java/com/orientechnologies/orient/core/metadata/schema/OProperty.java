@@ -121,8 +121,8 @@ public class OProperty extends ODocumentWrapperNoClass {
 	public void fromStream() {
 		name = document.field("name");
 		if (document.field("type") != null)
-			type = OType.getById(((Long) document.field("type")).byteValue());
-		offset = ((Long) document.field("offset")).intValue();
+			type = OType.getById(((Number) document.field("type")).byteValue());
+		offset = ((Number) document.field("offset")).intValue();
 
 		mandatory = (Boolean) document.field("mandatory");
 		notNull = (Boolean) document.field("notNull");
@@ -132,7 +132,7 @@ public class OProperty extends ODocumentWrapperNoClass {
 
 		linkedClassName = (String) document.field("linkedClass");
 		if (document.field("linkedType") != null)
-			linkedType = OType.getById(((Long) document.field("linkedType")).byteValue());
+			linkedType = OType.getById(((Number) document.field("linkedType")).byteValue());
 
 		if (document.field("index") != null) {
 			setIndex(INDEX_TYPE.valueOf((String) document.field("index-type")), ((ODocument) document.field("index")).getIdentity());
@@ -18,7 +18,6 @@ package com.orientechnologies.orient.core.metadata.schema;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 
 import com.orientechnologies.orient.core.annotation.OBeforeSerialization;
@@ -154,7 +153,7 @@ public class OSchema extends ODocumentWrapperNoClass {
 	 */
 	public void fromStream() {
 		// READ CURRENT SCHEMA VERSION
-		int schemaVersion = ((Long) document.field("schemaVersion")).intValue();
+		int schemaVersion = ((Number) document.field("schemaVersion")).intValue();
 		if (schemaVersion != CURRENT_VERSION_NUMBER) {
 			// HANDLE SCHEMA UPGRADE
 			throw new OConfigurationException(
@@ -164,7 +163,7 @@ public class OSchema extends ODocumentWrapperNoClass {
 		// REGISTER ALL THE CLASSES
 		classes.clear();
 		OClass cls;
-		List<ODocument> storedClasses = document.field("classes");
+		Collection<ODocument> storedClasses = document.field("classes");
 		for (ODocument c : storedClasses) {
 			c.setDatabase(document.getDatabase());
 			cls = new OClass(this, c);
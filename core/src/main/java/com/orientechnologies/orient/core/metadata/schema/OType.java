@@ -342,4 +342,8 @@ public enum OType {
 	public Class<?>[] getJavaTypes() {
 		return javaTypes;
 	}
+
+	public int getId() {
+		return id;
+	}
 }
@@ -33,6 +33,7 @@ public abstract class ORecordVirtualAbstract<T> extends ORecordSchemaAwareAbstra
 	protected Map<String, OType>	_fieldTypes;
 	protected boolean							_trackingChanges	= true;
 	protected boolean							_ordered					= false;
+	protected boolean							_partiallyLoaded	= false;
 
 	public ORecordVirtualAbstract() {
 	}
@@ -65,6 +66,7 @@ public abstract class ORecordVirtualAbstract<T> extends ORecordSchemaAwareAbstra
 
 	public ORecordAbstract<T> unload() {
 		super.unload();
+		_partiallyLoaded = false;
 		if (_fieldValues != null)
 			_fieldValues.clear();
 		return this;
@@ -75,6 +77,7 @@ public abstract class ORecordVirtualAbstract<T> extends ORecordSchemaAwareAbstra
 	 */
 	@Override
 	public ORecordSchemaAwareAbstract<T> clear() {
+		_partiallyLoaded = false;
 		super.clear();
 		if (_fieldValues != null)
 			_fieldValues.clear();
@@ -86,6 +89,7 @@ public abstract class ORecordVirtualAbstract<T> extends ORecordSchemaAwareAbstra
 	 */
 	@Override
 	public ORecordSchemaAwareAbstract<T> reset() {
+		_partiallyLoaded = false;
 		super.reset();
 		if (_fieldValues != null)
 			_fieldValues.clear();
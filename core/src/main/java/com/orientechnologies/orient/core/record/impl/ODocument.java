@@ -28,6 +28,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
 import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
 import com.orientechnologies.orient.core.db.record.ORecordLazyList;
 import com.orientechnologies.orient.core.db.record.ORecordLazyMap;
@@ -48,7 +49,9 @@ import com.orientechnologies.orient.core.record.ORecordAbstract;
 import com.orientechnologies.orient.core.record.ORecordVirtualAbstract;
 import com.orientechnologies.orient.core.serialization.OBase64Utils;
 import com.orientechnologies.orient.core.serialization.OBinaryProtocol;
+import com.orientechnologies.orient.core.serialization.serializer.record.ORecordSerializer;
 import com.orientechnologies.orient.core.serialization.serializer.record.ORecordSerializerFactory;
+import com.orientechnologies.orient.core.serialization.serializer.record.string.ORecordSerializerDocument2Binary;
 import com.orientechnologies.orient.core.serialization.serializer.record.string.ORecordSerializerSchemaAware2CSV;
 
 /**
@@ -188,6 +191,7 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 		cloned._clazz = _clazz;
 		cloned._status = _status;
 		cloned._recordFormat = _recordFormat;
+		cloned._partiallyLoaded = _partiallyLoaded;
 
 		if (_fieldValues != null) {
 			cloned._fieldValues = new LinkedHashMap<String, Object>();
@@ -426,6 +430,7 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 		_fieldOriginalValues = null;
 		_fieldTypes = null;
 		_fieldValues = null;
+		_partiallyLoaded = false;
 		_cursor = 0;
 	}
 
@@ -433,6 +438,9 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 	 * Returns the field number.
 	 */
 	public int size() {
+		if (isBinaryNotUnmarshalled())
+			deserializeRemainingFields();
+
 		return _fieldValues == null ? 0 : _fieldValues.size();
 	}
 
@@ -459,12 +467,15 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 
 	public <RET> RET rawField(final String iPropertyName) {
 		checkForLoading();
-		checkForFields();
 
-		int separatorPos = iPropertyName.indexOf('.');
+		final int separatorPos = iPropertyName.indexOf('.');
+		final String fieldName = separatorPos > -1 ? iPropertyName.substring(0, separatorPos) : iPropertyName;
+
+		if (!deserializeField(fieldName))
+			checkForFields();
+
 		if (separatorPos > -1) {
 			// GET THE LINKED OBJECT IF ANY
-			String fieldName = iPropertyName.substring(0, separatorPos);
 			Object linkedObject = _fieldValues.get(fieldName);
 
 			if (linkedObject == null || !(linkedObject instanceof ODocument))
@@ -705,6 +716,8 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 	 * @return
 	 */
 	public ODocument merge(final ODocument iOther, boolean iConflictsOtherWins, boolean iMergeSingleItemsOfMultiValueFields) {
+		iOther.checkForLoading();
+		iOther.checkForFields();
 		return merge(iOther._fieldValues, iConflictsOtherWins, iMergeSingleItemsOfMultiValueFields);
 	}
 
@@ -779,6 +792,9 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 	 * Returns the iterator against the field entries as name and value.
 	 */
 	public Iterator<Entry<String, Object>> iterator() {
+		// THE CLASS CAN BE READ WITHOUT THE FIELDS: NEVER ASSUME THEY HAVE BEEN UNMARSHALLED
+		checkForFields();
+
 		if (_fieldValues == null)
 			return OEmptyIterator.INSTANCE;
 
@@ -826,6 +842,14 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 	 */
 	@Override
 	public ORecordAbstract<Object> setDirty() {
+		if (_status == STATUS.UNMARSHALLING)
+			// FILLING THE COLLECTIONS OF THE FIELDS BEING UNMARSHALLED: THE CONTENT IS UNCHANGED
+			return this;
+
+		if (_partiallyLoaded)
+			// READ THE OTHER FIELDS BEFORE TO LOSE THE SOURCE
+			deserializeRemainingFields();
+
 		if (_owner != null)
 			// PROPAGATES TO THE OWNER
 			_owner.setDirty();
@@ -838,7 +862,118 @@ public class ODocument extends ORecordVirtualAbstract<Object> implements Iterabl
 	@Override
 	protected void setup() {
 		super.setup();
-		_recordFormat = ORecordSerializerFactory.instance().getFormat(ORecordSerializerSchemaAware2CSV.NAME);
+		_recordFormat = ORecordSerializerFactory.instance().getFormat(OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.getValueAsString());
+		if (_recordFormat == null)
+			_recordFormat = ORecordSerializerFactory.instance().getFormat(ORecordSerializerSchemaAware2CSV.NAME);
+	}
+
+	/**
+	 * Sets the format used to marshall the document on the next save. The content already saved is read in any format.
+	 */
+	public ODocument setRecordFormat(final ORecordSerializer iRecordFormat) {
+		_recordFormat = iRecordFormat;
+		return this;
+	}
+
+	@Override
+	public ORecordAbstract<Object> fromStream(final byte[] iRecordBuffer) {
+		if (_partiallyLoaded) {
+			// THE FIELDS READ BELONG TO THE PREVIOUS CONTENT
+			_partiallyLoaded = false;
+			_fieldValues.clear();
+		}
+		return super.fromStream(iRecordBuffer);
+	}
+
+	/**
+	 * Reads only the class from the header if the content is in binary format and has not been unmarshalled yet, so the filters
+	 * by class don't unmarshall all the fields of every record.
+	 */
+	@Override
+	public OClass getSchemaClass() {
+		if (_clazz == null && isBinaryNotUnmarshalled()) {
+			setClassNameIfExists(ORecordSerializerDocument2Binary.INSTANCE.readClassName(_source));
+			return _clazz;
+		}
+		return super.getSchemaClass();
+	}
+
+	@Override
+	public String getClassName() {
+		if (isBinaryNotUnmarshalled()) {
+			final OClass clazz = getSchemaClass();
+			return clazz != null ? clazz.getName() : null;
+		}
+		return super.getClassName();
+	}
+
+	@Override
+	protected void checkForFields() {
+		if (_partiallyLoaded)
+			deserializeRemainingFields();
+		else
+			super.checkForFields();
+	}
+
+	/**
+	 * Unmarshalls only the requested field if the content is in binary format and the fields have not been unmarshalled yet, so
+	 * reading a few fields of a big document doesn't pay the unmarshalling of the others.
+	 * 
+	 * @return false if all the fields must be unmarshalled
+	 */
+	protected boolean deserializeField(final String iFieldName) {
+		if (!isBinaryNotUnmarshalled())
+			return false;
+
+		if (_fieldValues == null)
+			_fieldValues = _ordered ? new LinkedHashMap<String, Object>() : new HashMap<String, Object>();
+		else if (_fieldValues.containsKey(iFieldName))
+			return true;
+
+		final ORecordSerializerDocument2Binary serializer = ORecordSerializerDocument2Binary.INSTANCE;
+
+		if (!_partiallyLoaded) {
+			// FIRST FIELD READ: GET THE CLASS TOO
+			setClassNameIfExists(serializer.readClassName(_source));
+			_partiallyLoaded = true;
+		}
+
+		final int field = serializer.findField(_source, iFieldName);
+		if (field > -1) {
+			_status = STATUS.UNMARSHALLING;
+			try {
+				_fieldValues.put(iFieldName, serializer.readField(this, _source, field));
+			} finally {
+				_status = STATUS.LOADED;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns true if the content is in binary format and not all its fields have been unmarshalled.
+	 */
+	protected boolean isBinaryNotUnmarshalled() {
+		return _status == STATUS.LOADED && (_partiallyLoaded || _fieldValues == null || _fieldValues.isEmpty())
+				&& ORecordSerializerDocument2Binary.isBinary(_source);
+	}
+
+	/**
+	 * Unmarshalls the fields not read by {@link #deserializeField(String)}, keeping the values of the fields already read.
+	 */
+	protected void deserializeRemainingFields() {
+		final Map<String, Object> loadedFields = _fieldValues;
+		_partiallyLoaded = false;
+		_fieldValues = _ordered ? new LinkedHashMap<String, Object>() : new HashMap<String, Object>();
+
+		final STATUS status = _status;
+		_status = STATUS.UNMARSHALLING;
+		try {
+			ORecordSerializerDocument2Binary.INSTANCE.fromStream(this, _source, loadedFields);
+		} finally {
+			_status = status;
+		}
 	}
 
 	private <RET> RET convertField(final String iPropertyName, final Class<?> iType, RET iValue) {
@@ -36,7 +36,7 @@ public class ORecordSerializerFactory {
 		implementations.put(ORecordSerializerPositional2CSV.NAME, new ORecordSerializerPositional2CSV());
 		implementations.put(ORecordSerializerSchemaAware2CSV.NAME, new ORecordSerializerSchemaAware2CSV());
 		implementations.put(ORecordSerializerJSON.NAME, new ORecordSerializerJSON());
-		implementations.put(ORecordSerializerDocument2Binary.NAME, defaultRecordFormat);
+		implementations.put(ORecordSerializerDocument2Binary.NAME, ORecordSerializerDocument2Binary.INSTANCE);
 	}
 
 	public Collection<ORecordSerializer> getFormats() {
@@ -153,7 +153,10 @@ public abstract class ORecordSerializerCSVAbstract extends ORecordSerializerStri
 			if (iValue.length() > 2) {
 				// REMOVE BEGIN & END EMBEDDED CHARACTERS
 				final String value = iValue.substring(1, iValue.length() - 1);
-				return OStringSerializerHelper.fieldTypeFromStream((ODocument) iSourceRecord, iType, value);
+				final Object embedded = OStringSerializerHelper.fieldTypeFromStream((ODocument) iSourceRecord, iType, value);
+				if (embedded instanceof ODocument)
+					((ODocument) embedded).setOwner((ODocument) iSourceRecord);
+				return embedded;
 			} else
 				return null;
 
@@ -15,251 +15,782 @@
  */
 package com.orientechnologies.orient.core.serialization.serializer.record.string;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
+import com.orientechnologies.common.collection.OMultiValue;
 import com.orientechnologies.common.log.OLogManager;
-import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.orient.core.OConstants;
+import com.orientechnologies.orient.core.annotation.OAfterSerialization;
+import com.orientechnologies.orient.core.annotation.OBeforeSerialization;
+import com.orientechnologies.orient.core.config.OStorageConfiguration;
 import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
-import com.orientechnologies.orient.core.exception.ODatabaseException;
+import com.orientechnologies.orient.core.db.record.ORecordLazyList;
+import com.orientechnologies.orient.core.db.record.ORecordLazyMap;
+import com.orientechnologies.orient.core.db.record.ORecordLazySet;
+import com.orientechnologies.orient.core.db.record.ORecordTrackedList;
+import com.orientechnologies.orient.core.db.record.ORecordTrackedSet;
+import com.orientechnologies.orient.core.exception.OSerializationException;
 import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
 import com.orientechnologies.orient.core.metadata.schema.OProperty;
+import com.orientechnologies.orient.core.metadata.schema.OType;
 import com.orientechnologies.orient.core.record.ORecord;
 import com.orientechnologies.orient.core.record.ORecordInternal;
-import com.orientechnologies.orient.core.record.ORecordSchemaAware;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.serialization.OBase64Utils;
+import com.orientechnologies.orient.core.serialization.OBinaryProtocol;
+import com.orientechnologies.orient.core.serialization.OMemoryOutputStream;
+import com.orientechnologies.orient.core.serialization.serializer.object.OObjectSerializerHelper;
 import com.orientechnologies.orient.core.serialization.serializer.record.ORecordSerializer;
+import com.orientechnologies.orient.core.serialization.serializer.record.OSerializationThreadLocal;
 
+/**
+ * Serializes the documents in binary format. The content starts with a header containing the offset of every field, so a single
+ * field can be read without parsing the others:
+ * <ul>
+ * <li>marker byte (0, never present at the beginning of the CSV format) and version byte</li>
+ * <li>number of fields as int</li>
+ * <li>class name as short length (-1 if none) followed by the UTF-8 bytes</li>
+ * <li>an entry per field: hash code of the name as int, position of the name as int, type id as byte (-1 if null) and position of
+ * the value as int</li>
+ * <li>the names of the fields as short length followed by the UTF-8 bytes, then the values</li>
+ * </ul>
+ * Values are stored by type: numbers, booleans and dates in fixed size, strings and binaries as int length followed by the bytes,
+ * links as short cluster id and long cluster position, embedded documents as int length followed by their content in this format,
+ * collections and maps as int number of items followed by the items. The items of embedded collections and maps are preceded by
+ * their type id. <br/>
+ * Contents in CSV format are delegated to the CSV serializer and vice versa, so a database can contain both the formats.
+ *
+ * @see ORecordSerializerSchemaAware2CSV
+ */
 public class ORecordSerializerDocument2Binary implements ORecordSerializer {
-	public static final String	NAME	= "ORecordDocument2binary";
+	public static final String															NAME						= "ORecordDocument2binary";
+	public static final ORecordSerializerDocument2Binary	INSTANCE				= new ORecordSerializerDocument2Binary();
+
+	public static final byte																MARKER					= 0;
+	public static final byte																VERSION					= 1;
 
-	protected ORecordSchemaAware<?> newObject(ODatabaseRecord<?> iDatabase, String iClassName) throws InstantiationException,
-			IllegalAccessException {
-		return new ODocument(iDatabase);
+	private static final byte																NULL_TYPE				= -1;
+	private static final int																FIELDS_OFFSET		= 2;
+	private static final int																CLASS_OFFSET		= FIELDS_OFFSET + OConstants.SIZE_INT;
+	private static final int																ENTRY_SIZE			= OConstants.SIZE_INT * 3 + OConstants.SIZE_BYTE;
+	private static final int																ENTRY_NAME			= OConstants.SIZE_INT;
+	private static final int																ENTRY_TYPE			= OConstants.SIZE_INT * 2;
+	private static final int																ENTRY_VALUE			= ENTRY_TYPE + OConstants.SIZE_BYTE;
+
+	/**
+	 * Returns true if the content has been written by this serializer.
+	 */
+	public static boolean isBinary(final byte[] iSource) {
+		return iSource != null && iSource.length >= CLASS_OFFSET + OConstants.SIZE_SHORT && iSource[0] == MARKER;
 	}
 
-	public ORecordInternal<?> fromStream(ODatabaseRecord<?> iDatabase, byte[] iSource) {
-		// TODO: HANDLE FACTORIES
+	public ORecordInternal<?> fromStream(final ODatabaseRecord<?> iDatabase, final byte[] iSource) {
 		return fromStream(iDatabase, iSource, null);
 	}
 
-	public ORecordInternal<?> fromStream(ODatabaseRecord<?> iDatabase, byte[] iSource, ORecordInternal<?> iRecord) {
-		ODocument record = (ODocument) iRecord;
-		ODatabaseDocument database = (ODatabaseDocument) iDatabase;
+	public ORecordInternal<?> fromStream(final ODatabaseRecord<?> iDatabase, final byte[] iSource, final ORecordInternal<?> iRecord) {
+		if (!isBinary(iSource))
+			// WRITTEN IN CSV FORMAT
+			return ORecordSerializerSchemaAware2CSV.INSTANCE.fromStream(iDatabase, iSource,
+					iRecord != null ? iRecord : new ODocument(iDatabase));
 
-		if (iRecord == null)
-			record = new ODocument(database);
+		return fromStream(iRecord != null ? (ODocument) iRecord : new ODocument(iDatabase), iSource, null);
+	}
 
-		ByteArrayInputStream stream = null;
-		DataInputStream in = null;
+	/**
+	 * Unmarshalls all the fields of the document.
+	 *
+	 * @param iLoadedFields
+	 *          Values of the fields already read by {@link #readField(ODocument, byte[], int)}, reused instead of reading them again.
+	 *          Can be null
+	 */
+	public ODocument fromStream(final ODocument iRecord, final byte[] iSource, final Map<String, Object> iLoadedFields) {
+		final long timer = OProfiler.getInstance().startChrono();
 
 		try {
-			stream = new ByteArrayInputStream(iSource);
-			in = new DataInputStream(stream);
-
-			// UNMARSHALL ALL THE PROPERTIES
-			Object value;
-			int length;
-			byte[] buffer;
-			for (OProperty p : record.getSchemaClass().properties()) {
-				value = null;
-
-				switch (p.getType()) {
-				case BINARY:
-					length = in.readInt();
-					if (length >= 0) {
-						// != NULL
-						buffer = new byte[length];
-						in.readFully(buffer);
-						value = buffer;
-					}
-					break;
-				case BOOLEAN:
-					value = in.readBoolean();
-					break;
-				case DATE:
-					long date = in.readLong();
-					if (date > -1)
-						value = new Date(date);
-					break;
-				case DOUBLE:
-					value = in.readDouble();
-					break;
-				case EMBEDDED:
-					length = in.readInt();
-					if (length >= 0) {
-						// != NULL
-						buffer = new byte[length];
-						in.readFully(buffer);
-						value = new ODocument(database, p.getLinkedClass().getName()).fromStream(buffer);
-					}
-					break;
-				case EMBEDDEDLIST:
-					break;
-				case EMBEDDEDSET:
-					break;
-				case FLOAT:
-					value = in.readFloat();
-					break;
-				case INTEGER:
-					value = in.readInt();
-					break;
-				case LINK:
-					value = new ORecordId(in.readInt(), in.readInt());
-					break;
-				case LINKLIST:
-					break;
-				case LINKSET:
-					break;
-				case LONG:
-					value = in.readLong();
-					break;
-				case SHORT:
-					value = in.readShort();
-					break;
-				case STRING:
-					value = in.readUTF();
-					break;
+			checkVersion(iSource);
+
+			iRecord.setClassNameIfExists(readClassName(iSource));
+
+			final int fields = OBinaryProtocol.bytes2int(iSource, FIELDS_OFFSET);
+
+			String fieldName = null;
+			for (int i = 0; i < fields; ++i) {
+				try {
+					fieldName = readFieldName(iSource, i);
+
+					if (iLoadedFields != null && iLoadedFields.containsKey(fieldName))
+						iRecord.field(fieldName, iLoadedFields.get(fieldName));
+					else
+						iRecord.field(fieldName, readField(iRecord, iSource, i));
+
+				} catch (Exception e) {
+					OLogManager.instance().exception("Error on unmarshalling field '%s'", e, OSerializationException.class, fieldName);
 				}
-				record.field(p.getName(), value);
 			}
-		} catch (Exception e) {
-			OLogManager.instance().error(this, "Error on unmarshalling object in binary format: " + record.getIdentity(), e);
+
+			iRecord.unsetDirty();
+
+			return iRecord;
 
 		} finally {
-			try {
-				if (stream != null)
-					stream.close();
+			OProfiler.getInstance().stopChrono("ORecordSerializerDocument2Binary.fromStream", timer);
+		}
+	}
 
-				if (in != null)
-					in.close();
-			} catch (IOException e) {
-			}
+	/**
+	 * Searches a field in the header.
+	 *
+	 * @return The index of the field, or -1 if not present
+	 */
+	public int findField(final byte[] iSource, final String iFieldName) {
+		checkVersion(iSource);
+
+		final int hash = iFieldName.hashCode();
+		final int fields = OBinaryProtocol.bytes2int(iSource, FIELDS_OFFSET);
+		final int firstEntry = getFirstEntry(iSource);
+
+		for (int i = 0; i < fields; ++i)
+			if (OBinaryProtocol.bytes2int(iSource, firstEntry + i * ENTRY_SIZE) == hash && iFieldName.equals(readFieldName(iSource, i)))
+				return i;
+
+		return -1;
+	}
+
+	/**
+	 * Reads the value of the field at the index returned by {@link #findField(byte[], String)} without reading the others.
+	 */
+	public Object readField(final ODocument iRecord, final byte[] iSource, final int iField) {
+		final int entry = getFirstEntry(iSource) + iField * ENTRY_SIZE;
+
+		final byte typeId = iSource[entry + ENTRY_TYPE];
+		if (typeId == NULL_TYPE)
+			return null;
+
+		final int[] position = new int[] { OBinaryProtocol.bytes2int(iSource, entry + ENTRY_VALUE) };
+		return readValue(iRecord, OType.getById(typeId), iSource, position);
+	}
+
+	public String readClassName(final byte[] iSource) {
+		final short length = OBinaryProtocol.bytes2short(iSource, CLASS_OFFSET);
+		if (length < 0)
+			return null;
+
+		return OBinaryProtocol.bytes2string(iSource, CLASS_OFFSET + OConstants.SIZE_SHORT, length);
+	}
+
+	public byte[] toStream(final ODatabaseRecord<?> iDatabase, final ORecordInternal<?> iRecord) {
+		if (!(iRecord instanceof ODocument))
+			throw new OSerializationException("Can't marshall a record of type " + iRecord.getClass().getSimpleName() + " in binary format");
+
+		final long timer = OProfiler.getInstance().startChrono();
+
+		try {
+			return documentToStream((ODocument) iRecord);
+		} catch (IOException e) {
+			throw new OSerializationException("Error on marshalling the document " + iRecord.getIdentity() + " in binary format", e);
+		} finally {
+			OProfiler.getInstance().stopChrono("ORecordSerializerDocument2Binary.toStream", timer);
 		}
+	}
 
-		return iRecord;
+	@Override
+	public String toString() {
+		return NAME;
 	}
 
-	public byte[] toStream(ODatabaseRecord<?> iDatabase, ORecordInternal<?> iRecord) {
-		ODocument record = (ODocument) iRecord;
+	protected byte[] documentToStream(final ODocument iRecord) throws IOException {
+		final Set<Integer> marshalledRecords = OSerializationThreadLocal.INSTANCE.get();
 
-		ByteArrayOutputStream stream = null;
-		DataOutputStream out = null;
+		// CHECK IF THE RECORD IS PENDING TO BE MARSHALLED
+		final Integer identityRecord = System.identityHashCode(iRecord);
+		final boolean pending = marshalledRecords.contains(identityRecord);
+		if (!pending)
+			marshalledRecords.add(identityRecord);
 
 		try {
-			stream = new ByteArrayOutputStream();
-			out = new DataOutputStream(stream);
-
-			// MARSHALL ALL THE PROPERTIES
-			Object value;
-			byte[] buffer;
-			for (OProperty p : record.getSchemaClass().properties()) {
-				value = record.field(p.getName());
-
-				switch (p.getType()) {
-				case BINARY:
-					if (value == null)
-						// NULL: WRITE -1 AS LENGTH
-						out.writeInt(-1);
-					else {
-						buffer = (byte[]) value;
-						out.writeInt(buffer.length);
-						out.write(buffer);
-					}
-					break;
-				case BOOLEAN:
-					out.writeBoolean(value != null);
-					if (value != null)
-						out.writeBoolean((Boolean) value);
-					break;
-				case DATE:
-					out.writeLong(value != null ? ((Date) value).getTime() : -1);
-					break;
-				case DOUBLE:
-					out.writeBoolean(value != null);
-					if (value != null)
-						out.writeDouble((Double) value);
-					break;
-				case EMBEDDED:
-					if (value == null)
-						// NULL: WRITE -1 AS LENGTH
-						out.writeInt(-1);
-					else {
-						buffer = ((ORecordInternal<?>) value).toStream();
-						out.writeInt(buffer.length);
-						out.write(buffer);
+			final String className = iRecord.getClassName();
+			final byte[] classNameBytes = className != null ? OBinaryProtocol.string2bytes(className) : null;
+			final int fields = pending ? 0 : iRecord.size();
+
+			final int firstEntry = CLASS_OFFSET + OConstants.SIZE_SHORT + (classNameBytes != null ? classNameBytes.length : 0);
+			final int headerSize = firstEntry + fields * ENTRY_SIZE;
+
+			final byte[] header = new byte[headerSize];
+			header[0] = MARKER;
+			header[1] = VERSION;
+			OBinaryProtocol.int2bytes(fields, header, FIELDS_OFFSET);
+			if (classNameBytes != null) {
+				OBinaryProtocol.short2bytes((short) classNameBytes.length, header, CLASS_OFFSET);
+				System.arraycopy(classNameBytes, 0, header, CLASS_OFFSET + OConstants.SIZE_SHORT, classNameBytes.length);
+			} else
+				OBinaryProtocol.short2bytes((short) -1, header, CLASS_OFFSET);
+
+			final OMemoryOutputStream body = new OMemoryOutputStream();
+
+			if (!pending) {
+				final OClass clazz = iRecord.getSchemaClass();
+
+				byte[] name;
+				OType type;
+				Object value;
+				int entry = firstEntry;
+				for (Entry<String, Object> f : iRecord) {
+					name = OBinaryProtocol.string2bytes(f.getKey());
+					value = f.getValue();
+
+					OBinaryProtocol.int2bytes(f.getKey().hashCode(), header, entry);
+					OBinaryProtocol.int2bytes(headerSize + body.size(), header, entry + ENTRY_NAME);
+					body.add((short) name.length);
+					body.addAsFixed(name);
+
+					type = getFieldType(iRecord, clazz, f.getKey(), value);
+					if (value instanceof String && type != OType.STRING) {
+						final Object converted = fromString(iRecord, type, (String) value);
+						if (converted != null)
+							value = converted;
+						else
+							// NOT VALID FOR THE TYPE DECLARED: KEEP IT AS IS
+							type = OType.STRING;
 					}
-					break;
-				case EMBEDDEDLIST:
-					break;
-				case EMBEDDEDSET:
-					break;
-				case FLOAT:
-					out.writeBoolean(value != null);
-					if (value != null)
-						out.writeFloat((Float) value);
-					break;
-				case INTEGER:
-					out.writeBoolean(value != null);
-					if (value != null)
-						out.writeInt((Integer) value);
-					break;
-				case LINK:
-					out.writeBoolean(value != null);
-					if (value != null) {
-						if (!(value instanceof ORecord<?>))
-							throw new ODatabaseException("Invalid property value in '" + p.getName() + "': found " + value.getClass()
-									+ " while it was expected a ORecord");
-
-						ORID rid = ((ORecord<?>) value).getIdentity();
-						out.writeInt(rid.getClusterId());
-						out.writeLong(rid.getClusterPosition());
+
+					if (type == OType.LINK)
+						value = linkToStream(iRecord, value);
+
+					if (value == null) {
+						header[entry + ENTRY_TYPE] = NULL_TYPE;
+					} else {
+						header[entry + ENTRY_TYPE] = (byte) type.getId();
+						OBinaryProtocol.int2bytes(headerSize + body.size(), header, entry + ENTRY_VALUE);
+						writeValue(body, iRecord, type, value);
 					}
-					break;
-				case LINKLIST:
-					break;
-				case LINKSET:
-					break;
-				case LONG:
-					out.writeBoolean(value != null);
-					if (value != null)
-						out.writeLong((Long) value);
-					break;
-				case SHORT:
-					out.writeBoolean(value != null);
-					if (value != null)
-						out.writeShort((Short) value);
-					break;
-				case STRING:
-					out.writeBoolean(value != null);
-					if (value != null)
-						out.writeUTF((String) value);
-					break;
+
+					entry += ENTRY_SIZE;
 				}
 			}
-			return stream.toByteArray();
-		} catch (Exception e) {
-			OLogManager.instance().error(this, "Error on marshalling object in binary format: " + iRecord.getIdentity(), e);
+
+			final int bodySize = body.size();
+			final byte[] result = new byte[headerSize + bodySize];
+			System.arraycopy(header, 0, result, 0, headerSize);
+			System.arraycopy(body.getByteArray(), 0, result, headerSize, bodySize);
+			return result;
+
 		} finally {
-			try {
-				if (stream != null)
-					stream.close();
+			if (!pending)
+				marshalledRecords.remove(identityRecord);
+		}
+	}
+
+	/**
+	 * Returns the type declared in the schema or forced in the document if compatible with the value, otherwise the type determined
+	 * by the value.
+	 */
+	private OType getFieldType(final ODocument iRecord, final OClass iClass, final String iFieldName, final Object iValue) {
+		OType type = null;
+
+		if (iClass != null) {
+			final OProperty prop = iClass.getProperty(iFieldName);
+			if (prop != null)
+				type = prop.getType();
+		}
+
+		if (type == null)
+			type = iRecord.fieldType(iFieldName);
+
+		if (type != null && isCompatible(type, iValue))
+			return type;
+
+		return getTypeByValue(iValue);
+	}
+
+	private static boolean isCompatible(final OType iType, final Object iValue) {
+		if (iValue == null)
+			return true;
 
-				if (out != null)
-					out.close();
-			} catch (IOException e) {
+		switch (iType) {
+		case BOOLEAN:
+		case BYTE:
+		case SHORT:
+		case INTEGER:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+		case DATE:
+			return iValue instanceof Number || iValue instanceof Boolean || iValue instanceof Date || iValue instanceof String;
+		case STRING:
+			return true;
+		case BINARY:
+			return iValue instanceof byte[] || iValue instanceof String;
+		case EMBEDDED:
+			return iValue instanceof ODocument;
+		case LINK:
+			// OBJECTS BOUND TO A DOCUMENT ARE CHECKED WHILE WRITING THE LINK
+			return !(iValue instanceof Number || iValue instanceof Boolean || iValue instanceof Date || iValue instanceof byte[]
+					|| iValue instanceof Collection<?> || iValue instanceof Map<?, ?>);
+		case EMBEDDEDLIST:
+		case EMBEDDEDSET:
+		case LINKLIST:
+		case LINKSET:
+			return iValue instanceof Collection<?> || (iValue.getClass().isArray() && !(iValue instanceof byte[]));
+		case EMBEDDEDMAP:
+		case LINKMAP:
+			return iValue instanceof Map<?, ?>;
+		}
+		return false;
+	}
+
+	/**
+	 * Determines the type by the Java class of the value. Documents are links if they are not owned by another document, like in the
+	 * CSV format. Unknown classes are stored as strings.
+	 */
+	private static OType getTypeByValue(final Object iValue) {
+		if (iValue == null)
+			return null;
+
+		if (iValue instanceof String || iValue instanceof Character || iValue instanceof Enum<?>)
+			return OType.STRING;
+		else if (iValue instanceof Integer)
+			return OType.INTEGER;
+		else if (iValue instanceof Long)
+			return OType.LONG;
+		else if (iValue instanceof Boolean)
+			return OType.BOOLEAN;
+		else if (iValue instanceof Double || iValue instanceof BigDecimal)
+			return OType.DOUBLE;
+		else if (iValue instanceof Float)
+			return OType.FLOAT;
+		else if (iValue instanceof Short)
+			return OType.SHORT;
+		else if (iValue instanceof Byte)
+			return OType.BYTE;
+		else if (iValue instanceof Number)
+			return OType.LONG;
+		else if (iValue instanceof Date)
+			return OType.DATE;
+		else if (iValue instanceof byte[])
+			return OType.BINARY;
+		else if (iValue instanceof ODocument)
+			return ((ODocument) iValue).getOwner() != null ? OType.EMBEDDED : OType.LINK;
+		else if (iValue instanceof ORID || iValue instanceof ORecord<?>)
+			return OType.LINK;
+		else if (iValue instanceof Collection<?> || iValue.getClass().isArray()) {
+			if (isLink(OMultiValue.getFirstValue(iValue)))
+				return iValue instanceof Set<?> ? OType.LINKSET : OType.LINKLIST;
+			return iValue instanceof Set<?> ? OType.EMBEDDEDSET : OType.EMBEDDEDLIST;
+		} else if (iValue instanceof Map<?, ?>)
+			return isLink(OMultiValue.getFirstValue(iValue)) ? OType.LINKMAP : OType.EMBEDDEDMAP;
+
+		return OType.STRING;
+	}
+
+	/**
+	 * Converts a string to the type declared for the field, like the CSV format does on reading. Dates are parsed with the formats of
+	 * the storage, binaries are decoded from Base64 with or without the surrounding quotes.
+	 * 
+	 * @return The converted value, or null if the string is not valid for the type
+	 */
+	private static Object fromString(final ODocument iRecord, final OType iType, final String iValue) {
+		final String value = iValue.trim();
+
+		try {
+			switch (iType) {
+			case BOOLEAN:
+				if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))
+					return Boolean.valueOf(value);
+				return new BigDecimal(value).signum() != 0;
+			case BYTE:
+				return new BigDecimal(value).byteValueExact();
+			case SHORT:
+				return new BigDecimal(value).shortValueExact();
+			case INTEGER:
+				return new BigDecimal(value).intValueExact();
+			case LONG:
+				return new BigDecimal(value).longValueExact();
+			case FLOAT:
+				return Float.valueOf(value);
+			case DOUBLE:
+				return Double.valueOf(value);
+
+			case DATE: {
+				if (value.matches("-?\\d+"))
+					return new Date(Long.parseLong(value));
+
+				if (iRecord.getDatabase() == null)
+					return null;
+
+				final OStorageConfiguration config = iRecord.getDatabase().getStorage().getConfiguration();
+				final DateFormat format = value.length() > config.dateFormat.length() ? config.getDateTimeFormatInstance() : config
+						.getDateFormatInstance();
+				return format.parse(value);
+			}
+
+			case BINARY:
+				if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+					return OBase64Utils.decode(value.substring(1, value.length() - 1));
+				return OBase64Utils.decode(value);
+
+			case LINK:
+				return new ORecordId(value);
 			}
+		} catch (ParseException e) {
+		} catch (RuntimeException e) {
+			// NOT A NUMBER, OUT OF RANGE, NOT BASE64 OR NOT A RECORD ID
 		}
+
 		return null;
 	}
 
-	@Override
-	public String toString() {
-		return NAME;
+	private static boolean isLink(final Object iValue) {
+		if (iValue instanceof ODocument)
+			return ((ODocument) iValue).getOwner() == null;
+		return iValue instanceof ORID || iValue instanceof ORecord<?>;
+	}
+
+	private void writeValue(final OMemoryOutputStream iStream, final ODocument iRecord, final OType iType, final Object iValue)
+			throws IOException {
+		switch (iType) {
+		case BOOLEAN:
+			iStream.add(iValue instanceof Boolean ? (Boolean) iValue : toNumber(iValue).intValue() != 0);
+			break;
+		case BYTE:
+			iStream.add(toNumber(iValue).byteValue());
+			break;
+		case SHORT:
+			iStream.add(toNumber(iValue).shortValue());
+			break;
+		case INTEGER:
+			iStream.add(toNumber(iValue).intValue());
+			break;
+		case LONG:
+		case DATE:
+			iStream.add(toNumber(iValue).longValue());
+			break;
+		case FLOAT:
+			iStream.add(Float.floatToIntBits(toNumber(iValue).floatValue()));
+			break;
+		case DOUBLE:
+			iStream.add(Double.doubleToLongBits(toNumber(iValue).doubleValue()));
+			break;
+		case STRING:
+			iStream.add(iValue.toString());
+			break;
+		case BINARY:
+			iStream.add((byte[]) iValue);
+			break;
+		case EMBEDDED:
+			iStream.add(documentToStream((ODocument) iValue));
+			break;
+		case LINK:
+			writeLink(iStream, (ORID) iValue);
+			break;
+
+		case LINKLIST:
+		case LINKSET: {
+			final List<ORID> links = new ArrayList<ORID>();
+			ORID rid;
+			for (Object item : getItems(iValue)) {
+				rid = linkToStream(iRecord, item);
+				if (rid != null)
+					links.add(rid);
+			}
+
+			iStream.add(links.size());
+			for (ORID link : links)
+				writeLink(iStream, link);
+			break;
+		}
+
+		case LINKMAP: {
+			final Map<?, ?> map = (Map<?, ?>) iValue;
+			final List<String> keys = new ArrayList<String>(map.size());
+			final List<ORID> links = new ArrayList<ORID>(map.size());
+			ORID rid;
+			for (Entry<?, ?> entry : map.entrySet()) {
+				rid = linkToStream(iRecord, entry.getValue());
+				if (rid != null) {
+					keys.add(entry.getKey().toString());
+					links.add(rid);
+				}
+			}
+
+			iStream.add(links.size());
+			for (int i = 0; i < links.size(); ++i) {
+				iStream.add(keys.get(i));
+				writeLink(iStream, links.get(i));
+			}
+			break;
+		}
+
+		case EMBEDDEDLIST:
+		case EMBEDDEDSET:
+			iStream.add(OMultiValue.getSize(iValue));
+			for (Object item : getItems(iValue))
+				writeItem(iStream, iRecord, item);
+			break;
+
+		case EMBEDDEDMAP:
+			iStream.add(((Map<?, ?>) iValue).size());
+			for (Entry<?, ?> entry : ((Map<?, ?>) iValue).entrySet()) {
+				iStream.add(entry.getKey().toString());
+				writeItem(iStream, iRecord, entry.getValue());
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Writes an item of an embedded collection or map preceded by its type.
+	 */
+	private void writeItem(final OMemoryOutputStream iStream, final ODocument iRecord, Object iItem) throws IOException {
+		if (iItem != null && !(iItem instanceof ORecord<?>)) {
+			// NOT RECORD: EMBED THE DOCUMENT BOUND TO THE OBJECT IF ANY, LIKE THE CSV FORMAT
+			final String fieldBound = OObjectSerializerHelper.getDocumentBoundField(iItem.getClass());
+			if (fieldBound != null) {
+				final Object object = iItem;
+				OObjectSerializerHelper.invokeCallback(object, null, OBeforeSerialization.class);
+				final ODocument document = (ODocument) OObjectSerializerHelper.getFieldValue(object, fieldBound);
+				OObjectSerializerHelper.invokeCallback(object, document, OAfterSerialization.class);
+				iItem = document;
+			}
+		}
+
+		// THE DOCUMENTS OF EMBEDDED COLLECTIONS AND MAPS ARE EMBEDDED
+		final OType type = iItem instanceof ODocument ? OType.EMBEDDED : getTypeByValue(iItem);
+		if (type == OType.LINK)
+			iItem = linkToStream(iRecord, iItem);
+
+		if (iItem == null)
+			iStream.add(NULL_TYPE);
+		else {
+			iStream.add((byte) type.getId());
+			writeValue(iStream, iRecord, type, iItem);
+		}
+	}
+
+	private static void writeLink(final OMemoryOutputStream iStream, final ORID iRid) throws IOException {
+		iStream.add((short) iRid.getClusterId());
+		iStream.add(iRid.getClusterPosition());
+	}
+
+	/**
+	 * Saves the linked record if new or changed, like the CSV format, and returns its identity.
+	 *
+	 * @return The identity, or null if the link is null or the linked record has no identity yet
+	 */
+	@SuppressWarnings("unchecked")
+	private ORID linkToStream(final ODocument iParentRecord, Object iLinked) {
+		if (iLinked == null)
+			return null;
+
+		ORID rid;
+		if (iLinked instanceof ORID)
+			rid = (ORID) iLinked;
+		else if (iLinked instanceof String)
+			rid = new ORecordId((String) iLinked);
+		else {
+			if (!(iLinked instanceof ORecordInternal<?>)) {
+				// NOT RECORD: TRY TO EXTRACT THE DOCUMENT IF ANY
+				final String boundDocumentField = OObjectSerializerHelper.getDocumentBoundField(iLinked.getClass());
+				if (boundDocumentField != null)
+					iLinked = OObjectSerializerHelper.getFieldValue(iLinked, boundDocumentField);
+			}
+
+			if (!(iLinked instanceof ORecordInternal<?>))
+				throw new IllegalArgumentException("Invalid object received. Expected a record but received type="
+						+ iLinked.getClass().getName() + " and value=" + iLinked);
+
+			final ORecordInternal<?> linkedRecord = (ORecordInternal<?>) iLinked;
+			rid = linkedRecord.getIdentity();
+
+			if ((rid.isNew() || linkedRecord.isDirty())
+					&& !OSerializationThreadLocal.INSTANCE.get().contains(System.identityHashCode(linkedRecord))) {
+				if (linkedRecord.getDatabase() == null)
+					// OVERWRITE THE DATABASE TO THE SAME OF THE PARENT ONE
+					linkedRecord.setDatabase(iParentRecord.getDatabase());
+
+				final ODatabaseRecord<ORecordInternal<?>> database = (ODatabaseRecord<ORecordInternal<?>>) linkedRecord.getDatabase();
+				database.save(linkedRecord);
+
+				if (linkedRecord instanceof ODocument)
+					database.registerPojo(database.getUserObjectByRecord(linkedRecord, null), (ODocument) linkedRecord);
+			}
+		}
+
+		return rid.isValid() ? rid : null;
+	}
+
+	private Object readValue(final ODocument iRecord, final OType iType, final byte[] iSource, final int[] iPosition) {
+		final int position = iPosition[0];
+
+		switch (iType) {
+		case BOOLEAN:
+			iPosition[0] += OConstants.SIZE_BYTE;
+			return iSource[position] != 0;
+		case BYTE:
+			iPosition[0] += OConstants.SIZE_BYTE;
+			return iSource[position];
+		case SHORT:
+			iPosition[0] += OConstants.SIZE_SHORT;
+			return OBinaryProtocol.bytes2short(iSource, position);
+		case INTEGER:
+			iPosition[0] += OConstants.SIZE_INT;
+			return OBinaryProtocol.bytes2int(iSource, position);
+		case LONG:
+			iPosition[0] += OConstants.SIZE_LONG;
+			return OBinaryProtocol.bytes2long(iSource, position);
+		case FLOAT:
+			iPosition[0] += OConstants.SIZE_INT;
+			return Float.intBitsToFloat(OBinaryProtocol.bytes2int(iSource, position));
+		case DOUBLE:
+			iPosition[0] += OConstants.SIZE_LONG;
+			return Double.longBitsToDouble(OBinaryProtocol.bytes2long(iSource, position));
+		case DATE:
+			iPosition[0] += OConstants.SIZE_LONG;
+			return new Date(OBinaryProtocol.bytes2long(iSource, position));
+
+		case STRING: {
+			final int length = OBinaryProtocol.bytes2int(iSource, position);
+			iPosition[0] += OConstants.SIZE_INT + length;
+			return OBinaryProtocol.bytes2string(iSource, position + OConstants.SIZE_INT, length);
+		}
+
+		case BINARY:
+			return readBytes(iSource, iPosition);
+
+		case EMBEDDED: {
+			// THE FIELDS OF THE EMBEDDED DOCUMENT ARE UNMARSHALLED ON THE FIRST ACCESS
+			final ODocument document = new ODocument(iRecord.getDatabase());
+			document.fromStream(readBytes(iSource, iPosition));
+			document.setOwner(iRecord);
+			return document;
+		}
+
+		case LINK:
+			return readLink(iSource, iPosition);
+
+		case LINKLIST:
+		case LINKSET: {
+			final Collection<Object> coll = iType == OType.LINKLIST ? new ORecordLazyList(iRecord, ODocument.RECORD_TYPE)
+					: new ORecordLazySet(iRecord, ODocument.RECORD_TYPE);
+
+			final int items = readInt(iSource, iPosition);
+			for (int i = 0; i < items; ++i)
+				coll.add(readLink(iSource, iPosition));
+			return coll;
+		}
+
+		case LINKMAP: {
+			@SuppressWarnings({ "rawtypes", "unchecked" })
+			final Map<String, Object> map = new ORecordLazyMap(iRecord, ODocument.RECORD_TYPE);
+
+			final int items = readInt(iSource, iPosition);
+			for (int i = 0; i < items; ++i)
+				map.put((String) readValue(iRecord, OType.STRING, iSource, iPosition), readLink(iSource, iPosition));
+			return map;
+		}
+
+		case EMBEDDEDLIST:
+		case EMBEDDEDSET: {
+			final Collection<Object> coll = iType == OType.EMBEDDEDLIST ? new ORecordTrackedList(iRecord) : new ORecordTrackedSet(
+					iRecord);
+
+			final int items = readInt(iSource, iPosition);
+			for (int i = 0; i < items; ++i)
+				coll.add(readItem(iRecord, iSource, iPosition));
+			return coll;
+		}
+
+		case EMBEDDEDMAP: {
+			@SuppressWarnings({ "rawtypes", "unchecked" })
+			final Map<String, Object> map = new ORecordLazyMap(iRecord, ODocument.RECORD_TYPE);
+
+			final int items = readInt(iSource, iPosition);
+			String key;
+			for (int i = 0; i < items; ++i) {
+				key = (String) readValue(iRecord, OType.STRING, iSource, iPosition);
+				map.put(key, readItem(iRecord, iSource, iPosition));
+			}
+			return map;
+		}
+		}
+
+		throw new OSerializationException("Type " + iType + " not supported in binary format");
+	}
+
+	private Object readItem(final ODocument iRecord, final byte[] iSource, final int[] iPosition) {
+		final byte typeId = iSource[iPosition[0]++];
+		if (typeId == NULL_TYPE)
+			return null;
+
+		return readValue(iRecord, OType.getById(typeId), iSource, iPosition);
+	}
+
+	private static ORecordId readLink(final byte[] iSource, final int[] iPosition) {
+		final int position = iPosition[0];
+		iPosition[0] += OConstants.SIZE_SHORT + OConstants.SIZE_LONG;
+		return new ORecordId(OBinaryProtocol.bytes2short(iSource, position), OBinaryProtocol.bytes2long(iSource, position
+				+ OConstants.SIZE_SHORT));
+	}
+
+	private static byte[] readBytes(final byte[] iSource, final int[] iPosition) {
+		final int length = readInt(iSource, iPosition);
+		final byte[] buffer = new byte[length];
+		System.arraycopy(iSource, iPosition[0], buffer, 0, length);
+		iPosition[0] += length;
+		return buffer;
+	}
+
+	private static int readInt(final byte[] iSource, final int[] iPosition) {
+		final int value = OBinaryProtocol.bytes2int(iSource, iPosition[0]);
+		iPosition[0] += OConstants.SIZE_INT;
+		return value;
+	}
+
+	private static String readFieldName(final byte[] iSource, final int iField) {
+		final int position = OBinaryProtocol.bytes2int(iSource, getFirstEntry(iSource) + iField * ENTRY_SIZE + ENTRY_NAME);
+		return OBinaryProtocol.bytes2string(iSource, position + OConstants.SIZE_SHORT, OBinaryProtocol.bytes2short(iSource, position));
+	}
+
+	private static int getFirstEntry(final byte[] iSource) {
+		return CLASS_OFFSET + OConstants.SIZE_SHORT + Math.max(OBinaryProtocol.bytes2short(iSource, CLASS_OFFSET), 0);
+	}
+
+	private static void checkVersion(final byte[] iSource) {
+		if (iSource[1] > VERSION)
+			throw new OSerializationException("Binary format version " + iSource[1] + " not supported: the last supported is "
+					+ VERSION);
+	}
+
+	private static Iterable<?> getItems(final Object iValue) {
+		if (iValue instanceof Collection<?>)
+			return (Collection<?>) iValue;
+
+		final int length = Array.getLength(iValue);
+		final List<Object> items = new ArrayList<Object>(length);
+		for (int i = 0; i < length; ++i)
+			items.add(Array.get(iValue, i));
+		return items;
+	}
+
+	private static Number toNumber(final Object iValue) {
+		if (iValue instanceof Number)
+			return (Number) iValue;
+		else if (iValue instanceof Date)
+			return ((Date) iValue).getTime();
+		return ((Boolean) iValue) ? 1 : 0;
 	}
 }
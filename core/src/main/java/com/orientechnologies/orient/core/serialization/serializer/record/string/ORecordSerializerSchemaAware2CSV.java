@@ -47,6 +47,15 @@ public class ORecordSerializerSchemaAware2CSV extends ORecordSerializerCSVAbstra
 		return new ODocument(iDatabase, iClassName);
 	}
 
+	@Override
+	public ORecordInternal<?> fromStream(final ODatabaseRecord<?> iDatabase, final byte[] iSource, final ORecordInternal<?> iRecord) {
+		if (ORecordSerializerDocument2Binary.isBinary(iSource))
+			// WRITTEN IN BINARY FORMAT: THE DATABASE CAN CONTAIN BOTH THE FORMATS
+			return ORecordSerializerDocument2Binary.INSTANCE.fromStream(iDatabase, iSource, iRecord);
+
+		return super.fromStream(iDatabase, iSource, iRecord);
+	}
+
 	@Override
 	public String toString() {
 		return NAME;
@@ -26,6 +26,7 @@ import com.orientechnologies.common.parser.OStringParser;
 import com.orientechnologies.common.profiler.OProfiler;
 import com.orientechnologies.common.util.OPair;
 import com.orientechnologies.orient.core.command.OCommandRequestText;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
 import com.orientechnologies.orient.core.exception.OCommandExecutionException;
 import com.orientechnologies.orient.core.exception.OQueryParsingException;
 import com.orientechnologies.orient.core.id.ORID;
@@ -500,8 +501,13 @@ public class OCommandExecutorSQLSelect extends OCommandExecutorSQLAbstract imple
 	}
 
 	private void scanEntireClusters(final int[] clusterIds) {
-		((OStorageLocal) database.getStorage()).browse(database.getId(), clusterIds, rangeFrom, rangeTo, this, database.newInstance(),
-				false);
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+
+		if (OGlobalConfiguration.STORAGE_BROWSE_PARALLELISM.getValueAsInteger() != 1)
+			// READ THE CLUSTERS IN PARALLEL: THE RECORDS ARE FILTERED BY THIS THREAD IN THE SAME ORDER
+			storage.browseParallel(database.getId(), clusterIds, rangeFrom, rangeTo, this, database.newInstance(), false);
+		else
+			storage.browse(database.getId(), clusterIds, rangeFrom, rangeTo, this, database.newInstance(), false);
 	}
 
 	private void applyOrderBy() {
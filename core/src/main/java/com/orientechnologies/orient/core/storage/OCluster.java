@@ -59,6 +59,16 @@ public interface OCluster {
 	 */
 	public OPhysicalPosition getPhysicalPosition(long iPosition, OPhysicalPosition iPPosition) throws IOException;
 
+	/**
+	 * Fill the PhysicalPosition objects received as parameter with the physical positions of the consecutive logical records starting
+	 * from iPosition. Null items are created. Items of deleted records are set to null if the cluster can't return them.
+	 * 
+	 * @return The number of positions filled, less than the array length when the end of the cluster is reached. 0 means no more
+	 *         entries
+	 * @throws IOException
+	 */
+	public int getPhysicalPositions(long iPosition, OPhysicalPosition[] ioPPositions) throws IOException;
+
 	/**
 	 * Change the PhysicalPosition of the logical record iPosition.
 	 */
@@ -79,6 +89,11 @@ public interface OCluster {
 
 	public long getLastEntryPosition() throws IOException;
 
+	/**
+	 * Returns the statistics about the records of the cluster, kept updated by the storage.
+	 */
+	public OClusterStatistics getStatistics();
+
 	/**
 	 * Let to an external actor to lock the cluster in shared mode. Useful for range queries to avoid atomic locking.
 	 * 
@@ -0,0 +1,141 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics about the records of a cluster, updated by the storage on every creation, update and deletion so they are always
+ * available without scanning the cluster. Keeps the total size of the record contents and the number of records per size range.
+ * Every range is the double of the previous one: the first contains the records up to 32 bytes, the last the records bigger than
+ * 512Kb.<br/>
+ * When the cluster has not been closed correctly the statistics loaded at open are the last saved, then they are marked as not
+ * exact until the cluster is emptied.
+ */
+public class OClusterStatistics {
+	public static final int				RANGES						= 16;
+	private static final int			FIRST_RANGE_BITS	= 5;
+
+	private final AtomicLong			recordsSize				= new AtomicLong();
+	private final AtomicLongArray	histogram					= new AtomicLongArray(RANGES);
+	private volatile boolean			exact							= true;
+
+	public void recordCreated(final int iSize) {
+		recordsSize.addAndGet(iSize);
+		histogram.incrementAndGet(getRange(iSize));
+	}
+
+	public void recordUpdated(final int iOldSize, final int iNewSize) {
+		recordsSize.addAndGet(iNewSize - iOldSize);
+
+		final int oldRange = getRange(iOldSize);
+		final int newRange = getRange(iNewSize);
+		if (oldRange != newRange) {
+			histogram.decrementAndGet(oldRange);
+			histogram.incrementAndGet(newRange);
+		}
+	}
+
+	public void recordDeleted(final int iSize) {
+		recordsSize.addAndGet(-iSize);
+		histogram.decrementAndGet(getRange(iSize));
+	}
+
+	/**
+	 * Returns the number of records counted in the histogram.
+	 */
+	public long getRecords() {
+		long total = 0;
+		for (int i = 0; i < RANGES; ++i)
+			total += histogram.get(i);
+		return Math.max(total, 0);
+	}
+
+	/**
+	 * Returns the total size in bytes of the record contents, without the headers of the data segment.
+	 */
+	public long getRecordsSize() {
+		return Math.max(recordsSize.get(), 0);
+	}
+
+	public long getAverageRecordSize() {
+		final long records = getRecords();
+		return records > 0 ? getRecordsSize() / records : 0;
+	}
+
+	/**
+	 * Returns the number of records per size range.
+	 *
+	 * @see #getRangeLimit(int)
+	 */
+	public long[] getHistogram() {
+		final long[] result = new long[RANGES];
+		for (int i = 0; i < RANGES; ++i)
+			result[i] = Math.max(histogram.get(i), 0);
+		return result;
+	}
+
+	/**
+	 * Returns the maximum record size contained in the range, or Integer.MAX_VALUE for the last one.
+	 */
+	public static int getRangeLimit(final int iRange) {
+		return iRange < RANGES - 1 ? 1 << (FIRST_RANGE_BITS + iRange) : Integer.MAX_VALUE;
+	}
+
+	public boolean isExact() {
+		return exact;
+	}
+
+	public void setExact(final boolean iExact) {
+		exact = iExact;
+	}
+
+	public void reset() {
+		recordsSize.set(0);
+		for (int i = 0; i < RANGES; ++i)
+			histogram.set(i, 0);
+		exact = true;
+	}
+
+	/**
+	 * Returns the values to store: the total size followed by the histogram.
+	 */
+	public long[] toArray() {
+		final long[] result = new long[RANGES + 1];
+		result[0] = recordsSize.get();
+		for (int i = 0; i < RANGES; ++i)
+			result[i + 1] = histogram.get(i);
+		return result;
+	}
+
+	public void fromArray(final long[] iValues) {
+		recordsSize.set(iValues[0]);
+		for (int i = 0; i < RANGES; ++i)
+			histogram.set(i, iValues[i + 1]);
+	}
+
+	@Override
+	public String toString() {
+		return "records=" + getRecords() + ", size=" + getRecordsSize() + ", average=" + getAverageRecordSize() + ", exact=" + exact;
+	}
+
+	private static int getRange(final int iSize) {
+		if (iSize <= 1 << FIRST_RANGE_BITS)
+			return 0;
+		return Math.min(Long.SIZE - Long.numberOfLeadingZeros(iSize - 1) - FIRST_RANGE_BITS, RANGES - 1);
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage;
+
+/**
+ * Listener of the changes of the records of a storage, used to keep the copies of the records outside the storage up to date.
+ * 
+ * @see OStorage#addRecordChangeListener(ORecordChangeListener)
+ */
+public interface ORecordChangeListener {
+	/**
+	 * Called after a record has been updated or deleted, with the locks of the storage still held: the implementation must return
+	 * quickly and never call the storage.
+	 * 
+	 * @param iVersion
+	 *          The minimum version of the valid copies of the record: the new version if updated, the last version + 1 if deleted
+	 */
+	public void onRecordChanged(OStorage iStorage, int iClusterId, long iClusterPosition, int iVersion);
+}
@@ -144,6 +144,13 @@ public interface OStorage {
 	 */
 	public OCacheRecord getCache();
 
+	/**
+	 * Registers a listener called on every update and deletion of a record.
+	 */
+	public void addRecordChangeListener(ORecordChangeListener iListener);
+
+	public void removeRecordChangeListener(ORecordChangeListener iListener);
+
 	/**
 	 * Execute the command request and return the result back.
 	 */
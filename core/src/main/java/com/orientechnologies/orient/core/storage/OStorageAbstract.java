@@ -15,7 +15,9 @@
  */
 package com.orientechnologies.orient.core.storage;
 
-import com.orientechnologies.common.concur.resource.OSharedResourceAdaptive;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import com.orientechnologies.common.concur.resource.OSharedResourceAdaptiveExternal;
 import com.orientechnologies.orient.core.cache.OCacheRecord;
 import com.orientechnologies.orient.core.config.OGlobalConfiguration;
@@ -30,6 +32,7 @@ public abstract class OStorageAbstract implements OStorage {
 	protected String													mode;
 	protected OCacheRecord										cache		= new OCacheRecord();
 	protected long														version	= 0;
+	protected final List<ORecordChangeListener>	recordChangeListeners	= new CopyOnWriteArrayList<ORecordChangeListener>();
 
 	protected boolean													open		= false;
 	protected OSharedResourceAdaptiveExternal	lock		= new OSharedResourceAdaptiveExternal();
@@ -112,6 +115,25 @@ public abstract class OStorageAbstract implements OStorage {
 		return cache;
 	}
 
+	public void addRecordChangeListener(final ORecordChangeListener iListener) {
+		if (!recordChangeListeners.contains(iListener))
+			recordChangeListeners.add(iListener);
+	}
+
+	public void removeRecordChangeListener(final ORecordChangeListener iListener) {
+		recordChangeListeners.remove(iListener);
+	}
+
+	/**
+	 * Notifies the listeners the record has been updated or deleted.
+	 * 
+	 * @see ORecordChangeListener#onRecordChanged(OStorage, int, long, int)
+	 */
+	protected void fireRecordChanged(final int iClusterId, final long iClusterPosition, final int iVersion) {
+		for (ORecordChangeListener listener : recordChangeListeners)
+			listener.onRecordChanged(this, iClusterId, iClusterPosition, iVersion);
+	}
+
 	public int getUsers() {
 		return lock.getUsers();
 	}
@@ -120,7 +142,7 @@ public abstract class OStorageAbstract implements OStorage {
 		return lock.addUser();
 	}
 
-	public OSharedResourceAdaptive getLock() {
+	public OSharedResourceAdaptiveExternal getLock() {
 		return lock;
 	}
 }
@@ -28,38 +28,49 @@ import com.orientechnologies.common.concur.lock.OLockException;
 import com.orientechnologies.common.io.OFileUtils;
 import com.orientechnologies.common.io.OIOException;
 import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.common.profiler.OProfiler;
 import com.orientechnologies.orient.core.exception.OStorageException;
 
 /**
  * 
  * Header structure:<br/>
  * <br/>
- * +-----------+--------------+---------------+---------------+<br/>
- * | FILE SIZE | FILLED UP TO | SOFTLY CLOSED | SECURITY CODE |<br/>
- * | 4 bytes . | 4 bytes .... | 1 byte ...... | 32 bytes .... |<br/>
- * +-----------+--------------+---------------+---------------+<br/>
+ * +-----------------+-----------------+---------------+----------------+-----------+--------------+<br/>
+ * | LEGACY FILESIZE | LEGACY FILLEDUP | SOFTLY CLOSED | HEADER VERSION | FILE SIZE | FILLED UP TO |<br/>
+ * | 4 bytes ....... | 4 bytes ....... | 1 byte ...... | 1 byte ....... | 8 bytes . | 8 bytes .... |<br/>
+ * +-----------------+-----------------+---------------+----------------+-----------+--------------+<br/>
  * = 1024 bytes<br/>
  * <br/>
+ * Files created before the 64-bit offsets have HEADER VERSION = 0 and keep the sizes in the 4 bytes legacy fields. They are
+ * upgraded to the current version the first time are opened in write mode.
  */
 public abstract class OFile {
 	protected static final int	SOFTLY_CLOSED_OFFSET		= 8;
+	protected static final int	HEADER_VERSION_OFFSET		= 9;
+	protected static final int	FILE_SIZE_OFFSET				= 16;
+	protected static final int	FILLED_UP_TO_OFFSET			= 24;
+
+	protected static final byte	HEADER_VERSION_LEGACY		= 0;
+	protected static final byte	HEADER_VERSION_CURRENT	= 1;
 
 	private FileLock						fileLock;
+	protected final Object			resizeLock							= new Object();				// GUARDS THE SIZE, THE FILLED SPACE AND THE CLOSE
 
 	protected File							osFile;
 	protected RandomAccessFile	accessFile;
 	protected FileChannel				channel;
 
 	protected int								incrementSize						= DEFAULT_INCREMENT_SIZE;
-	protected int								maxSize;
-	protected int								size;																						// PART OF HEADER (4 bytes)
-	protected int								filledUpTo;																			// PART OF HEADER (4 bytes)
+	protected long							maxSize;
+	protected long							size;																						// PART OF HEADER (8 bytes)
+	protected long							filledUpTo;																			// PART OF HEADER (8 bytes)
+	protected byte							headerVersion						= HEADER_VERSION_CURRENT;
 	protected byte[]						securityCode						= new byte[32];					// PART OF HEADER (32 bytes)
 	protected String						mode;
 
 	protected static final int	HEADER_SIZE							= 1024;
 	protected static final int	HEADER_DATA_OFFSET			= 128;
-	protected static final int	DEFAULT_SIZE						= 15000000;
+	protected static final long	DEFAULT_SIZE						= 15000000;
 	protected static final int	DEFAULT_INCREMENT_SIZE	= -50;										// NEGATIVE NUMBER MEANS AS PERCENT OF CURRENT SIZE
 
 	private static final int		OPEN_RETRY_MAX					= 10;
@@ -86,37 +97,44 @@ public abstract class OFile {
 
 	public abstract void synch();
 
-	public abstract void read(int iOffset, byte[] iDestBuffer, int iLenght) throws IOException;
+	public abstract void read(long iOffset, byte[] iDestBuffer, int iLenght) throws IOException;
 
-	public abstract short readShort(int iLogicalPosition) throws IOException;
+	public abstract short readShort(long iLogicalPosition) throws IOException;
 
-	public abstract int readInt(int iLogicalPosition) throws IOException;
+	public abstract int readInt(long iLogicalPosition) throws IOException;
 
-	public abstract long readLong(int iOffset) throws IOException;
+	public abstract long readLong(long iOffset) throws IOException;
 
-	public abstract byte readByte(int iOffset) throws IOException;
+	public abstract byte readByte(long iOffset) throws IOException;
 
-	public abstract void writeInt(int iOffset, int iValue) throws IOException;
+	public abstract void writeInt(long iOffset, int iValue) throws IOException;
 
-	public abstract void writeLong(int iOffset, long iValue) throws IOException;
+	public abstract void writeLong(long iOffset, long iValue) throws IOException;
 
-	public abstract void writeShort(int iOffset, short iValue) throws IOException;
+	public abstract void writeShort(long iOffset, short iValue) throws IOException;
 
-	public abstract void writeByte(int iOffset, byte iValue) throws IOException;
+	public abstract void writeByte(long iOffset, byte iValue) throws IOException;
 
-	public abstract void write(int iOffset, byte[] iSourceBuffer) throws IOException;
+	public abstract void write(long iOffset, byte[] iSourceBuffer) throws IOException;
 
 	public boolean open() throws IOException {
 		if (!osFile.exists() || osFile.length() == 0)
 			throw new FileNotFoundException("File: " + osFile.getAbsolutePath());
 
-		openChannel((int) osFile.length());
+		openChannel(osFile.length());
 
 		OLogManager.instance().debug(this, "Checking file integrity of " + osFile.getName() + "...");
 
-		final int fileSize = size;
+		final long fileSize = size;
 		readHeader();
 
+		if (headerVersion < HEADER_VERSION_CURRENT && !mode.equals("r")) {
+			// UPGRADE THE HEADER TO THE 64-BIT SIZES
+			OLogManager.instance().debug(this, "Upgrading the header of file " + osFile.getName() + " to version " + HEADER_VERSION_CURRENT);
+			headerVersion = HEADER_VERSION_CURRENT;
+			writeHeader();
+		}
+
 		if (filledUpTo > 0 && filledUpTo > size) {
 			OLogManager
 					.instance()
@@ -140,32 +158,35 @@ public abstract class OFile {
 		return softlyClosed;
 	}
 
-	public void create(int iStartSize) throws IOException {
+	public void create(long iStartSize) throws IOException {
 		if (iStartSize == -1)
 			iStartSize = DEFAULT_SIZE;
 
 		openChannel(iStartSize);
 
 		filledUpTo = 0;
+		headerVersion = HEADER_VERSION_CURRENT;
 		writeHeader();
 		setSoftlyClosed(false);
 	}
 
 	public void close() throws IOException {
-		try {
-			unlock();
-			if (channel != null && channel.isOpen()) {
-				channel.close();
-				channel = null;
-			}
+		synchronized (resizeLock) {
+			try {
+				unlock();
+				if (channel != null && channel.isOpen()) {
+					channel.close();
+					channel = null;
+				}
 
-			if (accessFile != null) {
-				accessFile.close();
-				accessFile = null;
-			}
+				if (accessFile != null) {
+					accessFile.close();
+					accessFile = null;
+				}
 
-		} catch (Exception e) {
-			OLogManager.instance().error(this, "Error on closing file " + osFile.getAbsolutePath(), e, OIOException.class);
+			} catch (Exception e) {
+				OLogManager.instance().error(this, "Error on closing file " + osFile.getAbsolutePath(), e, OIOException.class);
+			}
 		}
 	}
 
@@ -209,10 +230,7 @@ public abstract class OFile {
 		}
 	}
 
-	public void changeSize(final int iSize) {
-		if (iSize > Integer.MAX_VALUE)
-			OLogManager.instance().error(this, "You can't upsize the file more than 2GB", OIOException.class);
-
+	public void changeSize(final long iSize) {
 		if (OLogManager.instance().isDebugEnabled())
 			OLogManager.instance().debug(this, "Changing file size to " + iSize + " bytes. " + toString());
 
@@ -229,12 +247,14 @@ public abstract class OFile {
 	 * @param iSize
 	 * @throws IOException
 	 */
-	public void removeTail(int iSize) throws IOException {
-		if (filledUpTo < iSize)
-			iSize = 0;
+	public void removeTail(long iSize) throws IOException {
+		synchronized (resizeLock) {
+			if (filledUpTo < iSize)
+				iSize = 0;
 
-		filledUpTo -= iSize;
-		writeHeader();
+			filledUpTo -= iSize;
+			writeHeader();
+		}
 	}
 
 	/**
@@ -243,18 +263,31 @@ public abstract class OFile {
 	 * @param iSize
 	 * @throws IOException
 	 */
-	public void shrink(final int iSize) throws IOException {
-		if (iSize > filledUpTo)
-			return;
+	public void shrink(final long iSize) throws IOException {
+		synchronized (resizeLock) {
+			if (iSize > filledUpTo)
+				return;
 
-		OLogManager.instance().debug(this, "Shrinking filled file from " + filledUpTo + " to " + iSize + " bytes. " + toString());
+			OLogManager.instance().debug(this, "Shrinking filled file from " + filledUpTo + " to " + iSize + " bytes. " + toString());
 
-		filledUpTo = iSize;
-		writeHeader();
+			filledUpTo = iSize;
+			writeHeader();
+		}
+	}
+
+	/**
+	 * Allocates iSize bytes at the end of the filled space, enlarging the file if needed. The size of the file and the filled space
+	 * are changed under the resize lock of the file, so the enlargement of the background preallocation never runs together with the
+	 * allocation, without locking the whole storage.
+	 */
+	public long allocateSpace(final int iSize) throws IOException {
+		synchronized (resizeLock) {
+			return allocate(iSize);
+		}
 	}
 
-	public int allocateSpace(final int iSize) throws IOException {
-		final int offset = filledUpTo;
+	private long allocate(final int iSize) throws IOException {
+		final long offset = filledUpTo;
 
 		if (getFreeSpace() < iSize) {
 			if (maxSize > 0 && maxSize - size < iSize)
@@ -262,8 +295,8 @@ public abstract class OFile {
 						+ OFileUtils.getSizeAsString(maxSize) + ") was reached! " + toString());
 
 			// MAKE ROOM
-			int newFileSize = size;
-			int stepSizeInBytes = incrementSize > 0 ? incrementSize : -1 * size / 100 * incrementSize;
+			long newFileSize = size;
+			final long stepSizeInBytes = incrementSize > 0 ? incrementSize : -1 * size / 100 * incrementSize;
 
 			// FIND THE BEST SIZE TO ALLOCATE (BASED ON INCREMENT-SIZE)
 			while (newFileSize - filledUpTo <= iSize) {
@@ -273,7 +306,9 @@ public abstract class OFile {
 					newFileSize = maxSize;
 			}
 
+			final long timer = OProfiler.getInstance().startChrono();
 			changeSize(newFileSize);
+			OProfiler.getInstance().stopChrono("OFile.allocateSpace.enlarge", timer);
 		}
 
 		// THERE IS SPACE IN FILE: RETURN THE UPPER BOUND OFFSET AND UPDATE THE FILLED THRESHOLD
@@ -283,7 +318,48 @@ public abstract class OFile {
 		return offset;
 	}
 
-	protected int checkRegions(final int iOffset, final int iLenght) {
+	/**
+	 * Enlarges the file to have at least iFreeSpace bytes free after the filled space, without changing the filled space. The new
+	 * space is not written: the file system keeps it sparse until the records are written.
+	 * 
+	 * @param iFreeSpace
+	 *          Bytes to keep free at the end of the file
+	 * @return The bytes added to the file, 0 if it already had the free space requested, it reached the max size or it's closed
+	 * @throws IOException
+	 */
+	public long preallocate(final long iFreeSpace) throws IOException {
+		synchronized (resizeLock) {
+			if (!isOpen())
+				return 0;
+
+			return enlarge(iFreeSpace);
+		}
+	}
+
+	private long enlarge(final long iFreeSpace) throws IOException {
+		if (getFreeSpace() >= iFreeSpace)
+			return 0;
+
+		long newFileSize = filledUpTo + iFreeSpace;
+		if (maxSize > 0 && newFileSize > maxSize)
+			newFileSize = maxSize;
+
+		final long oldFileSize = size;
+		if (newFileSize <= oldFileSize)
+			return 0;
+
+		changeSize(newFileSize);
+
+		if (accessFile.length() < HEADER_SIZE + newFileSize)
+			// SPARSE EXTENSION: THE MEMORY MAPPED FILES ARE ENLARGED ONLY WHEN THE NEW BLOCKS ARE MAPPED
+			accessFile.setLength(HEADER_SIZE + newFileSize);
+
+		writeHeader();
+
+		return newFileSize - oldFileSize;
+	}
+
+	protected long checkRegions(final long iOffset, final int iLenght) {
 		if (iOffset + iLenght > filledUpTo)
 			throw new OIOException("You can't access outside the file size (" + filledUpTo + " bytes). You've requested portion "
 					+ iOffset + "-" + (iOffset + iLenght) + " bytes");
@@ -291,15 +367,15 @@ public abstract class OFile {
 		return iOffset;// + HEADER_SIZE;
 	}
 
-	public int getFreeSpace() {
+	public long getFreeSpace() {
 		return size - filledUpTo;
 	}
 
-	public int getFileSize() {
+	public long getFileSize() {
 		return size;
 	}
 
-	public int getFilledUpTo() {
+	public long getFilledUpTo() {
 		return filledUpTo;
 	}
 
@@ -337,7 +413,7 @@ public abstract class OFile {
 		osFile = new File(iFileName);
 	}
 
-	protected void openChannel(final int iNewSize) throws IOException {
+	protected void openChannel(final long iNewSize) throws IOException {
 		OLogManager.instance().debug(this, "[OFile.openChannel] Opening channel for file: " + osFile);
 
 		for (int i = 0; i < OPEN_RETRY_MAX; ++i)
@@ -365,11 +441,11 @@ public abstract class OFile {
 		size = maxSize > 0 && iNewSize > maxSize ? maxSize : iNewSize;
 	}
 
-	public int getMaxSize() {
+	public long getMaxSize() {
 		return maxSize;
 	}
 
-	public void setMaxSize(int maxSize) {
+	public void setMaxSize(long maxSize) {
 		this.maxSize = maxSize;
 	}
 
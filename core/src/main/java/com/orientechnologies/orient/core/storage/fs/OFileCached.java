@@ -0,0 +1,339 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.orientechnologies.common.io.OIOException;
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.OConstants;
+
+/**
+ * File read through the pages of OPageCache, a cache of fixed size out of the Java heap shared by all the files of this type. Reads
+ * are served by the cached pages without accessing the file. Writes go to the file and update the cached pages, if any, so the
+ * content of the file is the same of OFileClassic in case of crash and the evicted pages never need to be written.<br/>
+ * Need to be synchronized by the external. Multiple Reader, Single Writer.<br/>
+ *
+ * @see OFile for the header structure
+ */
+public class OFileCached extends OFile {
+	protected ByteBuffer				headerBuffer;
+	protected final ByteBuffer	internalWriteBuffer	= ByteBuffer.allocate(OConstants.SIZE_LONG);
+
+	// PAGE TABLE MANAGED BY OPageCache: EACH SLOT CONTAINS THE CACHED PAGE OR NULL IF NOT LOADED
+	volatile OPageCacheEntry[]	pages								= new OPageCacheEntry[0];
+
+	public OFileCached(final String iFileName, final String iMode) throws IOException {
+		super(iFileName, iMode);
+	}
+
+	@Override
+	public void read(long iOffset, final byte[] iDestBuffer, final int iLenght) {
+		iOffset = checkRegions(iOffset, iLenght);
+
+		// SPLIT THE CONTENT BETWEEN THE PAGES. USE A DUPLICATE OF THE BUFFER SINCE THE POSITION IS NOT THREAD-SAFE
+		int copied = 0;
+		long offset;
+		int chunk;
+		while (copied < iLenght) {
+			offset = iOffset + copied;
+			chunk = (int) Math.min(iLenght - copied, OPageCache.getPageEnd(offset) - offset);
+
+			final OPageCacheEntry entry = OPageCache.pin(this, offset);
+			try {
+				final ByteBuffer buffer = entry.buffer.duplicate();
+				buffer.position((int) (offset % OPageCache.PAGE_SIZE));
+				buffer.get(iDestBuffer, copied, chunk);
+			} finally {
+				entry.unpin();
+			}
+
+			copied += chunk;
+		}
+	}
+
+	@Override
+	public int readInt(long iOffset) {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_INT);
+		if (crossesPages(iOffset, OConstants.SIZE_INT))
+			return readCrossingPages(iOffset, OConstants.SIZE_INT).getInt();
+
+		final OPageCacheEntry entry = OPageCache.pin(this, iOffset);
+		try {
+			return entry.buffer.getInt((int) (iOffset % OPageCache.PAGE_SIZE));
+		} finally {
+			entry.unpin();
+		}
+	}
+
+	@Override
+	public long readLong(long iOffset) {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_LONG);
+		if (crossesPages(iOffset, OConstants.SIZE_LONG))
+			return readCrossingPages(iOffset, OConstants.SIZE_LONG).getLong();
+
+		final OPageCacheEntry entry = OPageCache.pin(this, iOffset);
+		try {
+			return entry.buffer.getLong((int) (iOffset % OPageCache.PAGE_SIZE));
+		} finally {
+			entry.unpin();
+		}
+	}
+
+	@Override
+	public short readShort(long iOffset) {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_SHORT);
+		if (crossesPages(iOffset, OConstants.SIZE_SHORT))
+			return readCrossingPages(iOffset, OConstants.SIZE_SHORT).getShort();
+
+		final OPageCacheEntry entry = OPageCache.pin(this, iOffset);
+		try {
+			return entry.buffer.getShort((int) (iOffset % OPageCache.PAGE_SIZE));
+		} finally {
+			entry.unpin();
+		}
+	}
+
+	@Override
+	public byte readByte(long iOffset) {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_BYTE);
+
+		final OPageCacheEntry entry = OPageCache.pin(this, iOffset);
+		try {
+			return entry.buffer.get((int) (iOffset % OPageCache.PAGE_SIZE));
+		} finally {
+			entry.unpin();
+		}
+	}
+
+	@Override
+	public void writeInt(long iOffset, final int iValue) throws IOException {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_INT);
+		internalWriteBuffer.clear();
+		internalWriteBuffer.putInt(iValue);
+		writeData(iOffset, OConstants.SIZE_INT);
+	}
+
+	@Override
+	public void writeLong(long iOffset, final long iValue) throws IOException {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_LONG);
+		internalWriteBuffer.clear();
+		internalWriteBuffer.putLong(iValue);
+		writeData(iOffset, OConstants.SIZE_LONG);
+	}
+
+	@Override
+	public void writeShort(long iOffset, final short iValue) throws IOException {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_SHORT);
+		internalWriteBuffer.clear();
+		internalWriteBuffer.putShort(iValue);
+		writeData(iOffset, OConstants.SIZE_SHORT);
+	}
+
+	@Override
+	public void writeByte(long iOffset, final byte iValue) throws IOException {
+		iOffset = checkRegions(iOffset, OConstants.SIZE_BYTE);
+		internalWriteBuffer.clear();
+		internalWriteBuffer.put(iValue);
+		writeData(iOffset, OConstants.SIZE_BYTE);
+	}
+
+	@Override
+	public void write(long iOffset, final byte[] iSourceBuffer) throws IOException {
+		if (iSourceBuffer.length == 0)
+			return;
+
+		iOffset = checkRegions(iOffset, iSourceBuffer.length);
+
+		// WRITE THROUGH
+		final ByteBuffer source = ByteBuffer.wrap(iSourceBuffer);
+		while (source.hasRemaining())
+			channel.write(source, HEADER_SIZE + iOffset + source.position());
+
+		updatePages(iOffset, iSourceBuffer, 0, iSourceBuffer.length);
+	}
+
+	@Override
+	public void changeSize(final long iSize) {
+		super.changeSize(iSize);
+		try {
+			accessFile.setLength(HEADER_SIZE + iSize);
+			size = iSize;
+
+		} catch (IOException e) {
+			OLogManager.instance().error(this, "Error on changing the file size to " + iSize + " bytes", e, OIOException.class);
+		}
+	}
+
+	/**
+	 * Writes to the disk the changes of the file content.
+	 */
+	@Override
+	public void synch() {
+		try {
+			if (channel != null && channel.isOpen())
+				channel.force(false);
+		} catch (IOException e) {
+			OLogManager.instance().error(this, "Error on synchronizing the file " + osFile.getAbsolutePath(), e, OIOException.class);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (headerBuffer != null && channel != null && channel.isOpen()) {
+			setSoftlyClosed(true);
+			headerBuffer = null;
+		}
+
+		super.close();
+
+		OPageCache.release(this);
+	}
+
+	@Override
+	protected void readHeader() {
+		headerVersion = headerBuffer.get(HEADER_VERSION_OFFSET);
+		if (headerVersion == HEADER_VERSION_LEGACY) {
+			size = headerBuffer.getInt(0);
+			filledUpTo = headerBuffer.getInt(OConstants.SIZE_INT);
+		} else {
+			size = headerBuffer.getLong(FILE_SIZE_OFFSET);
+			filledUpTo = headerBuffer.getLong(FILLED_UP_TO_OFFSET);
+		}
+	}
+
+	@Override
+	protected void writeHeader() throws IOException {
+		headerVersion = HEADER_VERSION_CURRENT;
+		headerBuffer.put(HEADER_VERSION_OFFSET, headerVersion);
+		headerBuffer.putLong(FILE_SIZE_OFFSET, size);
+		headerBuffer.putLong(FILLED_UP_TO_OFFSET, filledUpTo);
+		writeHeaderData(HEADER_VERSION_OFFSET, FILLED_UP_TO_OFFSET + OConstants.SIZE_LONG - HEADER_VERSION_OFFSET);
+	}
+
+	@Override
+	public void writeHeaderLong(final int iPosition, final long iValue) throws IOException {
+		headerBuffer.putLong(HEADER_DATA_OFFSET + iPosition, iValue);
+		writeHeaderData(HEADER_DATA_OFFSET + iPosition, OConstants.SIZE_LONG);
+	}
+
+	@Override
+	public long readHeaderLong(final int iPosition) {
+		return headerBuffer.getLong(HEADER_DATA_OFFSET + iPosition);
+	}
+
+	@Override
+	public boolean isSoftlyClosed() {
+		return headerBuffer.get(SOFTLY_CLOSED_OFFSET) == 1;
+	}
+
+	@Override
+	protected void setSoftlyClosed(final boolean iValue) throws IOException {
+		if (headerBuffer == null)
+			return;
+
+		headerBuffer.put(SOFTLY_CLOSED_OFFSET, (byte) (iValue ? 1 : 0));
+		writeHeaderData(SOFTLY_CLOSED_OFFSET, OConstants.SIZE_BYTE);
+		synch();
+	}
+
+	@Override
+	protected void openChannel(final long iNewSize) throws IOException {
+		super.openChannel(iNewSize);
+
+		// KEEP THE HEADER IN MEMORY: IT'S WRITTEN THROUGH AT EVERY CHANGE
+		headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+		while (headerBuffer.hasRemaining())
+			if (channel.read(headerBuffer, headerBuffer.position()) == -1)
+				break;
+		headerBuffer.clear();
+	}
+
+	/**
+	 * Reads the page starting at the offset received. Called by OPageCache on cache miss: the part of the page after the end of the
+	 * file is filled with zeros.
+	 */
+	void readPage(final ByteBuffer iBuffer, final long iOffset) throws IOException {
+		iBuffer.clear();
+		while (iBuffer.hasRemaining())
+			if (channel.read(iBuffer, HEADER_SIZE + iOffset + iBuffer.position()) == -1)
+				break;
+
+		while (iBuffer.hasRemaining())
+			iBuffer.put((byte) 0);
+
+		iBuffer.clear();
+	}
+
+	public boolean isClosed() {
+		return headerBuffer == null;
+	}
+
+	private boolean crossesPages(final long iOffset, final int iSize) {
+		return iOffset % OPageCache.PAGE_SIZE + iSize > OPageCache.PAGE_SIZE;
+	}
+
+	private ByteBuffer readCrossingPages(final long iOffset, final int iSize) {
+		final byte[] content = new byte[iSize];
+		read(iOffset, content, iSize);
+		return ByteBuffer.wrap(content);
+	}
+
+	/**
+	 * Writes through the first iSize bytes of the internal buffer.
+	 */
+	private void writeData(final long iOffset, final int iSize) throws IOException {
+		internalWriteBuffer.flip();
+		channel.write(internalWriteBuffer, HEADER_SIZE + iOffset);
+
+		updatePages(iOffset, internalWriteBuffer.array(), 0, iSize);
+	}
+
+	private void writeHeaderData(final int iOffset, final int iSize) throws IOException {
+		final ByteBuffer buffer = headerBuffer.duplicate();
+		buffer.position(iOffset);
+		buffer.limit(iOffset + iSize);
+		while (buffer.hasRemaining())
+			channel.write(buffer, buffer.position());
+	}
+
+	/**
+	 * Copies the content written in the pages already cached.
+	 */
+	private void updatePages(final long iOffset, final byte[] iContent, final int iContentOffset, final int iSize) {
+		int copied = 0;
+		long offset;
+		int chunk;
+		OPageCacheEntry entry;
+		while (copied < iSize) {
+			offset = iOffset + copied;
+			chunk = (int) Math.min(iSize - copied, OPageCache.getPageEnd(offset) - offset);
+
+			entry = OPageCache.pinIfCached(this, offset);
+			if (entry != null)
+				try {
+					final ByteBuffer buffer = entry.buffer.duplicate();
+					buffer.position((int) (offset % OPageCache.PAGE_SIZE));
+					buffer.put(iContent, iContentOffset + copied, chunk);
+				} finally {
+					entry.unpin();
+				}
+
+			copied += chunk;
+		}
+	}
+}
@@ -24,17 +24,17 @@ import com.orientechnologies.orient.core.OConstants;
 
 /**
  * Need to be synchronized by the external. Multiple Reader, Single Writer.<br/>
- * Header structure:<br/>
- * <br/>
- * +-----------+--------------+---------------+---------------+<br/>
- * | FILE SIZE | FILLED UP TO | SOFTLY CLOSED | SECURITY CODE |<br/>
- * | 8 bytes . | 8 bytes .... | 1 byte ...... | 32 bytes .... |<br/>
- * +-----------+--------------+---------------+---------------+<br/>
- * = 1024 bytes<br/>
- * <br/>
+ * The content is stored after the header. Files created before the 64-bit offsets have the content at the beginning of the file,
+ * overlapped by the legacy header, and the size of the file equals the legacy size: the content is moved after the header the first
+ * time they are opened in write mode, while in read mode it's read where it is.
+ * 
+ * @see OFile for the header structure
  */
 public class OFileClassic extends OFile {
-	protected ByteBuffer internalWriteBuffer = getBuffer(OConstants.SIZE_LONG);
+	private static final int	MOVE_CHUNK_SIZE			= 65536;
+
+	protected ByteBuffer			internalWriteBuffer	= getBuffer(OConstants.SIZE_LONG);
+	protected long						contentOffset				= HEADER_SIZE;
 
 	public OFileClassic(String iFileName, String iMode) throws IOException {
 		super(iFileName, iMode);
@@ -42,15 +42,17 @@ public class OFileClassic extends OFile {
 
 	@Override
 	public void close() throws IOException {
-		setSoftlyClosed(true);
-		if (internalWriteBuffer != null)
-			internalWriteBuffer = null;
+		synchronized (resizeLock) {
+			setSoftlyClosed(true);
+			if (internalWriteBuffer != null)
+				internalWriteBuffer = null;
 
-		super.close();
+			super.close();
+		}
 	}
 
 	@Override
-	public void read(int iOffset, byte[] iDestBuffer, int iLenght)
+	public void read(long iOffset, byte[] iDestBuffer, int iLenght)
 			throws IOException {
 		iOffset = checkRegions(iOffset, iLenght);
 
@@ -59,31 +61,31 @@ public class OFileClassic extends OFile {
 	}
 
 	@Override
-	public int readInt(int iOffset) throws IOException {
+	public int readInt(long iOffset) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_INT);
 		return readData(iOffset, OConstants.SIZE_INT).getInt();
 	}
 
 	@Override
-	public long readLong(int iOffset) throws IOException {
+	public long readLong(long iOffset) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_LONG);
 		return readData(iOffset, OConstants.SIZE_LONG).getLong();
 	}
 
 	@Override
-	public short readShort(int iOffset) throws IOException {
+	public short readShort(long iOffset) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_SHORT);
 		return readData(iOffset, OConstants.SIZE_SHORT).getShort();
 	}
 
 	@Override
-	public byte readByte(int iOffset) throws IOException {
+	public byte readByte(long iOffset) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_BYTE);
 		return readData(iOffset, OConstants.SIZE_BYTE).get();
 	}
 
 	@Override
-	public void writeInt(int iOffset, int iValue) throws IOException {
+	public void writeInt(long iOffset, int iValue) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_INT);
 		ByteBuffer buffer = getWriteBuffer(OConstants.SIZE_INT);
 		buffer.putInt(iValue);
@@ -91,7 +93,7 @@ public class OFileClassic extends OFile {
 	}
 
 	@Override
-	public void writeLong(int iOffset, long iValue) throws IOException {
+	public void writeLong(long iOffset, long iValue) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_LONG);
 		ByteBuffer buffer = getWriteBuffer(OConstants.SIZE_LONG);
 		buffer.putLong(iValue);
@@ -99,7 +101,7 @@ public class OFileClassic extends OFile {
 	}
 
 	@Override
-	public void writeShort(int iOffset, short iValue) throws IOException {
+	public void writeShort(long iOffset, short iValue) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_INT);
 		ByteBuffer buffer = getWriteBuffer(OConstants.SIZE_SHORT);
 		buffer.putShort(iValue);
@@ -107,7 +109,7 @@ public class OFileClassic extends OFile {
 	}
 
 	@Override
-	public void writeByte(int iOffset, byte iValue) throws IOException {
+	public void writeByte(long iOffset, byte iValue) throws IOException {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_BYTE);
 		ByteBuffer buffer = getWriteBuffer(OConstants.SIZE_BYTE);
 		buffer.put(iValue);
@@ -115,19 +117,18 @@ public class OFileClassic extends OFile {
 	}
 
 	@Override
-	public void write(int iOffset, byte[] iSourceBuffer) throws IOException {
+	public void write(long iOffset, byte[] iSourceBuffer) throws IOException {
 		iOffset = checkRegions(iOffset, iSourceBuffer.length);
 
 		channel.write(ByteBuffer.wrap(iSourceBuffer), iOffset);
 	}
 
 	@Override
-	public void changeSize(int iSize) {
+	public void changeSize(long iSize) {
 		super.changeSize(iSize);
 		try {
-			channel.force(false);
-			channel.close();
-			openChannel(iSize);
+			accessFile.setLength(contentOffset + iSize);
+			size = iSize;
 
 		} catch (IOException e) {
 			OLogManager.instance().error(this,
@@ -137,27 +138,88 @@ public class OFileClassic extends OFile {
 	}
 
 	/**
-	 * Do nothing. Use OFileSecure to be assure the file is saved
-	 * 
-	 * @see OFileMMapSecure
+	 * Checks the range and returns the physical offset: the content is stored after the header, like the other implementations.
+	 */
+	@Override
+	protected long checkRegions(final long iOffset, final int iLenght) {
+		return contentOffset + super.checkRegions(iOffset, iLenght);
+	}
+
+	/**
+	 * Writes to the disk the changes of the file content.
 	 */
 	@Override
 	public void synch() {
+		try {
+			if (channel != null && channel.isOpen())
+				channel.force(false);
+		} catch (IOException e) {
+			OLogManager.instance().error(this, "Error on synchronizing the file " + osFile.getAbsolutePath(), e, OIOException.class);
+		}
 	}
 
 	@Override
 	protected void readHeader() throws IOException {
-		size = readData(0, OConstants.SIZE_INT).getInt();
-		filledUpTo = readData(OConstants.SIZE_INT, OConstants.SIZE_INT)
-				.getInt();
+		final int legacySize = readData(0, OConstants.SIZE_INT).getInt();
+		headerVersion = readData(HEADER_VERSION_OFFSET, OConstants.SIZE_BYTE).get();
+
+		if (headerVersion == HEADER_VERSION_LEGACY || legacySize > 0 && legacySize == osFile.length()) {
+			// OLD LAYOUT: THE VERSION BYTE IS PART OF THE CONTENT
+			headerVersion = HEADER_VERSION_LEGACY;
+			size = legacySize;
+			filledUpTo = readData(OConstants.SIZE_INT, OConstants.SIZE_INT).getInt();
+
+			if (mode.equals("r"))
+				contentOffset = 0;
+			else
+				moveContentAfterHeader();
+		} else {
+			contentOffset = HEADER_SIZE;
+			size = readData(FILE_SIZE_OFFSET, OConstants.SIZE_LONG).getLong();
+			filledUpTo = readData(FILLED_UP_TO_OFFSET, OConstants.SIZE_LONG).getLong();
+		}
+	}
+
+	/**
+	 * Converts a file of the old layout moving the content after the header. The content is copied backward to never overwrite the
+	 * part not copied yet. The header data stays where it is, and the legacy sizes are cleared to not find the old layout again.
+	 */
+	private void moveContentAfterHeader() throws IOException {
+		OLogManager.instance().info(this, "Moving the content of file " + osFile.getName() + " after the header...");
+
+		accessFile.setLength(HEADER_SIZE + size);
+
+		final ByteBuffer buffer = getBuffer(MOVE_CHUNK_SIZE);
+		long position = filledUpTo;
+		int chunk;
+		while (position > 0) {
+			chunk = (int) Math.min(MOVE_CHUNK_SIZE, position);
+			position -= chunk;
+
+			buffer.clear().limit(chunk);
+			channel.read(buffer, position);
+			buffer.flip();
+			channel.write(buffer, HEADER_SIZE + position);
+		}
+
+		contentOffset = HEADER_SIZE;
+		headerVersion = HEADER_VERSION_CURRENT;
+		writeHeader();
+		writeData(getBuffer(OConstants.SIZE_INT * 2), 0);
+		synch();
 	}
 
 	@Override
 	protected void writeHeader() throws IOException {
-		ByteBuffer buffer = getWriteBuffer(OConstants.SIZE_INT * 2);
-		buffer.putInt(size);
-		buffer.putInt(filledUpTo);
-		writeData(buffer, 0);
+		headerVersion = HEADER_VERSION_CURRENT;
+		ByteBuffer buffer = getBuffer(OConstants.SIZE_BYTE);
+		buffer.put(headerVersion);
+		writeData(buffer, HEADER_VERSION_OFFSET);
+
+		buffer = getBuffer(OConstants.SIZE_LONG * 2);
+		buffer.putLong(size);
+		buffer.putLong(filledUpTo);
+		writeData(buffer, FILE_SIZE_OFFSET);
 	}
 
 	@Override
@@ -186,14 +248,14 @@ public class OFileClassic extends OFile {
 		synch();
 	}
 
-	private ByteBuffer readData(int iOffset, int iSize) throws IOException {
+	private ByteBuffer readData(long iOffset, int iSize) throws IOException {
 		ByteBuffer buffer = getBuffer(iSize);
 		channel.read(buffer, iOffset);
 		buffer.rewind();
 		return buffer;
 	}
 
-	private void writeData(ByteBuffer iBuffer, int iOffset) throws IOException {
+	private void writeData(ByteBuffer iBuffer, long iOffset) throws IOException {
 		iBuffer.rewind();
 		channel.write(iBuffer, iOffset);
 	}
@@ -204,8 +266,8 @@ public class OFileClassic extends OFile {
 
 	private ByteBuffer getWriteBuffer(int iLenght) {
 		if (iLenght <= OConstants.SIZE_LONG)
-			// RECYCLE WRITE BYTE BUFFER SINCE WRITES ARE SYNCHRONIZED
-			return (ByteBuffer) internalWriteBuffer.rewind();
+			// RECYCLE WRITE BYTE BUFFER SINCE WRITES ARE SYNCHRONIZED. THE LIMIT AVOIDS TO WRITE THE BYTES AFTER THE VALUE
+			return (ByteBuffer) internalWriteBuffer.clear().limit(iLenght);
 
 		return getBuffer(iLenght);
 	}
@@ -20,13 +20,14 @@ import java.io.IOException;
 public class OFileFactory {
 	public static final String	MMAP		= "mmap";
 	public static final String	CLASSIC	= "classic";
+	public static final String	CACHED	= "cached";
 
 	public enum TYPE {
-		MMAP, CLASSIC,
+		MMAP, CLASSIC, CACHED
 	}
 
 	public static OFile create(TYPE iType, String iFileName, String iOpenMode) throws IOException {
-		return create(iType.toString(), iFileName, iOpenMode);
+		return create(iType.toString().toLowerCase(), iFileName, iOpenMode);
 	}
 
 	public static OFile create(String iType, String iFileName, String iOpenMode) throws IOException {
@@ -34,6 +35,8 @@ public class OFileFactory {
 			return new OFileMMap(iFileName, iOpenMode);
 		else if (iType.equals(CLASSIC))
 			return new OFileClassic(iFileName, iOpenMode);
+		else if (iType.equals(CACHED))
+			return new OFileCached(iFileName, iOpenMode);
 
 		throw new IllegalArgumentException("Type " + iType + " not supported");
 	}
@@ -17,6 +17,7 @@ package com.orientechnologies.orient.core.storage.fs;
 
 import java.io.IOException;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -26,100 +27,141 @@ import com.orientechnologies.orient.core.OConstants;
 
 /**
  * 
- * Header structure:<br/>
- * <br/>
- * +-----------+--------------+---------------+---------------+<br/>
- * | FILE SIZE | FILLED UP TO | SOFTLY CLOSED | SECURITY CODE |<br/>
- * | 8 bytes . | 8 bytes .... | 1 byte ...... | 32 bytes .... |<br/>
- * +-----------+--------------+---------------+---------------+<br/>
- * = 1024 bytes<br/>
- * <br/>
+ * File mapped in memory by blocks (windows) managed by OMMapManager. Since each block is small, files can be bigger than 2GB.
+ * 
+ * @see OFile for the header structure
  */
 public class OFileMMap extends OFile {
 	protected MappedByteBuffer	headerBuffer;
 	protected int								bufferBeginOffset	= -1;
 	protected int								bufferSize				= 0;
 
+	// PAGE TABLE MANAGED BY OMMapManager: EACH SLOT CONTAINS THE MAPPED BLOCK OF THE PAGE OR NULL IF NOT LOADED
+	volatile OMMapBufferEntry[]	pages							= new OMMapBufferEntry[0];
+
 	public OFileMMap(String iFileName, String iMode) throws IOException {
 		super(iFileName, iMode);
 	}
 
 	@Override
-	public void read(int iOffset, final byte[] iDestBuffer, final int iLenght) {
+	public void read(long iOffset, final byte[] iDestBuffer, final int iLenght) {
 		iOffset = checkRegions(iOffset, iLenght);
 
-		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, iLenght);
-		entry.buffer.position(iOffset - entry.beginOffset);
-		entry.buffer.get(iDestBuffer, 0, iLenght);
+		// SPLIT THE CONTENT BETWEEN THE PAGES. USE A DUPLICATE OF THE BUFFER SINCE THE POSITION IS NOT THREAD-SAFE
+		int copied = 0;
+		long offset;
+		int chunk;
+		while (copied < iLenght) {
+			offset = iOffset + copied;
+			chunk = (int) Math.min(iLenght - copied, OMMapManager.getPageEnd(offset) - offset);
+
+			final OMMapBufferEntry entry = OMMapManager.request(this, offset, chunk);
+			final ByteBuffer buffer = entry.buffer.duplicate();
+			buffer.position((int) (offset - entry.beginOffset));
+			buffer.get(iDestBuffer, copied, chunk);
+
+			copied += chunk;
+		}
 	}
 
 	@Override
-	public int readInt(int iOffset) {
+	public int readInt(long iOffset) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_INT);
 		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_INT);
-		return entry.buffer.getInt(iOffset - entry.beginOffset);
+		return entry.buffer.getInt((int) (iOffset - entry.beginOffset));
 	}
 
 	@Override
-	public long readLong(int iOffset) {
+	public long readLong(long iOffset) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_LONG);
 		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_LONG);
-		return entry.buffer.getLong(iOffset - entry.beginOffset);
+		return entry.buffer.getLong((int) (iOffset - entry.beginOffset));
 	}
 
 	@Override
-	public short readShort(int iOffset) {
+	public short readShort(long iOffset) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_SHORT);
 		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_SHORT);
-		return entry.buffer.getShort(iOffset - entry.beginOffset);
+		return entry.buffer.getShort((int) (iOffset - entry.beginOffset));
 	}
 
 	@Override
-	public byte readByte(int iOffset) {
+	public byte readByte(long iOffset) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_BYTE);
 		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_BYTE);
-		return entry.buffer.get(iOffset - entry.beginOffset);
+		return entry.buffer.get((int) (iOffset - entry.beginOffset));
 	}
 
 	@Override
-	public void writeInt(int iOffset, final int iValue) {
+	public void writeInt(long iOffset, final int iValue) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_INT);
-		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_INT);
-		entry.buffer.putInt(iOffset - entry.beginOffset, iValue);
+		final OMMapBufferEntry entry = OMMapManager.requestForWrite(this, iOffset, OConstants.SIZE_INT);
+		try {
+			entry.buffer.putInt((int) (iOffset - entry.beginOffset), iValue);
+		} finally {
+			OMMapManager.releaseWrite(entry);
+		}
 	}
 
 	@Override
-	public void writeLong(int iOffset, final long iValue) {
+	public void writeLong(long iOffset, final long iValue) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_LONG);
-		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_LONG);
-		entry.buffer.putLong(iOffset - entry.beginOffset, iValue);
+		final OMMapBufferEntry entry = OMMapManager.requestForWrite(this, iOffset, OConstants.SIZE_LONG);
+		try {
+			entry.buffer.putLong((int) (iOffset - entry.beginOffset), iValue);
+		} finally {
+			OMMapManager.releaseWrite(entry);
+		}
 	}
 
 	@Override
-	public void writeShort(int iOffset, final short iValue) {
+	public void writeShort(long iOffset, final short iValue) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_SHORT);
-		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_SHORT);
-		entry.buffer.putShort(iOffset - entry.beginOffset, iValue);
+		final OMMapBufferEntry entry = OMMapManager.requestForWrite(this, iOffset, OConstants.SIZE_SHORT);
+		try {
+			entry.buffer.putShort((int) (iOffset - entry.beginOffset), iValue);
+		} finally {
+			OMMapManager.releaseWrite(entry);
+		}
 	}
 
 	@Override
-	public void writeByte(int iOffset, final byte iValue) {
+	public void writeByte(long iOffset, final byte iValue) {
 		iOffset = checkRegions(iOffset, OConstants.SIZE_BYTE);
-		final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, OConstants.SIZE_BYTE);
-		entry.buffer.put(iOffset - entry.beginOffset, iValue);
+		final OMMapBufferEntry entry = OMMapManager.requestForWrite(this, iOffset, OConstants.SIZE_BYTE);
+		try {
+			entry.buffer.put((int) (iOffset - entry.beginOffset), iValue);
+		} finally {
+			OMMapManager.releaseWrite(entry);
+		}
 	}
 
 	@Override
-	public void write(int iOffset, final byte[] iSourceBuffer) {
+	public void write(long iOffset, final byte[] iSourceBuffer) {
 		if (iSourceBuffer.length == 0)
 			return;
 
 		iOffset = checkRegions(iOffset, iSourceBuffer.length);
 
 		try {
-			final OMMapBufferEntry entry = OMMapManager.request(this, iOffset, iSourceBuffer.length);
-			entry.buffer.position(iOffset - entry.beginOffset);
-			entry.buffer.put(iSourceBuffer);
+			int copied = 0;
+			long offset;
+			int chunk;
+			while (copied < iSourceBuffer.length) {
+				offset = iOffset + copied;
+				chunk = (int) Math.min(iSourceBuffer.length - copied, OMMapManager.getPageEnd(offset) - offset);
+
+				final OMMapBufferEntry entry = OMMapManager.requestForWrite(this, offset, chunk);
+				try {
+					final ByteBuffer buffer = entry.buffer.duplicate();
+					buffer.position((int) (offset - entry.beginOffset));
+					buffer.put(iSourceBuffer, copied, chunk);
+				} finally {
+					OMMapManager.releaseWrite(entry);
+				}
+
+				copied += chunk;
+			}
 		} catch (BufferOverflowException e) {
 			OLogManager.instance()
 					.error(this, "Error on write in the range " + iOffset + "-" + iOffset + iSourceBuffer.length + "." + toString(), e,
@@ -128,26 +170,30 @@ public class OFileMMap extends OFile {
 	}
 
 	@Override
-	public void changeSize(final int iSize) {
+	public void changeSize(final long iSize) {
 		super.changeSize(iSize);
 		size = iSize;
 	}
 
 	/**
-	 * Synchronize buffered changes to the file.
-	 * 
-	 * @see OFileMMapSecure
+	 * Synchronize buffered changes to the file: writes to the disk the mapped blocks and then the header.
 	 */
 	@Override
 	public void synch() {
+		OMMapManager.force(this);
 		headerBuffer.force();
 	}
 
 	@Override
 	protected void readHeader() {
-		headerBuffer.rewind();
-		size = headerBuffer.getInt();
-		filledUpTo = headerBuffer.getInt();
+		headerVersion = headerBuffer.get(HEADER_VERSION_OFFSET);
+		if (headerVersion == HEADER_VERSION_LEGACY) {
+			size = headerBuffer.getInt(0);
+			filledUpTo = headerBuffer.getInt(OConstants.SIZE_INT);
+		} else {
+			size = headerBuffer.getLong(FILE_SIZE_OFFSET);
+			filledUpTo = headerBuffer.getLong(FILLED_UP_TO_OFFSET);
+		}
 		// for (int i = 0; i < securityCode.length; ++i)
 		// securityCode[i] = buffer.get();
 		//
@@ -169,9 +215,10 @@ public class OFileMMap extends OFile {
 
 	@Override
 	protected void writeHeader() {
-		headerBuffer.rewind();
-		headerBuffer.putInt(size);
-		headerBuffer.putInt(filledUpTo);
+		headerVersion = HEADER_VERSION_CURRENT;
+		headerBuffer.put(HEADER_VERSION_OFFSET, headerVersion);
+		headerBuffer.putLong(FILE_SIZE_OFFSET, size);
+		headerBuffer.putLong(FILLED_UP_TO_OFFSET, filledUpTo);
 		//
 		// StringBuilder check = new StringBuilder();
 		// check.append('X');
@@ -203,14 +250,16 @@ public class OFileMMap extends OFile {
 
 	@Override
 	public void close() throws IOException {
-		if (headerBuffer != null) {
-			setSoftlyClosed(true);
-			headerBuffer = null;
-		}
+		synchronized (resizeLock) {
+			if (headerBuffer != null) {
+				setSoftlyClosed(true);
+				headerBuffer = null;
+			}
 
-		super.close();
+			super.close();
+		}
 
-		OMMapManager.flush();
+		OMMapManager.release(this);
 	}
 
 	@Override
@@ -227,13 +276,13 @@ public class OFileMMap extends OFile {
 		synch();
 	}
 
-	MappedByteBuffer map(final int iBeginOffset, final int iSize) throws IOException {
+	MappedByteBuffer map(final long iBeginOffset, final int iSize) throws IOException {
 		return channel.map(mode.equals("r") ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, iBeginOffset
 				+ HEADER_SIZE, iSize);
 	}
 
 	@Override
-	protected void openChannel(final int iNewSize) throws IOException {
+	protected void openChannel(final long iNewSize) throws IOException {
 		super.openChannel(iNewSize);
 		headerBuffer = channel.map(mode.equals("r") ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
 	}
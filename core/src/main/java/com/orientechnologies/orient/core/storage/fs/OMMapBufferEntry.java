@@ -18,23 +18,44 @@ package com.orientechnologies.orient.core.storage.fs;
 import java.io.IOException;
 import java.nio.MappedByteBuffer;
 
+/**
+ * Memory mapped block of a file. The block is immutable once created, so it can be shared between threads without locks. Use
+ * absolute get/put methods or a duplicate() of the buffer to avoid to share the buffer's position.
+ */
 public class OMMapBufferEntry {
-  OFileMMap        file;
-  MappedByteBuffer buffer;
-  int              beginOffset;
-  int              size;
-  int              counter;
-  boolean          pin;
+  final OFileMMap        file;
+  final MappedByteBuffer buffer;
+  final int              pageIndex;
+  final long             beginOffset;
+  final int              size;
+  volatile boolean       referenced;
+  volatile boolean       dirty;
+  int                    clockIndex = -1;
+  boolean                pin;
+  // WRITES IN PROGRESS, LAST LOG ENTRY APPLIED TO THE BLOCK AND REMOVAL FROM THE MANAGER: GUARDED BY THE ENTRY ITSELF
+  int                    writers;
+  OWriteAheadLog         log;
+  long                   lsn;
+  boolean                removed;
 
-  public OMMapBufferEntry(final OFileMMap iFile, final MappedByteBuffer buffer, final int beginOffset, final int size) {
+  public OMMapBufferEntry(final OFileMMap iFile, final MappedByteBuffer buffer, final int iPageIndex, final long beginOffset,
+      final int size) {
     this.file = iFile;
     this.buffer = buffer;
+    this.pageIndex = iPageIndex;
     this.beginOffset = beginOffset;
     this.size = size;
-    this.counter = 0;
+    this.referenced = true;
     pin = false;
   }
 
+  /**
+   * Tells if the range is fully contained in the block.
+   */
+  public boolean contains(final long iOffset, final int iSize) {
+    return iOffset >= beginOffset && iOffset + iSize <= beginOffset + size;
+  }
+
   @Override
   public String toString() {
     final StringBuilder builder = new StringBuilder();
@@ -47,15 +68,11 @@ public class OMMapBufferEntry {
    * Force closing of file is it's opened yet.
    */
   public void close() {
-    if (file != null) {
-      if (!file.isClosed()) {
-        try {
-          file.close();
-        } catch (IOException e) {
-        }
+    if (!file.isClosed()) {
+      try {
+        file.close();
+      } catch (IOException e) {
       }
-      file = null;
     }
-    buffer = null;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.fs;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.common.thread.OSoftThread;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+
+/**
+ * Background thread that writes to the disk the dirty blocks of the memory mapped files, so OMMapManager can evict the clean blocks
+ * without forcing them in the thread that requested a new block. Blocks are written sorted by file and offset to keep the disk
+ * access sequential, and no more than "file.mmap.flushRate" blocks per second are written to leave the I/O bandwidth to the other
+ * operations. The thread wakes up every "file.mmap.flushInterval" ms or when OMMapManager needs memory but finds only dirty blocks.
+ */
+public class OMMapFlusher extends OSoftThread {
+	private static final Comparator<OMMapBufferEntry>	FILE_OFFSET_ORDER	= new Comparator<OMMapBufferEntry>() {
+		public int compare(final OMMapBufferEntry o1, final OMMapBufferEntry o2) {
+			if (o1.file != o2.file) {
+				final int cmp = o1.file.getOsFile().getPath().compareTo(o2.file.getOsFile().getPath());
+				if (cmp != 0)
+					return cmp;
+			}
+			return o1.beginOffset < o2.beginOffset ? -1 : (o1.beginOffset == o2.beginOffset ? 0 : 1);
+		}
+	};
+
+	private final int																	interval;
+	private final int																	rate;
+	private boolean																		wakeUpRequested;
+
+	public OMMapFlusher() {
+		super("OrientDB MMap Flusher");
+		interval = Math.max(OGlobalConfiguration.FILE_MMAP_FLUSH_INTERVAL.getValueAsInteger(), 1);
+		rate = OGlobalConfiguration.FILE_MMAP_FLUSH_RATE.getValueAsInteger();
+	}
+
+	@Override
+	protected void execute() throws Exception {
+		waitForWork();
+
+		if (!running)
+			return;
+
+		flushDirtyPages();
+
+		// NOW THE CLEAN BLOCKS CAN BE EVICTED IF THE MEMORY IS OVER THE LIMIT
+		OMMapManager.evictCleanPages();
+	}
+
+	/**
+	 * Wakes up the thread to write the dirty blocks before the next interval.
+	 */
+	public synchronized void wakeUp() {
+		wakeUpRequested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Writes all the dirty blocks found, respecting the configured rate.
+	 *
+	 * @return The number of blocks written
+	 */
+	protected int flushDirtyPages() {
+		final List<OMMapBufferEntry> entries = OMMapManager.getDirtyPages();
+		if (entries.isEmpty())
+			return 0;
+
+		final long timer = OProfiler.getInstance().startChrono();
+
+		Collections.sort(entries, FILE_OFFSET_ORDER);
+
+		final long begin = System.currentTimeMillis();
+		int flushed = 0;
+		long expectedElapsed;
+		for (OMMapBufferEntry entry : entries) {
+			if (!running)
+				break;
+
+			if (!OMMapManager.flushPage(entry))
+				// ALREADY WRITTEN BY A SYNCH OF THE FILE
+				continue;
+
+			flushed++;
+
+			if (rate > 0) {
+				// RATE LIMITING: WAIT IF THE BLOCKS HAVE BEEN WRITTEN FASTER THAN THE CONFIGURED RATE
+				expectedElapsed = flushed * 1000l / rate;
+				final long elapsed = System.currentTimeMillis() - begin;
+				if (expectedElapsed > elapsed)
+					pause(expectedElapsed - elapsed);
+			}
+		}
+
+		OProfiler.getInstance().updateCounter("OMMapFlusher.pagesFlushed", flushed);
+		OProfiler.getInstance().stopChrono("OMMapFlusher.flush", timer);
+
+		return flushed;
+	}
+
+	private synchronized void waitForWork() {
+		if (!wakeUpRequested)
+			try {
+				wait(interval);
+			} catch (InterruptedException e) {
+			}
+
+		wakeUpRequested = false;
+	}
+}
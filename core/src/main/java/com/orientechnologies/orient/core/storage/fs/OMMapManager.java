@@ -17,23 +17,55 @@ package com.orientechnologies.orient.core.storage.fs;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.orientechnologies.common.io.OIOException;
 import com.orientechnologies.common.log.OLogManager;
 import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.orient.core.OConstants;
 import com.orientechnologies.orient.core.config.OGlobalConfiguration;
 
+/**
+ * Manages the memory mapped blocks of all the OFileMMap instances. Files are divided in pages of DEF_BLOCK_SIZE bytes and only the
+ * used pages are mapped, so the file size is not limited by the size of a single mapping (2GB). Each file
+ * keeps its own page table, so finding the block that contains an offset costs a division and an array access without any lock.
+ * Only misses (page not mapped yet) are serialized to map the new block and, if the MAX_MEMORY threshold is reached, to evict the
+ * less used blocks by using the CLOCK algorithm.<br/>
+ * Every block maps PAGE_OVERLAP bytes more than the page size, so primitive values (up to a long) never cross two blocks.<br/>
+ * Written blocks are marked as dirty and are written to the disk by the OMMapFlusher background thread or by the synch of their
+ * file. The eviction drops only clean blocks, so a thread that maps a new block never waits for the disk: if all the candidates are
+ * dirty the memory limit is temporarily exceeded and the flusher is woken up to clean them.<br/>
+ * Writers pin the block with requestForWrite() and mark it as dirty before to change it, so a block can't be evicted or cleaned
+ * while a write is in progress. If the thread is applying a logged change (see setWriteLsn()) the block keeps the LSN of the change
+ * and the log is written up to that LSN before the block.
+ */
 public class OMMapManager {
-	public static final int											DEF_BLOCK_SIZE;
-	private static final int										MAX_MEMORY;
-	private static final int										FORCE_DELAY;
-	private static final int										FORCE_RETRY;
+	public static final int													DEF_BLOCK_SIZE;
+	public static final int													PAGE_OVERLAP	= OConstants.SIZE_LONG;
+	private static final long												MAX_MEMORY;
+	private static final int												FORCE_DELAY;
+	private static final int												FORCE_RETRY;
 
-	private static int													totalMemory;
+	private static final Object											lock					= new Object();
+	private static final List<OMMapBufferEntry>	clock					= new ArrayList<OMMapBufferEntry>();
+	private static int															clockHand;
+	private static long															totalMemory;
 
-	private static LinkedList<OMMapBufferEntry>	buffersLRU	= new LinkedList<OMMapBufferEntry>();
+	private static final AtomicLong									hits					= new AtomicLong();
+	private static final AtomicLong									forces				= new AtomicLong();
+	private static final AtomicInteger							dirtyPages		= new AtomicInteger();
+	private static long															misses;
+	private static long															evictions;
+	private static long															skippedDirty;
+	private static OMMapFlusher											flusher;
+	private static long															publishedHits;
+	private static long															publishedMisses;
+	private static long															publishedEvictions;
+	private static long															publishedForces;
+	private static long															publishedSkippedDirty;
+	private static final ThreadLocal<Object[]>			writeLsn			= new ThreadLocal<Object[]>();
 
 	static {
 		DEF_BLOCK_SIZE = OGlobalConfiguration.FILE_MMAP_BLOCK_SIZE.getValueAsInteger();
@@ -42,113 +74,487 @@ public class OMMapManager {
 		FORCE_RETRY = OGlobalConfiguration.FILE_MMAP_FORCE_RETRY.getValueAsInteger();
 	}
 
-	public static OMMapBufferEntry request(final OFileMMap iFile, final int iBeginOffset, final int iSize) {
-		return request(iFile, iBeginOffset, iSize, false);
+	/**
+	 * Returns the block that contains the requested range. The range can't cross the page boundary (plus PAGE_OVERLAP bytes): bigger
+	 * contents must be split by the caller using getPageEnd().
+	 */
+	public static OMMapBufferEntry request(final OFileMMap iFile, final long iBeginOffset, final int iSize) {
+		final int pageIndex = (int) (iBeginOffset / DEF_BLOCK_SIZE);
+
+		// LOCK-FREE LOOKUP IN THE PAGE TABLE OF THE FILE
+		final OMMapBufferEntry[] pages = iFile.pages;
+		if (pageIndex < pages.length) {
+			final OMMapBufferEntry entry = pages[pageIndex];
+			if (entry != null && entry.contains(iBeginOffset, iSize)) {
+				// FOUND: USE IT
+				if (!entry.referenced)
+					entry.referenced = true;
+
+				if (OProfiler.getInstance().isRecording())
+					hits.incrementAndGet();
+
+				return entry;
+			}
+		}
+
+		return loadPage(iFile, pageIndex, iBeginOffset, iSize);
 	}
 
-	public synchronized static OMMapBufferEntry request(final OFileMMap iFile, final int iBeginOffset, final int iSize,
-			final boolean iForce) {
-		try {
-			// SEARCH THE REQUESTED RANGE IN CACHED BUFFERS
-			for (OMMapBufferEntry e : buffersLRU) {
-				if (iFile.equals(e.file) && iBeginOffset >= e.beginOffset && iBeginOffset + iSize <= e.beginOffset + e.size) {
-					OProfiler.getInstance().updateCounter("OMMapManager.usePage", 1);
-					// FOUND: USE IT
-					return e;
+	/**
+	 * Returns the block that contains the requested range marked as dirty and pinned, so it can't be evicted or written to the disk
+	 * until releaseWrite() is called. The block takes the LSN set by setWriteLsn() for the current thread, if any.
+	 */
+	public static OMMapBufferEntry requestForWrite(final OFileMMap iFile, final long iBeginOffset, final int iSize) {
+		final Object[] lsn = writeLsn.get();
+
+		OMMapBufferEntry entry;
+		boolean newDirty;
+		while (true) {
+			entry = request(iFile, iBeginOffset, iSize);
+
+			synchronized (entry) {
+				if (entry.removed)
+					// EVICTED OR REMAPPED IN THE MEANWHILE: REQUEST IT AGAIN
+					continue;
+
+				entry.writers++;
+				newDirty = !entry.dirty;
+				entry.dirty = true;
+
+				if (lsn != null) {
+					entry.log = (OWriteAheadLog) lsn[0];
+					if ((Long) lsn[1] > entry.lsn)
+						entry.lsn = (Long) lsn[1];
 				}
+				break;
 			}
+		}
+
+		if (newDirty) {
+			dirtyPages.incrementAndGet();
+
+			if (flusher == null)
+				startFlusher();
+		}
 
-			int bufferSize = iForce ? iSize : iSize <= DEF_BLOCK_SIZE ? DEF_BLOCK_SIZE : iSize;
-			if (iBeginOffset + bufferSize > iFile.getFileSize())
+		return entry;
+	}
+
+	/**
+	 * Unpins the block requested by requestForWrite().
+	 */
+	public static void releaseWrite(final OMMapBufferEntry iEntry) {
+		synchronized (iEntry) {
+			iEntry.writers--;
+		}
+	}
+
+	/**
+	 * Sets the LSN of the change the current thread is applying: the blocks written until the next call can't be written to the disk
+	 * before the log entries up to that LSN. Pass a null log to clear it.
+	 */
+	public static void setWriteLsn(final OWriteAheadLog iLog, final long iLsn) {
+		if (iLog == null)
+			writeLsn.remove();
+		else
+			writeLsn.set(new Object[] { iLog, iLsn });
+	}
+
+	/**
+	 * Returns the LSN set for the writes of the current thread, or 0 if not set.
+	 */
+	public static long getWriteLsn() {
+		final Object[] lsn = writeLsn.get();
+		return lsn != null ? (Long) lsn[1] : 0;
+	}
+
+	/**
+	 * Returns the first offset of the page next to the one that contains iOffset.
+	 */
+	public static long getPageEnd(final long iOffset) {
+		return (iOffset / DEF_BLOCK_SIZE + 1) * DEF_BLOCK_SIZE;
+	}
+
+	/**
+	 * Flush away all the buffers of file closed. This frees the memory.
+	 */
+	public static void flush() {
+		synchronized (lock) {
+			OMMapBufferEntry entry;
+			for (int i = clock.size() - 1; i >= 0; --i) {
+				entry = clock.get(i);
+				if (entry.file.isClosed())
+					discardEntry(entry);
+			}
+
+			updateProfiler();
+		}
+	}
+
+	/**
+	 * Removes all the blocks of the file. Called when the file is closed.
+	 */
+	public static void release(final OFileMMap iFile) {
+		synchronized (lock) {
+			for (OMMapBufferEntry entry : iFile.pages)
+				if (entry != null)
+					discardEntry(entry);
+
+			iFile.pages = new OMMapBufferEntry[0];
+		}
+	}
+
+	/**
+	 * Writes to the disk the dirty blocks of the file. The page table is read without locking: only clean blocks can be evicted in the
+	 * meanwhile.
+	 */
+	public static void force(final OFileMMap iFile) {
+		for (OMMapBufferEntry entry : iFile.pages)
+			if (entry != null)
+				flushPage(entry);
+	}
+
+	/**
+	 * Writes the block to the disk if it's dirty, after the log entries of the changes it contains.
+	 *
+	 * @return true if the block was dirty, otherwise false
+	 */
+	public static boolean flushPage(final OMMapBufferEntry iEntry) {
+		final OWriteAheadLog log;
+		final long lsn;
+		final boolean cleaned;
+
+		synchronized (iEntry) {
+			if (!iEntry.dirty)
+				return false;
+
+			log = iEntry.log;
+			lsn = iEntry.lsn;
+
+			// CLEAR THE FLAG BEFORE TO WRITE: CHANGES DONE DURING THE WRITE WILL MARK THE BLOCK AS DIRTY AGAIN. A BLOCK WITH WRITES IN
+			// PROGRESS STAYS DIRTY
+			cleaned = iEntry.writers == 0;
+			if (cleaned) {
+				iEntry.dirty = false;
+				iEntry.lsn = 0;
+			}
+		}
+
+		if (cleaned)
+			dirtyPages.decrementAndGet();
+
+		if (log != null && lsn > 0)
+			// WRITE-AHEAD: THE LOG GOES TO THE DISK BEFORE THE CHANGES IT DESCRIBES
+			log.synch(lsn);
+
+		forceBuffer(iEntry);
+		return true;
+	}
+
+	/**
+	 * Returns a snapshot of the dirty blocks.
+	 */
+	public static List<OMMapBufferEntry> getDirtyPages() {
+		synchronized (lock) {
+			final List<OMMapBufferEntry> result = new ArrayList<OMMapBufferEntry>(dirtyPages.get());
+			for (OMMapBufferEntry entry : clock)
+				if (entry.dirty)
+					result.add(entry);
+			return result;
+		}
+	}
+
+	/**
+	 * Evicts the clean blocks until the used memory is under the limit. Called by the flusher after having written the dirty blocks.
+	 */
+	public static void evictCleanPages() {
+		synchronized (lock) {
+			if (totalMemory > MAX_MEMORY)
+				evict(0);
+
+			updateProfiler();
+		}
+	}
+
+	public static void shutdown() {
+		final List<OMMapBufferEntry> entries;
+		synchronized (lock) {
+			if (flusher != null) {
+				flusher.sendShutdown();
+				flusher = null;
+			}
+			entries = new ArrayList<OMMapBufferEntry>(clock);
+		}
+
+		// WRITE THE DIRTY BLOCKS BEFORE TO CLOSE THE FILES, WITHOUT THE LOCK SINCE THE LOG COULD BE WRITTEN BEFORE THEM
+		for (OMMapBufferEntry entry : entries)
+			flushPage(entry);
+
+		synchronized (lock) {
+			for (OMMapBufferEntry entry : new ArrayList<OMMapBufferEntry>(clock)) {
+				entry.close();
+				discardEntry(entry);
+			}
+			clock.clear();
+			clockHand = 0;
+			totalMemory = 0;
+		}
+	}
+
+	/**
+	 * Returns the hits counted so far. Hits are counted only while the profiler is recording to keep the lookup free of contention.
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		synchronized (lock) {
+			return misses;
+		}
+	}
+
+	public static long getEvictions() {
+		synchronized (lock) {
+			return evictions;
+		}
+	}
+
+	public static long getForces() {
+		return forces.get();
+	}
+
+	/**
+	 * Returns the number of blocks changed and not yet written to the disk.
+	 */
+	public static int getDirtyPageCount() {
+		return dirtyPages.get();
+	}
+
+	public static long getTotalMemory() {
+		synchronized (lock) {
+			return totalMemory;
+		}
+	}
+
+	private static OMMapBufferEntry loadPage(final OFileMMap iFile, final int iPageIndex, final long iBeginOffset, final int iSize) {
+		synchronized (lock) {
+			// CHECK AGAIN: ANOTHER THREAD COULD HAVE MAPPED THE PAGE IN THE MEANWHILE
+			OMMapBufferEntry[] pages = iFile.pages;
+			OMMapBufferEntry entry = iPageIndex < pages.length ? pages[iPageIndex] : null;
+			boolean dirty = false;
+			OWriteAheadLog log = null;
+			long lsn = 0;
+			if (entry != null) {
+				if (entry.contains(iBeginOffset, iSize)) {
+					entry.referenced = true;
+					return entry;
+				}
+
+				// THE PAGE WAS MAPPED WHEN THE FILE WAS SMALLER: REMAP IT. THE NEW MAPPING SHARES THE SAME FILE REGION, SO IT INHERITS THE
+				// CHANGES NOT YET WRITTEN AND THE DIRTY STATE
+				synchronized (entry) {
+					removeEntry(entry);
+					dirty = entry.dirty;
+					log = entry.log;
+					lsn = entry.lsn;
+					entry.dirty = false;
+				}
+			}
+
+			misses++;
+
+			final long pageBegin = (long) iPageIndex * DEF_BLOCK_SIZE;
+
+			int bufferSize = DEF_BLOCK_SIZE + PAGE_OVERLAP;
+			if (pageBegin + bufferSize > iFile.getFileSize())
 				// REQUESTED BUFFER IS TOO LARGE: GET AS MAXIMUM AS POSSIBLE
-				bufferSize = iFile.getFileSize() - iBeginOffset;
+				bufferSize = (int) Math.max(iFile.getFileSize() - pageBegin, 0);
 
-			if (bufferSize <= 0)
+			if (bufferSize <= 0 || iBeginOffset + iSize > pageBegin + bufferSize)
 				throw new IllegalArgumentException("Invalid range requested for file " + iFile + ". Requested " + iSize
 						+ " bytes from the address " + iBeginOffset + " while the total file size is " + iFile.getFileSize());
 
+			// FREE LESS-USED BUFFERS UNTIL THE FREE-MEMORY IS DOWN THE CONFIGURED MAX LIMIT
+			if (totalMemory + bufferSize > MAX_MEMORY)
+				evict(bufferSize);
+
+			entry = mapBuffer(iFile, iPageIndex, pageBegin, bufferSize);
+			if (dirty) {
+				entry.dirty = true;
+				entry.log = log;
+				entry.lsn = lsn;
+			}
+
+			pages = iFile.pages;
+			if (iPageIndex >= pages.length) {
+				// ENLARGE THE PAGE TABLE
+				final OMMapBufferEntry[] newPages = new OMMapBufferEntry[Math.max(iPageIndex + 1, pages.length * 2)];
+				System.arraycopy(pages, 0, newPages, 0, pages.length);
+				pages = newPages;
+			}
+			pages[iPageIndex] = entry;
+			iFile.pages = pages;
+
+			entry.clockIndex = clock.size();
+			clock.add(entry);
 			totalMemory += bufferSize;
 
-			// FREE LESS-USED BUFFERS UNTIL THE FREE-MEMORY IS DOWN THE CONFIGURED MAX LIMIT
-			OMMapBufferEntry entry;
-			if (totalMemory > MAX_MEMORY) {
-				int pagesUnloaded = 0;
-
-				// REMOVE THE LAST ENTRY AND UPDATE THE TOTAL MEMORY
-				for (Iterator<OMMapBufferEntry> it = buffersLRU.descendingIterator(); it.hasNext();) {
-					entry = it.next();
-					if (!entry.pin) {
-						// FORCE THE WRITE OF THE BUFFER
-						for (int i = 0; i < FORCE_RETRY; ++i) {
-							try {
-								entry.buffer.force();
-							} catch (Exception e) {
-								OLogManager.instance().debug(entry.buffer,
-										"Can't write memory buffer to disk. Retrying (" + (i + 1) + "/" + FORCE_RETRY + ")...");
-								try {
-									System.gc();
-									Thread.sleep(FORCE_DELAY);
-								} catch (InterruptedException e1) {
-								}
-							}
-						}
-						entry.buffer.force();
-
-						it.remove();
-						pagesUnloaded++;
+			updateProfiler();
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Evicts blocks using the CLOCK algorithm: the hand skips and clears the referenced blocks and evicts the first one not used since
+	 * the last round. Dirty blocks are skipped: if no clean block can be evicted, the memory limit is exceeded and the flusher is woken
+	 * up.
+	 */
+	private static void evict(final int iNeededMemory) {
+		int pagesUnloaded = 0;
+		boolean dirtyFound = false;
 
-						entry.buffer = null;
+		// AT THE SECOND ROUND ALL THE REFERENCED FLAGS HAVE BEEN CLEARED
+		int maxSteps = clock.size() * 2;
 
-						totalMemory -= entry.size;
+		OMMapBufferEntry entry;
+		while (totalMemory + iNeededMemory > MAX_MEMORY && !clock.isEmpty() && maxSteps-- > 0) {
+			if (clockHand >= clock.size())
+				clockHand = 0;
 
-						if (totalMemory < MAX_MEMORY)
-							break;
+			entry = clock.get(clockHand);
+
+			if (entry.pin)
+				clockHand++;
+			else if (entry.referenced) {
+				// SECOND CHANCE
+				entry.referenced = false;
+				clockHand++;
+			} else
+				synchronized (entry) {
+					// CHECK THE FLAG UNDER THE LOCK OF THE ENTRY: A WRITER COULD BE MARKING IT AS DIRTY
+					if (entry.dirty) {
+						// LEAVE IT TO THE FLUSHER
+						dirtyFound = true;
+						skippedDirty++;
+						clockHand++;
+					} else {
+						// REMOVE THE ENTRY: THE HAND NOW POINTS TO THE ENTRY MOVED IN ITS PLACE
+						removeEntry(entry);
+						evictions++;
+						pagesUnloaded++;
 					}
 				}
+		}
 
-				OProfiler.getInstance().updateCounter("OMMapManager.pagesUnloaded", pagesUnloaded);
-			}
+		if (dirtyFound && totalMemory + iNeededMemory > MAX_MEMORY && flusher != null)
+			flusher.wakeUp();
 
-			// LOAD THE PAGE
-			entry = mapBuffer(iFile, iBeginOffset, bufferSize);
-			buffersLRU.addFirst(entry);
+		OProfiler.getInstance().updateCounter("OMMapManager.pagesUnloaded", pagesUnloaded);
+	}
 
-			return entry;
+	/**
+	 * Removes the entry from the clock and from the page table of its file. The last entry of the clock takes its place.
+	 */
+	private static void removeEntry(final OMMapBufferEntry iEntry) {
+		final int index = iEntry.clockIndex;
+		if (index < 0)
+			// ALREADY REMOVED
+			return;
 
-		} catch (IOException e) {
-			throw new OIOException("You can't access to the file portion " + iBeginOffset + "-" + iBeginOffset + iSize + " bytes", e);
+		final OMMapBufferEntry last = clock.remove(clock.size() - 1);
+		if (last != iEntry) {
+			clock.set(index, last);
+			last.clockIndex = index;
 		}
+		iEntry.clockIndex = -1;
+
+		synchronized (iEntry) {
+			// THE WRITERS THAT FOUND THE ENTRY BEFORE THE REMOVAL WILL REQUEST THE PAGE AGAIN
+			iEntry.removed = true;
+		}
+
+		final OMMapBufferEntry[] pages = iEntry.file.pages;
+		if (iEntry.pageIndex < pages.length && pages[iEntry.pageIndex] == iEntry)
+			pages[iEntry.pageIndex] = null;
+
+		totalMemory -= iEntry.size;
 	}
 
 	/**
-	 * Flush away all the buffers of file closed. This frees the memory.
+	 * Removes the entry of a file closed: the changes not written by the flusher are left to the Operating System, so the entry is not
+	 * counted as dirty anymore.
 	 */
-	public synchronized static void flush() {
-		OMMapBufferEntry entry;
-		for (Iterator<OMMapBufferEntry> it = buffersLRU.iterator(); it.hasNext();) {
-			entry = it.next();
-			if (entry.file != null && entry.file.isClosed()) {
-				totalMemory -= entry.size;
-				entry.close();
-				it.remove();
+	private static void discardEntry(final OMMapBufferEntry iEntry) {
+		synchronized (iEntry) {
+			if (iEntry.dirty) {
+				iEntry.dirty = false;
+				iEntry.lsn = 0;
+				dirtyPages.decrementAndGet();
+			}
+		}
+		removeEntry(iEntry);
+	}
+
+	private static void forceBuffer(final OMMapBufferEntry iEntry) {
+		forces.incrementAndGet();
+
+		// FORCE THE WRITE OF THE BUFFER
+		for (int i = 0; i < FORCE_RETRY; ++i) {
+			try {
+				iEntry.buffer.force();
+				return;
+			} catch (Exception e) {
+				OLogManager.instance().debug(iEntry.buffer,
+						"Can't write memory buffer to disk. Retrying (" + (i + 1) + "/" + FORCE_RETRY + ")...");
+				try {
+					System.gc();
+					Thread.sleep(FORCE_DELAY);
+				} catch (InterruptedException e1) {
+				}
 			}
 		}
+		iEntry.buffer.force();
 	}
 
-	public synchronized static void shutdown() {
-		for (OMMapBufferEntry entry : new ArrayList<OMMapBufferEntry>(buffersLRU)) {
-			entry.close();
+	private static void updateProfiler() {
+		final OProfiler profiler = OProfiler.getInstance();
+		if (!profiler.isRecording())
+			return;
+
+		// PUBLISH ONLY THE DELTA SINCE THE LAST UPDATE
+		final long currentHits = hits.get();
+		profiler.updateCounter("OMMapManager.pageHit", currentHits - publishedHits);
+		profiler.updateCounter("OMMapManager.pageMiss", misses - publishedMisses);
+		profiler.updateCounter("OMMapManager.pageEvicted", evictions - publishedEvictions);
+		final long currentForces = forces.get();
+		profiler.updateCounter("OMMapManager.pageForced", currentForces - publishedForces);
+		profiler.updateCounter("OMMapManager.pageDirtySkipped", skippedDirty - publishedSkippedDirty);
+		publishedHits = currentHits;
+		publishedMisses = misses;
+		publishedEvictions = evictions;
+		publishedForces = currentForces;
+		publishedSkippedDirty = skippedDirty;
+	}
+
+	private static void startFlusher() {
+		synchronized (lock) {
+			if (flusher != null)
+				return;
+
+			flusher = new OMMapFlusher();
+			flusher.start();
 		}
-		buffersLRU.clear();
-		buffersLRU = null;
-		totalMemory = 0;
 	}
 
-	private static OMMapBufferEntry mapBuffer(final OFileMMap iFile, final int iBeginOffset, final int iSize) throws IOException {
+	private static OMMapBufferEntry mapBuffer(final OFileMMap iFile, final int iPageIndex, final long iBeginOffset, final int iSize) {
 		OProfiler.getInstance().updateCounter("OMMapManager.loadPage", 1);
 		long timer = OProfiler.getInstance().startChrono();
 		try {
-			return new OMMapBufferEntry(iFile, iFile.map(iBeginOffset, iSize), iBeginOffset, iSize);
+			return new OMMapBufferEntry(iFile, iFile.map(iBeginOffset, iSize), iPageIndex, iBeginOffset, iSize);
+		} catch (IOException e) {
+			throw new OIOException("You can't access to the file portion " + iBeginOffset + "-" + (iBeginOffset + iSize) + " bytes", e);
 		} finally {
 			OProfiler.getInstance().stopChrono("OMMapManager.loadPage", timer);
 		}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.orientechnologies.common.io.OIOException;
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+
+/**
+ * Page cache shared by all the OFileCached instances. The cache has a fixed size in memory set by "file.cache.maxMemory",
+ * independent by the memory of the Operating System and out of the Java heap: pages are direct buffers of "file.cache.pageSize"
+ * bytes allocated the first time are needed and then recycled.<br/>
+ * Like OMMapManager each file keeps its own page table, so a hit costs a division, an array access and the pin of the page without
+ * any lock. Misses are serialized to read the page from the file and, when all the pages are allocated, to evict a page not pinned
+ * by using the CLOCK algorithm. The files write through the cache, so the evicted pages never need to be written.
+ */
+public class OPageCache {
+	public static final int													PAGE_SIZE;
+	private static final int												MAX_PAGES;
+
+	private static final Object											lock					= new Object();
+	private static final List<OPageCacheEntry>			clock					= new ArrayList<OPageCacheEntry>();
+	private static final List<ByteBuffer>						freeBuffers		= new ArrayList<ByteBuffer>();
+	private static int															clockHand;
+	private static int															allocatedPages;
+
+	private static final AtomicLong									hits					= new AtomicLong();
+	private static long															misses;
+	private static long															evictions;
+	private static long															publishedHits;
+	private static long															publishedMisses;
+	private static long															publishedEvictions;
+
+	static {
+		PAGE_SIZE = Math.max(OGlobalConfiguration.FILE_CACHE_PAGE_SIZE.getValueAsInteger(), 1024);
+		MAX_PAGES = Math.max(OGlobalConfiguration.FILE_CACHE_MAX_MEMORY.getValueAsInteger() / PAGE_SIZE, 16);
+	}
+
+	/**
+	 * Returns the page that contains the offset, pinned. The caller must unpin it when finished.
+	 */
+	public static OPageCacheEntry pin(final OFileCached iFile, final long iOffset) {
+		final int pageIndex = (int) (iOffset / PAGE_SIZE);
+
+		// LOCK-FREE LOOKUP IN THE PAGE TABLE OF THE FILE
+		final OPageCacheEntry[] pages = iFile.pages;
+		if (pageIndex < pages.length) {
+			final OPageCacheEntry entry = pages[pageIndex];
+			if (entry != null && entry.pin()) {
+				// FOUND: USE IT
+				if (!entry.referenced)
+					entry.referenced = true;
+
+				if (OProfiler.getInstance().isRecording())
+					hits.incrementAndGet();
+
+				return entry;
+			}
+		}
+
+		return loadPage(iFile, pageIndex);
+	}
+
+	/**
+	 * Returns the page that contains the offset, pinned, only if it's already in the cache. Used by the writes to update the cached
+	 * copy without loading the page.
+	 */
+	public static OPageCacheEntry pinIfCached(final OFileCached iFile, final long iOffset) {
+		final int pageIndex = (int) (iOffset / PAGE_SIZE);
+
+		final OPageCacheEntry[] pages = iFile.pages;
+		if (pageIndex < pages.length) {
+			final OPageCacheEntry entry = pages[pageIndex];
+			if (entry != null && entry.pin())
+				return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the first offset of the page next to the one that contains iOffset.
+	 */
+	public static long getPageEnd(final long iOffset) {
+		return (iOffset / PAGE_SIZE + 1) * PAGE_SIZE;
+	}
+
+	/**
+	 * Removes all the pages of the file. Called when the file is closed. The buffers of the pages still pinned are not recycled
+	 * since their users could still read them: they are left to the garbage collector.
+	 */
+	public static void release(final OFileCached iFile) {
+		synchronized (lock) {
+			for (OPageCacheEntry entry : iFile.pages)
+				if (entry != null) {
+					if (entry.tryEvict())
+						removeEntry(entry);
+					else {
+						entry.evict();
+						if (unlinkEntry(entry))
+							allocatedPages--;
+					}
+				}
+
+			iFile.pages = new OPageCacheEntry[0];
+		}
+	}
+
+	/**
+	 * Frees all the memory used by the cache.
+	 */
+	public static void shutdown() {
+		synchronized (lock) {
+			for (OPageCacheEntry entry : new ArrayList<OPageCacheEntry>(clock)) {
+				entry.evict();
+				unlinkEntry(entry);
+				entry.file.pages = new OPageCacheEntry[0];
+			}
+			clock.clear();
+			freeBuffers.clear();
+			clockHand = 0;
+			allocatedPages = 0;
+		}
+	}
+
+	/**
+	 * Returns the hits counted so far. Hits are counted only while the profiler is recording to keep the lookup free of contention.
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		synchronized (lock) {
+			return misses;
+		}
+	}
+
+	public static long getEvictions() {
+		synchronized (lock) {
+			return evictions;
+		}
+	}
+
+	/**
+	 * Returns the memory allocated by the cache in bytes.
+	 */
+	public static long getTotalMemory() {
+		synchronized (lock) {
+			return (long) allocatedPages * PAGE_SIZE;
+		}
+	}
+
+	private static OPageCacheEntry loadPage(final OFileCached iFile, final int iPageIndex) {
+		synchronized (lock) {
+			// CHECK AGAIN: ANOTHER THREAD COULD HAVE LOADED THE PAGE IN THE MEANWHILE
+			OPageCacheEntry[] pages = iFile.pages;
+			OPageCacheEntry entry = iPageIndex < pages.length ? pages[iPageIndex] : null;
+			if (entry != null) {
+				if (entry.pin()) {
+					entry.referenced = true;
+					return entry;
+				}
+
+				// EVICTED BUT NOT YET REMOVED
+				removeEntry(entry);
+			}
+
+			misses++;
+
+			final ByteBuffer buffer = getFreeBuffer();
+
+			final long timer = OProfiler.getInstance().startChrono();
+			try {
+				iFile.readPage(buffer, (long) iPageIndex * PAGE_SIZE);
+			} catch (IOException e) {
+				freeBuffers.add(buffer);
+				throw new OIOException("Can't read the page " + iPageIndex + " of the file " + iFile, e);
+			} finally {
+				OProfiler.getInstance().stopChrono("OPageCache.loadPage", timer);
+			}
+
+			entry = new OPageCacheEntry(iFile, iPageIndex, buffer);
+			entry.pin();
+
+			pages = iFile.pages;
+			if (iPageIndex >= pages.length) {
+				// ENLARGE THE PAGE TABLE
+				final OPageCacheEntry[] newPages = new OPageCacheEntry[Math.max(iPageIndex + 1, pages.length * 2)];
+				System.arraycopy(pages, 0, newPages, 0, pages.length);
+				pages = newPages;
+			}
+			pages[iPageIndex] = entry;
+			iFile.pages = pages;
+
+			entry.clockIndex = clock.size();
+			clock.add(entry);
+
+			updateProfiler();
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns a buffer to load a new page: a recycled one, a new one if the maximum number of pages is not reached yet or the one of
+	 * the page evicted.
+	 */
+	private static ByteBuffer getFreeBuffer() {
+		if (!freeBuffers.isEmpty())
+			return freeBuffers.remove(freeBuffers.size() - 1);
+
+		if (allocatedPages >= MAX_PAGES) {
+			final ByteBuffer buffer = evict();
+			if (buffer != null) {
+				// RELEASE THE PAGES ALLOCATED OVER THE LIMIT NOW THEY ARE NOT PINNED ANYMORE
+				while (allocatedPages > MAX_PAGES && evict() != null)
+					allocatedPages--;
+				return buffer;
+			}
+			// ALL THE PAGES ARE PINNED: GO OVER THE LIMIT. THE EXTRA PAGE WILL BE RELEASED
+		}
+
+		allocatedPages++;
+		return ByteBuffer.allocateDirect(PAGE_SIZE);
+	}
+
+	/**
+	 * Evicts a page using the CLOCK algorithm: the hand skips and clears the referenced pages and evicts the first one not used since
+	 * the last round and not pinned.
+	 *
+	 * @return the buffer of the page evicted, to reuse, or null if all the pages are pinned
+	 */
+	private static ByteBuffer evict() {
+		// AT THE SECOND ROUND ALL THE REFERENCED FLAGS HAVE BEEN CLEARED
+		int maxSteps = clock.size() * 2;
+
+		OPageCacheEntry entry;
+		while (!clock.isEmpty() && maxSteps-- > 0) {
+			if (clockHand >= clock.size())
+				clockHand = 0;
+
+			entry = clock.get(clockHand);
+
+			if (entry.referenced) {
+				// SECOND CHANCE
+				entry.referenced = false;
+				clockHand++;
+			} else if (entry.tryEvict()) {
+				// REMOVE THE ENTRY: THE HAND NOW POINTS TO THE ENTRY MOVED IN ITS PLACE
+				unlinkEntry(entry);
+				evictions++;
+				return entry.buffer;
+			} else
+				// PINNED
+				clockHand++;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the entry and recycles its buffer.
+	 */
+	private static void removeEntry(final OPageCacheEntry iEntry) {
+		if (!unlinkEntry(iEntry))
+			return;
+
+		if (allocatedPages > MAX_PAGES)
+			// RELEASE THE PAGES ALLOCATED OVER THE LIMIT
+			allocatedPages--;
+		else
+			freeBuffers.add(iEntry.buffer);
+	}
+
+	/**
+	 * Removes the entry from the clock and from the page table of its file. The last entry of the clock takes its place.
+	 *
+	 * @return false if the entry was already removed
+	 */
+	private static boolean unlinkEntry(final OPageCacheEntry iEntry) {
+		final int index = iEntry.clockIndex;
+		if (index < 0)
+			// ALREADY REMOVED
+			return false;
+
+		final OPageCacheEntry last = clock.remove(clock.size() - 1);
+		if (last != iEntry) {
+			clock.set(index, last);
+			last.clockIndex = index;
+		}
+		iEntry.clockIndex = -1;
+
+		final OPageCacheEntry[] pages = iEntry.file.pages;
+		if (iEntry.pageIndex < pages.length && pages[iEntry.pageIndex] == iEntry)
+			pages[iEntry.pageIndex] = null;
+		return true;
+	}
+
+	private static void updateProfiler() {
+		final OProfiler profiler = OProfiler.getInstance();
+		if (!profiler.isRecording())
+			return;
+
+		// PUBLISH ONLY THE DELTA SINCE THE LAST UPDATE
+		final long currentHits = hits.get();
+		profiler.updateCounter("OPageCache.pageHit", currentHits - publishedHits);
+		profiler.updateCounter("OPageCache.pageMiss", misses - publishedMisses);
+		profiler.updateCounter("OPageCache.pageEvicted", evictions - publishedEvictions);
+		publishedHits = currentHits;
+		publishedMisses = misses;
+		publishedEvictions = evictions;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.fs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Page of a file cached by OPageCache. The page is bound to the same file and page index for all its life: when it's evicted its
+ * buffer is recycled by a new entry. A page must be pinned before to access the buffer and unpinned after: pinned pages are never
+ * evicted. Use absolute get/put methods or a duplicate() of the buffer to avoid to share the buffer's position.
+ */
+public class OPageCacheEntry {
+	final OFileCached						file;
+	final int										pageIndex;
+	final ByteBuffer						buffer;
+	volatile boolean						referenced	= true;
+	int													clockIndex	= -1;
+
+	// NUMBER OF THREADS USING THE PAGE. -1 MEANS EVICTED
+	private final AtomicInteger	pins				= new AtomicInteger();
+
+	public OPageCacheEntry(final OFileCached iFile, final int iPageIndex, final ByteBuffer iBuffer) {
+		file = iFile;
+		pageIndex = iPageIndex;
+		buffer = iBuffer;
+	}
+
+	/**
+	 * Pins the page to avoid its eviction.
+	 *
+	 * @return false if the page has been evicted in the meanwhile
+	 */
+	public boolean pin() {
+		int current;
+		do {
+			current = pins.get();
+			if (current < 0)
+				return false;
+		} while (!pins.compareAndSet(current, current + 1));
+
+		return true;
+	}
+
+	public void unpin() {
+		pins.decrementAndGet();
+	}
+
+	/**
+	 * Marks the page as evicted if nobody is using it.
+	 *
+	 * @return true if the page can be evicted
+	 */
+	boolean tryEvict() {
+		return pins.compareAndSet(0, -1);
+	}
+
+	/**
+	 * Marks the page as evicted even if it's pinned. Used only when the file is closed.
+	 */
+	void evict() {
+		pins.set(-1);
+	}
+
+	@Override
+	public String toString() {
+		return "OPageCacheEntry [file=" + file + ", pageIndex=" + pageIndex + ", pins=" + pins.get() + "]";
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.fs;
+
+/**
+ * Log that describes the changes of the files. The entries up to the LSN of a change must be on disk before the changed block.
+ * 
+ * @see OMMapManager#setWriteLsn(OWriteAheadLog, long)
+ */
+public interface OWriteAheadLog {
+	/**
+	 * Writes to the disk the log entries up to the LSN received.
+	 */
+	public void synch(long iLsn);
+}
@@ -16,12 +16,17 @@
 package com.orientechnologies.orient.core.storage.impl.local;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.orientechnologies.common.log.OLogManager;
 import com.orientechnologies.orient.core.OConstants;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
 import com.orientechnologies.orient.core.config.OStorageClusterHoleConfiguration;
 import com.orientechnologies.orient.core.config.OStoragePhysicalClusterConfiguration;
+import com.orientechnologies.orient.core.serialization.OBinaryProtocol;
 import com.orientechnologies.orient.core.storage.OCluster;
 import com.orientechnologies.orient.core.storage.OClusterPositionIterator;
+import com.orientechnologies.orient.core.storage.OClusterStatistics;
 import com.orientechnologies.orient.core.storage.OPhysicalPosition;
 import com.orientechnologies.orient.core.storage.fs.OFile;
 
@@ -38,16 +43,34 @@ import com.orientechnologies.orient.core.storage.fs.OFile;
  */
 public class OClusterLocal extends OMultiFileSegment implements OCluster {
 	private static final String				DEF_EXTENSION		= ".ocl";
-	private static final int					RECORD_SIZE			= 15;
+	static final int							RECORD_SIZE			= 15;
 	private static final int					DEF_SIZE				= 1000000;
 	public static final String				TYPE						= "PHYSICAL";
 
+	// STATISTICS IN THE HEADER OF THE FIRST FILE AFTER THE DATA BOUNDS: STATUS + TOTAL SIZE + HISTOGRAM
+	private static final int					STATISTICS_OFFSET	= OConstants.SIZE_LONG * 2;
+	private static final long					STATISTICS_NONE		= 0;
+	private static final long					STATISTICS_SAVED	= 1;
+	private static final long					STATISTICS_OPEN		= 2;
+
+	// RANGES OF THE ENTRIES RESERVED BY THE APPEND MODE AND BY THE BULK LOADER, AFTER THE STATISTICS: BEGIN + END OFFSET. THE ENTRIES
+	// STILL UNUSED AFTER A CRASH ARE GIVEN BACK AS HOLES ON OPEN
+	private static final int					RESERVED_APPEND		= STATISTICS_OFFSET + (OClusterStatistics.RANGES + 2) * OConstants.SIZE_LONG;
+	private static final int					RESERVED_BULK			= RESERVED_APPEND + OConstants.SIZE_LONG * 2;
+
 	private int												id;
 	private long											beginOffsetData	= -1;
 	private long											endOffsetData		= -1;				// end of data offset. -1 = latest
 
 	protected final OClusterLocalHole	holeSegment;
 
+	// APPEND MODE: THE INSERTS USE THE POSITIONS RESERVED AT THE END OF THE CLUSTER CLAIMING THEM WITH AN ATOMIC COUNTER
+	private volatile boolean					appendMode;
+	private long[]										reservedPositions	= new long[0];
+	private final AtomicInteger				nextReserved			= new AtomicInteger();
+
+	private final OClusterStatistics	statistics				= new OClusterStatistics();
+
 	public OClusterLocal(final OStorageLocal iStorage, final OStoragePhysicalClusterConfiguration iConfig) throws IOException {
 		super(iStorage, iConfig, DEF_EXTENSION, RECORD_SIZE);
 		id = iConfig.getId();
@@ -56,6 +79,7 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 				iConfig.fileType, iConfig.fileMaxSize);
 
 		holeSegment = new OClusterLocalHole(this, iStorage, iConfig.holeFile);
+		appendMode = iConfig.append;
 	}
 
 	@Override
@@ -69,6 +93,8 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		files[0].writeHeaderLong(0, beginOffsetData);
 		files[0].writeHeaderLong(OConstants.SIZE_LONG, beginOffsetData);
 
+		statistics.reset();
+		files[0].writeHeaderLong(STATISTICS_OFFSET, STATISTICS_OPEN);
 	}
 
 	@Override
@@ -82,6 +108,13 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 			beginOffsetData = files[0].readHeaderLong(0);
 			endOffsetData = files[0].readHeaderLong(OConstants.SIZE_LONG);
 
+			if (!storage.getMode().equals("r")) {
+				recoverReservedEntries(RESERVED_APPEND);
+				recoverReservedEntries(RESERVED_BULK);
+			}
+
+			loadStatistics();
+
 		} finally {
 
 			releaseExclusiveLock();
@@ -90,13 +123,45 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 
 	@Override
 	public void close() throws IOException {
+		releaseReservedPositions();
+		saveStatistics();
 		super.close();
 		holeSegment.close();
 	}
 
 	public void delete() throws IOException {
+		reservedPositions = new long[0];
+		nextReserved.set(0);
+
 		super.truncate();
 		holeSegment.truncate();
+		statistics.reset();
+		setReservedRange(RESERVED_APPEND, 0, 0);
+		setReservedRange(RESERVED_BULK, 0, 0);
+	}
+
+	@Override
+	public void truncate() throws IOException {
+		reservedPositions = new long[0];
+		nextReserved.set(0);
+
+		super.truncate();
+		statistics.reset();
+		setReservedRange(RESERVED_APPEND, 0, 0);
+		setReservedRange(RESERVED_BULK, 0, 0);
+	}
+
+	@Override
+	public void synch() {
+		super.synch();
+		holeSegment.synch();
+	}
+
+	/**
+	 * Tells if the position was allocated in the cluster, even if the record has been deleted.
+	 */
+	public boolean isAllocated(final long iPosition) {
+		return iPosition > -1 && (iPosition + 1) * RECORD_SIZE <= getFilledUpTo();
 	}
 
 	/**
@@ -110,14 +175,14 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		try {
 			acquireSharedLock();
 
-			int[] pos = getRelativePosition(iPosition);
+			long[] pos = getRelativePosition(iPosition);
 
-			int p = pos[1];
+			long p = pos[1];
 
-			iPPosition.dataSegment = files[pos[0]].readShort(p);
-			iPPosition.dataPosition = files[pos[0]].readLong(p += OConstants.SIZE_SHORT);
-			iPPosition.type = files[pos[0]].readByte(p += OConstants.SIZE_LONG);
-			iPPosition.version = files[pos[0]].readInt(p += OConstants.SIZE_BYTE);
+			iPPosition.dataSegment = files[(int) pos[0]].readShort(p);
+			iPPosition.dataPosition = files[(int) pos[0]].readLong(p += OConstants.SIZE_SHORT);
+			iPPosition.type = files[(int) pos[0]].readByte(p += OConstants.SIZE_LONG);
+			iPPosition.version = files[(int) pos[0]].readInt(p += OConstants.SIZE_BYTE);
 			return iPPosition;
 
 		} finally {
@@ -125,6 +190,56 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		}
 	}
 
+	/**
+	 * Fill the PhysicalPosition objects with the physical positions of the consecutive logical records starting from iPosition. The
+	 * entries are read with one access to the file: if they span on multiple files only the entries of the first one are returned and
+	 * the next call continues from the next file.
+	 * 
+	 * @throws IOException
+	 */
+	public int getPhysicalPositions(final long iPosition, final OPhysicalPosition[] ioPPositions) throws IOException {
+		final long position = iPosition * RECORD_SIZE;
+
+		try {
+			acquireSharedLock();
+
+			if (iPosition < 0 || position + RECORD_SIZE > getFilledUpTo())
+				return 0;
+
+			final long[] pos = getRelativePosition(position);
+			final OFile file = files[(int) pos[0]];
+
+			final int count = (int) Math.min(ioPPositions.length, (file.getFilledUpTo() - pos[1]) / RECORD_SIZE);
+			if (count <= 0)
+				return 0;
+
+			final byte[] buffer = new byte[count * RECORD_SIZE];
+			file.read(pos[1], buffer, buffer.length);
+
+			// DECODE ALL THE ENTRIES FROM THE BUFFER
+			OPhysicalPosition ppos;
+			int p = 0;
+			for (int i = 0; i < count; ++i) {
+				ppos = ioPPositions[i];
+				if (ppos == null) {
+					ppos = new OPhysicalPosition();
+					ioPPositions[i] = ppos;
+				}
+
+				ppos.dataSegment = OBinaryProtocol.bytes2short(buffer, p);
+				ppos.dataPosition = OBinaryProtocol.bytes2long(buffer, p += OConstants.SIZE_SHORT);
+				ppos.type = buffer[p += OConstants.SIZE_LONG];
+				ppos.version = OBinaryProtocol.bytes2int(buffer, p += OConstants.SIZE_BYTE);
+				p += OConstants.SIZE_INT;
+			}
+
+			return count;
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
 	/**
 	 * Change the PhysicalPosition of the logical record iPosition.
 	 * 
@@ -134,16 +249,35 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 			throws IOException {
 		iPosition = iPosition * RECORD_SIZE;
 
+		if (appendMode) {
+			// WRITE THE ENTRY AT ONCE: THE INSERTS OF DIFFERENT RECORDS DON'T NEED TO EXCLUDE EACH OTHER
+			final byte[] entry = new byte[OConstants.SIZE_SHORT + OConstants.SIZE_LONG + OConstants.SIZE_BYTE];
+			OBinaryProtocol.short2bytes((short) iDataId, entry, 0);
+			OBinaryProtocol.long2bytes(iDataPosition, entry, OConstants.SIZE_SHORT);
+			entry[OConstants.SIZE_SHORT + OConstants.SIZE_LONG] = iRecordType;
+
+			try {
+				acquireSharedLock();
+
+				final long[] pos = getRelativePosition(iPosition);
+				files[(int) pos[0]].write(pos[1], entry);
+
+			} finally {
+				releaseSharedLock();
+			}
+			return;
+		}
+
 		try {
 			acquireExclusiveLock();
 
-			int[] pos = getRelativePosition(iPosition);
+			long[] pos = getRelativePosition(iPosition);
 
-			int p = pos[1];
+			long p = pos[1];
 
-			files[pos[0]].writeShort(p, (short) iDataId);
-			files[pos[0]].writeLong(p += OConstants.SIZE_SHORT, iDataPosition);
-			files[pos[0]].writeByte(p += OConstants.SIZE_LONG, iRecordType);
+			files[(int) pos[0]].writeShort(p, (short) iDataId);
+			files[(int) pos[0]].writeLong(p += OConstants.SIZE_SHORT, iDataPosition);
+			files[(int) pos[0]].writeByte(p += OConstants.SIZE_LONG, iRecordType);
 
 		} finally {
 			releaseExclusiveLock();
@@ -156,9 +290,9 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		try {
 			acquireExclusiveLock();
 
-			int[] pos = getRelativePosition(iPosition);
+			long[] pos = getRelativePosition(iPosition);
 
-			files[pos[0]].writeInt(pos[1] + OConstants.SIZE_SHORT + OConstants.SIZE_LONG + OConstants.SIZE_BYTE, iVersion);
+			files[(int) pos[0]].writeInt(pos[1] + OConstants.SIZE_SHORT + OConstants.SIZE_LONG + OConstants.SIZE_BYTE, iVersion);
 
 		} finally {
 			releaseExclusiveLock();
@@ -171,9 +305,9 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		try {
 			acquireExclusiveLock();
 
-			int[] pos = getRelativePosition(iPosition);
+			long[] pos = getRelativePosition(iPosition);
 
-			files[pos[0]].writeByte(pos[1] + OConstants.SIZE_SHORT + OConstants.SIZE_LONG, iRecordType);
+			files[(int) pos[0]].writeByte(pos[1] + OConstants.SIZE_SHORT + OConstants.SIZE_LONG, iRecordType);
 
 		} finally {
 			releaseExclusiveLock();
@@ -190,9 +324,9 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		try {
 			acquireExclusiveLock();
 
-			int[] pos = getRelativePosition(position);
-			OFile file = files[pos[0]];
-			int p = pos[1];
+			long[] pos = getRelativePosition(position);
+			OFile file = files[(int) pos[0]];
+			long p = pos[1];
 
 			// SAVE THE OLD DATA AND RETRIEVE THEM TO THE CALLER
 			iPPosition.dataSegment = file.readShort(p);
@@ -212,11 +346,11 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 					// DISCOVER THE BEGIN OF DATA
 					beginOffsetData++;
 
-					int[] fetchPos;
+					long[] fetchPos;
 					for (long currentPos = position + RECORD_SIZE; currentPos < getFilledUpTo(); currentPos += RECORD_SIZE) {
 						fetchPos = getRelativePosition(currentPos);
 
-						if (files[fetchPos[0]].readShort(fetchPos[1]) != -1)
+						if (files[(int) fetchPos[0]].readShort(fetchPos[1]) != -1)
 							// GOOD RECORD: SET IT AS BEGIN
 							break;
 
@@ -234,12 +368,12 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 					// DISCOVER THE END OF DATA
 					endOffsetData--;
 
-					int[] fetchPos;
+					long[] fetchPos;
 					for (long currentPos = position - RECORD_SIZE; currentPos >= beginOffsetData; currentPos -= RECORD_SIZE) {
 
 						fetchPos = getRelativePosition(currentPos);
 
-						if (files[fetchPos[0]].readShort(fetchPos[1]) != -1)
+						if (files[(int) fetchPos[0]].readShort(fetchPos[1]) != -1)
 							// GOOD RECORD: SET IT AS BEGIN
 							break;
 						endOffsetData--;
@@ -254,8 +388,84 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		}
 	}
 
-	public boolean removeHole(long iPosition) throws IOException {
-		return holeSegment.removeEntryWithPosition(iPosition);
+	/**
+	 * Removes the dirty entries from the hole segment.
+	 * 
+	 * @return The number of entries removed
+	 * @throws IOException
+	 */
+	public int compactHoles() throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			return holeSegment.defrag();
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Removes the hole of the record position. Called on transaction recover to restore a deleted record.
+	 */
+	public boolean removeHole(final long iPosition) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			return holeSegment.removeEntryWithPosition(iPosition * RECORD_SIZE);
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Tells if the record position is free to be reused. Called on transaction recover to not restore a record deleted later.
+	 */
+	public boolean isHole(final long iPosition) {
+		try {
+			acquireSharedLock();
+
+			return holeSegment.containsPosition(iPosition * RECORD_SIZE);
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Restores a deleted entry by removing its hole and writing the physical position and the version. Called on transaction rollback
+	 * and recovery.
+	 */
+	public void restorePhysicalPosition(final long iPosition, final int iDataSegmentId, final long iDataPosition,
+			final byte iRecordType, final int iVersion) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			holeSegment.removeEntryWithPosition(iPosition * RECORD_SIZE);
+
+			final long[] pos = getRelativePosition(iPosition * RECORD_SIZE);
+			final OFile file = files[(int) pos[0]];
+			long p = pos[1];
+
+			file.writeShort(p, (short) iDataSegmentId);
+			file.writeLong(p += OConstants.SIZE_SHORT, iDataPosition);
+			file.writeByte(p += OConstants.SIZE_LONG, iRecordType);
+			file.writeInt(p += OConstants.SIZE_BYTE, iVersion);
+
+			if (iPosition < beginOffsetData || beginOffsetData == -1) {
+				beginOffsetData = iPosition;
+				files[0].writeHeaderLong(0, beginOffsetData);
+			}
+
+			if (endOffsetData > -1 && iPosition > endOffsetData) {
+				endOffsetData = iPosition;
+				files[0].writeHeaderLong(OConstants.SIZE_LONG, endOffsetData);
+			}
+
+		} finally {
+			releaseExclusiveLock();
+		}
 	}
 
 	/**
@@ -264,12 +474,15 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 	 * @throws IOException
 	 */
 	public long addPhysicalPosition(final int iDataSegmentId, final long iPosition, final byte iRecordType) throws IOException {
+		if (appendMode)
+			return appendPhysicalPosition(iDataSegmentId, iPosition, iRecordType);
+
 		try {
 			acquireExclusiveLock();
 
 			long offset = holeSegment.popLastEntryPosition();
 
-			final int[] pos;
+			final long[] pos;
 			if (offset > -1)
 				// REUSE THE HOLE
 				pos = getRelativePosition(offset);
@@ -279,8 +492,8 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 				offset = getAbsolutePosition(pos);
 			}
 
-			OFile file = files[pos[0]];
-			int p = pos[1];
+			OFile file = files[(int) pos[0]];
+			long p = pos[1];
 
 			file.writeShort(p, (short) iDataSegmentId);
 			file.writeLong(p += OConstants.SIZE_SHORT, iPosition);
@@ -308,6 +521,251 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		}
 	}
 
+	/**
+	 * Sets the append mode. In append mode the new entries are always added at the end of the cluster without reusing the holes:
+	 * the positions are reserved in blocks of "storage.cluster.appendReserve" entries and claimed by the inserts without locking
+	 * the cluster in exclusive mode, so concurrent inserts in the same cluster don't serialize. Useful for the clusters where the
+	 * records are rarely deleted, like logs.
+	 */
+	public void setAppendMode(final boolean iAppendMode) throws IOException {
+		if (!iAppendMode)
+			releaseReservedPositions();
+
+		appendMode = iAppendMode;
+		((OStoragePhysicalClusterConfiguration) config).append = iAppendMode;
+	}
+
+	public boolean isAppendMode() {
+		return appendMode;
+	}
+
+	/**
+	 * Adds the entry in append mode claiming one of the reserved positions. When all the reserved positions are used, the next block
+	 * is reserved under the exclusive lock.
+	 */
+	private long appendPhysicalPosition(final int iDataSegmentId, final long iPosition, final byte iRecordType) throws IOException {
+		final byte[] entry = new byte[RECORD_SIZE];
+		serializeEntry(entry, 0, iDataSegmentId, iPosition, iRecordType, 0);
+
+		while (true) {
+			try {
+				acquireSharedLock();
+
+				final int index = nextReserved.getAndIncrement();
+				if (index < reservedPositions.length) {
+					final long offset = reservedPositions[index];
+
+					final long[] pos = getRelativePosition(offset);
+					files[(int) pos[0]].write(pos[1], entry);
+
+					return offset / RECORD_SIZE;
+				}
+
+			} finally {
+				releaseSharedLock();
+			}
+
+			reservePositions();
+		}
+	}
+
+	/**
+	 * Reserves the next block of positions at the end of the cluster. The entries are written as deleted until they are used, so the
+	 * browsing skips them, and their range is kept in the header until they are used or released, so a crash doesn't lose them.
+	 */
+	private void reservePositions() throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			if (nextReserved.get() < reservedPositions.length)
+				// RESERVED BY ANOTHER THREAD IN THE MEANWHILE
+				return;
+
+			final int entries = Math.max(OGlobalConfiguration.STORAGE_CLUSTER_APPEND_RESERVE.getValueAsInteger(), 1);
+
+			final long[] pos = allocateSpace(RECORD_SIZE * entries);
+			files[(int) pos[0]].write(pos[1], createDeletedEntries(entries));
+
+			final long first = getAbsolutePosition(pos);
+			setReservedRange(RESERVED_APPEND, first, first + RECORD_SIZE * entries);
+
+			final long[] positions = new long[entries];
+			for (int i = 0; i < positions.length; ++i)
+				positions[i] = first + RECORD_SIZE * i;
+
+			// THE BOUNDS OF THE DATA ARE UPDATED HERE SINCE THE INSERTS DON'T TOUCH THEM
+			updateDataBounds(positions[0] / RECORD_SIZE, positions[positions.length - 1] / RECORD_SIZE);
+
+			reservedPositions = positions;
+			nextReserved.set(0);
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Gives back the reserved positions not used as holes, so they will be reused when the cluster leaves the append mode.
+	 */
+	private void releaseReservedPositions() throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			for (int i = Math.min(nextReserved.get(), reservedPositions.length); i < reservedPositions.length; ++i)
+				holeSegment.pushPosition(reservedPositions[i]);
+
+			reservedPositions = new long[0];
+			nextReserved.set(0);
+
+			setReservedRange(RESERVED_APPEND, 0, 0);
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Reserves iEntries consecutive positions at the end of the cluster without reusing the holes. The entries are written as deleted
+	 * until the caller writes them with writeEntries(), and their range is kept in the header until releaseEntries() is called. Used
+	 * by the bulk loader, that can have only one range reserved per cluster.
+	 *
+	 * @return The first position reserved
+	 */
+	long reserveEntries(final int iEntries) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			final long[] pos = allocateSpace(RECORD_SIZE * iEntries);
+			files[(int) pos[0]].write(pos[1], createDeletedEntries(iEntries));
+
+			setReservedRange(RESERVED_BULK, getAbsolutePosition(pos), getAbsolutePosition(pos) + RECORD_SIZE * iEntries);
+
+			final long first = getAbsolutePosition(pos) / RECORD_SIZE;
+			updateDataBounds(first, first + iEntries - 1);
+
+			return first;
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Writes the entries serialized in the buffer starting from the position received, reserved by reserveEntries().
+	 */
+	void writeEntries(final long iFirstPosition, final byte[] iEntries) throws IOException {
+		try {
+			acquireSharedLock();
+
+			final long[] pos = getRelativePosition(iFirstPosition * RECORD_SIZE);
+			files[(int) pos[0]].write(pos[1], iEntries);
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Gives back the positions reserved by reserveEntries() and not used as holes, and ends the reservation. Must be called also when
+	 * all the positions are used.
+	 */
+	void releaseEntries(final long iFirstPosition, final int iEntries) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			for (long position = iFirstPosition; position < iFirstPosition + iEntries; ++position)
+				holeSegment.pushPosition(position * RECORD_SIZE);
+
+			setReservedRange(RESERVED_BULK, 0, 0);
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Serializes an entry with the layout of the cluster in the buffer.
+	 *
+	 * @return The offset next to the entry
+	 */
+	static int serializeEntry(final byte[] iBuffer, int iOffset, final int iDataSegmentId, final long iDataPosition,
+			final byte iRecordType, final int iVersion) {
+		OBinaryProtocol.short2bytes((short) iDataSegmentId, iBuffer, iOffset);
+		OBinaryProtocol.long2bytes(iDataPosition, iBuffer, iOffset += OConstants.SIZE_SHORT);
+		iBuffer[iOffset += OConstants.SIZE_LONG] = iRecordType;
+		OBinaryProtocol.int2bytes(iVersion, iBuffer, iOffset += OConstants.SIZE_BYTE);
+		return iOffset + OConstants.SIZE_INT;
+	}
+
+	/**
+	 * Returns iEntries entries marked as deleted, so the browsing skips them.
+	 */
+	private static byte[] createDeletedEntries(final int iEntries) {
+		final byte[] buffer = new byte[RECORD_SIZE * iEntries];
+		int offset = 0;
+		for (int i = 0; i < iEntries; ++i)
+			offset = serializeEntry(buffer, offset, -1, -1, (byte) 0, -1);
+		return buffer;
+	}
+
+	/**
+	 * Extends the bounds of the data to the range of positions received. Must be called under the exclusive lock.
+	 */
+	private void updateDataBounds(final long iFirst, final long iLast) throws IOException {
+		if (iFirst < beginOffsetData || beginOffsetData == -1) {
+			beginOffsetData = iFirst;
+			files[0].writeHeaderLong(0, beginOffsetData);
+		}
+
+		if (endOffsetData > -1 && iLast > endOffsetData) {
+			endOffsetData = iLast;
+			files[0].writeHeaderLong(OConstants.SIZE_LONG, endOffsetData);
+		}
+	}
+
+	private void setReservedRange(final int iHeaderOffset, final long iBegin, final long iEnd) throws IOException {
+		files[0].writeHeaderLong(iHeaderOffset, iBegin);
+		files[0].writeHeaderLong(iHeaderOffset + OConstants.SIZE_LONG, iEnd);
+	}
+
+	/**
+	 * Gives back as holes the entries of the range reserved in the header that are still unused, because the cluster wasn't closed. The
+	 * unused entries are written as deleted with no data segment: being not holes they would be counted as records and never reused.
+	 */
+	private void recoverReservedEntries(final int iHeaderOffset) throws IOException {
+		final long begin = files[0].readHeaderLong(iHeaderOffset);
+		final long end = files[0].readHeaderLong(iHeaderOffset + OConstants.SIZE_LONG);
+		if (end <= begin)
+			return;
+
+		// THE RANGE IS ALWAYS ALLOCATED IN ONE FILE
+		final long[] pos = getRelativePosition(begin);
+		final OFile file = files[(int) pos[0]];
+
+		if (pos[1] + end - begin <= file.getFilledUpTo()) {
+			final byte[] buffer = new byte[(int) (end - begin)];
+			file.read(pos[1], buffer, buffer.length);
+
+			int recovered = 0;
+			for (int p = 0; p < buffer.length; p += RECORD_SIZE)
+				if (OBinaryProtocol.bytes2short(buffer, p) == -1 && OBinaryProtocol.bytes2long(buffer, p + OConstants.SIZE_SHORT) == -1
+						&& OBinaryProtocol.bytes2int(buffer, p + OConstants.SIZE_SHORT + OConstants.SIZE_LONG + OConstants.SIZE_BYTE) == -1
+						&& !holeSegment.containsPosition(begin + p)) {
+					holeSegment.pushPosition(begin + p);
+					recovered++;
+				}
+
+			if (recovered > 0)
+				OLogManager.instance().warn(this, "Recovered %d reserved entries not used in cluster %s", recovered, name);
+		}
+
+		setReservedRange(iHeaderOffset, 0, 0);
+	}
+
+	private int getUnusedReservedPositions() {
+		return Math.max(reservedPositions.length - nextReserved.get(), 0);
+	}
+
 	public long getFirstEntryPosition() throws IOException {
 		try {
 			acquireSharedLock();
@@ -333,11 +791,29 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		}
 	}
 
+	public OClusterStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Returns the number of entries of deleted records available to be reused.
+	 */
+	public long getHoles() {
+		try {
+			acquireSharedLock();
+
+			return holeSegment.getHoles();
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
 	public long getEntries() {
 		try {
 			acquireSharedLock();
 
-			return getFilledUpTo() / RECORD_SIZE - holeSegment.getHoles();
+			return getFilledUpTo() / RECORD_SIZE - holeSegment.getHoles() - getUnusedReservedPositions();
 
 		} finally {
 			releaseSharedLock();
@@ -348,6 +824,41 @@ public class OClusterLocal extends OMultiFileSegment implements OCluster {
 		return id;
 	}
 
+	/**
+	 * Loads the statistics saved on close. Until the next close the header says the statistics are not saved, so after a crash they
+	 * are loaded but marked as not exact.
+	 */
+	private void loadStatistics() throws IOException {
+		final long status = files[0].readHeaderLong(STATISTICS_OFFSET);
+
+		if (status != STATISTICS_NONE) {
+			final long[] values = new long[OClusterStatistics.RANGES + 1];
+			for (int i = 0; i < values.length; ++i)
+				values[i] = files[0].readHeaderLong(STATISTICS_OFFSET + (i + 1) * OConstants.SIZE_LONG);
+			statistics.fromArray(values);
+		}
+
+		if (getEntries() == 0)
+			statistics.reset();
+		else
+			// CLUSTERS CREATED BY PREVIOUS RELEASES HAVE NO STATISTICS
+			statistics.setExact(status == STATISTICS_SAVED);
+
+		if (!storage.getMode().equals("r"))
+			files[0].writeHeaderLong(STATISTICS_OFFSET, STATISTICS_OPEN);
+	}
+
+	private void saveStatistics() throws IOException {
+		if (files.length == 0 || !files[0].isOpen() || storage.getMode().equals("r"))
+			return;
+
+		final long[] values = statistics.toArray();
+		for (int i = 0; i < values.length; ++i)
+			files[0].writeHeaderLong(STATISTICS_OFFSET + (i + 1) * OConstants.SIZE_LONG, values[i]);
+
+		files[0].writeHeaderLong(STATISTICS_OFFSET, statistics.isExact() ? STATISTICS_SAVED : STATISTICS_OPEN);
+	}
+
 	public OClusterPositionIterator absoluteIterator() throws IOException {
 		return new OClusterPositionIterator(this);
 	}
@@ -17,6 +17,7 @@ package com.orientechnologies.orient.core.storage.impl.local;
 
 import java.io.IOException;
 
+import com.orientechnologies.common.collection.OLongIntHashMap;
 import com.orientechnologies.common.log.OLogManager;
 import com.orientechnologies.orient.core.config.OStorageFileConfiguration;
 
@@ -30,12 +31,17 @@ import com.orientechnologies.orient.core.config.OStorageFileConfiguration;
  * | 8 bytes = max 2^63-1 |<br/>
  * +----------------------+<br/>
  * = 8 bytes<br/>
+ * <br/>
+ * The file is used as a stack of free positions without dirty entries: the last entry is recycled first and a removed entry is
+ * replaced by the last one. The slot of each position is kept in memory in a primitive hash map, so all the operations cost O(1),
+ * touch at most two entries of the file and don't create objects.
  */
 public class OClusterLocalHole extends OSingleFileSegment {
-	private static final int	DEF_START_SIZE	= 262144;
-	private static final int	RECORD_SIZE			= 8;
+	private static final int						DEF_START_SIZE	= 262144;
+	private static final int						RECORD_SIZE			= 8;
 
-	private OClusterLocal			owner;
+	private OClusterLocal								owner;
+	private final OLongIntHashMap				positionIndex		= new OLongIntHashMap();
 
 	public OClusterLocalHole(final OClusterLocal iClusterLocal, final OStorageLocal iStorage, final OStorageFileConfiguration iConfig)
 			throws IOException {
@@ -43,35 +49,94 @@ public class OClusterLocalHole extends OSingleFileSegment {
 		owner = iClusterLocal;
 	}
 
+	@Override
+	public boolean open() throws IOException {
+		final boolean softClosed = super.open();
+
+		if ("r".equals(storage.getMode()))
+			loadIndex();
+		else
+			// REMOVE THE DIRTY ENTRIES LEFT BY OLDER RELEASES AND LOAD THE INDEX
+			defrag();
+
+		return softClosed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		positionIndex.clear();
+	}
+
+	@Override
+	public void truncate() throws IOException {
+		super.truncate();
+		positionIndex.clear();
+	}
+
 	/**
-	 * TODO Check values removing dirty entries (equals to -1)
+	 * Removes the dirty entries (equals to -1) and the duplicated ones moving the valid entries toward the beginning of the file. Each
+	 * entry is invalidated before being written in the new place, so if the process is interrupted a position could be lost but never
+	 * recycled twice.
+	 * 
+	 * @return The number of entries removed
 	 */
-	public void defrag() throws IOException {
+	public int defrag() throws IOException {
 		OLogManager.instance().debug(this, "Starting to defragment the segment %s of size=%d and filled=%d", file, file.getFileSize(),
 				file.getFilledUpTo());
 
+		positionIndex.clear();
+
+		final int holes = getHoles();
+
+		int validHoles = 0;
+		long recycledPosition;
+		for (int pos = 0; pos < holes; ++pos) {
+			recycledPosition = file.readLong((long) pos * RECORD_SIZE);
+
+			if (recycledPosition > -1 && positionIndex.get(recycledPosition) == OLongIntHashMap.NOT_FOUND) {
+				if (pos != validHoles) {
+					file.writeLong((long) pos * RECORD_SIZE, -1);
+					file.writeLong((long) validHoles * RECORD_SIZE, recycledPosition);
+				}
+				positionIndex.put(recycledPosition, validHoles);
+				validHoles++;
+			}
+		}
+
+		if (validHoles < holes)
+			file.removeTail((long) (holes - validHoles) * RECORD_SIZE);
+
 		OLogManager.instance().debug(this, "Defragmentation ended for segment %s. Current size=%d and filled=%d", file,
 				file.getFileSize(), file.getFilledUpTo());
+
+		return holes - validHoles;
 	}
 
 	public void create() throws IOException {
 		file.create(DEF_START_SIZE);
+		positionIndex.clear();
 	}
 
 	/**
-	 * Append the hole to the end of segment
+	 * Append the hole to the end of segment. If the position is already a hole the existent entry is kept.
 	 * 
 	 * @throws IOException
 	 */
 	public long pushPosition(final long iPosition) throws IOException {
-		final int position = getHoles() * RECORD_SIZE;
+		final int existent = positionIndex.get(iPosition);
+		if (existent != OLongIntHashMap.NOT_FOUND)
+			return (long) existent * RECORD_SIZE;
+
+		final int hole = getHoles();
+		final long position = (long) hole * RECORD_SIZE;
 		file.allocateSpace(RECORD_SIZE);
 
 		file.writeLong(position, iPosition);
+		positionIndex.put(iPosition, hole);
 
 		if (OLogManager.instance().isDebugEnabled())
-			OLogManager.instance().debug(this, "Pushed new hole at #%d containing the position #%d:%d", position / RECORD_SIZE,
-					owner.getId(), iPosition);
+			OLogManager.instance().debug(this, "Pushed new hole at #%d containing the position #%d:%d", hole, owner.getId(), iPosition);
 
 		return position;
 	}
@@ -83,65 +148,81 @@ public class OClusterLocalHole extends OSingleFileSegment {
 	 * @throws IOException
 	 */
 	public long popLastEntryPosition() throws IOException {
-		// BROWSE IN ASCENDING ORDER UNTIL A GOOD POSITION IS FOUND (!=-1)
-		for (int pos = getHoles() - 1; pos >= 0; --pos) {
-			final long recycledPosition = file.readLong(pos * RECORD_SIZE);
+		final int last = getHoles() - 1;
+		if (last < 0)
+			return -1;
 
-			if (recycledPosition > -1) {
-				if (OLogManager.instance().isDebugEnabled())
-					OLogManager.instance().debug(this, "Recycling hole #%d containing the position #%d:%d", pos, owner.getId(),
-							recycledPosition);
+		final long recycledPosition = file.readLong((long) last * RECORD_SIZE);
 
-				// SHRINK THE FILE
-				file.removeTail((getHoles() - pos) * RECORD_SIZE);
+		if (OLogManager.instance().isDebugEnabled())
+			OLogManager.instance().debug(this, "Recycling hole #%d containing the position #%d:%d", last, owner.getId(),
+					recycledPosition);
 
-				return recycledPosition;
-			}
-		}
+		// SHRINK THE FILE
+		file.removeTail(RECORD_SIZE);
+		positionIndex.remove(recycledPosition);
 
-		return -1;
+		return recycledPosition;
 	}
 
 	/**
-	 * Remove a hole. Called on transaction recover to invalidate a delete for a record. Try to shrink the file if the invalidated
-	 * entry is not in the middle of valid entries.
+	 * Remove a hole. Called on transaction recover to invalidate a delete for a record. The last entry is moved in the place of the
+	 * removed one to keep the file without dirty entries.
 	 * 
 	 * @param iPosition
 	 *          Record position to find and invalidate
-	 * @return
+	 * @return true if the hole was found, otherwise false
 	 * @throws IOException
 	 */
-	public boolean removeEntryWithPosition(long iPosition) throws IOException {
-		// BROWSE IN ASCENDING ORDER UNTIL THE REQUESTED POSITION IS FOUND
-		boolean canShrink = true;
-		for (int pos = getHoles() - 1; pos >= 0; --pos) {
-			final long recycledPosition = file.readLong(pos * RECORD_SIZE);
-
-			if (recycledPosition == iPosition) {
-				if (OLogManager.instance().isDebugEnabled())
-					OLogManager.instance().debug(this, "Removing hole #%d containing the position #%d:%d", pos, owner.getId(),
-							recycledPosition);
-
-				file.writeLong(pos * RECORD_SIZE, -1);
-				if (canShrink)
-					// SHRINK THE FILE
-					file.removeTail((getHoles() - pos) * RECORD_SIZE);
-
-				return true;
-
-			} else if (iPosition != -1)
-				// NO NULL ENTRY: CAN'T SHRINK WITHOUT LOST OF ENTRIES
-				canShrink = false;
+	public boolean removeEntryWithPosition(final long iPosition) throws IOException {
+		final int hole = positionIndex.remove(iPosition);
+		if (hole == OLongIntHashMap.NOT_FOUND)
+			return false;
+
+		if (OLogManager.instance().isDebugEnabled())
+			OLogManager.instance().debug(this, "Removing hole #%d containing the position #%d:%d", hole, owner.getId(), iPosition);
+
+		final int last = getHoles() - 1;
+		if (hole == last)
+			// LAST ONE: JUST SHRINK THE FILE
+			file.removeTail(RECORD_SIZE);
+		else {
+			// MOVE THE LAST ENTRY IN THE PLACE OF THE REMOVED ONE. THE FILE IS SHRUNK FIRST: IF THE PROCESS IS INTERRUPTED THE LAST
+			// POSITION COULD BE LOST BUT NEVER RECYCLED TWICE
+			final long lastPosition = file.readLong((long) last * RECORD_SIZE);
+			file.removeTail(RECORD_SIZE);
+			file.writeLong((long) hole * RECORD_SIZE, lastPosition);
+			positionIndex.put(lastPosition, hole);
 		}
-		return false;
+
+		return true;
 	}
 
 	/**
-	 * Compute the number of holes. Note that not all the holes could be valid.
+	 * Returns true if the position is a hole.
+	 */
+	public boolean containsPosition(final long iPosition) {
+		return positionIndex.get(iPosition) != OLongIntHashMap.NOT_FOUND;
+	}
+
+	/**
+	 * Compute the number of holes.
 	 * 
 	 * @return
 	 */
 	public int getHoles() {
-		return file.getFilledUpTo() / RECORD_SIZE;
+		return (int) (file.getFilledUpTo() / RECORD_SIZE);
+	}
+
+	private void loadIndex() throws IOException {
+		positionIndex.clear();
+
+		final int holes = getHoles();
+		long recycledPosition;
+		for (int pos = 0; pos < holes; ++pos) {
+			recycledPosition = file.readLong((long) pos * RECORD_SIZE);
+			if (recycledPosition > -1)
+				positionIndex.put(recycledPosition, pos);
+		}
 	}
 }
@@ -25,6 +25,7 @@ import com.orientechnologies.orient.core.serialization.serializer.stream.OStream
 import com.orientechnologies.orient.core.serialization.serializer.stream.OStreamSerializerLong;
 import com.orientechnologies.orient.core.storage.OCluster;
 import com.orientechnologies.orient.core.storage.OClusterPositionIterator;
+import com.orientechnologies.orient.core.storage.OClusterStatistics;
 import com.orientechnologies.orient.core.storage.OPhysicalPosition;
 import com.orientechnologies.orient.core.type.tree.OMVRBTreeStorage;
 
@@ -43,6 +44,8 @@ public class OClusterLogical implements OCluster {
 	private OPhysicalPosition													total;
 
 	private OSharedResourceExternal										lock	= new OSharedResourceExternal();
+	// NOT PERSISTENT: EXACT ONLY IF THE CLUSTER WAS EMPTY AT LOADING
+	protected final OClusterStatistics								statistics	= new OClusterStatistics();
 	public static final String												TYPE	= "LOGICAL";
 
 	/**
@@ -96,6 +99,7 @@ public class OClusterLogical implements OCluster {
 				total = new OPhysicalPosition(0, map.size(), (byte) 0);
 				map.put(new Long(-1), total);
 			}
+			statistics.setExact(getEntries() == 0);
 		} catch (Exception e) {
 			throw new ODatabaseException("Error on load internal map for logical cluster: " + name, e);
 		}
@@ -135,6 +139,24 @@ public class OClusterLogical implements OCluster {
 		return map.get(iPosition);
 	}
 
+	public int getPhysicalPositions(final long iPosition, final OPhysicalPosition[] ioPPositions) {
+		final long last = getLastEntryPosition();
+
+		int count = 0;
+		OPhysicalPosition ppos;
+		for (long position = iPosition; count < ioPPositions.length && position <= last; ++position, ++count) {
+			ppos = getPhysicalPosition(position, ioPPositions[count]);
+			if (ppos == null)
+				ioPPositions[count] = null;
+			else {
+				if (ioPPositions[count] == null)
+					ioPPositions[count] = new OPhysicalPosition();
+				ioPPositions[count].copyFrom(ppos);
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * Change the PhysicalPosition of the logical record iPosition.
 	 */
@@ -166,6 +188,7 @@ public class OClusterLogical implements OCluster {
 		total = new OPhysicalPosition(0, -1, (byte) 0);
 		map.put(new Long(-1), total);
 		map.save();
+		statistics.reset();
 	}
 
 	/**
@@ -195,6 +218,10 @@ public class OClusterLogical implements OCluster {
 		return pos;
 	}
 
+	public OClusterStatistics getStatistics() {
+		return statistics;
+	}
+
 	public long getEntries() {
 		// RETURN THE MAP SIZE LESS THE DUMMY -1 POSITION
 		return map.size() - 1;
@@ -0,0 +1,563 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.orient.core.config.OStorageLogicalClusterConfiguration;
+import com.orientechnologies.orient.core.exception.OStorageException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.impl.ORecordBytes;
+import com.orientechnologies.orient.core.serialization.OBinaryProtocol;
+import com.orientechnologies.orient.core.storage.OCluster;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import com.orientechnologies.orient.core.storage.ORawBuffer;
+import com.orientechnologies.orient.core.storage.fs.OMMapManager;
+
+/**
+ * Logical cluster that keeps the entries in pages of fixed size slots addressed by the position, instead of the MVRB-Tree of
+ * OClusterLogical that serializes every entry as an object. Since the positions are assigned in sequence the pages form a radix
+ * tree: the leaves have 64 slots of 17 bytes (data segment, data position, record type, version) and the directories the positions
+ * of 256 children. The tree grows in depth when the positions exceed its capacity.<br/>
+ * All the pages are records of the physical cluster container. The root record contains the last position, the number of
+ * entries, the depth and the position of the top page. The pages are loaded on first access and kept in memory as arrays of
+ * primitives; every change writes back the leaf and, only when the shape of the tree changes, the root record. The last position
+ * and the number of entries are kept in memory and rebuilt from the leaves on loading. When an operation changes more than one
+ * record, the images before and after the change are logged in the transaction segment of the storage and committed after all the
+ * records are written, so a crash in the middle is rolled back at the next open. The new pages are created before they are
+ * linked, so a crash can leave at most a page not used.
+ */
+public class OClusterLogicalPaged extends OClusterLogical {
+	private static final int		LEAF_BITS		= 6;
+	private static final int		LEAF_SIZE		= 1 << LEAF_BITS;
+	private static final int		NODE_BITS		= 8;
+	private static final int		NODE_SIZE		= 1 << NODE_BITS;
+	private static final int		ENTRY_SIZE	= 17;
+	private static final int		ROOT_SIZE		= 28;
+	private static final int		REMOVED			= Integer.MIN_VALUE;
+	private static final int		REQUESTER		= -1;
+
+	private final OStorageLocal	storage;
+	private int									containerId;
+	private long								rootPosition;
+	private long								last				= -1;
+	private long								entries			= 0;
+	private int									depth				= 0;
+	private OPage								top;
+	private byte[]							rootStored;
+	private final List<OPage>		dirty				= new ArrayList<OPage>();
+	private boolean							rootDirty;
+
+	private abstract static class OPage {
+		long		position	= -1;
+		byte[]	stored;
+	}
+
+	private static class ONode extends OPage {
+		final long[]	children	= new long[NODE_SIZE];
+		final OPage[]	loaded		= new OPage[NODE_SIZE];
+
+		ONode() {
+			Arrays.fill(children, -1);
+		}
+	}
+
+	private static class OLeaf extends OPage {
+		final int[]		dataSegments	= new int[LEAF_SIZE];
+		final long[]	dataPositions	= new long[LEAF_SIZE];
+		final byte[]	types					= new byte[LEAF_SIZE];
+		final int[]		versions			= new int[LEAF_SIZE];
+
+		OLeaf() {
+			Arrays.fill(versions, REMOVED);
+		}
+	}
+
+	/**
+	 * Constructor called on creation of the object.
+	 */
+	public OClusterLogicalPaged(final OStorageLocal iStorage, final int iId, final String iName, final int iPhysicalClusterId)
+			throws IOException {
+		super(iName, iId, iPhysicalClusterId);
+		storage = iStorage;
+		containerId = iPhysicalClusterId;
+		rootStored = rootToStream();
+		rootPosition = storage.createRecord(containerId, rootStored, ORecordBytes.RECORD_TYPE);
+	}
+
+	/**
+	 * Constructor called on loading of the object. The pages are loaded by reload(), after the recovery of the transactions.
+	 */
+	public OClusterLogicalPaged(final OStorageLocal iStorage, final OStorageLogicalClusterConfiguration iConfig) throws IOException {
+		super(iConfig.name, iConfig.id, iConfig.physicalClusterId);
+		storage = iStorage;
+		containerId = iConfig.map.getClusterId();
+		rootPosition = iConfig.map.getClusterPosition();
+	}
+
+	@Override
+	public void delete() throws IOException {
+		truncate();
+		storage.deleteRecord(0, containerId, rootPosition, -1);
+	}
+
+	@Override
+	public synchronized OPhysicalPosition getPhysicalPosition(final long iPosition, OPhysicalPosition iPPosition) {
+		final OLeaf leaf = getLeaf(iPosition, false);
+		if (leaf == null)
+			return null;
+
+		final int slot = (int) iPosition & (LEAF_SIZE - 1);
+		if (leaf.versions[slot] == REMOVED)
+			return null;
+
+		if (iPPosition == null)
+			iPPosition = new OPhysicalPosition();
+
+		iPPosition.dataSegment = leaf.dataSegments[slot];
+		iPPosition.dataPosition = leaf.dataPositions[slot];
+		iPPosition.type = leaf.types[slot];
+		iPPosition.version = leaf.versions[slot];
+		return iPPosition;
+	}
+
+	@Override
+	public synchronized int getPhysicalPositions(final long iPosition, final OPhysicalPosition[] ioPPositions) {
+		int count = 0;
+		for (long position = iPosition; count < ioPPositions.length && position <= last; ++position, ++count) {
+			if (ioPPositions[count] == null)
+				ioPPositions[count] = new OPhysicalPosition();
+
+			if (getPhysicalPosition(position, ioPPositions[count]) == null)
+				ioPPositions[count] = null;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized void setPhysicalPosition(final long iPosition, final int iDataId, final long iDataPosition,
+			final byte iRecordType) {
+		final OLeaf leaf = getExistentLeaf(iPosition);
+		final int slot = (int) iPosition & (LEAF_SIZE - 1);
+		leaf.dataSegments[slot] = iDataId;
+		leaf.dataPositions[slot] = iDataPosition;
+		leaf.types[slot] = iRecordType;
+		save(leaf);
+		flush();
+	}
+
+	@Override
+	public synchronized void updateRecordType(final long iPosition, final byte iRecordType) throws IOException {
+		final OLeaf leaf = getExistentLeaf(iPosition);
+		leaf.types[(int) iPosition & (LEAF_SIZE - 1)] = iRecordType;
+		save(leaf);
+		flush();
+	}
+
+	@Override
+	public synchronized void updateVersion(final long iPosition, final int iVersion) throws IOException {
+		final OLeaf leaf = getExistentLeaf(iPosition);
+		leaf.versions[(int) iPosition & (LEAF_SIZE - 1)] = iVersion;
+		save(leaf);
+		flush();
+	}
+
+	@Override
+	public synchronized void truncate() throws IOException {
+		final OPage oldTop = top;
+		final int oldDepth = depth;
+
+		// UNLINK THE PAGES BEFORE TO DELETE THEM
+		top = null;
+		last = -1;
+		entries = 0;
+		depth = 0;
+		saveRoot();
+		flush();
+
+		if (oldTop != null)
+			deletePage(oldTop, oldDepth);
+
+		statistics.reset();
+	}
+
+	/**
+	 * Loads the root and the pages from the storage. Called on opening after the recovery of the transactions, that could have
+	 * restored them.
+	 */
+	public synchronized void reload() {
+		loadRoot();
+		statistics.setExact(entries == 0);
+	}
+
+	@Override
+	public synchronized void removePhysicalPosition(final long iPosition, final OPhysicalPosition iPPosition) {
+		final OLeaf leaf = getLeaf(iPosition, false);
+		if (leaf == null)
+			return;
+
+		final int slot = (int) iPosition & (LEAF_SIZE - 1);
+		if (leaf.versions[slot] == REMOVED)
+			return;
+
+		leaf.versions[slot] = REMOVED;
+		save(leaf);
+
+		entries--;
+		flush();
+	}
+
+	@Override
+	public synchronized long addPhysicalPosition(final int iDataSegmentId, final long iRecordPosition, final byte iRecordType)
+			throws IOException {
+		final long pos = last + 1;
+		final OLeaf leaf = getLeaf(pos, true);
+
+		final int slot = (int) pos & (LEAF_SIZE - 1);
+		leaf.dataSegments[slot] = iDataSegmentId;
+		leaf.dataPositions[slot] = iRecordPosition;
+		leaf.types[slot] = iRecordType;
+		leaf.versions[slot] = 0;
+		save(leaf);
+
+		last = pos;
+		entries++;
+		flush();
+		return pos;
+	}
+
+	@Override
+	public synchronized long getEntries() {
+		return entries;
+	}
+
+	@Override
+	public synchronized long getLastEntryPosition() {
+		return last;
+	}
+
+	@Override
+	public ORID getRID() {
+		return new ORecordId(containerId, rootPosition);
+	}
+
+	@Override
+	public synchronized void setRID(final ORID iRID) {
+		containerId = iRID.getClusterId();
+		rootPosition = iRID.getClusterPosition();
+		loadRoot();
+	}
+
+	/**
+	 * Returns the leaf containing the position, creating the missing pages if requested.
+	 */
+	private OLeaf getLeaf(final long iPosition, final boolean iCreate) {
+		if (iPosition < 0 || !iCreate && iPosition > last)
+			return null;
+
+		while (iPosition >= getCapacity(depth)) {
+			// GROW THE TREE OF ONE LEVEL: THE CURRENT TOP BECOMES THE FIRST CHILD OF THE NEW ONE
+			if (top != null) {
+				final ONode node = new ONode();
+				node.children[0] = top.position;
+				node.loaded[0] = top;
+				create(node);
+				top = node;
+			}
+			depth++;
+			saveRoot();
+		}
+
+		if (top == null) {
+			if (!iCreate)
+				return null;
+
+			top = depth == 0 ? new OLeaf() : new ONode();
+			create(top);
+			saveRoot();
+		}
+
+		OPage page = top;
+		for (int level = depth; level > 0; --level) {
+			final ONode node = (ONode) page;
+			final int index = (int) (iPosition >>> (LEAF_BITS + (level - 1) * NODE_BITS)) & (NODE_SIZE - 1);
+
+			OPage child = node.loaded[index];
+			if (child == null) {
+				if (node.children[index] > -1)
+					child = load(node.children[index], level - 1);
+				else if (!iCreate)
+					return null;
+				else {
+					child = level == 1 ? new OLeaf() : new ONode();
+					create(child);
+					node.children[index] = child.position;
+					save(node);
+				}
+				node.loaded[index] = child;
+			}
+			page = child;
+		}
+
+		return (OLeaf) page;
+	}
+
+	private OLeaf getExistentLeaf(final long iPosition) {
+		final OLeaf leaf = getLeaf(iPosition, false);
+		if (leaf == null)
+			throw new OStorageException("Position " + iPosition + " doesn't exist in logical cluster " + getName());
+		return leaf;
+	}
+
+	private static long getCapacity(final int iDepth) {
+		return 1L << (LEAF_BITS + iDepth * NODE_BITS);
+	}
+
+	private void deletePage(final OPage iPage, final int iLevel) {
+		if (iLevel > 0) {
+			final ONode node = (ONode) iPage;
+			for (int i = 0; i < NODE_SIZE; ++i)
+				if (node.children[i] > -1)
+					deletePage(node.loaded[i] != null ? node.loaded[i] : load(node.children[i], iLevel - 1), iLevel - 1);
+		}
+		storage.deleteRecord(0, containerId, iPage.position, -1);
+	}
+
+	/**
+	 * Counts the entries of the pages under the page received and moves the last position after the higher one found.
+	 */
+	private void countEntries(final OPage iPage, final int iLevel, final long iFirstPosition) {
+		if (iLevel > 0) {
+			final ONode node = (ONode) iPage;
+			final int shift = LEAF_BITS + (iLevel - 1) * NODE_BITS;
+			for (int i = 0; i < NODE_SIZE; ++i)
+				if (node.children[i] > -1) {
+					if (node.loaded[i] == null)
+						node.loaded[i] = load(node.children[i], iLevel - 1);
+					countEntries(node.loaded[i], iLevel - 1, iFirstPosition + ((long) i << shift));
+				}
+			return;
+		}
+
+		final OLeaf leaf = (OLeaf) iPage;
+		for (int i = 0; i < LEAF_SIZE; ++i)
+			if (leaf.versions[i] != REMOVED) {
+				entries++;
+				if (iFirstPosition + i > last)
+					last = iFirstPosition + i;
+			}
+	}
+
+	private OPage load(final long iPosition, final int iLevel) {
+		final ORawBuffer raw = storage.readRecord(null, -1, containerId, iPosition, null);
+		if (raw == null)
+			throw new OStorageException("Can't load the page #" + containerId + ":" + iPosition + " of logical cluster " + getName());
+
+		final byte[] buffer = raw.buffer;
+		int offset = 0;
+
+		if (iLevel > 0) {
+			final ONode node = new ONode();
+			for (int i = 0; i < NODE_SIZE; ++i, offset += 8)
+				node.children[i] = OBinaryProtocol.bytes2long(buffer, offset);
+			node.position = iPosition;
+			node.stored = buffer;
+			return node;
+		}
+
+		final OLeaf leaf = new OLeaf();
+		for (int i = 0; i < LEAF_SIZE; ++i) {
+			leaf.dataSegments[i] = OBinaryProtocol.bytes2int(buffer, offset);
+			leaf.dataPositions[i] = OBinaryProtocol.bytes2long(buffer, offset + 4);
+			leaf.types[i] = buffer[offset + 12];
+			leaf.versions[i] = OBinaryProtocol.bytes2int(buffer, offset + 13);
+			offset += ENTRY_SIZE;
+		}
+		leaf.position = iPosition;
+		leaf.stored = buffer;
+		return leaf;
+	}
+
+	private void create(final OPage iPage) {
+		iPage.stored = toStream(iPage);
+		iPage.position = storage.createRecord(containerId, iPage.stored, ORecordBytes.RECORD_TYPE);
+	}
+
+	/**
+	 * Marks the page as changed: it's written by flush() at the end of the operation.
+	 */
+	private void save(final OPage iPage) {
+		if (!dirty.contains(iPage))
+			dirty.add(iPage);
+	}
+
+	private void saveRoot() {
+		rootDirty = true;
+	}
+
+	/**
+	 * Writes the pages and the root changed by the operation. If they are more than one the change is logged and committed in the
+	 * transaction segment, otherwise the single record is written directly.
+	 */
+	private void flush() {
+		final int changes = dirty.size() + (rootDirty ? 1 : 0);
+		if (changes == 0)
+			return;
+
+		try {
+			if (changes == 1) {
+				if (rootDirty)
+					rootStored = write(rootPosition, rootToStream());
+				else
+					dirty.get(0).stored = write(dirty.get(0).position, toStream(dirty.get(0)));
+				return;
+			}
+
+			final long[] positions = new long[changes];
+			final byte[][] undo = new byte[changes][];
+			final byte[][] redo = new byte[changes][];
+			for (int i = 0; i < dirty.size(); ++i) {
+				positions[i] = dirty.get(i).position;
+				undo[i] = dirty.get(i).stored;
+				redo[i] = toStream(dirty.get(i));
+			}
+			if (rootDirty) {
+				positions[changes - 1] = rootPosition;
+				undo[changes - 1] = rootStored;
+				redo[changes - 1] = rootToStream();
+			}
+
+			writeAtomically(positions, undo, redo);
+
+			for (int i = 0; i < dirty.size(); ++i)
+				dirty.get(i).stored = redo[i];
+			if (rootDirty)
+				rootStored = redo[changes - 1];
+
+		} finally {
+			dirty.clear();
+			rootDirty = false;
+		}
+	}
+
+	private void writeAtomically(final long[] iPositions, final byte[][] iUndo, final byte[][] iRedo) {
+		final OTxSegment txSegment = storage.getTxManager().getTxSegment();
+		final long previousLsn = OMMapManager.getWriteLsn();
+
+		// THE BLOCKS OF THE LOG ITSELF MUST NOT TAKE THE LSN OF A CHANGE IN PROGRESS, IF ANY
+		OMMapManager.setWriteLsn(null, 0);
+
+		try {
+			final OCluster container = storage.getClusterById(containerId);
+			final OPhysicalPosition ppos = new OPhysicalPosition();
+
+			long lsn = 0;
+			for (int i = 0; i < iPositions.length; ++i) {
+				container.getPhysicalPosition(iPositions[i], ppos);
+				lsn = txSegment.addLog(OTxSegment.OPERATION_UPDATE, REQUESTER, getId(), containerId, iPositions[i], ppos.dataSegment,
+						ppos.dataPosition, ORecordBytes.RECORD_TYPE, ppos.version, iUndo[i], iRedo[i]);
+			}
+
+			// THE PAGES CAN'T REACH THE DISK BEFORE THEIR LOG
+			OMMapManager.setWriteLsn(txSegment, lsn);
+
+			for (int i = 0; i < iPositions.length; ++i)
+				write(iPositions[i], iRedo[i]);
+
+			OMMapManager.setWriteLsn(null, 0);
+			txSegment.commitLog(REQUESTER, getId());
+
+		} catch (Exception e) {
+			// RESTORE THE RECORDS ALREADY WRITTEN AND THE PAGES IN MEMORY
+			OMMapManager.setWriteLsn(null, 0);
+			try {
+				txSegment.rollbackLog(REQUESTER, getId());
+			} catch (IOException ex) {
+				OLogManager.instance().error(this, "Error on rollback of the pages of logical cluster " + getName(), ex);
+			}
+			dirty.clear();
+			loadRoot();
+
+			if (e instanceof OStorageException)
+				throw (OStorageException) e;
+			throw new OStorageException("Error on writing the pages of logical cluster " + getName(), e);
+
+		} finally {
+			OMMapManager.setWriteLsn(previousLsn > 0 ? txSegment : null, previousLsn);
+		}
+	}
+
+	private byte[] write(final long iPosition, final byte[] iContent) {
+		storage.updateRecord(0, containerId, iPosition, iContent, -1, ORecordBytes.RECORD_TYPE);
+		return iContent;
+	}
+
+	private static byte[] toStream(final OPage iPage) {
+		int offset = 0;
+
+		if (iPage instanceof ONode) {
+			final ONode node = (ONode) iPage;
+			final byte[] buffer = new byte[NODE_SIZE * 8];
+			for (int i = 0; i < NODE_SIZE; ++i, offset += 8)
+				OBinaryProtocol.long2bytes(node.children[i], buffer, offset);
+			return buffer;
+		}
+
+		final OLeaf leaf = (OLeaf) iPage;
+		final byte[] buffer = new byte[LEAF_SIZE * ENTRY_SIZE];
+		for (int i = 0; i < LEAF_SIZE; ++i) {
+			OBinaryProtocol.int2bytes(leaf.dataSegments[i], buffer, offset);
+			OBinaryProtocol.long2bytes(leaf.dataPositions[i], buffer, offset + 4);
+			buffer[offset + 12] = leaf.types[i];
+			OBinaryProtocol.int2bytes(leaf.versions[i], buffer, offset + 13);
+			offset += ENTRY_SIZE;
+		}
+		return buffer;
+	}
+
+	private void loadRoot() {
+		final ORawBuffer raw = storage.readRecord(null, -1, containerId, rootPosition, null);
+		if (raw == null)
+			throw new OStorageException("Can't load the root #" + containerId + ":" + rootPosition + " of logical cluster " + getName());
+
+		rootStored = raw.buffer;
+		last = OBinaryProtocol.bytes2long(raw.buffer, 0);
+		entries = OBinaryProtocol.bytes2long(raw.buffer, 8);
+		depth = OBinaryProtocol.bytes2int(raw.buffer, 16);
+
+		final long topPosition = OBinaryProtocol.bytes2long(raw.buffer, 20);
+		top = topPosition > -1 ? load(topPosition, depth) : null;
+
+		// THE ROOT IS WRITTEN ONLY WHEN THE TREE CHANGES SHAPE: THE COUNTERS ARE REBUILT FROM THE LEAVES
+		entries = 0;
+		if (top != null)
+			countEntries(top, depth, 0);
+	}
+
+	private byte[] rootToStream() {
+		final byte[] buffer = new byte[ROOT_SIZE];
+		OBinaryProtocol.long2bytes(last, buffer, 0);
+		OBinaryProtocol.long2bytes(entries, buffer, 8);
+		OBinaryProtocol.int2bytes(depth, buffer, 16);
+		OBinaryProtocol.long2bytes(top != null ? top.position : -1, buffer, 20);
+		return buffer;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+/**
+ * In-memory descriptor of a hole in a data segment. Holes are ordered by size and then by offset, so the first hole greater or
+ * equals to a requested size is the best fit for it.
+ */
+public class ODataHoleInfo implements Comparable<ODataHoleInfo> {
+	public long	dataOffset;
+	public int	size;
+	public int	holeIndex;
+
+	public ODataHoleInfo() {
+	}
+
+	public ODataHoleInfo(final long iDataOffset, final int iRecordSize, final int iHoleIndex) {
+		dataOffset = iDataOffset;
+		size = iRecordSize;
+		holeIndex = iHoleIndex;
+	}
+
+	public int compareTo(final ODataHoleInfo iOther) {
+		if (size != iOther.size)
+			return size < iOther.size ? -1 : 1;
+		if (dataOffset != iOther.dataOffset)
+			return dataOffset < iOther.dataOffset ? -1 : 1;
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return "offset=" + dataOffset + ", size=" + size + ", hole=" + holeIndex;
+	}
+}
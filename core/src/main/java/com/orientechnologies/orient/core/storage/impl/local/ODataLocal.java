@@ -21,6 +21,8 @@ import com.orientechnologies.common.profiler.OProfiler;
 import com.orientechnologies.orient.core.OConstants;
 import com.orientechnologies.orient.core.config.OStorageDataConfiguration;
 import com.orientechnologies.orient.core.config.OStorageDataHoleConfiguration;
+import com.orientechnologies.orient.core.exception.ODatabaseException;
+import com.orientechnologies.orient.core.serialization.OBinaryProtocol;
 import com.orientechnologies.orient.core.storage.fs.OFile;
 
 /**
@@ -33,6 +35,10 @@ import com.orientechnologies.orient.core.storage.fs.OFile;
  * | 4 bytes .... | 2 bytes .... | 8 bytes .... | <RECORD SIZE> bytes. |<br/>
  * +--------------+--------------+--------------+----------------------+<br/>
  * = 14+? bytes<br/>
+ * <br/>
+ * The space of deleted and moved records is tracked in the hole segment and reused by new records choosing the best fitting hole.
+ * Holes are sized as the content of the record they can host: a hole of N bytes spans N + 14 bytes in the file. Gaps smaller
+ * than the record header are kept as holes with negative size to be merged later with the adjacent ones.
  */
 public class ODataLocal extends OMultiFileSegment {
 	static final String							DEF_EXTENSION		= ".oda";
@@ -68,9 +74,15 @@ public class ODataLocal extends OMultiFileSegment {
 		holeSegment.close();
 	}
 
-	public long getAvailablePosition(int iSize) throws IOException {
-		// TODO: REUSE SPACE FROM THE HOLE FILE
-		return getAbsolutePosition(allocateSpace(iSize + RECORD_FIX_SIZE));
+	public long getAvailablePosition(final int iSize) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			return getAbsolutePosition(allocateRecordSpace(iSize));
+
+		} finally {
+			releaseExclusiveLock();
+		}
 	}
 
 	/**
@@ -85,7 +97,7 @@ public class ODataLocal extends OMultiFileSegment {
 		try {
 			acquireExclusiveLock();
 
-			final int[] newFilePosition = allocateSpace(iContent.length + RECORD_FIX_SIZE);
+			final long[] newFilePosition = allocateRecordSpace(iContent.length);
 			writeRecord(newFilePosition, iClusterSegment, iClusterPosition, iContent);
 
 			return getAbsolutePosition(newFilePosition);
@@ -107,8 +119,8 @@ public class ODataLocal extends OMultiFileSegment {
 		try {
 			acquireSharedLock();
 
-			final int[] pos = getRelativePosition(iPosition);
-			final OFile file = files[pos[0]];
+			final long[] pos = getRelativePosition(iPosition);
+			final OFile file = files[(int) pos[0]];
 
 			final int recordSize = file.readInt(pos[1]);
 			if (recordSize <= 0)
@@ -132,8 +144,8 @@ public class ODataLocal extends OMultiFileSegment {
 		try {
 			acquireSharedLock();
 
-			final int[] pos = getRelativePosition(iPosition);
-			final OFile file = files[pos[0]];
+			final long[] pos = getRelativePosition(iPosition);
+			final OFile file = files[(int) pos[0]];
 
 			return file.readInt(pos[1]);
 
@@ -157,8 +169,8 @@ public class ODataLocal extends OMultiFileSegment {
 		try {
 			acquireExclusiveLock();
 
-			int[] pos = getRelativePosition(iPosition);
-			final OFile file = files[pos[0]];
+			long[] pos = getRelativePosition(iPosition);
+			final OFile file = files[(int) pos[0]];
 
 			final int recordSize = file.readInt(pos[1]);
 			// if (recordSize <= 0)
@@ -175,16 +187,16 @@ public class ODataLocal extends OMultiFileSegment {
 				writeRecord(pos, iClusterSegment, iClusterPosition, iContent);
 
 				// CREATE A HOLE WITH THE DIFFERENCE OF SPACE
-				holeSegment.createHole(iPosition + RECORD_FIX_SIZE + iContent.length, iContent.length - recordSize);
+				addHole(iPosition + RECORD_FIX_SIZE + iContent.length, recordSize - iContent.length - RECORD_FIX_SIZE);
 
 				OProfiler.getInstance().updateCounter("ODataLocal.setRecord:part.reused.space", +1);
 			} else {
 				// USE A NEW SPACE
-				pos = allocateSpace(iContent.length + RECORD_FIX_SIZE);
+				pos = allocateRecordSpace(iContent.length);
 				writeRecord(pos, iClusterSegment, iClusterPosition, iContent);
 
 				// CREATE A HOLE FOR THE ENTIRE OLD RECORD
-				holeSegment.createHole(iPosition, recordSize);
+				addHole(iPosition, recordSize);
 
 				OProfiler.getInstance().updateCounter("ODataLocal.setRecord:new.space", +1);
 			}
@@ -200,15 +212,15 @@ public class ODataLocal extends OMultiFileSegment {
 		try {
 			acquireExclusiveLock();
 
-			final int[] pos = getRelativePosition(iPosition);
-			final OFile file = files[pos[0]];
+			final long[] pos = getRelativePosition(iPosition);
+			final OFile file = files[(int) pos[0]];
 
 			final int recordSize = file.readInt(pos[1]);
 			if (recordSize > 0) {
 				// VALID RECORD: CREATE A HOLE FOR IT
 				file.writeInt(pos[1], 0);
 
-				holeSegment.createHole(iPosition, recordSize);
+				addHole(iPosition, recordSize);
 			}
 			return recordSize;
 
@@ -217,9 +229,9 @@ public class ODataLocal extends OMultiFileSegment {
 		}
 	}
 
-	protected void writeRecord(final int[] iFilePosition, final int iClusterSegment, final long iClusterPosition,
+	protected void writeRecord(final long[] iFilePosition, final int iClusterSegment, final long iClusterPosition,
 			final byte[] iContent) throws IOException {
-		final OFile file = files[iFilePosition[0]];
+		final OFile file = files[(int) iFilePosition[0]];
 
 		file.writeInt(iFilePosition[1], iContent.length);
 		file.writeShort(iFilePosition[1] + OConstants.SIZE_INT, (short) iClusterSegment);
@@ -228,8 +240,316 @@ public class ODataLocal extends OMultiFileSegment {
 		file.write(iFilePosition[1] + RECORD_FIX_SIZE, iContent);
 	}
 
-	public void createHole(long iRecordOffset, int iRecordSize) throws IOException {
-		holeSegment.createHole(iRecordOffset, iRecordSize);
+	/**
+	 * Reserves iSize bytes at the end of the segment without reusing the holes. Used by the bulk loader that fills the space with
+	 * many records written at once.
+	 *
+	 * @return The absolute position of the space reserved
+	 */
+	long reserveSpace(final int iSize) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			return getAbsolutePosition(allocateSpace(iSize));
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Writes the records serialized in the buffer at the position received, reserved by reserveSpace().
+	 */
+	void writeRecords(final long iPosition, final byte[] iRecords) throws IOException {
+		try {
+			acquireSharedLock();
+
+			final long[] pos = getRelativePosition(iPosition);
+			files[(int) pos[0]].write(pos[1], iRecords);
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Serializes the record in the buffer with the same layout of writeRecord().
+	 *
+	 * @return The offset next to the record
+	 */
+	static int serializeRecord(final byte[] iBuffer, final int iOffset, final int iClusterSegment, final long iClusterPosition,
+			final byte[] iContent) {
+		OBinaryProtocol.int2bytes(iContent.length, iBuffer, iOffset);
+		OBinaryProtocol.short2bytes((short) iClusterSegment, iBuffer, iOffset + OConstants.SIZE_INT);
+		OBinaryProtocol.long2bytes(iClusterPosition, iBuffer, iOffset + OConstants.SIZE_INT + OConstants.SIZE_SHORT);
+		System.arraycopy(iContent, 0, iBuffer, iOffset + RECORD_FIX_SIZE, iContent.length);
+		return iOffset + RECORD_FIX_SIZE + iContent.length;
+	}
+
+	static int getRecordSpace(final int iContentSize) {
+		return RECORD_FIX_SIZE + iContentSize;
+	}
+
+	public void createHole(final long iRecordOffset, final int iRecordSize) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			addHole(iRecordOffset, iRecordSize);
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	@Override
+	public void synch() {
+		super.synch();
+		holeSegment.synch();
+	}
+
+	/**
+	 * Tells if at the offset there is a valid record that belongs to the cluster position received. Used by the transaction recovery to
+	 * check the record before to overwrite it.
+	 */
+	public boolean isRecordOf(final long iPosition, final int iClusterSegment, final long iClusterPosition) throws IOException {
+		if (iPosition < 0)
+			return false;
+
+		try {
+			acquireSharedLock();
+
+			final long[] pos;
+			try {
+				pos = getRelativePosition(iPosition);
+			} catch (ODatabaseException e) {
+				// OUT OF THE FILES
+				return false;
+			}
+
+			final OFile file = files[(int) pos[0]];
+			if (pos[1] + RECORD_FIX_SIZE > file.getFilledUpTo())
+				return false;
+
+			final int recordSize = file.readInt(pos[1]);
+			if (recordSize <= 0 || pos[1] + RECORD_FIX_SIZE + recordSize > file.getFilledUpTo())
+				return false;
+
+			return file.readShort(pos[1] + OConstants.SIZE_INT) == iClusterSegment
+					&& file.readLong(pos[1] + OConstants.SIZE_INT + OConstants.SIZE_SHORT) == iClusterPosition;
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Returns the number of holes available to be reused.
+	 */
+	public int getHoles() {
+		try {
+			acquireSharedLock();
+
+			return holeSegment.getAvailableHoles();
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Returns the total space in bytes of the holes available to be reused.
+	 */
+	public long getHolesSize() {
+		try {
+			acquireSharedLock();
+
+			return holeSegment.getAvailableHolesSize();
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Returns the offset of the first hole, or -1 if there isn't any.
+	 */
+	public long getFirstHoleOffset() {
+		try {
+			acquireSharedLock();
+
+			final ODataHoleInfo hole = holeSegment.getFirstHole();
+			return hole != null ? hole.dataOffset : -1;
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Copies the record in the best fitting hole placed before it. The old space is not released, since the caller must first update
+	 * the reference to the record and then call deleteRecord() against the old position.
+	 * 
+	 * @param iPosition
+	 *          The record offset
+	 * @param iClusterSegment
+	 *          Cluster id of the record, written in the new record header
+	 * @param iClusterPosition
+	 *          Cluster position of the record, written in the new record header
+	 * @return The new record offset or -1 if no hole placed before the record can host it
+	 * @throws IOException
+	 */
+	public long moveRecord(final long iPosition, final int iClusterSegment, final long iClusterPosition) throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			final long[] pos = getRelativePosition(iPosition);
+			final OFile file = files[(int) pos[0]];
+
+			final int recordSize = file.readInt(pos[1]);
+			if (recordSize <= 0)
+				return -1;
+
+			final ODataHoleInfo hole = holeSegment.getBestFitHole(recordSize, iPosition);
+			if (hole == null)
+				return -1;
+
+			final byte[] content = new byte[recordSize];
+			file.read(pos[1] + RECORD_FIX_SIZE, content, recordSize);
+
+			final long[] newPos = allocateHoleSpace(hole, recordSize);
+			writeRecord(newPos, iClusterSegment, iClusterPosition, content);
+
+			return getAbsolutePosition(newPos);
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Removes from the files the holes placed at the end of the filled space.
+	 * 
+	 * @return The bytes released
+	 * @throws IOException
+	 */
+	public long removeTailHoles() throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			long released = 0;
+			long end;
+			int spaceSize;
+			ODataHoleInfo hole;
+			for (int i = 0; i < files.length; ++i) {
+				end = getAbsolutePosition(new long[] { i, files[i].getFilledUpTo() });
+
+				while ((hole = holeSegment.getHoleBefore(end)) != null && hole.dataOffset + RECORD_FIX_SIZE + hole.size == end
+						&& getRelativePosition(hole.dataOffset)[0] == i) {
+					spaceSize = RECORD_FIX_SIZE + hole.size;
+
+					holeSegment.deleteHole(hole);
+					files[i].removeTail(spaceSize);
+
+					released += spaceSize;
+					end -= spaceSize;
+				}
+			}
+			return released;
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Removes the free entries from the hole file.
+	 * 
+	 * @return The number of entries removed
+	 * @throws IOException
+	 */
+	public int compactHoles() throws IOException {
+		try {
+			acquireExclusiveLock();
+
+			return holeSegment.compact();
+
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
+
+	/**
+	 * Allocates the space for a record. The best fitting hole is reused if any, otherwise the space is allocated at the end of the
+	 * segment.
+	 * 
+	 * @param iContentSize
+	 *          Size of the record content
+	 * @return The relative position as file number and offset
+	 * @throws IOException
+	 */
+	protected long[] allocateRecordSpace(final int iContentSize) throws IOException {
+		final ODataHoleInfo hole = holeSegment.getBestFitHole(iContentSize);
+		if (hole == null)
+			// NO HOLES: APPEND AT THE END
+			return allocateSpace(iContentSize + RECORD_FIX_SIZE);
+
+		return allocateHoleSpace(hole, iContentSize);
+	}
+
+	/**
+	 * Uses the hole to host a record, splitting it when it's bigger than the record.
+	 */
+	protected long[] allocateHoleSpace(final ODataHoleInfo iHole, final int iContentSize) throws IOException {
+		final long recordOffset = iHole.dataOffset;
+		final int remainingSize = iHole.size - iContentSize - RECORD_FIX_SIZE;
+
+		if (remainingSize > -RECORD_FIX_SIZE) {
+			// SPLIT THE HOLE: THE REMAINING SPACE IS STILL AVAILABLE
+			holeSegment.updateHole(iHole, recordOffset + RECORD_FIX_SIZE + iContentSize, remainingSize);
+			OProfiler.getInstance().updateCounter("ODataLocal.allocateSpace:hole.split", +1);
+		} else {
+			// USE THE ENTIRE HOLE
+			holeSegment.deleteHole(iHole);
+			OProfiler.getInstance().updateCounter("ODataLocal.allocateSpace:hole.reused", +1);
+		}
+
+		return getRelativePosition(recordOffset);
+	}
+
+	/**
+	 * Creates a hole merging it with the adjacent ones in the same file.
+	 * 
+	 * @param iRecordOffset
+	 *          Absolute position of the freed record
+	 * @param iRecordSize
+	 *          Size of the freed record content
+	 * @throws IOException
+	 */
+	protected void addHole(final long iRecordOffset, final int iRecordSize) throws IOException {
+		if (iRecordOffset < 0 || iRecordSize <= -RECORD_FIX_SIZE)
+			return;
+
+		final long fileNum = getRelativePosition(iRecordOffset)[0];
+		long holeSize = iRecordSize;
+
+		// MERGE WITH THE NEXT HOLE
+		final ODataHoleInfo next = holeSegment.getHoleAt(iRecordOffset + RECORD_FIX_SIZE + iRecordSize);
+		if (next != null && getRelativePosition(next.dataOffset)[0] == fileNum
+				&& holeSize + RECORD_FIX_SIZE + next.size <= Integer.MAX_VALUE) {
+			holeSize += RECORD_FIX_SIZE + next.size;
+			holeSegment.deleteHole(next);
+			OProfiler.getInstance().updateCounter("ODataLocal.createHole:merged", +1);
+		}
+
+		// MERGE WITH THE PREVIOUS HOLE
+		final ODataHoleInfo previous = holeSegment.getHoleBefore(iRecordOffset);
+		if (previous != null && previous.dataOffset + RECORD_FIX_SIZE + previous.size == iRecordOffset
+				&& getRelativePosition(previous.dataOffset)[0] == fileNum
+				&& previous.size + RECORD_FIX_SIZE + holeSize <= Integer.MAX_VALUE) {
+			holeSegment.updateHole(previous, previous.dataOffset, (int) (previous.size + RECORD_FIX_SIZE + holeSize));
+			OProfiler.getInstance().updateCounter("ODataLocal.createHole:merged", +1);
+		} else
+			holeSegment.createHole(iRecordOffset, (int) holeSize);
 	}
 
 	public int getId() {
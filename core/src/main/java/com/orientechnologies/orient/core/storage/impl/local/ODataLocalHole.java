@@ -16,7 +16,13 @@
 package com.orientechnologies.orient.core.storage.impl.local;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
+import com.orientechnologies.common.log.OLogManager;
 import com.orientechnologies.orient.core.OConstants;
 import com.orientechnologies.orient.core.config.OStorageFileConfiguration;
 import com.orientechnologies.orient.core.storage.OPhysicalPosition;
@@ -32,30 +38,69 @@ import com.orientechnologies.orient.core.storage.OPhysicalPosition;
  * | 8 bytes = max 2^63-1 | 4 bytes = max 2^31-1 |<br/>
  * +----------------------+----------------------+<br/>
  * = 12 bytes<br/>
+ * <br/>
+ * Holes are loaded in memory at open and kept indexed both by data offset, to merge adjacent holes, and by size, to find the best
+ * fit for a new record. Entries of the file freed when a hole is reused are marked with offset -1 and recycled by the next hole.
+ * The size can be negative for the gaps smaller than the record header, kept only to be merged with the adjacent holes. Files
+ * created by older releases (format version 0 in the header) can contain invalid entries with negative size: they are ignored.
  */
 public class ODataLocalHole extends OSingleFileSegment {
-	private static final int	DEF_START_SIZE	= 262144;
-	private static final int	RECORD_SIZE			= 12;
+	private static final int										DEF_START_SIZE	= 262144;
+	private static final int										RECORD_SIZE			= 12;
+	private static final int										FORMAT_VERSION	= 1;
+
+	private final TreeMap<Long, ODataHoleInfo>	holesByOffset		= new TreeMap<Long, ODataHoleInfo>();
+	private final TreeSet<ODataHoleInfo>				holesBySize			= new TreeSet<ODataHoleInfo>();
+	private final List<Integer>									freeHoles				= new ArrayList<Integer>();
+	private final ODataHoleInfo									cursor					= new ODataHoleInfo();
+	private long																holesSize;
 
 	public ODataLocalHole(final OStorageLocal iStorage, final OStorageFileConfiguration iConfig) throws IOException {
 		super(iStorage, iConfig);
 	}
 
+	@Override
+	public boolean open() throws IOException {
+		final boolean softClosed = super.open();
+		loadHolesInMemory();
+		return softClosed;
+	}
+
 	@Override
 	public void create(final int iStartSize) throws IOException {
 		super.create(iStartSize > -1 ? iStartSize : DEF_START_SIZE);
+		file.writeHeaderLong(0, FORMAT_VERSION);
+		clearHolesInMemory();
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		clearHolesInMemory();
 	}
 
 	/**
-	 * Append the hole to the end of segment
+	 * Append the hole to the end of segment, or write it in the place of a hole already reused.
 	 * 
 	 * @throws IOException
 	 */
 	public void createHole(final long iRecordOffset, final int iRecordSize) throws IOException {
-		final int position = getHoles() * RECORD_SIZE;
-		file.allocateSpace(RECORD_SIZE);
+		if (iRecordOffset < 0 || holesByOffset.containsKey(iRecordOffset))
+			return;
+
+		final int hole;
+		if (!freeHoles.isEmpty())
+			hole = freeHoles.remove(freeHoles.size() - 1);
+		else {
+			hole = getHoles();
+			file.allocateSpace(RECORD_SIZE);
+		}
+
+		final long position = (long) hole * RECORD_SIZE;
 		file.writeLong(position, iRecordOffset);
 		file.writeInt(position + OConstants.SIZE_LONG, iRecordSize);
+
+		indexHole(new ODataHoleInfo(iRecordOffset, iRecordSize, hole));
 	}
 
 	/**
@@ -63,38 +108,180 @@ public class ODataLocalHole extends OSingleFileSegment {
 	 * 
 	 * @throws IOException
 	 */
-	public OPhysicalPosition getHole(int iPosition, final OPhysicalPosition iPPosition) throws IOException {
-		iPosition = iPosition * RECORD_SIZE;
-		iPPosition.dataPosition = file.readLong(iPosition);
-		iPPosition.recordSize = file.readInt(iPosition + OConstants.SIZE_LONG);
+	public OPhysicalPosition getHole(final int iHole, final OPhysicalPosition iPPosition) throws IOException {
+		final long position = (long) iHole * RECORD_SIZE;
+		iPPosition.dataPosition = file.readLong(position);
+		iPPosition.recordSize = file.readInt(position + OConstants.SIZE_LONG);
 		return iPPosition;
 	}
 
+	/**
+	 * Returns the smallest hole with a size greater or equals to the requested one, or null if there isn't any.
+	 */
+	public ODataHoleInfo getBestFitHole(final int iRecordSize) {
+		cursor.size = iRecordSize;
+		cursor.dataOffset = Long.MIN_VALUE;
+		return holesBySize.ceiling(cursor);
+	}
+
+	/**
+	 * Returns the smallest hole with a size greater or equals to the requested one placed before the offset, or null if there isn't
+	 * any.
+	 */
+	public ODataHoleInfo getBestFitHole(final int iRecordSize, final long iBeforeOffset) {
+		cursor.size = iRecordSize;
+		cursor.dataOffset = Long.MIN_VALUE;
+		for (ODataHoleInfo hole : holesBySize.tailSet(cursor))
+			if (hole.dataOffset < iBeforeOffset)
+				return hole;
+		return null;
+	}
+
+	/**
+	 * Returns the hole with the lowest offset, or null if there isn't any.
+	 */
+	public ODataHoleInfo getFirstHole() {
+		return holesByOffset.isEmpty() ? null : holesByOffset.firstEntry().getValue();
+	}
+
+	/**
+	 * Returns the hole that starts exactly at the offset, or null if there isn't any.
+	 */
+	public ODataHoleInfo getHoleAt(final long iRecordOffset) {
+		return holesByOffset.get(iRecordOffset);
+	}
+
+	/**
+	 * Returns the closest hole that starts before the offset, or null if there isn't any.
+	 */
+	public ODataHoleInfo getHoleBefore(final long iRecordOffset) {
+		final Map.Entry<Long, ODataHoleInfo> entry = holesByOffset.lowerEntry(iRecordOffset);
+		return entry != null ? entry.getValue() : null;
+	}
+
 	/**
 	 * Update hole data
 	 * 
 	 * @throws IOException
 	 */
-	public void updateHole(int iPosition, final OPhysicalPosition iPPosition) throws IOException {
-		iPosition = iPosition * RECORD_SIZE;
-		file.writeLong(iPosition, iPPosition.dataPosition);
-		file.writeInt(iPosition + OConstants.SIZE_LONG, iPPosition.recordSize);
+	public void updateHole(final ODataHoleInfo iHole, final long iNewRecordOffset, final int iNewRecordSize) throws IOException {
+		final long position = (long) iHole.holeIndex * RECORD_SIZE;
+		file.writeLong(position, iNewRecordOffset);
+		file.writeInt(position + OConstants.SIZE_LONG, iNewRecordSize);
+
+		unindexHole(iHole);
+		iHole.dataOffset = iNewRecordOffset;
+		iHole.size = iNewRecordSize;
+		indexHole(iHole);
+	}
+
+	/**
+	 * Delete the hole. The entry in the file is marked as free and will be reused by the next hole created.
+	 * 
+	 * @throws IOException
+	 */
+	public void deleteHole(final ODataHoleInfo iHole) throws IOException {
+		final long position = (long) iHole.holeIndex * RECORD_SIZE;
+		file.writeLong(position, -1);
+		file.writeInt(position + OConstants.SIZE_LONG, -1);
+
+		unindexHole(iHole);
+		freeHoles.add(iHole.holeIndex);
+	}
+
+	public int getHoles() {
+		return (int) (file.getFilledUpTo() / RECORD_SIZE);
 	}
 
 	/**
-	 * Delete the hole TODO: USELESS?
+	 * Rewrites the valid holes at the beginning of the file and removes the entries left free by the reused holes. If the process is
+	 * interrupted some hole could be written twice, but duplicates are ignored when the file is loaded.
 	 * 
+	 * @return The number of entries removed
 	 * @throws IOException
 	 */
-	public void deleteHole(int iPosition, final OPhysicalPosition iPPosition) throws IOException {
-		iPosition = iPosition * RECORD_SIZE;
+	public int compact() throws IOException {
+		final int removed = freeHoles.size();
+		if (removed == 0)
+			return 0;
+
+		int hole = 0;
+		long position;
+		for (ODataHoleInfo info : holesByOffset.values()) {
+			if (info.holeIndex != hole) {
+				position = (long) hole * RECORD_SIZE;
+				file.writeLong(position, info.dataOffset);
+				file.writeInt(position + OConstants.SIZE_LONG, info.size);
+				info.holeIndex = hole;
+			}
+			hole++;
+		}
+
+		file.removeTail((long) (getHoles() - hole) * RECORD_SIZE);
+		freeHoles.clear();
 
-		iPPosition.dataPosition = file.readLong(iPosition);
+		OLogManager.instance().debug(this, "Compacted hole segment %s: removed %d free entries", file, removed);
 
-		file.writeInt(iPosition, -1);
+		return removed;
 	}
 
-	public int getHoles() {
-		return (file.getFilledUpTo() / RECORD_SIZE);
+	/**
+	 * Returns the number of valid holes, namely not yet reused.
+	 */
+	public int getAvailableHoles() {
+		return holesByOffset.size();
+	}
+
+	/**
+	 * Returns the amount of space in holes.
+	 */
+	public long getAvailableHolesSize() {
+		return holesSize;
+	}
+
+	private void loadHolesInMemory() throws IOException {
+		clearHolesInMemory();
+
+		final int holes = getHoles();
+		final boolean legacyFormat = file.readHeaderLong(0) < FORMAT_VERSION;
+
+		long dataOffset;
+		int recordSize;
+		for (int i = 0; i < holes; ++i) {
+			final long position = (long) i * RECORD_SIZE;
+			dataOffset = file.readLong(position);
+			recordSize = file.readInt(position + OConstants.SIZE_LONG);
+
+			if (dataOffset < 0 || (legacyFormat && recordSize <= 0) || holesByOffset.containsKey(dataOffset))
+				// FREE ENTRY OR INVALID ONE CREATED BY OLDER RELEASES
+				freeHoles.add(i);
+			else
+				indexHole(new ODataHoleInfo(dataOffset, recordSize, i));
+		}
+
+		if (legacyFormat && !"r".equals(storage.getMode()))
+			file.writeHeaderLong(0, FORMAT_VERSION);
+
+		OLogManager.instance().debug(this, "Loaded %d holes from segment %s (%d entries free)", holesByOffset.size(), file,
+				freeHoles.size());
+	}
+
+	private void clearHolesInMemory() {
+		holesByOffset.clear();
+		holesBySize.clear();
+		freeHoles.clear();
+		holesSize = 0;
+	}
+
+	private void indexHole(final ODataHoleInfo iHole) {
+		holesByOffset.put(iHole.dataOffset, iHole);
+		holesBySize.add(iHole);
+		holesSize += iHole.size;
+	}
+
+	private void unindexHole(final ODataHoleInfo iHole) {
+		holesByOffset.remove(iHole.dataOffset);
+		holesBySize.remove(iHole);
+		holesSize -= iHole.size;
 	}
 }
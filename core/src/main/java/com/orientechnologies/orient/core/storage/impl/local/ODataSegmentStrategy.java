@@ -0,0 +1,51 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import com.orientechnologies.orient.core.storage.OCluster;
+
+/**
+ * Strategy to choose the data segment where to write the content of a new record. Every cluster has its own instance, created by
+ * ODataSegmentStrategyFactory, that chooses between the data segments assigned to the cluster. Since each data segment has its own
+ * files and lock, spreading the records of concurrent inserts over multiple data segments avoids to serialize them.<br/>
+ * Implementations must be thread-safe: the method getDataSegment() is called concurrently under the shared lock of the storage.
+ */
+public abstract class ODataSegmentStrategy {
+	protected OStorageLocal	storage;
+	protected int[]					dataSegments;
+
+	/**
+	 * Binds the strategy to the data segments it can choose.
+	 *
+	 * @param iStorage
+	 *          Storage owner of the data segments
+	 * @param iDataSegments
+	 *          Ids of the data segments assigned to the cluster. Never empty
+	 */
+	public void configure(final OStorageLocal iStorage, final int[] iDataSegments) {
+		storage = iStorage;
+		dataSegments = iDataSegments;
+	}
+
+	/**
+	 * Returns the id of the data segment where to store the content of the new record.
+	 */
+	public abstract int getDataSegment(OCluster iCluster, byte[] iContent);
+
+	public int[] getDataSegments() {
+		return dataSegments;
+	}
+}
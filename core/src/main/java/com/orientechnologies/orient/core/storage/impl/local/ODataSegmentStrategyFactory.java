@@ -0,0 +1,57 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.orientechnologies.orient.core.exception.OConfigurationException;
+
+/**
+ * Creates the data segment strategies by name. Custom strategies can be plugged by registering their class.
+ */
+public class ODataSegmentStrategyFactory {
+	private static final Map<String, Class<? extends ODataSegmentStrategy>>	strategies	= new HashMap<String, Class<? extends ODataSegmentStrategy>>();
+
+	static {
+		register(ODataSegmentStrategyFirst.NAME, ODataSegmentStrategyFirst.class);
+		register(ODataSegmentStrategyRoundRobin.NAME, ODataSegmentStrategyRoundRobin.class);
+		register(ODataSegmentStrategyAffinity.NAME, ODataSegmentStrategyAffinity.class);
+		register(ODataSegmentStrategyLeastFilled.NAME, ODataSegmentStrategyLeastFilled.class);
+		register(ODataSegmentStrategyRecordSize.NAME, ODataSegmentStrategyRecordSize.class);
+	}
+
+	public static synchronized void register(final String iName, final Class<? extends ODataSegmentStrategy> iClass) {
+		strategies.put(iName.toLowerCase(), iClass);
+	}
+
+	public static synchronized boolean isRegistered(final String iName) {
+		return strategies.containsKey(iName.toLowerCase());
+	}
+
+	public static synchronized ODataSegmentStrategy create(final String iName) {
+		final Class<? extends ODataSegmentStrategy> cls = strategies.get(iName.toLowerCase());
+		if (cls == null)
+			throw new OConfigurationException("Data segment strategy '" + iName + "' not supported. Available are: "
+					+ strategies.keySet());
+
+		try {
+			return cls.newInstance();
+		} catch (Exception e) {
+			throw new OConfigurationException("Can't create the data segment strategy '" + iName + "'", e);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import com.orientechnologies.orient.core.storage.OCluster;
+
+/**
+ * Writes the records in the data segment with less used space, not counting the holes that will be reused. Useful to balance data
+ * segments created at different times or on disks of different size.
+ */
+public class ODataSegmentStrategyLeastFilled extends ODataSegmentStrategy {
+	public static final String	NAME	= "least-filled";
+
+	@Override
+	public int getDataSegment(final OCluster iCluster, final byte[] iContent) {
+		int best = dataSegments[0];
+		long bestUsed = Long.MAX_VALUE;
+
+		ODataLocal data;
+		long used;
+		for (int id : dataSegments) {
+			data = storage.getDataSegment(id);
+			used = data.getFilledUpTo() - data.getHolesSize();
+			if (used < bestUsed) {
+				best = id;
+				bestUsed = used;
+			}
+		}
+
+		return best;
+	}
+}
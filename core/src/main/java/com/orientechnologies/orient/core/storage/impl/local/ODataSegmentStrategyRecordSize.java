@@ -0,0 +1,35 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.storage.OCluster;
+
+/**
+ * Separates the records by size: the records of "storage.dataSegment.largeRecordSize" bytes or more go in the last data segment
+ * assigned to the cluster, the others in the first one. Keeps the small records close and avoids that the holes left by the
+ * large ones are fragmented by the small ones.
+ */
+public class ODataSegmentStrategyRecordSize extends ODataSegmentStrategy {
+	public static final String	NAME				= "record-size";
+
+	private final int						largeSize	= OGlobalConfiguration.STORAGE_DATA_SEGMENT_LARGE_RECORD.getValueAsInteger();
+
+	@Override
+	public int getDataSegment(final OCluster iCluster, final byte[] iContent) {
+		return iContent.length >= largeSize ? dataSegments[dataSegments.length - 1] : dataSegments[0];
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.orientechnologies.orient.core.storage.OCluster;
+
+/**
+ * Writes the records in turn in all the data segments assigned to the cluster, so concurrent inserts in the same cluster lock
+ * different data segments.
+ */
+public class ODataSegmentStrategyRoundRobin extends ODataSegmentStrategy {
+	public static final String	NAME		= "round-robin";
+
+	private final AtomicInteger	counter	= new AtomicInteger();
+
+	@Override
+	public int getDataSegment(final OCluster iCluster, final byte[] iContent) {
+		// THE MASK KEEPS THE INDEX POSITIVE WHEN THE COUNTER OVERFLOWS
+		return dataSegments[(counter.getAndIncrement() & Integer.MAX_VALUE) % dataSegments.length];
+	}
+}
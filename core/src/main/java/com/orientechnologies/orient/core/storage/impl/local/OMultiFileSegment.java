@@ -34,8 +34,8 @@ public class OMultiFileSegment extends OSegment {
 	private long														maxSize;
 	@SuppressWarnings("unused")
 	private String													defrag;
-	private int															fileStartSize;
-	private int															fileMaxSize;
+	private long														fileStartSize;
+	private long														fileMaxSize;
 	private int															fileIncrementSize;
 
 	public OMultiFileSegment(final OStorageLocal iStorage, final OStorageSegmentConfiguration iConfig, final String iFileExtension,
@@ -47,8 +47,8 @@ public class OMultiFileSegment extends OSegment {
 		type = iConfig.fileType;
 		defrag = iConfig.defrag;
 		maxSize = OFileUtils.getSizeAsNumber(iConfig.maxSize);
-		fileStartSize = (int) OFileUtils.getSizeAsNumber(iConfig.fileStartSize);
-		fileMaxSize = (int) OFileUtils.getSizeAsNumber(iConfig.fileMaxSize);
+		fileStartSize = OFileUtils.getSizeAsNumber(iConfig.fileStartSize);
+		fileMaxSize = OFileUtils.getSizeAsNumber(iConfig.fileMaxSize);
 		fileIncrementSize = (int) OFileUtils.getSizeAsNumber(iConfig.fileIncrementSize);
 
 		if (iRoundMaxSize > 0)
@@ -56,13 +56,13 @@ public class OMultiFileSegment extends OSegment {
 			fileMaxSize = (fileMaxSize / iRoundMaxSize) * iRoundMaxSize;
 
 		// INSTANTIATE ALL THE FILES
-		int perFileMaxSize;
+		long perFileMaxSize;
 
 		if (iConfig.infoFiles.length == 0) {
 			// EMPTY FILE: CREATE THE FIRST FILE BY DEFAULT
 			files = new OFile[1];
 			files[0] = OFileFactory.create(type,
-					iStorage.getVariableParser().resolveVariables(storage.getStoragePath() + "/" + name + "." + 0 + fileExtension),
+					iStorage.getVariableParser().resolveVariables(getLocation() + "/" + name + "." + 0 + fileExtension),
 					iStorage.getMode());
 			perFileMaxSize = fileMaxSize;
 			files[0].setMaxSize(perFileMaxSize);
@@ -206,6 +206,35 @@ public class OMultiFileSegment extends OSegment {
 		}
 	}
 
+	/**
+	 * Returns the free space at the end of the last file, where the new records are appended.
+	 */
+	public long getTailFreeSpace() {
+		final OFile[] currentFiles = files;
+		if (currentFiles.length == 0 || currentFiles[currentFiles.length - 1] == null)
+			// NEW FILE NOT CREATED YET
+			return 0;
+		return currentFiles[currentFiles.length - 1].getFreeSpace();
+	}
+
+	/**
+	 * Enlarges the last file to have at least iFreeSpace bytes free at the end, up to the max size of the file. Called by the
+	 * background preallocation to avoid the enlargement of the files during the inserts. The segment is not locked: the file is
+	 * enlarged under its resize lock, that blocks only the allocations in the same file.
+	 * 
+	 * @param iFreeSpace
+	 *          Bytes to keep free at the end of the last file
+	 * @return The bytes added to the file
+	 * @throws IOException
+	 */
+	public long preallocate(final long iFreeSpace) throws IOException {
+		final OFile[] currentFiles = files;
+		if (currentFiles.length == 0 || currentFiles[currentFiles.length - 1] == null)
+			return 0;
+
+		return currentFiles[currentFiles.length - 1].preallocate(iFreeSpace);
+	}
+
 	/**
 	 * Find free space for iRecordSize bytes.
 	 * 
@@ -213,7 +242,7 @@ public class OMultiFileSegment extends OSegment {
 	 * @return a pair file-id/file-pos
 	 * @throws IOException
 	 */
-	protected int[] allocateSpace(final int iRecordSize) throws IOException {
+	protected long[] allocateSpace(final int iRecordSize) throws IOException {
 		// TODO: RECYCLE THE HOLES IF ANY
 
 		// IT'S PREFEREABLE TO FIND SPACE WITHOUT ENLARGE ANY FILES: FIND THE FIRST FILE WITH FREE SPACE TO USE
@@ -223,7 +252,7 @@ public class OMultiFileSegment extends OSegment {
 
 			if (file.getFreeSpace() >= iRecordSize)
 				// FOUND: RETURN THIS OFFSET
-				return new int[] { i, file.allocateSpace(iRecordSize) };
+				return new long[] { i, file.allocateSpace(iRecordSize) };
 		}
 
 		// NOT FOUND: CHECK IF CAN OVERSIZE SOME FILES
@@ -232,7 +261,7 @@ public class OMultiFileSegment extends OSegment {
 
 			if (file.canOversize(iRecordSize)) {
 				// FOUND SPACE: ENLARGE IT
-				return new int[] { i, file.allocateSpace(iRecordSize) };
+				return new long[] { i, file.allocateSpace(iRecordSize) };
 			}
 		}
 
@@ -254,7 +283,7 @@ public class OMultiFileSegment extends OSegment {
 
 		config.root.update();
 
-		return new int[] { files.length - 1, 0 };
+		return new long[] { files.length - 1, 0 };
 	}
 
 	/**
@@ -264,17 +293,13 @@ public class OMultiFileSegment extends OSegment {
 	 *          as pair file-id/file-pos
 	 * @return
 	 */
-	protected long getAbsolutePosition(final int[] iFilePosition) {
-		long position = 0;
-		for (int i = 0; i < iFilePosition[0]; ++i) {
-			position += fileMaxSize;
-		}
-		return position + iFilePosition[1];
+	protected long getAbsolutePosition(final long[] iFilePosition) {
+		return iFilePosition[0] * fileMaxSize + iFilePosition[1];
 	}
 
-	protected int[] getRelativePosition(final long iPosition) {
+	protected long[] getRelativePosition(final long iPosition) {
 		if (iPosition < fileMaxSize)
-			return new int[] { 0, (int) iPosition };
+			return new long[] { 0, iPosition };
 
 		final int fileNum = (int) (iPosition / fileMaxSize);
 
@@ -282,21 +307,20 @@ public class OMultiFileSegment extends OSegment {
 			throw new ODatabaseException("Record position #" + iPosition + " was bound to file #" + fileNum
 					+ " that is out of limit (files range 0-" + (files.length - 1) + ")");
 
-		final int fileRec = (int) (iPosition % fileMaxSize);
+		final long fileRec = iPosition % fileMaxSize;
 
 		if (fileRec >= files[fileNum].getFilledUpTo())
 			throw new ODatabaseException("Record position #" + iPosition + " was bound to file #" + fileNum + " but the position #"
 					+ files[fileNum].getFilledUpTo() + " is out of file size");
 
-		return new int[] { fileNum, fileRec };
+		return new long[] { fileNum, fileRec };
 	}
 
 	private OFile createNewFile() throws IOException {
 		final int num = files.length - 1;
 
-		final OFile file = OFileFactory.create(type, storage.getStoragePath() + "/" + name + "." + num + fileExtension,
-				storage.getMode());
-		file.setMaxSize((int) OFileUtils.getSizeAsNumber(config.fileMaxSize));
+		final OFile file = OFileFactory.create(type, getLocation() + "/" + name + "." + num + fileExtension, storage.getMode());
+		file.setMaxSize(OFileUtils.getSizeAsNumber(config.fileMaxSize));
 		file.create(fileStartSize);
 		files[num] = file;
 
@@ -321,4 +345,14 @@ public class OMultiFileSegment extends OSegment {
 	public OStorageSegmentConfiguration getConfig() {
 		return config;
 	}
+
+	/**
+	 * Returns the directory of the segment files: the one configured, usually on another disk, or the storage directory.
+	 */
+	protected String getLocation() {
+		if (config.location == null)
+			return storage.getStoragePath();
+
+		return storage.getVariableParser().resolveVariables(config.location);
+	}
 }
@@ -34,7 +34,7 @@ public class OSingleFileSegment extends OSharedResourceAdaptiveLinked {
 		config = iConfig;
 		storage = iStorage;
 		file = OFileFactory.create(iConfig.type, iStorage.getVariableParser().resolveVariables(iConfig.path), iStorage.getMode());
-		file.setMaxSize((int) OFileUtils.getSizeAsNumber(iConfig.maxSize));
+		file.setMaxSize(OFileUtils.getSizeAsNumber(iConfig.maxSize));
 		file.setIncrementSize((int) OFileUtils.getSizeAsNumber(iConfig.incrementSize));
 	}
 
@@ -101,6 +101,18 @@ public class OSingleFileSegment extends OSharedResourceAdaptiveLinked {
 		}
 	}
 
+	public void synch() {
+		try {
+			acquireSharedLock();
+
+			if (file != null && file.isOpen())
+				file.synch();
+
+		} finally {
+			releaseSharedLock();
+		}
+	}
+
 	public long getSize() {
 		return file.getFileSize();
 	}
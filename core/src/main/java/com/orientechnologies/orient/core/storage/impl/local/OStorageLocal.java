@@ -15,24 +15,50 @@
  */
 package com.orientechnologies.orient.core.storage.impl.local;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.orientechnologies.common.concur.lock.OLockException;
+import com.orientechnologies.common.concur.lock.OLockManager;
+import com.orientechnologies.common.concur.lock.OLockManager.LOCK;
 import com.orientechnologies.common.io.OFileUtils;
+import com.orientechnologies.common.listener.OProgressListener;
 import com.orientechnologies.common.log.OLogManager;
 import com.orientechnologies.common.parser.OSystemVariableResolver;
 import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.common.profiler.OProfilerHookValue;
 import com.orientechnologies.common.util.OArrays;
 import com.orientechnologies.orient.core.OConstants;
 import com.orientechnologies.orient.core.Orient;
 import com.orientechnologies.orient.core.command.OCommandExecutor;
 import com.orientechnologies.orient.core.command.OCommandManager;
 import com.orientechnologies.orient.core.command.OCommandRequestText;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.config.OStorageClusterCacheConfiguration;
 import com.orientechnologies.orient.core.config.OStorageClusterConfiguration;
 import com.orientechnologies.orient.core.config.OStorageConfiguration;
 import com.orientechnologies.orient.core.config.OStorageDataConfiguration;
@@ -46,6 +72,7 @@ import com.orientechnologies.orient.core.exception.OCommandExecutionException;
 import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
 import com.orientechnologies.orient.core.exception.OConfigurationException;
 import com.orientechnologies.orient.core.exception.OStorageException;
+import com.orientechnologies.orient.core.exception.OTransactionException;
 import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.record.ORecordFactory;
@@ -53,7 +80,7 @@ import com.orientechnologies.orient.core.record.ORecordInternal;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.orientechnologies.orient.core.record.impl.ORecordColumn;
 import com.orientechnologies.orient.core.storage.OCluster;
-import com.orientechnologies.orient.core.storage.OClusterPositionIterator;
+import com.orientechnologies.orient.core.storage.OClusterStatistics;
 import com.orientechnologies.orient.core.storage.OPhysicalPosition;
 import com.orientechnologies.orient.core.storage.ORawBuffer;
 import com.orientechnologies.orient.core.storage.ORecordBrowsingListener;
@@ -66,15 +93,22 @@ import com.orientechnologies.orient.core.tx.OTransaction;
 public class OStorageLocal extends OStorageAbstract {
 	private static final int						DELETE_MAX_RETRIES				= 20;
 	private static final int						DELETE_WAIT_TIME					= 200;
+	private static final int						LOCK_CONCURRENCY_LEVEL		= 32;
 	public static final String[]				TYPES											= { OClusterLocal.TYPE, OClusterLogical.TYPE };
 
-	// private final OLockManager<String, String> lockManager = new
-	// OLockManager<String, String>();
+	// THREADS SHARED BY THE PARALLEL BROWSING OF ALL THE STORAGES
+	private static ThreadPoolExecutor		browseExecutor;
+
+	// RECORD LOCKS ARE OWNED BY THE THREADS SINCE THEY ARE HELD ONLY DURING A STORAGE OPERATION OR A COMMIT
+	private final OLockManager<ORecordId, Thread>	lockManager;
 	private final Map<String, OCluster>	clusterMap								= new LinkedHashMap<String, OCluster>();
 	private OCluster[]									clusters									= new OCluster[0];
 	private ODataLocal[]								dataSegments							= new ODataLocal[0];
+	private volatile ODataSegmentStrategy[]	dataSegmentStrategies			= new ODataSegmentStrategy[0];
 
 	private OStorageLocalTxExecuter			txManager;
+	private OStorageLocalDefrag					defragThread;
+	private OStorageLocalPreallocator		preallocator;
 	private String											storagePath;
 	private OStorageVariableParser			variableParser;
 	private int													defaultClusterId					= -1;
@@ -82,7 +116,8 @@ public class OStorageLocal extends OStorageAbstract {
 	public static final int							DEFAULT_FIXED_CONFIG_SIZE	= 200000;
 	private int													fixedSize									= DEFAULT_FIXED_CONFIG_SIZE;
 
-	private static String[]							ALL_FILE_EXTENSIONS				= { ".och", ".ocl", ".oda", ".odh", ".otx" };
+	private static String[]							ALL_FILE_EXTENSIONS				= { ".och", ".ocl", ".oda", ".odh", ".otx", ".ocs" };
+	private static final String					CACHE_SNAPSHOT_FILE				= "cache.ocs";
 
 	public OStorageLocal(final String iName, final String iFilePath, final String iMode) throws IOException {
 		super(iName, iFilePath, iMode);
@@ -100,13 +135,14 @@ public class OStorageLocal extends OStorageAbstract {
 		configuration = new OStorageConfiguration(this);
 		variableParser = new OStorageVariableParser(storagePath);
 		txManager = new OStorageLocalTxExecuter(this, configuration.txSegment);
+		lockManager = new OLockManager<ORecordId, Thread>(LOCK_CONCURRENCY_LEVEL,
+				OGlobalConfiguration.STORAGE_RECORD_LOCK_TIMEOUT.getValueAsInteger());
 	}
 
 	public synchronized void open(final int iRequesterId, final String iUserName, final String iUserPassword) {
 		final long timer = OProfiler.getInstance().startChrono();
 
 		addUser();
-		cache.addUser();
 
 		final boolean locked = lock.acquireExclusiveLock();
 
@@ -153,7 +189,7 @@ public class OStorageLocal extends OStorageAbstract {
 					// CLOSE AND REOPEN TO BE SURE ALL THE FILE SEGMENTS ARE
 					// OPENED
 					dataSegments[i].close();
-					dataSegments[i] = new ODataLocal(this, dataConfig, pos);
+					dataSegments[i] = new ODataLocal(this, dataConfig, i);
 					dataSegments[i].open();
 				} else
 					dataSegments[pos].open();
@@ -180,6 +216,8 @@ public class OStorageLocal extends OStorageAbstract {
 
 						clusters[pos].open();
 					}
+
+					cache.setClusterConfiguration(i, clusterConfig.getCacheConfiguration());
 				}
 			}
 
@@ -187,6 +225,15 @@ public class OStorageLocal extends OStorageAbstract {
 
 			txManager.open();
 
+			// THE PAGES OF THE LOGICAL CLUSTERS ARE LOADED AFTER THE RECOVERY OF THE TRANSACTIONS, THAT COULD HAVE RESTORED THEM
+			for (OCluster cluster : clusters)
+				if (cluster instanceof OClusterLogicalPaged)
+					((OClusterLogicalPaged) cluster).reload();
+
+			cache.registerProfilerHooks("storage." + name + ".cache.");
+			warmUpCache();
+			startPreallocation();
+
 		} catch (IOException e) {
 			open = false;
 			dataSegments = new ODataLocal[0];
@@ -204,7 +251,6 @@ public class OStorageLocal extends OStorageAbstract {
 		final long timer = OProfiler.getInstance().startChrono();
 
 		addUser();
-		cache.addUser();
 
 		final boolean locked = lock.acquireExclusiveLock();
 
@@ -236,6 +282,9 @@ public class OStorageLocal extends OStorageAbstract {
 			configuration.create(fixedSize);
 
 			txManager.create();
+
+			cache.registerProfilerHooks("storage." + name + ".cache.");
+			startPreallocation();
 		} catch (OStorageException e) {
 			close();
 			throw e;
@@ -261,27 +310,43 @@ public class OStorageLocal extends OStorageAbstract {
 	public void close() {
 		final long timer = OProfiler.getInstance().startChrono();
 
-		final boolean locked = lock.acquireExclusiveLock();
+		if (defragThread != null)
+			// STOP THE DEFRAGMENTATION AT THE END OF THE CURRENT STEP
+			defragThread.stopDefrag();
 
-		if (!open)
-			return;
+		if (preallocator != null) {
+			// WAIT THE END OF THE CURRENT ENLARGEMENT BEFORE TO LOCK THE STORAGE
+			preallocator.stopPreallocation();
+			preallocator = null;
+		}
+
+		final boolean locked = lock.acquireExclusiveLock();
 
 		try {
+			if (!open)
+				return;
+
 			saveVersion();
+			saveCacheSnapshot();
 
 			for (OCluster cluster : clusters)
-				if (cluster != null)
+				if (cluster != null) {
+					unregisterProfilerHooks(cluster);
 					cluster.close();
+				}
 			clusters = new OCluster[0];
 			clusterMap.clear();
 
-			for (ODataLocal data : dataSegments)
+			for (ODataLocal data : dataSegments) {
+				unregisterProfilerHooks(data);
 				data.close();
+			}
 			dataSegments = new ODataLocal[0];
+			resetDataSegmentStrategies();
 
 			txManager.close();
 
-			cache.removeUser();
+			cache.unregisterProfilerHooks("storage." + name + ".cache.");
 			cache.clear();
 			configuration = new OStorageConfiguration(this);
 
@@ -398,6 +463,17 @@ public class OStorageLocal extends OStorageAbstract {
 
 		try {
 			OStorageDataConfiguration conf = new OStorageDataConfiguration(configuration, iSegmentName);
+			conf.id = configuration.dataSegments.size();
+
+			if (iSegmentFileName != null) {
+				// THE FILES CAN BE PLACED IN ANOTHER DIRECTORY, USUALLY ON ANOTHER DISK
+				final File location = new File(iSegmentFileName).getAbsoluteFile().getParentFile();
+				if (!location.equals(new File(storagePath).getAbsoluteFile())) {
+					location.mkdirs();
+					conf.location = variableParser.convertPathToRelative(OFileUtils.getPath(location.getPath()));
+				}
+			}
+
 			configuration.dataSegments.add(conf);
 
 			final int pos = registerDataSegment(conf);
@@ -408,6 +484,9 @@ public class OStorageLocal extends OStorageAbstract {
 			dataSegments[pos].create(-1);
 			configuration.update();
 
+			// THE CLUSTERS THAT USE ALL THE DATA SEGMENTS CAN USE THE NEW ONE
+			resetDataSegmentStrategies();
+
 			return pos;
 		} catch (Throwable e) {
 			OLogManager.instance().error(this, "Error on creation of new data segment '" + iSegmentName + "' in: " + iSegmentFileName, e,
@@ -474,6 +553,10 @@ public class OStorageLocal extends OStorageAbstract {
 		return txManager;
 	}
 
+	public OLockManager<ORecordId, Thread> getLockManager() {
+		return lockManager;
+	}
+
 	public boolean removeCluster(final int iClusterId) {
 		final boolean locked = lock.acquireExclusiveLock();
 
@@ -487,14 +570,18 @@ public class OStorageLocal extends OStorageAbstract {
 				return false;
 
 			cluster.delete();
+			unregisterProfilerHooks(cluster);
 
 			clusterMap.remove(cluster.getName());
 			clusters[iClusterId] = null;
+			resetDataSegmentStrategies();
 
 			// UPDATE CONFIGURATION
 			configuration.clusters.set(iClusterId, null);
 			configuration.update();
 
+			cache.setClusterConfiguration(iClusterId, null);
+
 			return true;
 		} catch (Exception e) {
 			OLogManager.instance().exception("Error while removing cluster '" + iClusterId + "'", e, OStorageException.class);
@@ -675,55 +762,251 @@ public class OStorageLocal extends OStorageAbstract {
 		}
 	}
 
+	/**
+	 * Browses N clusters reading the records in parallel. Every cluster is split in ranges of "storage.browse.parallelRange" entries
+	 * read by the threads of a shared pool. Only the reads run in parallel: the caller thread decodes the records and calls the
+	 * listener in the cluster order, so the listener, the database and its cache are used only by the caller. Up to two ranges per
+	 * thread are read ahead, each one up to "storage.browse.parallelRangeMemory" bytes: the rest of a bigger range is read by the
+	 * caller when reached. The storage is locked by the caller thread until all the ranges started are read. When the listener
+	 * returns false the browsing stops: the ranges not started yet are skipped.
+	 *
+	 * @param iRequesterId
+	 *          The requester of the operation. Needed to know who locks
+	 * @param iClusterId
+	 *          Array of cluster ids
+	 * @param iListener
+	 *          The listener to call for each record found
+	 * @param ioRecord
+	 *          The record instance to fill
+	 */
+	public void browseParallel(final int iRequesterId, final int[] iClusterId, final ORecordId iBeginRange,
+			final ORecordId iEndRange, final ORecordBrowsingListener iListener, ORecordInternal<?> ioRecord,
+			final boolean iLockEntireCluster) {
+		checkOpeness();
+
+		final long timer = OProfiler.getInstance().startChrono();
+
+		final boolean locked = lock.acquireSharedLock();
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final LinkedList<Future<OBrowsedRange>> pending = new LinkedList<Future<OBrowsedRange>>();
+
+		try {
+			final int rangeSize = Math.max(OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE.getValueAsInteger(), 1);
+			final int rangeMemory = Math.max(OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE_MEMORY.getValueAsInteger(), 1);
+			final ThreadPoolExecutor executor = getBrowseExecutor();
+			final int readAhead = executor.getMaximumPoolSize() * 2;
+
+			for (int clusterId : iClusterId) {
+				if (iBeginRange != null)
+					if (clusterId < iBeginRange.getClusterId())
+						// JUMP THIS
+						continue;
+
+				if (iEndRange != null)
+					if (clusterId > iEndRange.getClusterId())
+						// STOP
+						break;
+
+				final OCluster cluster = getClusterById(clusterId);
+
+				final long beginClusterPosition = iBeginRange != null && iBeginRange.getClusterId() == clusterId ? iBeginRange
+						.getClusterPosition() : 0;
+				final long endClusterPosition = iEndRange != null && iEndRange.getClusterId() == clusterId ? iEndRange
+						.getClusterPosition() : cluster.getLastEntryPosition();
+
+				// SPLIT THE CLUSTER IN RANGES
+				for (long from = beginClusterPosition; from <= endClusterPosition; from += rangeSize) {
+					final OBrowsedRange range = new OBrowsedRange(cluster, from, Math.min(from + rangeSize - 1, endClusterPosition));
+
+					pending.add(executor.submit(new Callable<OBrowsedRange>() {
+						public OBrowsedRange call() throws Exception {
+							return readClusterRange(range, iLockEntireCluster, rangeMemory, stop);
+						}
+					}));
+
+					if (pending.size() >= readAhead) {
+						ioRecord = browseRange(pending.removeFirst(), iListener, ioRecord, iLockEntireCluster, rangeMemory, stop);
+						if (stop.get())
+							return;
+					}
+				}
+			}
+
+			while (!pending.isEmpty() && !stop.get())
+				ioRecord = browseRange(pending.removeFirst(), iListener, ioRecord, iLockEntireCluster, rangeMemory, stop);
+
+		} catch (IOException e) {
+
+			OLogManager.instance().error(this, "Error on browsing elements of cluster: " + iClusterId, e);
+
+		} finally {
+			try {
+				// THE THREADS READ UNDER THE LOCK OF THE CALLER: WAIT FOR THE RANGES ALREADY STARTED BEFORE TO RELEASE IT
+				stop.set(true);
+				for (Future<OBrowsedRange> range : pending)
+					if (!range.cancel(false))
+						try {
+							waitForRange(range);
+						} catch (RuntimeException e) {
+							OLogManager.instance().error(this, "Error on browsing elements of cluster: " + iClusterId, e);
+						}
+
+			} finally {
+				lock.releaseSharedLock(locked);
+
+				OProfiler.getInstance().stopChrono("OStorageLocal.foreachParallel", timer);
+			}
+		}
+	}
+
+	/**
+	 * Records of a cluster range read by the parallel browsing.
+	 */
+	private static class OBrowsedRange {
+		private final OCluster								cluster;
+		private final long										end;
+		private long													next;
+		private final Map<Long, ORawBuffer>	records	= new LinkedHashMap<Long, ORawBuffer>();
+
+		private OBrowsedRange(final OCluster iCluster, final long iBegin, final long iEnd) {
+			cluster = iCluster;
+			next = iBegin;
+			end = iEnd;
+		}
+	}
+
+	/**
+	 * Passes to the listener the records of a range read in parallel, in the cluster order. The rest of the range not read ahead
+	 * because too big is read by the caller thread.
+	 */
+	private ORecordInternal<?> browseRange(final Future<OBrowsedRange> iRange, final ORecordBrowsingListener iListener,
+			ORecordInternal<?> ioRecord, final boolean iLockEntireCluster, final int iRangeMemory, final AtomicBoolean iStop)
+			throws IOException {
+		OBrowsedRange range = waitForRange(iRange);
+		if (range == null)
+			return ioRecord;
+
+		final int clusterId = range.cluster.getId();
+		while (true) {
+			for (Entry<Long, ORawBuffer> entry : range.records.entrySet()) {
+				ioRecord = fillRecord(ioRecord, entry.getValue(), clusterId, entry.getKey());
+				if (!iListener.foreach(ioRecord)) {
+					// LISTENER HAS INTERRUPTED THE EXECUTION
+					iStop.set(true);
+					return ioRecord;
+				}
+			}
+
+			if (range.next > range.end || iStop.get())
+				return ioRecord;
+
+			range = readClusterRange(new OBrowsedRange(range.cluster, range.next, range.end), iLockEntireCluster, iRangeMemory, iStop);
+		}
+	}
+
+	private OBrowsedRange waitForRange(final Future<OBrowsedRange> iRange) {
+		boolean interrupted = false;
+		try {
+			while (true)
+				try {
+					return iRange.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					throw new OStorageException("Error on browsing the cluster", e.getCause());
+				}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reads the content of the records in the range until the memory limit is reached. Called by the threads of the parallel
+	 * browsing: it doesn't touch the records and the listener.
+	 */
+	private OBrowsedRange readClusterRange(final OBrowsedRange iRange, final boolean iLockEntireCluster, final int iMaxMemory,
+			final AtomicBoolean iStop) throws IOException {
+		if (iStop.get())
+			return iRange;
+
+		final OCluster cluster = iRange.cluster;
+		try {
+			if (iLockEntireCluster)
+				// LOCK THE ENTIRE CLUSTER AVOIDING TO LOCK EVERY SINGLE RECORD
+				cluster.lock();
+
+			final OPhysicalPosition[] batch = new OPhysicalPosition[Math.max(
+					OGlobalConfiguration.STORAGE_BROWSE_BATCH_SIZE.getValueAsInteger(), 1)];
+
+			long memory = 0;
+			int read;
+			ORawBuffer recordBuffer;
+
+			while (iRange.next <= iRange.end && memory < iMaxMemory && !iStop.get()) {
+				// READ THE PHYSICAL POSITIONS OF THE NEXT ENTRIES AT ONCE
+				read = cluster.getPhysicalPositions(iRange.next, batch);
+				if (read == 0) {
+					// END OF THE CLUSTER
+					iRange.next = iRange.end + 1;
+					break;
+				}
+
+				for (int i = 0; i < read && iRange.next <= iRange.end && memory < iMaxMemory; ++i, ++iRange.next) {
+					recordBuffer = readBrowsedRecord(cluster, batch[i], iRange.next, iLockEntireCluster);
+					if (recordBuffer != null) {
+						iRange.records.put(iRange.next, recordBuffer);
+						memory += recordBuffer.buffer.length;
+					}
+				}
+			}
+		} finally {
+
+			if (iLockEntireCluster)
+				// UNLOCK THE ENTIRE CLUSTER
+				cluster.unlock();
+		}
+
+		return iRange;
+	}
+
 	private ORecordInternal<?> browseCluster(final int iRequesterId, final ORecordBrowsingListener iListener,
 			ORecordInternal<?> ioRecord, final OCluster cluster, final long iBeginRange, final long iEndRange,
 			final boolean iLockEntireCluster) throws IOException {
 		ORawBuffer recordBuffer;
-		long positionInPhyCluster;
 
 		try {
 			if (iLockEntireCluster)
 				// LOCK THE ENTIRE CLUSTER AVOIDING TO LOCK EVERY SINGLE RECORD
 				cluster.lock();
 
-			OClusterPositionIterator iterator = cluster.absoluteIterator(iBeginRange, iEndRange);
+			final OPhysicalPosition[] batch = new OPhysicalPosition[Math.max(
+					OGlobalConfiguration.STORAGE_BROWSE_BATCH_SIZE.getValueAsInteger(), 1)];
 
-			// BROWSE ALL THE RECORDS
-			while (iterator.hasNext()) {
-				positionInPhyCluster = iterator.next();
-
-				if (positionInPhyCluster == -1)
-					// NOT VALID POSITION (IT HAS BEEN DELETED)
-					continue;
-
-				// READ THE RAW RECORD. IF iLockEntireCluster THEN THE READ WILL
-				// BE NOT-LOCKING, OTHERWISE YES
-				recordBuffer = readRecord(iRequesterId, cluster, positionInPhyCluster, !iLockEntireCluster);
-				if (recordBuffer == null)
-					continue;
-
-				if (recordBuffer.recordType != ODocument.RECORD_TYPE && recordBuffer.recordType != ORecordColumn.RECORD_TYPE)
-					// WRONG RECORD TYPE: JUMP IT
-					continue;
-
-				if (ioRecord == null)
-					// RECORD NULL OR DIFFERENT IN TYPE: CREATE A NEW ONE
-					ioRecord = ORecordFactory.newInstance(recordBuffer.recordType);
-				else if (ioRecord.getRecordType() != recordBuffer.recordType) {
-					// RECORD NULL OR DIFFERENT IN TYPE: CREATE A NEW ONE
-					final ORecordInternal<?> newRecord = ORecordFactory.newInstance(recordBuffer.recordType);
-					newRecord.setDatabase(ioRecord.getDatabase());
-					ioRecord = newRecord;
-				} else
-					// RESET CURRENT RECORD
-					ioRecord.reset();
+			final long max = iEndRange > -1 ? iEndRange : cluster.getLastEntryPosition();
+			long positionInPhyCluster = iBeginRange;
+			int read;
 
-				ioRecord.setVersion(recordBuffer.version);
-				ioRecord.setIdentity(cluster.getId(), positionInPhyCluster);
-				ioRecord.fromStream(recordBuffer.buffer);
-				if (!iListener.foreach(ioRecord))
-					// LISTENER HAS INTERRUPTED THE EXECUTION
+			// BROWSE ALL THE RECORDS
+			while (positionInPhyCluster <= max) {
+				// READ THE PHYSICAL POSITIONS OF THE NEXT ENTRIES AT ONCE
+				read = cluster.getPhysicalPositions(positionInPhyCluster, batch);
+				if (read == 0)
 					break;
+
+				for (int i = 0; i < read && positionInPhyCluster <= max; ++i, ++positionInPhyCluster) {
+					recordBuffer = readBrowsedRecord(cluster, batch[i], positionInPhyCluster, iLockEntireCluster);
+					if (recordBuffer == null)
+						continue;
+
+					ioRecord = fillRecord(ioRecord, recordBuffer, cluster.getId(), positionInPhyCluster);
+					if (!iListener.foreach(ioRecord))
+						// LISTENER HAS INTERRUPTED THE EXECUTION
+						return ioRecord;
+				}
 			}
 		} finally {
 
@@ -735,6 +1018,63 @@ public class OStorageLocal extends OStorageAbstract {
 		return ioRecord;
 	}
 
+	/**
+	 * Reads the content of a browsed record if it's a document or a column.
+	 *
+	 * @return The record content or null if the record is deleted or of another type
+	 */
+	private ORawBuffer readBrowsedRecord(final OCluster cluster, final OPhysicalPosition ppos, final long iPosition,
+			final boolean iLockEntireCluster) throws IOException {
+		if (!checkForRecordValidity(ppos))
+			// DELETED
+			return null;
+
+		if (ppos.type != ODocument.RECORD_TYPE && ppos.type != ORecordColumn.RECORD_TYPE)
+			// WRONG RECORD TYPE: JUMP IT WITHOUT READING THE CONTENT
+			return null;
+
+		final ORawBuffer recordBuffer;
+		if (iLockEntireCluster)
+			// THE CLUSTER IS LOCKED: THE POSITION CAN'T CHANGE, READ THE CONTENT DIRECTLY
+			recordBuffer = new ORawBuffer(getDataSegment(ppos.dataSegment).getRecord(ppos.dataPosition), ppos.version, ppos.type);
+		else
+			// READ THE RECORD AGAIN LOCKING IT SINCE IT COULD BE CHANGED IN THE MEANWHILE. THE STORAGE IS ALREADY LOCKED BY THE
+			// CALLER
+			recordBuffer = readRecordContent(cluster, iPosition, true);
+
+		if (recordBuffer == null)
+			return null;
+
+		if (recordBuffer.recordType != ODocument.RECORD_TYPE && recordBuffer.recordType != ORecordColumn.RECORD_TYPE)
+			// WRONG RECORD TYPE: JUMP IT
+			return null;
+
+		return recordBuffer;
+	}
+
+	/**
+	 * Loads the content in the record, creating a new one if the type is different.
+	 */
+	private ORecordInternal<?> fillRecord(ORecordInternal<?> ioRecord, final ORawBuffer iRecordBuffer, final int iClusterId,
+			final long iPosition) {
+		if (ioRecord == null)
+			// RECORD NULL OR DIFFERENT IN TYPE: CREATE A NEW ONE
+			ioRecord = ORecordFactory.newInstance(iRecordBuffer.recordType);
+		else if (ioRecord.getRecordType() != iRecordBuffer.recordType) {
+			// RECORD NULL OR DIFFERENT IN TYPE: CREATE A NEW ONE
+			final ORecordInternal<?> newRecord = ORecordFactory.newInstance(iRecordBuffer.recordType);
+			newRecord.setDatabase(ioRecord.getDatabase());
+			ioRecord = newRecord;
+		} else
+			// RESET CURRENT RECORD
+			ioRecord.reset();
+
+		ioRecord.setVersion(iRecordBuffer.version);
+		ioRecord.setIdentity(iClusterId, iPosition);
+		ioRecord.fromStream(iRecordBuffer.buffer);
+		return ioRecord;
+	}
+
 	public Set<String> getClusterNames() {
 		checkOpeness();
 
@@ -803,21 +1143,46 @@ public class OStorageLocal extends OStorageAbstract {
 	public void commit(final int iRequesterId, final OTransaction<?> iTx) {
 		final boolean locked = lock.acquireSharedLock();
 
+		// THE RECORDS CHANGED BY THE TRANSACTION REMAIN LOCKED UNTIL THE COMMIT OR THE ROLLBACK IS COMPLETE
+		final List<ORecordId> lockedRecords = new ArrayList<ORecordId>();
+
 		try {
-			txManager.commitAllPendingRecords(iRequesterId, iTx);
+			final long commitLsn = txManager.commitAllPendingRecords(iRequesterId, iTx, lockedRecords);
 
 			incrementVersion();
-			synch();
+
+			// SYNCH ONCE FOR ALL THE CONCURRENT COMMITS
+			txManager.getTxSegment().synchCommit(commitLsn);
+
+		} catch (RuntimeException e) {
+			// RESTORE THE RECORDS ALREADY CHANGED
+			rollback(iRequesterId, iTx);
+			throw e;
 
 		} catch (IOException e) {
 			rollback(iRequesterId, iTx);
+			throw new OTransactionException("Error on committing the transaction " + iTx.getId(), e);
 
 		} finally {
+			for (ORecordId rid : lockedRecords)
+				releaseRecordLock(rid, LOCK.EXCLUSIVE);
+
 			lock.releaseSharedLock(locked);
 		}
 	}
 
 	public void rollback(final int iRequesterId, final OTransaction<?> iTx) {
+		final boolean locked = lock.acquireSharedLock();
+
+		try {
+			txManager.rollback(iRequesterId, iTx);
+
+		} catch (IOException e) {
+			OLogManager.instance().error(this, "Error on rollbacking the transaction " + iTx.getId(), e, OTransactionException.class);
+
+		} finally {
+			lock.releaseSharedLock(locked);
+		}
 	}
 
 	public void synch() {
@@ -845,6 +1210,214 @@ public class OStorageLocal extends OStorageAbstract {
 		}
 	}
 
+	/**
+	 * Defragments the storage in the current thread. The storage remains available to the other threads during the process.
+	 * 
+	 * @param iListener
+	 *          Listener to receive the progress, or null
+	 * @return true if completed, false if it has been stopped before the end
+	 * @see OStorageLocalDefrag
+	 */
+	public boolean defrag(final OProgressListener iListener) throws IOException {
+		checkOpeness();
+
+		return new OStorageLocalDefrag(this, iListener).defrag();
+	}
+
+	/**
+	 * Starts the defragmentation of the storage in background. If it's already running the current instance is returned.
+	 * 
+	 * @param iListener
+	 *          Listener to receive the progress, or null
+	 * @return The running defragmentation, that can be paused, resumed and stopped
+	 * @see OStorageLocalDefrag
+	 */
+	public synchronized OStorageLocalDefrag startDefrag(final OProgressListener iListener) {
+		checkOpeness();
+
+		if (defragThread == null || !defragThread.isAlive()) {
+			defragThread = new OStorageLocalDefrag(this, iListener);
+			defragThread.start();
+		}
+		return defragThread;
+	}
+
+	/**
+	 * Registers a user holding the exclusive lock. The locks of the segments are enabled only with more users: changing the users
+	 * while an operation is in progress would make it release locks never acquired, or keep the ones acquired.
+	 */
+	int addUserExclusively() {
+		final boolean locked = lock.acquireExclusiveLock();
+		try {
+			return addUser();
+		} finally {
+			lock.releaseExclusiveLock(locked);
+		}
+	}
+
+	/**
+	 * Unregisters a user holding the exclusive lock.
+	 * 
+	 * @see #addUserExclusively()
+	 */
+	int removeUserExclusively() {
+		final boolean locked = lock.acquireExclusiveLock();
+		try {
+			return removeUser();
+		} finally {
+			lock.releaseExclusiveLock(locked);
+		}
+	}
+
+	/**
+	 * Starts the thread that enlarges the files in background, unless disabled or the storage is read-only.
+	 */
+	private void startPreallocation() {
+		if (preallocator != null || mode.equals("r") || !OGlobalConfiguration.STORAGE_PREALLOCATE_ENABLED.getValueAsBoolean())
+			return;
+
+		preallocator = new OStorageLocalPreallocator(this);
+		preallocator.start();
+	}
+
+	/**
+	 * Changes how the records of a cluster are cached and stores it in the configuration. The records of the cluster already in
+	 * cache are removed.
+	 */
+	public void setClusterCacheConfiguration(final int iClusterId, final OStorageClusterCacheConfiguration iCacheConfiguration) {
+		checkOpeness();
+
+		final boolean locked = lock.acquireExclusiveLock();
+
+		try {
+			if (iClusterId < 0 || iClusterId >= configuration.clusters.size() || configuration.clusters.get(iClusterId) == null)
+				throw new IllegalArgumentException("Cluster id '" + iClusterId + "' is out of range of configured clusters (0-"
+						+ (configuration.clusters.size() - 1) + ")");
+
+			final OStorageClusterCacheConfiguration cacheCfg = configuration.clusters.get(iClusterId).getCacheConfiguration();
+			cacheCfg.enabled = iCacheConfiguration.enabled;
+			cacheCfg.priority = Math.max(0, Math.min(iCacheConfiguration.priority, OStorageClusterCacheConfiguration.MAX_PRIORITY));
+			cacheCfg.pinned = iCacheConfiguration.pinned;
+			cacheCfg.scanResistant = iCacheConfiguration.scanResistant;
+			cacheCfg.warmUp = iCacheConfiguration.warmUp;
+			configuration.update();
+
+			cache.setClusterConfiguration(iClusterId, cacheCfg);
+
+		} finally {
+			lock.releaseExclusiveLock(locked);
+		}
+	}
+
+	/**
+	 * Loads in cache the records of the snapshot saved at the last close, if "storage.cache.warmUp.snapshot" is enabled, then the
+	 * records of the clusters configured to be warmed up. The records are added only if there is room, so the loading stops at the
+	 * first record that finds its part of the cache full. Called at open with the storage locked.
+	 */
+	private void warmUpCache() {
+		if (cache.getMaxSize() == 0)
+			return;
+
+		final long timer = OProfiler.getInstance().startChrono();
+		final int sizeBefore = cache.size();
+
+		boolean room = true;
+		try {
+			final File snapshot = new File(storagePath + "/" + CACHE_SNAPSHOT_FILE);
+			if (OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.getValueAsBoolean() && snapshot.exists())
+				try {
+					final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+					try {
+						final int records = in.readInt();
+						for (int i = 0; i < records && room; ++i)
+							room = warmUpRecord(in.readInt(), in.readLong());
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					// TRUNCATED OR UNREADABLE SNAPSHOT: GO ON WITH THE CLUSTERS
+					OLogManager.instance().warn(this, "Error on reading the cache snapshot of storage %s: %s", name, e.toString());
+				}
+
+			try {
+				OStorageClusterConfiguration clusterConfig;
+				for (int i = 0; i < configuration.clusters.size() && room; ++i) {
+					clusterConfig = configuration.clusters.get(i);
+					if (clusterConfig == null || !clusterConfig.getCacheConfiguration().warmUp
+							|| !clusterConfig.getCacheConfiguration().enabled)
+						continue;
+
+					final long last = clusters[i].getLastEntryPosition();
+					for (long pos = Math.max(clusters[i].getFirstEntryPosition(), 0); pos <= last && room; ++pos)
+						room = warmUpRecord(i, pos);
+				}
+			} catch (IOException e) {
+				// THE CACHE IS ONLY AN OPTIMIZATION: GO ON WITH THE RECORDS LOADED SO FAR
+				OLogManager.instance().warn(this, "Error on warming up the cache of storage %s: %s", name, e.toString());
+			}
+
+		} finally {
+			final int loaded = cache.size() - sizeBefore;
+			OProfiler.getInstance().updateCounter("OStorageLocal.warmUpCache.records", loaded);
+			OProfiler.getInstance().stopChrono("OStorageLocal.warmUpCache", timer);
+
+			if (loaded > 0)
+				OLogManager.instance().debug(this, "Loaded %d records in the cache of storage %s", loaded, name);
+		}
+	}
+
+	/**
+	 * Loads the record in cache if there is room for it.
+	 *
+	 * @return false if the cache is full
+	 */
+	private boolean warmUpRecord(final int iClusterId, final long iPosition) throws IOException {
+		if (iClusterId < 0 || iClusterId >= clusters.length || clusters[iClusterId] == null)
+			return true;
+
+		final OCluster cluster = clusters[iClusterId];
+		if (iPosition < 0 || iPosition > cluster.getLastEntryPosition() || cache.peekRecord(iClusterId, iPosition) != null)
+			return true;
+
+		final ORawBuffer content = readRecordContent(cluster, iPosition, false);
+		if (content == null)
+			return true;
+
+		return cache.pushRecordIfRoom(iClusterId, iPosition, content);
+	}
+
+	/**
+	 * Saves the ids of the records in cache to load them again at the next open. Called at close with the storage locked.
+	 */
+	private void saveCacheSnapshot() {
+		if (!OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.getValueAsBoolean() || mode.equals("r"))
+			return;
+
+		final List<ORecordId> rids = cache.getRecordIds();
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storagePath + "/"
+					+ CACHE_SNAPSHOT_FILE)));
+			try {
+				out.writeInt(rids.size());
+				for (ORecordId rid : rids) {
+					out.writeInt(rid.clusterId);
+					out.writeLong(rid.clusterPosition);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			OLogManager.instance().warn(this, "Error on saving the cache snapshot of storage %s: %s", name, e.toString());
+		}
+	}
+
+	/**
+	 * Returns the last defragmentation started in background, or null if none.
+	 */
+	public OStorageLocalDefrag getDefragThread() {
+		return defragThread;
+	}
+
 	public String getPhysicalClusterNameById(final int iClusterId) {
 		checkOpeness();
 
@@ -953,6 +1526,8 @@ public class OStorageLocal extends OStorageAbstract {
 		dataSegments = OArrays.copyOf(dataSegments, dataSegments.length + 1);
 		dataSegments[pos] = segment;
 
+		registerProfilerHooks(segment);
+
 		return pos;
 	}
 
@@ -977,7 +1552,10 @@ public class OStorageLocal extends OStorageAbstract {
 
 		if (iConfig instanceof OStoragePhysicalClusterConfiguration)
 			cluster = new OClusterLocal(this, (OStoragePhysicalClusterConfiguration) iConfig);
+		else if (((OStorageLogicalClusterConfiguration) iConfig).paged)
+			cluster = new OClusterLogicalPaged(this, (OStorageLogicalClusterConfiguration) iConfig);
 		else
+			// LOGICAL CLUSTER CREATED BY A PREVIOUS RELEASE
 			cluster = new OClusterLogical(this, (OStorageLogicalClusterConfiguration) iConfig);
 
 		return registerCluster(cluster);
@@ -1004,18 +1582,260 @@ public class OStorageLocal extends OStorageAbstract {
 		clusters = OArrays.copyOf(clusters, id + 1);
 		clusters[id] = iCluster;
 
+		registerProfilerHooks(iCluster);
+
 		return id;
 	}
 
+	/**
+	 * Publishes the statistics of the cluster in the profiler as hook values, read only when dumped.
+	 */
+	private void registerProfilerHooks(final OCluster iCluster) {
+		final String prefix = getProfilerPrefix(iCluster);
+		final OClusterStatistics stats = iCluster.getStatistics();
+
+		OProfiler.getInstance().registerHookValue(prefix + "records", new OProfilerHookValue() {
+			public Object getValue() {
+				return stats.getRecords();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(prefix + "recordsSize", new OProfilerHookValue() {
+			public Object getValue() {
+				return stats.getRecordsSize();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(prefix + "averageRecordSize", new OProfilerHookValue() {
+			public Object getValue() {
+				return stats.getAverageRecordSize();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(prefix + "exact", new OProfilerHookValue() {
+			public Object getValue() {
+				return stats.isExact();
+			}
+		});
+
+		if (iCluster instanceof OClusterLocal)
+			OProfiler.getInstance().registerHookValue(prefix + "holes", new OProfilerHookValue() {
+				public Object getValue() {
+					return ((OClusterLocal) iCluster).getHoles();
+				}
+			});
+	}
+
+	private void registerProfilerHooks(final ODataLocal iData) {
+		final String prefix = getProfilerPrefix(iData);
+
+		OProfiler.getInstance().registerHookValue(prefix + "filled", new OProfilerHookValue() {
+			public Object getValue() {
+				return iData.getFilledUpTo();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(prefix + "holes", new OProfilerHookValue() {
+			public Object getValue() {
+				return iData.getHoles();
+			}
+		});
+		OProfiler.getInstance().registerHookValue(prefix + "holesSize", new OProfilerHookValue() {
+			public Object getValue() {
+				return iData.getHolesSize();
+			}
+		});
+	}
+
+	private void unregisterProfilerHooks(final OCluster iCluster) {
+		final String prefix = getProfilerPrefix(iCluster);
+		for (String hook : new String[] { "records", "recordsSize", "averageRecordSize", "exact", "holes" })
+			OProfiler.getInstance().unregisterHookValue(prefix + hook);
+	}
+
+	private void unregisterProfilerHooks(final ODataLocal iData) {
+		final String prefix = getProfilerPrefix(iData);
+		for (String hook : new String[] { "filled", "holes", "holesSize" })
+			OProfiler.getInstance().unregisterHookValue(prefix + hook);
+	}
+
+	private String getProfilerPrefix(final OCluster iCluster) {
+		return "storage." + name + ".cluster." + iCluster.getName() + ".";
+	}
+
+	private String getProfilerPrefix(final ODataLocal iData) {
+		return "storage." + name + ".data." + iData.getName() + ".";
+	}
+
 	private void checkClusterSegmentIndexRange(final int iClusterId) {
 		if (iClusterId > clusters.length - 1)
 			throw new IllegalArgumentException("Cluster segment #" + iClusterId + " not exists");
 	}
 
+	/**
+	 * Sets the strategy used by a physical cluster to choose the data segment of the new records.
+	 *
+	 * @param iClusterName
+	 *          Name of the physical cluster
+	 * @param iStrategy
+	 *          Name of the strategy registered in ODataSegmentStrategyFactory, or null to use the global one set in
+	 *          "storage.dataSegment.strategy"
+	 * @param iDataSegmentNames
+	 *          Data segments that the strategy can choose. No names means all the data segments of the storage
+	 */
+	public void setDataSegmentStrategy(final String iClusterName, final String iStrategy, final String... iDataSegmentNames) {
+		checkOpeness();
+
+		final boolean locked = lock.acquireExclusiveLock();
+
+		try {
+			final OCluster cluster = getClusterById(getClusterIdByName(iClusterName));
+			if (!(cluster instanceof OClusterLocal))
+				throw new OConfigurationException("Can't set the data segment strategy of the cluster '" + iClusterName
+						+ "' because it's not physical");
+
+			if (iStrategy != null && !ODataSegmentStrategyFactory.isRegistered(iStrategy))
+				throw new OConfigurationException("Data segment strategy '" + iStrategy + "' not supported");
+
+			final StringBuilder names = new StringBuilder();
+			for (String dataName : iDataSegmentNames) {
+				getDataSegmentIdByName(dataName);
+
+				if (names.length() > 0)
+					names.append(',');
+				names.append(dataName.toLowerCase());
+			}
+
+			final OStoragePhysicalClusterConfiguration config = (OStoragePhysicalClusterConfiguration) ((OClusterLocal) cluster)
+					.getConfig();
+			config.dataSegmentStrategy = iStrategy != null ? iStrategy.toLowerCase() : null;
+			config.dataSegments = names.length() > 0 ? names.toString() : null;
+
+			configuration.update();
+
+			resetDataSegmentStrategies();
+
+		} finally {
+			lock.releaseExclusiveLock(locked);
+		}
+	}
+
+	/**
+	 * Sets the append mode of a physical cluster: the new records are always added at the end without locking the cluster in
+	 * exclusive mode, so concurrent inserts in the cluster scale with the threads. The holes are not reused while in append mode.
+	 *
+	 * @see OClusterLocal#setAppendMode(boolean)
+	 */
+	public void setClusterAppendMode(final String iClusterName, final boolean iAppendMode) {
+		checkOpeness();
+
+		final boolean locked = lock.acquireExclusiveLock();
+
+		try {
+			final OCluster cluster = getClusterById(getClusterIdByName(iClusterName));
+			if (!(cluster instanceof OClusterLocal))
+				throw new OConfigurationException("Can't set the append mode of the cluster '" + iClusterName
+						+ "' because it's not physical");
+
+			((OClusterLocal) cluster).setAppendMode(iAppendMode);
+			configuration.update();
+
+		} catch (IOException e) {
+			OLogManager.instance().error(this, "Error on setting the append mode of the cluster '" + iClusterName + "'", e,
+					OStorageException.class);
+
+		} finally {
+			lock.releaseExclusiveLock(locked);
+		}
+	}
+
+	/**
+	 * Starts a bulk load of new records. The storage is locked in exclusive mode until the loader is closed.
+	 *
+	 * @see OStorageLocalBulkLoader
+	 */
+	public OStorageLocalBulkLoader bulkLoad() {
+		checkOpeness();
+		return new OStorageLocalBulkLoader(this);
+	}
+
+	/**
+	 * Called by the bulk loader at the end of the load.
+	 */
+	void endBulkLoad(final long iRecords) {
+		if (iRecords > 0)
+			incrementVersion();
+	}
+
+	public int getDataSegmentIdByName(final String iDataSegmentName) {
+		for (int i = 0; i < dataSegments.length; ++i)
+			if (dataSegments[i].getName().equalsIgnoreCase(iDataSegmentName))
+				return i;
+
+		throw new IllegalArgumentException("Data segment '" + iDataSegmentName + "' doesn't exist in current storage");
+	}
+
 	protected int getDataSegmentForRecord(final OCluster iCluster, final byte[] iContent) {
-		// TODO: CREATE POLICY & STRATEGY TO ASSIGN THE BEST-MULTIPLE DATA
-		// SEGMENT
-		return 0;
+		if (dataSegments.length == 1)
+			// ONLY ONE DATA SEGMENT: NOTHING TO CHOOSE
+			return 0;
+
+		final int clusterId = iCluster.getId();
+		final ODataSegmentStrategy[] strategies = dataSegmentStrategies;
+
+		ODataSegmentStrategy strategy = clusterId < strategies.length ? strategies[clusterId] : null;
+		if (strategy == null)
+			strategy = createDataSegmentStrategy(iCluster);
+
+		return strategy.getDataSegment(iCluster, iContent);
+	}
+
+	/**
+	 * Creates the data segment strategy of the cluster by reading its configuration. Logical and memory clusters use the global
+	 * strategy over all the data segments.
+	 */
+	private synchronized ODataSegmentStrategy createDataSegmentStrategy(final OCluster iCluster) {
+		ODataSegmentStrategy[] strategies = dataSegmentStrategies;
+		if (iCluster.getId() < strategies.length && strategies[iCluster.getId()] != null)
+			// CREATED BY ANOTHER THREAD IN THE MEANWHILE
+			return strategies[iCluster.getId()];
+
+		String strategyName = null;
+		String dataNames = null;
+		if (iCluster instanceof OClusterLocal) {
+			final OStoragePhysicalClusterConfiguration config = (OStoragePhysicalClusterConfiguration) ((OClusterLocal) iCluster)
+					.getConfig();
+			strategyName = config.dataSegmentStrategy;
+			dataNames = config.dataSegments;
+		}
+
+		if (strategyName == null)
+			strategyName = OGlobalConfiguration.STORAGE_DATA_SEGMENT_STRATEGY.getValueAsString();
+
+		int[] ids;
+		if (dataNames == null) {
+			ids = new int[dataSegments.length];
+			for (int i = 0; i < ids.length; ++i)
+				ids[i] = i;
+		} else {
+			final String[] names = dataNames.split(",");
+			ids = new int[names.length];
+			for (int i = 0; i < names.length; ++i)
+				ids[i] = getDataSegmentIdByName(names[i]);
+		}
+
+		final ODataSegmentStrategy strategy = ODataSegmentStrategyFactory.create(strategyName);
+		strategy.configure(this, ids);
+
+		if (iCluster.getId() >= strategies.length)
+			strategies = OArrays.copyOf(strategies, iCluster.getId() + 1);
+		else
+			strategies = strategies.clone();
+
+		strategies[iCluster.getId()] = strategy;
+		dataSegmentStrategies = strategies;
+
+		return strategy;
+	}
+
+	private synchronized void resetDataSegmentStrategies() {
+		dataSegmentStrategies = new ODataSegmentStrategy[0];
 	}
 
 	protected long createRecord(final OCluster iClusterSegment, final byte[] iContent, final byte iRecordType) {
@@ -1039,6 +1859,7 @@ public class OStorageLocal extends OStorageAbstract {
 			// UPDATE THE POSITION IN CLUSTER WITH THE POSITION OF RECORD IN
 			// DATA
 			iClusterSegment.setPhysicalPosition(clusterPosition, dataSegment, dataOffset, iRecordType);
+			iClusterSegment.getStatistics().recordCreated(iContent.length);
 
 			incrementVersion();
 
@@ -1069,9 +1890,28 @@ public class OStorageLocal extends OStorageAbstract {
 		final boolean locked = iAtomicLock ? lock.acquireSharedLock() : false;
 
 		try {
-			// lockManager.acquireLock(iRequesterId, recId, LOCK.SHARED,
-			// timeout);
+			return readRecordContent(iClusterSegment, iPosition, iAtomicLock);
 
+		} finally {
+			lock.releaseSharedLock(locked);
+
+			OProfiler.getInstance().stopChrono("OStorageLocal.readRecord", timer);
+		}
+	}
+
+	/**
+	 * Reads the record content without acquiring the storage lock: the caller must hold it, also on behalf of the current thread like
+	 * in the parallel browsing.
+	 *
+	 * @param iRecordLock
+	 *          Locks the record in shared mode while reading it
+	 */
+	private ORawBuffer readRecordContent(final OCluster iClusterSegment, final long iPosition, final boolean iRecordLock) {
+		final ORecordId rid = iRecordLock ? new ORecordId(iClusterSegment.getId(), iPosition) : null;
+		if (iRecordLock)
+			acquireRecordLock(rid, LOCK.SHARED);
+
+		try {
 			final OPhysicalPosition ppos = iClusterSegment.getPhysicalPosition(iPosition, new OPhysicalPosition());
 			if (ppos == null || !checkForRecordValidity(ppos))
 				// DELETED
@@ -1086,9 +1926,8 @@ public class OStorageLocal extends OStorageAbstract {
 			return null;
 
 		} finally {
-			lock.releaseSharedLock(locked);
-
-			OProfiler.getInstance().stopChrono("OStorageLocal.readRecord", timer);
+			if (iRecordLock)
+				releaseRecordLock(rid, LOCK.SHARED);
 		}
 	}
 
@@ -1096,13 +1935,15 @@ public class OStorageLocal extends OStorageAbstract {
 			final int iVersion, final byte iRecordType) {
 		final long timer = OProfiler.getInstance().startChrono();
 
-		final String recId = ORecordId.generateString(iClusterSegment.getId(), iPosition);
+		final ORecordId rid = new ORecordId(iClusterSegment.getId(), iPosition);
 
 		final boolean locked = lock.acquireSharedLock();
+		boolean recordLocked = false;
 
 		try {
-			// lockManager.acquireLock(iRequesterId, recId, LOCK.EXCLUSIVE,
-			// timeout);
+			// INSIDE THE TRY: IF THE RECORD LOCK FAILS THE STORAGE LOCK IS RELEASED ANYWAY
+			acquireRecordLock(rid, LOCK.EXCLUSIVE);
+			recordLocked = true;
 
 			final OPhysicalPosition ppos = iClusterSegment.getPhysicalPosition(iPosition, new OPhysicalPosition());
 			if (!checkForRecordValidity(ppos))
@@ -1113,7 +1954,7 @@ public class OStorageLocal extends OStorageAbstract {
 			if (iVersion > -1 && iVersion < ppos.version)
 				throw new OConcurrentModificationException(
 						"Can't update record #"
-								+ recId
+								+ rid
 								+ " because it has been modified by another user (v"
 								+ ppos.version
 								+ " != v"
@@ -1125,14 +1966,17 @@ public class OStorageLocal extends OStorageAbstract {
 
 			iClusterSegment.updateVersion(iPosition, ++ppos.version);
 
-			final long newDataSegmentOffset = getDataSegment(ppos.dataSegment).setRecord(ppos.dataPosition, iClusterSegment.getId(),
-					iPosition, iContent);
+			final ODataLocal data = getDataSegment(ppos.dataSegment);
+			final int oldSize = data.getRecordSize(ppos.dataPosition);
+			final long newDataSegmentOffset = data.setRecord(ppos.dataPosition, iClusterSegment.getId(), iPosition, iContent);
+			iClusterSegment.getStatistics().recordUpdated(oldSize, iContent.length);
 
 			if (newDataSegmentOffset != ppos.dataPosition)
 				// UPDATE DATA SEGMENT OFFSET WITH THE NEW PHYSICAL POSITION
 				iClusterSegment.setPhysicalPosition(iPosition, ppos.dataSegment, newDataSegmentOffset, iRecordType);
 
 			incrementVersion();
+			fireRecordChanged(iClusterSegment.getId(), iPosition, ppos.version);
 
 			return ppos.version;
 
@@ -1141,6 +1985,9 @@ public class OStorageLocal extends OStorageAbstract {
 			OLogManager.instance().error(this, "Error on updating record #" + iPosition + " in cluster: " + iClusterSegment, e);
 
 		} finally {
+			if (recordLocked)
+				releaseRecordLock(rid, LOCK.EXCLUSIVE);
+
 			lock.releaseSharedLock(locked);
 
 			OProfiler.getInstance().stopChrono("OStorageLocal.updateRecord", timer);
@@ -1152,11 +1999,16 @@ public class OStorageLocal extends OStorageAbstract {
 	protected boolean deleteRecord(final int iRequesterId, final OCluster iClusterSegment, final long iPosition, final int iVersion) {
 		final long timer = OProfiler.getInstance().startChrono();
 
-		final String recId = ORecordId.generateString(iClusterSegment.getId(), iPosition);
+		final ORecordId rid = new ORecordId(iClusterSegment.getId(), iPosition);
 
 		final boolean locked = lock.acquireSharedLock();
+		boolean recordLocked = false;
 
 		try {
+			// INSIDE THE TRY: IF THE RECORD LOCK FAILS THE STORAGE LOCK IS RELEASED ANYWAY
+			acquireRecordLock(rid, LOCK.EXCLUSIVE);
+			recordLocked = true;
+
 			final OPhysicalPosition ppos = iClusterSegment.getPhysicalPosition(iPosition, new OPhysicalPosition());
 
 			if (!checkForRecordValidity(ppos))
@@ -1167,14 +2019,17 @@ public class OStorageLocal extends OStorageAbstract {
 			if (iVersion > -1 && ppos.version != iVersion)
 				throw new OConcurrentModificationException(
 						"Can't delete the record #"
-								+ recId
+								+ rid
 								+ " because it was modified by another user in the meanwhile of current transaction. Use pessimistic locking instead of optimistic or simply re-execute the transaction");
 
 			iClusterSegment.removePhysicalPosition(iPosition, ppos);
 
-			getDataSegment(ppos.dataSegment).deleteRecord(ppos.dataPosition);
+			final int size = getDataSegment(ppos.dataSegment).deleteRecord(ppos.dataPosition);
+			if (size > -1)
+				iClusterSegment.getStatistics().recordDeleted(size);
 
 			incrementVersion();
+			fireRecordChanged(iClusterSegment.getId(), iPosition, ppos.version + 1);
 
 			return true;
 
@@ -1183,6 +2038,9 @@ public class OStorageLocal extends OStorageAbstract {
 			OLogManager.instance().error(this, "Error on deleting record #" + iPosition + " in cluster: " + iClusterSegment, e);
 
 		} finally {
+			if (recordLocked)
+				releaseRecordLock(rid, LOCK.EXCLUSIVE);
+
 			lock.releaseSharedLock(locked);
 
 			OProfiler.getInstance().stopChrono("OStorageLocal.deleteRecord", timer);
@@ -1191,6 +2049,46 @@ public class OStorageLocal extends OStorageAbstract {
 		return false;
 	}
 
+	/**
+	 * Locks the record for the current thread. The lock is reentrant and must be released by the same thread.
+	 * 
+	 * @throws OLockException
+	 *           if the lock is not acquired within storage.record.lockTimeout ms or a deadlock is detected
+	 */
+	protected void acquireRecordLock(final ORecordId iRid, final LOCK iLockType) {
+		lockManager.acquireLock(Thread.currentThread(), iRid, iLockType);
+	}
+
+	protected void releaseRecordLock(final ORecordId iRid, final LOCK iLockType) {
+		lockManager.releaseLock(Thread.currentThread(), iRid, iLockType);
+	}
+
+	/**
+	 * Returns the pool of threads shared by the parallel browsing of all the storages, created the first time is needed. The threads
+	 * terminate when idle.
+	 */
+	private static synchronized ThreadPoolExecutor getBrowseExecutor() {
+		if (browseExecutor == null) {
+			int threads = OGlobalConfiguration.STORAGE_BROWSE_PARALLELISM.getValueAsInteger();
+			if (threads < 1)
+				threads = Runtime.getRuntime().availableProcessors();
+
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger	counter	= new AtomicInteger();
+
+						public Thread newThread(final Runnable iTask) {
+							final Thread thread = new Thread(iTask, "OrientDB Parallel Browser #" + counter.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			browseExecutor = executor;
+		}
+		return browseExecutor;
+	}
+
 	/**
 	 * Check if the storage is open. If it's closed an exception is raised.
 	 */
@@ -1242,8 +2140,9 @@ public class OStorageLocal extends OStorageAbstract {
 
 		configuration.clusters.add(config);
 
-		final OClusterLogical cluster = new OClusterLogical(this, clusters.length, iClusterName, iPhysicalCluster);
+		final OClusterLogical cluster = new OClusterLogicalPaged(this, clusters.length, iClusterName, iPhysicalCluster);
 		config.map = cluster.getRID();
+		config.paged = true;
 		final int id = registerCluster(cluster);
 
 		configuration.update();
@@ -0,0 +1,278 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.exception.OStorageException;
+import com.orientechnologies.orient.core.storage.OCluster;
+
+/**
+ * Loads a large amount of new records in a local storage. Instead of writing every record with the round trips of
+ * OStorageLocal.createRecord(), the records are serialized in memory and written in blocks: every physical cluster reserves
+ * "storage.bulkLoad.clusterChunk" entries at once and every data segment "storage.bulkLoad.dataChunk" bytes at once, always at
+ * the end of the files without looking for holes. The space left unused is given back as holes and the segments are synchronized
+ * only at the end by close().<br/>
+ * The storage is locked in exclusive mode by the loading thread until close(), so the loader must be used by one thread. The lock
+ * is waited at most "storage.bulkLoad.lockTimeout" ms. Records of logical clusters are created one by one. Indexes and hooks are
+ * not involved: use ORecordBulkLoader to load records of a database. If the process is interrupted before close() the records of
+ * the last blocks are lost: their cluster entries are given back as holes by close() if the blocks can't be written, or on the next
+ * open of the storage after a crash.
+ */
+public class OStorageLocalBulkLoader {
+	private final OStorageLocal							storage;
+	private final boolean										locked;
+	private final int												dataChunkSize;
+	private final int												clusterChunkSize;
+	private final Map<Integer, OClusterChunk>	clusterChunks	= new HashMap<Integer, OClusterChunk>();
+	private final Map<Integer, ODataChunk>		dataChunks		= new HashMap<Integer, ODataChunk>();
+	private final long											timer;
+	private long														records;
+	private boolean													closed;
+
+	/**
+	 * Block of cluster entries reserved at the end of a physical cluster.
+	 */
+	private static class OClusterChunk {
+		final OClusterLocal	cluster;
+		final long					firstPosition;
+		final byte[]				buffer;
+		int									used;
+		boolean							flushed;
+
+		OClusterChunk(final OClusterLocal iCluster, final long iFirstPosition, final int iEntries) {
+			cluster = iCluster;
+			firstPosition = iFirstPosition;
+			buffer = new byte[iEntries * OClusterLocal.RECORD_SIZE];
+		}
+
+		boolean isFull() {
+			return used * OClusterLocal.RECORD_SIZE == buffer.length;
+		}
+	}
+
+	/**
+	 * Block of space reserved at the end of a data segment.
+	 */
+	private static class ODataChunk {
+		final ODataLocal	data;
+		final long				position;
+		final byte[]			buffer;
+		int								used;
+		int								written;
+
+		ODataChunk(final ODataLocal iData, final long iPosition, final int iSize) {
+			data = iData;
+			position = iPosition;
+			buffer = new byte[iSize];
+		}
+	}
+
+	public OStorageLocalBulkLoader(final OStorageLocal iStorage) {
+		storage = iStorage;
+		dataChunkSize = Math.max(OGlobalConfiguration.STORAGE_BULK_LOAD_DATA_CHUNK.getValueAsInteger(), 1024);
+		clusterChunkSize = Math.max(OGlobalConfiguration.STORAGE_BULK_LOAD_CLUSTER_CHUNK.getValueAsInteger(), 1);
+		timer = OProfiler.getInstance().startChrono();
+		locked = storage.getLock().acquireExclusiveLock(OGlobalConfiguration.STORAGE_BULK_LOAD_LOCK_TIMEOUT.getValueAsInteger());
+	}
+
+	/**
+	 * Adds a new record.
+	 *
+	 * @return The position of the record in the cluster
+	 */
+	public long addRecord(final int iClusterId, final byte[] iContent, final byte iRecordType) {
+		if (closed)
+			throw new OStorageException("The bulk loader is closed");
+
+		if (iContent == null)
+			throw new IllegalArgumentException("Record is null");
+
+		final OCluster cluster = storage.getClusterById(iClusterId);
+
+		if (!(cluster instanceof OClusterLocal)) {
+			// NOT PHYSICAL: CREATE THE RECORD AS USUAL
+			records++;
+			return storage.createRecord(cluster, iContent, iRecordType);
+		}
+
+		try {
+			final OClusterChunk clusterChunk = getClusterChunk((OClusterLocal) cluster);
+			final long clusterPosition = clusterChunk.firstPosition + clusterChunk.used;
+
+			final int dataSegmentId = storage.getDataSegmentForRecord(cluster, iContent);
+			final ODataChunk dataChunk = getDataChunk(dataSegmentId, ODataLocal.getRecordSpace(iContent.length));
+			final long dataPosition = dataChunk.position + dataChunk.used;
+
+			dataChunk.used = ODataLocal.serializeRecord(dataChunk.buffer, dataChunk.used, iClusterId, clusterPosition, iContent);
+
+			OClusterLocal.serializeEntry(clusterChunk.buffer, clusterChunk.used * OClusterLocal.RECORD_SIZE, dataSegmentId,
+					dataPosition, iRecordType, 0);
+			clusterChunk.used++;
+			cluster.getStatistics().recordCreated(iContent.length);
+
+			if (clusterChunk.isFull()) {
+				// THE DATA FIRST: THE CLUSTER ENTRIES POINT TO IT. THE DATA BLOCKS STAY OPEN FOR THE NEXT RECORDS
+				for (ODataChunk chunk : dataChunks.values())
+					write(chunk);
+
+				flush(clusterChunk);
+				clusterChunks.remove(iClusterId);
+			}
+
+			records++;
+			return clusterPosition;
+
+		} catch (IOException e) {
+			OLogManager.instance().error(this, "Error on bulk loading a record in cluster: " + cluster, e, OStorageException.class);
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes the pending blocks, gives back the space not used, synchronizes the segments and unlocks the storage. If a block can't be
+	 * written the cluster entries of the blocks not written yet are given back as holes and the exception is thrown.
+	 */
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+
+		try {
+			// THE DATA FIRST: THE CLUSTER ENTRIES POINT TO IT
+			for (ODataChunk chunk : dataChunks.values()) {
+				flush(chunk);
+				chunk.data.synch();
+			}
+
+			for (OClusterChunk chunk : clusterChunks.values()) {
+				flush(chunk);
+				chunk.flushed = true;
+				chunk.cluster.synch();
+			}
+
+			storage.endBulkLoad(records);
+
+		} catch (IOException e) {
+			releaseClusterChunks();
+
+			OLogManager.instance().error(this, "Error on closing the bulk loader of storage: " + storage.getName(), e,
+					OStorageException.class);
+
+		} catch (RuntimeException e) {
+			releaseClusterChunks();
+			throw e;
+
+		} finally {
+			clusterChunks.clear();
+			dataChunks.clear();
+
+			storage.getLock().releaseExclusiveLock(locked);
+
+			OProfiler.getInstance().updateCounter("OStorageLocalBulkLoader.records", records);
+			OProfiler.getInstance().stopChrono("OStorageLocalBulkLoader.load", timer);
+		}
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	private OClusterChunk getClusterChunk(final OClusterLocal iCluster) throws IOException {
+		OClusterChunk chunk = clusterChunks.get(iCluster.getId());
+		if (chunk == null) {
+			chunk = new OClusterChunk(iCluster, iCluster.reserveEntries(clusterChunkSize), clusterChunkSize);
+			clusterChunks.put(iCluster.getId(), chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Returns the block of the data segment with room for the record, reserving a new one if needed.
+	 */
+	private ODataChunk getDataChunk(final int iDataSegmentId, final int iSpace) throws IOException {
+		ODataChunk chunk = dataChunks.get(iDataSegmentId);
+		if (chunk != null && chunk.buffer.length - chunk.used >= iSpace)
+			return chunk;
+
+		if (chunk != null)
+			flush(chunk);
+
+		final ODataLocal data = storage.getDataSegment(iDataSegmentId);
+		final int size = Math.max(dataChunkSize, iSpace);
+		chunk = new ODataChunk(data, data.reserveSpace(size), size);
+		dataChunks.put(iDataSegmentId, chunk);
+		return chunk;
+	}
+
+	private void flush(final OClusterChunk iChunk) throws IOException {
+		final int usedBytes = iChunk.used * OClusterLocal.RECORD_SIZE;
+		if (usedBytes > 0)
+			iChunk.cluster.writeEntries(iChunk.firstPosition, usedBytes == iChunk.buffer.length ? iChunk.buffer : copy(iChunk.buffer, 0,
+					usedBytes));
+
+		// THE UNUSED ENTRIES ARE ALREADY WRITTEN AS DELETED. THE RESERVATION ENDS ALSO IF ALL THE ENTRIES ARE USED
+		iChunk.cluster.releaseEntries(iChunk.firstPosition + iChunk.used, (iChunk.buffer.length - usedBytes)
+				/ OClusterLocal.RECORD_SIZE);
+	}
+
+	/**
+	 * Gives back as holes all the entries of the cluster blocks not written, still written as deleted. Their records are lost.
+	 */
+	private void releaseClusterChunks() {
+		for (OClusterChunk chunk : clusterChunks.values())
+			if (!chunk.flushed)
+				try {
+					chunk.cluster.releaseEntries(chunk.firstPosition, chunk.buffer.length / OClusterLocal.RECORD_SIZE);
+				} catch (Exception e) {
+					OLogManager.instance().error(this, "Error on releasing the entries reserved in cluster: " + chunk.cluster, e);
+				}
+	}
+
+	/**
+	 * Writes the records added to the block since the last write, keeping the rest of the block reserved.
+	 */
+	private void write(final ODataChunk iChunk) throws IOException {
+		if (iChunk.used == iChunk.written)
+			return;
+
+		final byte[] records = iChunk.written == 0 && iChunk.used == iChunk.buffer.length ? iChunk.buffer : copy(iChunk.buffer,
+				iChunk.written, iChunk.used - iChunk.written);
+		iChunk.data.writeRecords(iChunk.position + iChunk.written, records);
+		iChunk.written = iChunk.used;
+	}
+
+	private void flush(final ODataChunk iChunk) throws IOException {
+		write(iChunk);
+
+		final int unused = iChunk.buffer.length - iChunk.used;
+		if (unused > 0)
+			// THE HOLE IS SIZED AS THE CONTENT IT CAN HOST
+			iChunk.data.createHole(iChunk.position + iChunk.used, unused - ODataLocal.getRecordSpace(0));
+	}
+
+	private static byte[] copy(final byte[] iBuffer, final int iOffset, final int iLength) {
+		final byte[] result = new byte[iLength];
+		System.arraycopy(iBuffer, iOffset, result, 0, iLength);
+		return result;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.orientechnologies.common.listener.OProgressListener;
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.common.thread.OSoftThread;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.storage.OCluster;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+
+/**
+ * Online defragmentation of a local storage. The work is divided in small steps: each step locks the storage in exclusive mode to
+ * move at most STORAGE_DEFRAG_STEP_RECORDS records, then releases the lock and waits STORAGE_DEFRAG_STEP_DELAY ms to let the other
+ * operations to run. The defragmentation can be paused, resumed and stopped at any time between two steps.<br/>
+ * <br/>
+ * For each data segment the live records placed after the first hole are collected starting from the end, then every record is
+ * copied in the best fitting hole placed before it. The physical position in the cluster is updated to the new copy before the old
+ * space is released, so the record is always reachable. When no more records can be moved, the holes at the end of the files are
+ * removed from the filled space. At the end the hole files of data segments and clusters are compacted.<br/>
+ * <br/>
+ * Only records referenced by physical clusters are moved: records of logical clusters are left in their place.
+ * 
+ * @see OStorageLocal#defrag(OProgressListener)
+ * @see OStorageLocal#startDefrag(OProgressListener)
+ */
+public class OStorageLocalDefrag extends OSoftThread {
+	private final OStorageLocal			storage;
+	private final OProgressListener	listener;
+	private final int								stepRecords;
+	private final int								stepDelay;
+	private final int								passRecords;
+
+	private volatile boolean				paused;
+	private volatile long						movedRecords;
+	private volatile long						reclaimedBytes;
+	private volatile long						removedHoles;
+
+	public OStorageLocalDefrag(final OStorageLocal iStorage, final OProgressListener iListener) {
+		super("OrientDB Defrag " + iStorage.getName());
+		storage = iStorage;
+		listener = iListener;
+		stepRecords = Math.max(OGlobalConfiguration.STORAGE_DEFRAG_STEP_RECORDS.getValueAsInteger(), 1);
+		stepDelay = OGlobalConfiguration.STORAGE_DEFRAG_STEP_DELAY.getValueAsInteger();
+		passRecords = Math.max(OGlobalConfiguration.STORAGE_DEFRAG_PASS_RECORDS.getValueAsInteger(), stepRecords);
+
+		// REGISTER AS USER TO KEEP THE STORAGE OPEN AND TO FORCE THE OTHER THREADS TO ACQUIRE THE LOCKS. IT'S DONE BY THE THREAD
+		// STARTING THE DEFRAGMENTATION, THAT IS NOT IN THE MIDDLE OF AN OPERATION WITHOUT LOCKS
+		storage.addUserExclusively();
+	}
+
+	/**
+	 * Executes the whole defragmentation once, then ends the thread.
+	 */
+	@Override
+	protected void execute() throws Exception {
+		try {
+			defrag();
+		} finally {
+			running = false;
+		}
+	}
+
+	/**
+	 * Executes the defragmentation in the current thread. It can be executed only once, since it releases the user of the storage
+	 * registered by the constructor.
+	 * 
+	 * @return true if completed, false if it has been stopped before the end
+	 * @throws IOException
+	 */
+	public boolean defrag() throws IOException {
+		final long timer = OProfiler.getInstance().startChrono();
+
+		boolean completed = false;
+		try {
+			final ODataLocal[] dataSegments = storage.getDataSegments();
+
+			if (listener != null)
+				listener.onBegin(this, dataSegments.length + 1);
+
+			OLogManager.instance().debug(this, "Starting defragmentation of storage %s...", storage.getName());
+
+			for (int i = 0; i < dataSegments.length && isActive(); ++i) {
+				defragDataSegment(dataSegments[i]);
+				notifyProgress(i + 1, dataSegments.length + 1);
+			}
+
+			if (isActive()) {
+				compactHoles();
+				notifyProgress(dataSegments.length + 1, dataSegments.length + 1);
+				completed = true;
+			}
+
+			OLogManager.instance().info(this,
+					"Defragmentation of storage %s %s: moved %d records, reclaimed %d bytes and removed %d hole entries", storage.getName(),
+					completed ? "completed" : "interrupted", movedRecords, reclaimedBytes, removedHoles);
+
+		} finally {
+			if (listener != null)
+				listener.onCompletition(this, completed);
+
+			// THE USER REGISTERED AT THE CREATION
+			storage.removeUserExclusively();
+
+			OProfiler.getInstance().stopChrono("OStorageLocalDefrag.defrag", timer);
+		}
+
+		return completed;
+	}
+
+	/**
+	 * Pauses the defragmentation at the end of the current step.
+	 */
+	public void pauseDefrag() {
+		paused = true;
+	}
+
+	/**
+	 * Resumes a paused defragmentation.
+	 */
+	public synchronized void resumeDefrag() {
+		paused = false;
+		notifyAll();
+	}
+
+	/**
+	 * Stops the defragmentation at the end of the current step. The thread is not interrupted to avoid closing the file channels in
+	 * the middle of an I/O operation.
+	 */
+	public synchronized void stopDefrag() {
+		running = false;
+		notifyAll();
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public long getMovedRecords() {
+		return movedRecords;
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes;
+	}
+
+	public long getRemovedHoles() {
+		return removedHoles;
+	}
+
+	protected void defragDataSegment(final ODataLocal iData) throws IOException {
+		final long filledBefore = iData.getFilledUpTo();
+
+		int moved;
+		do {
+			moved = 0;
+
+			final TreeMap<Long, ORecordId> records = collectRecordsToMove(iData);
+
+			final Iterator<Map.Entry<Long, ORecordId>> iterator = records.descendingMap().entrySet().iterator();
+			while (iterator.hasNext() && isActive())
+				moved += moveRecords(iData, iterator);
+
+			if (!isActive())
+				return;
+
+			removeTailHoles(iData);
+
+		} while (moved > 0);
+
+		OLogManager.instance().debug(this, "Defragmented data segment %s: filled space changed from %d to %d bytes", iData.getName(),
+				filledBefore, iData.getFilledUpTo());
+	}
+
+	/**
+	 * Collects the live records placed after the first hole, keeping only the passRecords ones with the highest offsets. The clusters
+	 * are browsed in steps to avoid to lock the storage for too long. Changes in the meanwhile are checked when the record is moved.
+	 */
+	protected TreeMap<Long, ORecordId> collectRecordsToMove(final ODataLocal iData) throws IOException {
+		final TreeMap<Long, ORecordId> records = new TreeMap<Long, ORecordId>();
+
+		final long firstHole = iData.getFirstHoleOffset();
+		if (firstHole == -1)
+			// NO HOLES: NOTHING TO MOVE
+			return records;
+
+		final int dataId = iData.getId();
+		final OPhysicalPosition[] batch = new OPhysicalPosition[Math.max(
+				OGlobalConfiguration.STORAGE_BROWSE_BATCH_SIZE.getValueAsInteger(), 1)];
+		OPhysicalPosition ppos;
+		int read;
+
+		for (OCluster cluster : storage.getClusters()) {
+			if (!(cluster instanceof OClusterLocal))
+				continue;
+
+			final long first = cluster.getFirstEntryPosition();
+			if (first == -1)
+				continue;
+
+			long position = first;
+			while (position <= cluster.getLastEntryPosition() && isActive()) {
+				final boolean locked = storage.getLock().acquireSharedLock();
+				try {
+					final long last = Math.min(cluster.getLastEntryPosition(), position + stepRecords * 10);
+					while (position <= last) {
+						// READ THE PHYSICAL POSITIONS OF THE NEXT ENTRIES AT ONCE
+						read = cluster.getPhysicalPositions(position, batch);
+						if (read == 0) {
+							// END OF THE CLUSTER
+							position = Long.MAX_VALUE;
+							break;
+						}
+
+						for (int i = 0; i < read && position <= last; ++i, ++position) {
+							ppos = batch[i];
+
+							if (ppos != null && ppos.version > -1 && ppos.dataSegment == dataId && ppos.dataPosition > firstHole) {
+								records.put(ppos.dataPosition, new ORecordId(cluster.getId(), position));
+
+								if (records.size() > passRecords)
+									records.remove(records.firstKey());
+							}
+						}
+					}
+				} finally {
+					storage.getLock().releaseSharedLock(locked);
+				}
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * Moves up to stepRecords records locking the storage in exclusive mode.
+	 * 
+	 * @return The number of records moved
+	 */
+	protected int moveRecords(final ODataLocal iData, final Iterator<Map.Entry<Long, ORecordId>> iIterator) throws IOException {
+		final long timer = OProfiler.getInstance().startChrono();
+
+		int moved = 0;
+		long released = 0;
+
+		final boolean locked = storage.getLock().acquireExclusiveLock();
+		try {
+			final OPhysicalPosition ppos = new OPhysicalPosition();
+
+			Map.Entry<Long, ORecordId> entry;
+			for (int i = 0; i < stepRecords && iIterator.hasNext(); ++i) {
+				entry = iIterator.next();
+
+				final long oldPosition = entry.getKey();
+				final ORecordId rid = entry.getValue();
+				final OCluster cluster = storage.getClusterById(rid.clusterId);
+
+				cluster.getPhysicalPosition(rid.clusterPosition, ppos);
+				if (ppos.version == -1 || ppos.dataSegment != iData.getId() || ppos.dataPosition != oldPosition)
+					// CHANGED IN THE MEANWHILE: SKIP IT
+					continue;
+
+				final long newPosition = iData.moveRecord(oldPosition, rid.clusterId, rid.clusterPosition);
+				if (newPosition == -1)
+					// NO HOLE BEFORE IT CAN HOST THE RECORD
+					continue;
+
+				// POINT TO THE NEW COPY BEFORE TO RELEASE THE OLD SPACE
+				cluster.setPhysicalPosition(rid.clusterPosition, ppos.dataSegment, newPosition, ppos.type);
+				released += iData.deleteRecord(oldPosition);
+
+				moved++;
+			}
+
+		} finally {
+			storage.getLock().releaseExclusiveLock(locked);
+
+			OProfiler.getInstance().stopChrono("OStorageLocalDefrag.moveRecords", timer);
+		}
+
+		movedRecords += moved;
+		OProfiler.getInstance().updateCounter("OStorageLocalDefrag.movedRecords", moved);
+		OProfiler.getInstance().updateCounter("OStorageLocalDefrag.movedBytes", released);
+
+		waitNextStep();
+
+		return moved;
+	}
+
+	protected void removeTailHoles(final ODataLocal iData) throws IOException {
+		final long released;
+
+		final boolean locked = storage.getLock().acquireExclusiveLock();
+		try {
+			released = iData.removeTailHoles();
+		} finally {
+			storage.getLock().releaseExclusiveLock(locked);
+		}
+
+		reclaimedBytes += released;
+		OProfiler.getInstance().updateCounter("OStorageLocalDefrag.reclaimedBytes", released);
+
+		waitNextStep();
+	}
+
+	protected void compactHoles() throws IOException {
+		int removed = 0;
+
+		final boolean locked = storage.getLock().acquireExclusiveLock();
+		try {
+			for (ODataLocal data : storage.getDataSegments())
+				removed += data.compactHoles();
+
+			for (OCluster cluster : storage.getClusters())
+				if (cluster instanceof OClusterLocal)
+					removed += ((OClusterLocal) cluster).compactHoles();
+
+		} finally {
+			storage.getLock().releaseExclusiveLock(locked);
+		}
+
+		removedHoles += removed;
+		OProfiler.getInstance().updateCounter("OStorageLocalDefrag.removedHoles", removed);
+	}
+
+	/**
+	 * Waits the configured delay between two steps and, if paused, until the defragmentation is resumed or stopped.
+	 */
+	protected synchronized void waitNextStep() {
+		try {
+			if (stepDelay > 0)
+				wait(stepDelay);
+
+			while (paused && running)
+				wait();
+
+		} catch (InterruptedException e) {
+			running = false;
+		}
+	}
+
+	private boolean isActive() {
+		return running && !storage.isClosed();
+	}
+
+	private void notifyProgress(final long iCounter, final long iTotal) {
+		if (listener != null)
+			listener.onProgress(this, iCounter, iCounter * 100f / iTotal);
+	}
+}
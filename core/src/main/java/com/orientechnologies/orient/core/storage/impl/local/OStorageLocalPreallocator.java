@@ -0,0 +1,169 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.core.storage.impl.local;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.common.thread.OSoftThread;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.storage.OCluster;
+
+/**
+ * Background thread that enlarges the files of the data segments and of the physical clusters before the inserts need the space,
+ * so the foreground threads rarely pay the enlargement of a file. Every "storage.preallocate.interval" ms the space filled by every
+ * segment since the last check is measured: when the free space at the end of the last file is less than
+ * "storage.preallocate.factor" times that growth (at least "storage.preallocate.minSize" bytes), the file is enlarged in sparse way
+ * to have that free space. Segments that are not growing are never enlarged.<br/>
+ * Every file is enlarged under its own resize lock, so only the allocations in the same file wait for the enlargement while the rest
+ * of the storage keeps working.
+ *
+ * @see com.orientechnologies.orient.core.storage.fs.OFile#preallocate(long)
+ */
+public class OStorageLocalPreallocator extends OSoftThread {
+	private final OStorageLocal						storage;
+	private final int											interval;
+	private final int											factor;
+	private final long										minSize;
+	private Map<OMultiFileSegment, Long>	lastFilled	= new IdentityHashMap<OMultiFileSegment, Long>();
+	private volatile boolean								stopped;
+
+	public OStorageLocalPreallocator(final OStorageLocal iStorage) {
+		super("OrientDB Preallocator " + iStorage.getName());
+		storage = iStorage;
+		interval = Math.max(OGlobalConfiguration.STORAGE_PREALLOCATE_INTERVAL.getValueAsInteger(), 1);
+		factor = Math.max(OGlobalConfiguration.STORAGE_PREALLOCATE_FACTOR.getValueAsInteger(), 1);
+		minSize = Math.max(OGlobalConfiguration.STORAGE_PREALLOCATE_MIN_SIZE.getValueAsInteger(), 0);
+	}
+
+	@Override
+	public synchronized void startup() {
+		if (!stopped)
+			super.startup();
+	}
+
+	@Override
+	protected void execute() throws Exception {
+		waitForWork();
+
+		if (!running)
+			return;
+
+		preallocate();
+	}
+
+	/**
+	 * Stops the thread and waits for the end of the current enlargement. Must be called without holding the lock of the storage. The
+	 * thread is not interrupted to avoid closing the channels of the files it's enlarging.
+	 */
+	public void stopPreallocation() {
+		synchronized (this) {
+			stopped = true;
+			shutdown();
+			notifyAll();
+		}
+
+		if (Thread.currentThread() == this)
+			// THE STORAGE HAS BEEN CLOSED BY THIS THREAD LEAVING THE LAST USER
+			return;
+
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Checks the growth of all the segments and enlarges the ones that are running out of space.
+	 *
+	 * @return The bytes added to the files
+	 */
+	protected long preallocate() {
+		final Map<OMultiFileSegment, Long> toEnlarge = collectSegmentsToEnlarge();
+		if (toEnlarge.isEmpty())
+			return 0;
+
+		final long timer = OProfiler.getInstance().startChrono();
+
+		long enlarged = 0;
+		try {
+			for (Entry<OMultiFileSegment, Long> entry : toEnlarge.entrySet())
+				enlarged += entry.getKey().preallocate(entry.getValue());
+
+			if (enlarged > 0)
+				OLogManager.instance().debug(this, "Enlarged %d segments of storage %s by %d bytes", toEnlarge.size(), storage.getName(),
+						enlarged);
+
+		} catch (IOException e) {
+			OLogManager.instance().warn(this, "Error on enlarging the files of storage %s: %s", storage.getName(), e.toString());
+
+		} finally {
+			OProfiler.getInstance().updateCounter("OStorageLocalPreallocator.enlargedBytes", enlarged);
+			OProfiler.getInstance().stopChrono("OStorageLocalPreallocator.preallocate", timer);
+		}
+
+		return enlarged;
+	}
+
+	/**
+	 * Returns the segments whose free space is less than the expected by their growth, with the free space to reach.
+	 */
+	private Map<OMultiFileSegment, Long> collectSegmentsToEnlarge() {
+		final Map<OMultiFileSegment, Long> filled = new IdentityHashMap<OMultiFileSegment, Long>();
+		final Map<OMultiFileSegment, Long> toEnlarge = new IdentityHashMap<OMultiFileSegment, Long>();
+
+		for (ODataLocal data : storage.getDataSegments())
+			if (data != null)
+				checkSegment(data, filled, toEnlarge);
+
+		for (OCluster cluster : storage.getClusters())
+			if (cluster instanceof OClusterLocal)
+				checkSegment((OClusterLocal) cluster, filled, toEnlarge);
+
+		// FORGET THE SEGMENTS REMOVED IN THE MEANWHILE
+		lastFilled = filled;
+
+		return toEnlarge;
+	}
+
+	private void checkSegment(final OMultiFileSegment iSegment, final Map<OMultiFileSegment, Long> iFilled,
+			final Map<OMultiFileSegment, Long> iToEnlarge) {
+		final long filled = iSegment.getFilledUpTo();
+		iFilled.put(iSegment, filled);
+
+		final Long previous = lastFilled.get(iSegment);
+		if (previous == null || filled <= previous)
+			// NEW OR NOT GROWING
+			return;
+
+		final long freeSpace = Math.max((filled - previous) * factor, minSize);
+		if (iSegment.getTailFreeSpace() < freeSpace)
+			iToEnlarge.put(iSegment, freeSpace);
+	}
+
+	private synchronized void waitForWork() {
+		if (!stopped)
+			try {
+				wait(interval);
+			} catch (InterruptedException e) {
+			}
+	}
+}
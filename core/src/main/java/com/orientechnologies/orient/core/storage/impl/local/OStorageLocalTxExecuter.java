@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.orientechnologies.common.concur.lock.OLockManager.LOCK;
 import com.orientechnologies.common.log.OLogManager;
 import com.orientechnologies.orient.core.config.OStorageTxConfiguration;
 import com.orientechnologies.orient.core.exception.OTransactionException;
@@ -26,7 +27,7 @@ import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.record.ORecord;
 import com.orientechnologies.orient.core.storage.OCluster;
 import com.orientechnologies.orient.core.storage.OPhysicalPosition;
-import com.orientechnologies.orient.core.storage.ORawBuffer;
+import com.orientechnologies.orient.core.storage.fs.OMMapManager;
 import com.orientechnologies.orient.core.tx.OTransaction;
 import com.orientechnologies.orient.core.tx.OTransactionAbstract;
 import com.orientechnologies.orient.core.tx.OTransactionEntry;
@@ -57,49 +58,59 @@ public class OStorageLocalTxExecuter {
 	}
 
 	protected long createRecord(final int iRequesterId, final int iTxId, final OCluster iClusterSegment, final byte[] iContent,
-			final byte iRecordType) throws IOException {
+			final byte iRecordType, final List<ORecordId> ioLockedRecords) throws IOException {
 		long recordPosition = -1;
 
 		try {
-			// CREATE DATA SEGMENT. IF TX FAILS AT THIS POINT UN-REFERENCED DATA WILL REMAIN UNTIL NEXT DEFRAG
 			final int dataSegment = storage.getDataSegmentForRecord(iClusterSegment, iContent);
-			ODataLocal data = storage.getDataSegment(dataSegment);
-			final long dataOffset = data.addRecord(-1, -1, iContent);
+			final ODataLocal data = storage.getDataSegment(dataSegment);
 
-			// REFERENCE IN THE CLUSTER THE DATA JUST CREATED. IF TX FAILS AT THIS POINT ???
-			// TODO
-			recordPosition = iClusterSegment.addPhysicalPosition(dataSegment, dataOffset, iRecordType);
+			// ALLOCATE THE POSITION IN THE CLUSTER. IF TX FAILS AT THIS POINT THE POSITION REMAINS EMPTY
+			recordPosition = iClusterSegment.addPhysicalPosition(-1, -1, iRecordType);
 
-			// SAVE INTO THE LOG THE POSITION OF THE RECORD JUST CREATED. IF TX FAILS AT THIS POINT ???
-			// TODO
-			txSegment.addLog(OTxSegment.OPERATION_CREATE, iRequesterId, iTxId, iClusterSegment.getId(), recordPosition, dataOffset);
+			// NOBODY CAN READ THE NEW RECORD UNTIL THE TRANSACTION IS COMMITTED
+			lockRecord(iClusterSegment, recordPosition, ioLockedRecords);
+
+			// SAVE INTO THE LOG THE CONTENT OF THE RECORD TO CREATE. IF TX FAILS AFTER THIS POINT CAN BE RECOVERED THANKS TO THE TX-LOG
+			final long lsn = txSegment.addLog(OTxSegment.OPERATION_CREATE, iRequesterId, iTxId, iClusterSegment.getId(), recordPosition,
+					dataSegment, -1, iRecordType, 0, null, iContent);
+
+			// THE BLOCKS CHANGED FROM NOW ON CAN'T BE WRITTEN TO THE DISK BEFORE THE LOG ENTRY
+			OMMapManager.setWriteLsn(txSegment, lsn);
+
+			final long dataOffset = data.addRecord(iClusterSegment.getId(), recordPosition, iContent);
+
+			// REFERENCE IN THE CLUSTER THE DATA JUST CREATED
+			iClusterSegment.setPhysicalPosition(recordPosition, dataSegment, dataOffset, iRecordType);
+			iClusterSegment.getStatistics().recordCreated(iContent.length);
 
 		} catch (IOException e) {
 
 			OLogManager.instance().error(this, "Error on creating entry in log segment: " + iClusterSegment, e,
 					OTransactionException.class);
+		} finally {
+			OMMapManager.setWriteLsn(null, 0);
 		}
 
 		return recordPosition;
 	}
 
 	protected int updateRecord(final int iRequesterId, final int iTxId, final OCluster iClusterSegment, final long iPosition,
-			final byte[] iContent, final int iVersion, final byte iRecordType) {
+			final byte[] iContent, final int iVersion, final byte iRecordType, final List<ORecordId> ioLockedRecords) {
+		// LOCK THE RECORD BEFORE TO READ ITS CONTENT TO ASSURE THE LOGGED IMAGE IS THE ONE REPLACED
+		lockRecord(iClusterSegment, iPosition, ioLockedRecords);
+
 		try {
 			// READ CURRENT RECORD CONTENT
-			final ORawBuffer buffer = storage.readRecord(iRequesterId, iClusterSegment, iPosition, true);
-
-			final long dataOffset;
-			if (buffer.buffer != null) {
-				// CREATE A COPY OF IT IN DATASEGMENT. IF TX FAILS AT THIS POINT UN-REFERENCED DATA WILL REMAIN UNTIL NEXT DEFRAG
-				dataOffset = storage.getDataSegment(storage.getDataSegmentForRecord(iClusterSegment, buffer.buffer)).addRecord(-1, -1,
-						buffer.buffer);
-			} else
-				// NO DATA
-				dataOffset = -1;
-
-			// SAVE INTO THE LOG THE POSITION OF THE RECORD JUST DELETED. IF TX FAILS AT THIS POINT AS ABOVE
-			txSegment.addLog(OTxSegment.OPERATION_UPDATE, iRequesterId, iTxId, iClusterSegment.getId(), iPosition, dataOffset);
+			final OPhysicalPosition ppos = iClusterSegment.getPhysicalPosition(iPosition, new OPhysicalPosition());
+			if (ppos != null && ppos.version > -1) {
+				final byte[] oldContent = storage.getDataSegment(ppos.dataSegment).getRecord(ppos.dataPosition);
+
+				// SAVE INTO THE LOG THE CONTENT OF THE RECORD BEFORE AND AFTER THE CHANGE
+				final long lsn = txSegment.addLog(OTxSegment.OPERATION_UPDATE, iRequesterId, iTxId, iClusterSegment.getId(), iPosition,
+						ppos.dataSegment, ppos.dataPosition, iRecordType, ppos.version, oldContent, iContent);
+				OMMapManager.setWriteLsn(txSegment, lsn);
+			}
 
 			// UPDATE THE RECORD FOR REAL. IF TX FAILS AT THIS POINT CAN BE RECOVERED THANKS TO THE TX-LOG
 			return storage.updateRecord(iRequesterId, iClusterSegment, iPosition, iContent, iVersion, iRecordType);
@@ -107,26 +118,38 @@ public class OStorageLocalTxExecuter {
 
 			OLogManager.instance().error(this, "Error on updating entry #" + iPosition + " in log segment: " + iClusterSegment, e,
 					OTransactionException.class);
+		} finally {
+			OMMapManager.setWriteLsn(null, 0);
 		}
 		return -1;
 	}
 
 	protected void deleteRecord(final int iRequesterId, final int iTxId, final OCluster iClusterSegment, final long iPosition,
-			final int iVersion) {
+			final int iVersion, final List<ORecordId> ioLockedRecords) {
+		lockRecord(iClusterSegment, iPosition, ioLockedRecords);
+
 		try {
 			// GET THE PPOS OF THE RECORD
-			OPhysicalPosition ppos = iClusterSegment.getPhysicalPosition(iPosition, new OPhysicalPosition());
+			final OPhysicalPosition ppos = iClusterSegment.getPhysicalPosition(iPosition, new OPhysicalPosition());
+			if (ppos == null || ppos.version < 0)
+				// ALREADY DELETED
+				return;
+
+			final byte[] oldContent = storage.getDataSegment(ppos.dataSegment).getRecord(ppos.dataPosition);
 
-			// SAVE INTO THE LOG THE POSITION OF THE RECORD JUST DELETED
-			txSegment.addLog(OTxSegment.OPERATION_DELETE, iRequesterId, iTxId, iClusterSegment.getId(), iPosition, ppos.dataPosition);
+			// SAVE INTO THE LOG THE CONTENT OF THE RECORD TO DELETE
+			final long lsn = txSegment.addLog(OTxSegment.OPERATION_DELETE, iRequesterId, iTxId, iClusterSegment.getId(), iPosition,
+					ppos.dataSegment, ppos.dataPosition, ppos.type, ppos.version, oldContent, null);
+			OMMapManager.setWriteLsn(txSegment, lsn);
 
-			// DELETE THE RECORD BUT LEAVING THE PPOS INTACT BUT THE VERSION = -1 TO RECOGNIZE THAT THE ENTRY HAS BEEN DELETED. IF TX
-			// FAILS AT THIS POINT CAN BE RECOVERED THANKS TO THE TX-LOG
-			iClusterSegment.removePhysicalPosition(iPosition, ppos);
+			// DELETE THE RECORD. IF TX FAILS AT THIS POINT CAN BE RECOVERED THANKS TO THE TX-LOG
+			storage.deleteRecord(iRequesterId, iClusterSegment, iPosition, -1);
 		} catch (IOException e) {
 
 			OLogManager.instance().error(this, "Error on deleting entry #" + iPosition + " in log segment: " + iClusterSegment, e,
 					OTransactionException.class);
+		} finally {
+			OMMapManager.setWriteLsn(null, 0);
 		}
 	}
 
@@ -134,7 +157,14 @@ public class OStorageLocalTxExecuter {
 		return txSegment;
 	}
 
-	protected void commitAllPendingRecords(final int iRequesterId, final OTransaction<?> iTx) throws IOException {
+	/**
+	 * Commits all the entries of the transaction. The records changed are locked in exclusive mode and added to ioLockedRecords: the
+	 * caller must release them after the commit or the rollback.
+	 * 
+	 * @return The LSN of the COMMIT entry to pass to OTxSegment.synchCommit() to make the commit durable
+	 */
+	protected long commitAllPendingRecords(final int iRequesterId, final OTransaction<?> iTx, final List<ORecordId> ioLockedRecords)
+			throws IOException {
 		// COPY ALL THE ENTRIES IN SEPARATE COLLECTION SINCE DURING THE COMMIT PHASE SOME NEW ENTRIES COULD BE CREATED AND
 		// CONCURRENT-EXCEPTION MAY OCCURS
 		final List<OTransactionEntry<? extends ORecord<?>>> allEntries = new ArrayList<OTransactionEntry<? extends ORecord<?>>>();
@@ -148,27 +178,32 @@ public class OStorageLocalTxExecuter {
 
 			for (OTransactionEntry<? extends ORecord<?>> txEntry : tmpEntries)
 				// COMMIT ALL THE SINGLE ENTRIES ONE BY ONE
-				commitEntry(iRequesterId, iTx.getId(), txEntry);
+				commitEntry(iRequesterId, iTx.getId(), txEntry, ioLockedRecords);
 
 			allEntries.addAll(tmpEntries);
 			tmpEntries.clear();
 		}
 
-		// CLEAR ALL TEMPORARY RECORDS
-		txSegment.clearLogEntries(iRequesterId, iTx.getId());
+		// WRITE THE COMMIT ENTRY IN THE LOG
+		final long commitLsn = txSegment.commitLog(iRequesterId, iTx.getId());
 
 		// UPDATE THE CACHE ONLY IF THE ITERATOR ALLOWS IT
 		OTransactionAbstract.updateCacheFromEntries(storage, iTx, allEntries);
 
 		allEntries.clear();
+
+		return commitLsn;
 	}
 
-	protected void rollback() {
-		// TODO
+	/**
+	 * Rollbacks the changes already applied by the transaction by restoring the record images saved in the log.
+	 */
+	protected void rollback(final int iRequesterId, final OTransaction<?> iTx) throws IOException {
+		txSegment.rollbackLog(iRequesterId, iTx.getId());
 	}
 
-	private void commitEntry(final int iRequesterId, final int iTxId, final OTransactionEntry<? extends ORecord<?>> txEntry)
-			throws IOException {
+	private void commitEntry(final int iRequesterId, final int iTxId, final OTransactionEntry<? extends ORecord<?>> txEntry,
+			final List<ORecordId> ioLockedRecords) throws IOException {
 
 		if (txEntry.status != OTransactionEntry.DELETED && !txEntry.getRecord().isDirty())
 			return;
@@ -194,23 +229,24 @@ public class OStorageLocalTxExecuter {
 			final byte[] stream = txEntry.getRecord().toStream();
 
 			if (rid.isNew()) {
-				rid.clusterPosition = createRecord(iRequesterId, iTxId, cluster, stream, txEntry.getRecord().getRecordType());
+				rid.clusterPosition = createRecord(iRequesterId, iTxId, cluster, stream, txEntry.getRecord().getRecordType(),
+						ioLockedRecords);
 				rid.clusterId = cluster.getId();
 			} else {
 				txEntry.getRecord().setVersion(
 						updateRecord(iRequesterId, iTxId, cluster, rid.clusterPosition, stream, txEntry.getRecord().getVersion(), txEntry
-								.getRecord().getRecordType()));
+								.getRecord().getRecordType(), ioLockedRecords));
 			}
 			break;
 
 		case OTransactionEntry.UPDATED:
 			txEntry.getRecord().setVersion(
 					updateRecord(iRequesterId, iTxId, cluster, rid.clusterPosition, txEntry.getRecord().toStream(), txEntry.getRecord()
-							.getVersion(), txEntry.getRecord().getRecordType()));
+							.getVersion(), txEntry.getRecord().getRecordType(), ioLockedRecords));
 			break;
 
 		case OTransactionEntry.DELETED:
-			deleteRecord(iRequesterId, iTxId, cluster, rid.clusterPosition, txEntry.getRecord().getVersion());
+			deleteRecord(iRequesterId, iTxId, cluster, rid.clusterPosition, txEntry.getRecord().getVersion(), ioLockedRecords);
 			break;
 		}
 
@@ -219,4 +255,13 @@ public class OStorageLocalTxExecuter {
 		if (txEntry.getRecord() instanceof OTxListener)
 			((OTxListener) txEntry.getRecord()).onEvent(txEntry, OTxListener.EVENT.AFTER_COMMIT);
 	}
+
+	/**
+	 * Locks the record in exclusive mode until the end of the transaction.
+	 */
+	private void lockRecord(final OCluster iClusterSegment, final long iPosition, final List<ORecordId> ioLockedRecords) {
+		final ORecordId rid = new ORecordId(iClusterSegment.getId(), iPosition);
+		storage.acquireRecordLock(rid, LOCK.EXCLUSIVE);
+		ioLockedRecords.add(rid);
+	}
 }
@@ -16,40 +16,101 @@
 package com.orientechnologies.orient.core.storage.impl.local;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TimerTask;
 
 import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.common.profiler.OProfiler;
 import com.orientechnologies.orient.core.OConstants;
+import com.orientechnologies.orient.core.Orient;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
 import com.orientechnologies.orient.core.config.OStorageTxConfiguration;
+import com.orientechnologies.orient.core.serialization.OBinaryProtocol;
 import com.orientechnologies.orient.core.storage.OCluster;
 import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import com.orientechnologies.orient.core.storage.fs.OWriteAheadLog;
 
 /**
- * Handle the records that wait to be committed. This class is not synchronized because the caller is responsible of it.<br/>
+ * Handle the log of the transactions. Every change is logged before to be applied together with the image of the record before
+ * (undo) and after (redo) the change. At commit time a COMMIT entry is appended and only the log is synchronized: the clusters and
+ * the data segments are written to the disk by the checkpoints. The synch of the log is shared by all the concurrent commits (group
+ * commit): the first committer synchronizes all the entries written so far while the others wait for it. The durability is
+ * configured with the "tx.log.synch" setting.<br/>
+ * Every entry has a Log Sequence Number (LSN). A checkpoint writes to the disk all the files of the storage without stopping the
+ * running transactions and then saves in the header the last LSN written before it started. The log keeps only the running
+ * transactions and the ones committed after the last checkpoint, so the recovery at open time restores the last committed image of
+ * the records changed after the checkpoint and the first image of the records changed by the transactions never committed.<br/>
  * Record structure:<br/>
  * <br/>
- * +--------+--------+---------+---------+---------+----------------+-------------+<br/>
- * | STATUS | OPERAT | REQ ID .| TX ID . | CLUSTER | CLUSTER OFFSET | DATA OFFSET |<br/>
- * | 1 byte | 1 byte | 2 bytes | 4 bytes | 2 bytes | 8 bytes ...... | 8 bytes ... |<br/>
- * +--------+--------+---------+---------+---------+----------------+-------------+<br/>
- * = 26 bytes<br/>
+ * +--------+--------+---------+---------+---------+----------------+---------+-------------+----------+---------+---------+<br/>
+ * | STATUS | OPERAT | REQ ID .| TX ID . | CLUSTER | CLUSTER OFFSET | DATA ID | DATA OFFSET | REC TYPE | VERSION | LSN ... |<br/>
+ * | 1 byte | 1 byte | 2 bytes | 4 bytes | 2 bytes | 8 bytes ...... | 2 bytes | 8 bytes ... | 1 byte . | 4 bytes | 8 bytes |<br/>
+ * +--------+--------+---------+---------+---------+----------------+---------+-------------+----------+---------+---------+<br/>
+ * +-----------+-----------+--------------+--------------+<br/>
+ * | UNDO SIZE | REDO SIZE | UNDO CONTENT | REDO CONTENT |<br/>
+ * | 4 bytes . | 4 bytes . | UNDO SIZE .. | REDO SIZE .. |<br/>
+ * +-----------+-----------+--------------+--------------+<br/>
+ * = 49 bytes + UNDO SIZE + REDO SIZE<br/>
+ * <br/>
+ * VERSION is the version of the record before the change. Logs written by previous releases have entries of 26 bytes without the
+ * images: they are recovered in the old way and then upgraded.
  */
-public class OTxSegment extends OSingleFileSegment {
-	public static final byte	STATUS_FREE				= 0;
-	public static final byte	STATUS_COMMITTING	= 1;
-
-	public static final byte	OPERATION_CREATE	= 0;
-	public static final byte	OPERATION_DELETE	= 1;
-	public static final byte	OPERATION_UPDATE	= 2;
-
-	private static final int	DEF_START_SIZE		= 262144;
-	private static final int	RECORD_SIZE				= 26;
+public class OTxSegment extends OSingleFileSegment implements OWriteAheadLog {
+	public static final byte	STATUS_FREE								= 0;
+	public static final byte	STATUS_COMMITTING					= 1;
+
+	public static final byte	OPERATION_CREATE					= 0;
+	public static final byte	OPERATION_DELETE					= 1;
+	public static final byte	OPERATION_UPDATE					= 2;
+	public static final byte	OPERATION_COMMIT					= 3;
+
+	public static final String	SYNCH_COMMIT						= "commit";
+	public static final String	SYNCH_INTERVAL					= "interval";
+	public static final String	SYNCH_OS								= "os";
+
+	private static final long		FORMAT_VERSION					= 1;
+	private static final int		HEADER_FORMAT_OFFSET		= 0;
+	private static final int		HEADER_CHECKPOINT_OFFSET	= OConstants.SIZE_LONG;
+
+	private static final int		DEF_START_SIZE					= 262144;
+	private static final int		RECORD_FIX_SIZE					= 49;
+	private static final int		LEGACY_RECORD_SIZE			= 26;
+
+	private final String				synchMode;
+	private final int						checkpointSize;
+	private final Map<Long, List<Long>>	pendingEntries			= new HashMap<Long, List<Long>>();
+	private int									totalEntries;
+	private volatile long				lastLsn;
+	private volatile long				checkpointLsn;
+	private long								compactedLsn;
+
+	private final Object				synchLock								= new Object();
+	private long								synchedLsn;
+	private boolean							synchInProgress;
+	private TimerTask						synchTask;
+
+	private final Object				checkpointLock					= new Object();
+	private volatile boolean		checkpointScheduled;
+	private TimerTask						checkpointTask;
 
 	public OTxSegment(final OStorageLocal iStorage, final OStorageTxConfiguration iConfig) throws IOException {
 		super(iStorage, iConfig);
+
+		synchMode = OGlobalConfiguration.TX_LOG_SYNCH.getValueAsString();
+		if (!SYNCH_COMMIT.equals(synchMode) && !SYNCH_INTERVAL.equals(synchMode) && !SYNCH_OS.equals(synchMode))
+			throw new IllegalArgumentException("Invalid value for " + OGlobalConfiguration.TX_LOG_SYNCH.getKey() + ": " + synchMode
+					+ ". Allowed values are: " + SYNCH_COMMIT + ", " + SYNCH_INTERVAL + ", " + SYNCH_OS);
+
+		checkpointSize = OGlobalConfiguration.TX_LOG_CHECKPOINT_SIZE.getValueAsInteger();
 	}
 
 	/**
@@ -63,169 +124,766 @@ public class OTxSegment extends OSingleFileSegment {
 			// IGNORE IF IT'S SOFTLY CLOSED
 			super.open();
 
-			// CHECK FOR PENDING TRANSACTION ENTRIES TO RECOVER
-			int size = (file.getFilledUpTo() / RECORD_SIZE);
+			if (file.readHeaderLong(HEADER_FORMAT_OFFSET) < FORMAT_VERSION) {
+				// LOG WRITTEN BY A PREVIOUS RELEASE
+				if (file.getFilledUpTo() > 0)
+					recoverLegacyTransactions();
+
+				if (!storage.getMode().equals("r")) {
+					file.shrink(0);
+					file.writeHeaderLong(HEADER_FORMAT_OFFSET, FORMAT_VERSION);
+					file.writeHeaderLong(HEADER_CHECKPOINT_OFFSET, 0);
+				}
+			}
+
+			checkpointLsn = file.readHeaderLong(HEADER_CHECKPOINT_OFFSET);
+			compactedLsn = checkpointLsn;
+			lastLsn = checkpointLsn;
 
-			if (size == 0)
-				return true;
+			if (file.getFilledUpTo() > 0)
+				recoverTransactions();
 
-			recoverTransactions();
+			synchedLsn = lastLsn;
 
 			return true;
 
 		} finally {
 			releaseExclusiveLock();
+
+			startTasks();
 		}
 	}
 
 	@Override
 	public void create(final int iStartSize) throws IOException {
 		super.create(iStartSize > -1 ? iStartSize : DEF_START_SIZE);
+
+		file.writeHeaderLong(HEADER_FORMAT_OFFSET, FORMAT_VERSION);
+		file.writeHeaderLong(HEADER_CHECKPOINT_OFFSET, 0);
+
+		startTasks();
+	}
+
+	/**
+	 * Closes the log. The clusters and the data segments are already closed, and therefore written to the disk, so if there are no
+	 * running transactions the log is emptied.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (synchTask != null) {
+			synchTask.cancel();
+			synchTask = null;
+		}
+
+		if (checkpointTask != null) {
+			checkpointTask.cancel();
+			checkpointTask = null;
+		}
+
+		acquireExclusiveLock();
+		try {
+			if (file.isOpen() && pendingEntries.isEmpty() && !storage.getMode().equals("r")) {
+				file.shrink(0);
+				totalEntries = 0;
+				checkpointLsn = lastLsn;
+				file.writeHeaderLong(HEADER_CHECKPOINT_OFFSET, checkpointLsn);
+			}
+		} finally {
+			releaseExclusiveLock();
+		}
+
+		super.close();
 	}
 
 	/**
-	 * Append a log entry
-	 * 
+	 * Append a log entry. The entry is written in one shot and it's synchronized only if the "synchRecord" setting is true, otherwise
+	 * it will be synchronized at commit time together with the entries of the other transactions.
+	 *
+	 * @param iOperation
+	 *          The operation between OPERATION_CREATE, OPERATION_UPDATE and OPERATION_DELETE
 	 * @param iReqId
 	 *          The id of requester
 	 * @param iTxId
 	 *          The id of transaction
-	 * 
+	 * @param iDataSegment
+	 *          The data segment of the record
+	 * @param iDataOffset
+	 *          The offset of the record in the data segment before the change
+	 * @param iVersion
+	 *          The version of the record before the change
+	 * @param iUndo
+	 *          The content of the record before the change, if any
+	 * @param iRedo
+	 *          The content of the record after the change, if any
+	 * @return The LSN of the entry
+	 *
 	 * @throws IOException
 	 */
-	public void addLog(final byte iOperation, final int iReqId, final int iTxId, final int iClusterId, final long iPosition,
-			final long iDataOffset) throws IOException {
+	public long addLog(final byte iOperation, final int iReqId, final int iTxId, final int iClusterId, final long iPosition,
+			final int iDataSegment, final long iDataOffset, final byte iRecordType, final int iVersion, final byte[] iUndo,
+			final byte[] iRedo) throws IOException {
+		final long lsn;
+
 		acquireExclusiveLock();
 
 		try {
-			int offset = file.allocateSpace(RECORD_SIZE);
+			lsn = writeEntry(iOperation, iReqId, iTxId, iClusterId, iPosition, iDataSegment, iDataOffset, iRecordType, iVersion, iUndo,
+					iRedo);
 
-			file.writeByte(offset, STATUS_COMMITTING);
-			offset += OConstants.SIZE_BYTE;
+		} finally {
+			releaseExclusiveLock();
+		}
 
-			file.writeByte(offset, iOperation);
-			offset += OConstants.SIZE_BYTE;
+		if (((OStorageTxConfiguration) config).isSynchRecord())
+			synch(lsn);
 
-			file.writeShort(offset, (short) iReqId);
-			offset += OConstants.SIZE_SHORT;
+		return lsn;
+	}
 
-			file.writeInt(offset, iTxId);
-			offset += OConstants.SIZE_INT;
+	/**
+	 * Appends the COMMIT entry of the transaction. The file is not synchronized: call synchCommit() with the LSN returned to make the
+	 * commit durable.
+	 *
+	 * @param iReqId
+	 *          The id of requester
+	 * @param iTxId
+	 *          The id of transaction
+	 * @return The LSN of the COMMIT entry or 0 if the transaction has no entries
+	 *
+	 * @throws IOException
+	 */
+	public long commitLog(final int iReqId, final int iTxId) throws IOException {
+		final long lsn;
 
-			file.writeShort(offset, (short) iClusterId);
-			offset += OConstants.SIZE_SHORT;
+		acquireExclusiveLock();
 
-			file.writeLong(offset, iPosition);
-			offset += OConstants.SIZE_LONG;
+		try {
+			if (pendingEntries.remove(getTxKey(iReqId, iTxId)) == null)
+				// NOTHING TO COMMIT
+				return 0;
 
-			file.writeLong(offset, iDataOffset);
+			if (compactedLsn < checkpointLsn)
+				// REMOVE THE TRANSACTIONS ALREADY WRITTEN BY THE LAST CHECKPOINT
+				compact();
 
-			synchRecord();
+			lsn = writeEntry(OPERATION_COMMIT, iReqId, iTxId, -1, -1, -1, -1, (byte) 0, -1, null, null);
 
 		} finally {
 			releaseExclusiveLock();
 		}
+
+		if (file.getFilledUpTo() >= checkpointSize)
+			scheduleCheckpoint();
+
+		return lsn;
 	}
 
 	/**
-	 * Clear all the transaction entries by setting the status to STATUS_CLEARING
-	 * 
+	 * Rollbacks the changes of the transaction by restoring the images of the records before the changes, in reverse order.
+	 *
 	 * @param iReqId
 	 *          The id of requester
 	 * @param iTxId
 	 *          The id of transaction
-	 * 
+	 * @return Number of records restored
+	 *
 	 * @throws IOException
 	 */
-	public void clearLogEntries(final int iReqId, final int iTxId) throws IOException {
+	public int rollbackLog(final int iReqId, final int iTxId) throws IOException {
 		acquireExclusiveLock();
 
 		try {
-			int size = (file.getFilledUpTo() / RECORD_SIZE);
-			byte status;
-			int reqId;
-			int txId;
-			int offset;
+			final List<Long> txEntries = pendingEntries.remove(getTxKey(iReqId, iTxId));
+			if (txEntries == null)
+				// NOTHING TO ROLLBACK
+				return 0;
+
+			int restored = 0;
+			OTxLogEntry entry;
+			for (int i = txEntries.size() - 1; i > -1; --i) {
+				entry = readEntry(txEntries.get(i));
+				if (entry != null && undoEntry(entry))
+					restored++;
+			}
 
-			int recordFreed = 0;
+			for (Long offset : txEntries)
+				// CLEAR THE ENTRY BY WRITING THE "FREE" STATUS: THE RECOVERY WILL IGNORE IT
+				file.writeByte(offset, STATUS_FREE);
 
-			for (int i = 0; i < size; ++i) {
-				// READ THE STATUS
-				offset = i * RECORD_SIZE;
+			OProfiler.getInstance().updateCounter("OTxSegment.rollbacks", +1);
 
-				status = file.readByte(offset);
+			return restored;
 
-				if (status == STATUS_COMMITTING) {
-					// READ THE REQ-ID
-					offset += OConstants.SIZE_BYTE + OConstants.SIZE_BYTE;
-					reqId = file.readShort(offset);
+		} finally {
+			releaseExclusiveLock();
+		}
+	}
 
-					if (reqId == iReqId) {
-						// CURRENT REQUESTER, CHECKING FOR THE TX
-						offset += OConstants.SIZE_SHORT;
-						txId = file.readInt(offset);
+	/**
+	 * Makes durable the commit with the LSN received, according to the "tx.log.synch" setting.
+	 */
+	public void synchCommit(final long iLsn) {
+		if (iLsn > 0 && SYNCH_COMMIT.equals(synchMode) && ((OStorageTxConfiguration) config).isSynchTx())
+			synch(iLsn);
+	}
 
-						if (txId == iTxId) {
-							// CURRENT REQUESTER & TX: CLEAR THE ENTRY BY WRITING THE "FREE" STATUS
-							file.writeByte(i * RECORD_SIZE, STATUS_FREE);
-							recordFreed++;
-						}
-					}
+	/**
+	 * Synchronizes the log up to the LSN received. If another thread is synchronizing, waits for it and then checks if its synch
+	 * covered also the requested LSN: in this case returns without synchronizing again. In this way N concurrent commits cost one
+	 * synch instead of N.
+	 */
+	public void synch(final long iLsn) {
+		synchronized (synchLock) {
+			while (synchInProgress && synchedLsn < iLsn)
+				try {
+					synchLock.wait();
+				} catch (InterruptedException e) {
 				}
-			}
 
-			// SHRINK THE FILE TO THE LAST GOOD POSITION. USE THE COUNTER OF PREVIOUS CYCLE TO DETERMINE THE NUMBER OF RECORDS FREED FOR
-			// THIS TX
-			int lastRecord = size - 1;
+			if (synchedLsn >= iLsn) {
+				// ALREADY SYNCHRONIZED BY ANOTHER COMMIT
+				OProfiler.getInstance().updateCounter("OTxSegment.groupedSynch", +1);
+				return;
+			}
 
-			for (int i = size - 1; i > -1 && recordFreed > 0; --i) {
-				offset = i * RECORD_SIZE;
+			synchInProgress = true;
+		}
 
-				status = file.readByte(offset);
-				offset += OConstants.SIZE_BYTE;
-				offset += OConstants.SIZE_BYTE;
+		long lsn = 0;
+		boolean synched = false;
 
-				reqId = file.readShort(offset);
-				if (reqId != iReqId)
-					// NO MY REQ, EXIT
-					break;
+		final long timer = OProfiler.getInstance().startChrono();
+		try {
+			acquireSharedLock();
+			try {
+				// ALL THE ENTRIES WRITTEN SO FAR WILL BE SYNCHRONIZED
+				lsn = lastLsn;
+			} finally {
+				releaseSharedLock();
+			}
 
-				offset += OConstants.SIZE_SHORT;
-				txId = file.readShort(offset);
+			// THE ENTRIES ARE ALREADY IN THE FILE: THE SYNCH DOESN'T BLOCK THE THREADS THAT WRITE THE NEXT ONES
+			file.synch();
+			synched = true;
 
-				if (txId != iTxId)
-					// NO MY TX, EXIT
-					break;
+		} finally {
+			OProfiler.getInstance().stopChrono("OTxSegment.synch", timer);
 
-				lastRecord = i;
-				recordFreed--;
+			synchronized (synchLock) {
+				if (synched && lsn > synchedLsn)
+					synchedLsn = lsn;
+				synchInProgress = false;
+				synchLock.notifyAll();
 			}
+		}
+	}
 
-			if (lastRecord > -1)
-				file.shrink(lastRecord * RECORD_SIZE);
+	/**
+	 * Executes a fuzzy checkpoint: writes to the disk all the files of the storage while the transactions keep running and then saves
+	 * the last LSN written before the start. The transactions committed before that LSN will be removed from the log by the next
+	 * commit.
+	 */
+	public void checkpoint() {
+		synchronized (checkpointLock) {
+			final long lsn;
+			acquireSharedLock();
+			try {
+				// THE TRANSACTIONS COMMITTED UP TO THIS LSN HAVE ALREADY APPLIED ALL THEIR CHANGES
+				lsn = lastLsn;
+			} finally {
+				releaseSharedLock();
+			}
 
-			synchTx();
+			if (lsn <= checkpointLsn)
+				return;
+
+			final long timer = OProfiler.getInstance().startChrono();
+			try {
+				// WRITE-AHEAD: THE LOG MUST BE ON DISK BEFORE THE CHANGES IT DESCRIBES
+				synch(lsn);
+				storage.synch();
+
+				acquireSharedLock();
+				try {
+					file.writeHeaderLong(HEADER_CHECKPOINT_OFFSET, lsn);
+					checkpointLsn = lsn;
+				} finally {
+					releaseSharedLock();
+				}
 
-		} finally {
-			releaseExclusiveLock();
+			} catch (IOException e) {
+				OLogManager.instance().error(this, "Error on saving the checkpoint of the transaction log", e);
+			} finally {
+				OProfiler.getInstance().stopChrono("OTxSegment.checkpoint", timer);
+			}
 		}
 	}
 
+	public String getSynchMode() {
+		return synchMode;
+	}
+
+	public long getLastLsn() {
+		return lastLsn;
+	}
+
+	public long getCheckpointLsn() {
+		return checkpointLsn;
+	}
+
 	public int getTotalLogCount() {
 		acquireSharedLock();
 
 		try {
-			return (file.getFilledUpTo() / RECORD_SIZE);
+			return totalEntries;
 
 		} finally {
 			releaseSharedLock();
 		}
 	}
 
+	/**
+	 * Writes the entry and keeps track of it to rollback the transaction without scanning the whole log. Must be called inside the
+	 * exclusive lock.
+	 */
+	private long writeEntry(final byte iOperation, final int iReqId, final int iTxId, final int iClusterId, final long iPosition,
+			final int iDataSegment, final long iDataOffset, final byte iRecordType, final int iVersion, final byte[] iUndo,
+			final byte[] iRedo) throws IOException {
+		final int undoSize = iUndo != null ? iUndo.length : 0;
+		final byte[] buffer = new byte[RECORD_FIX_SIZE + undoSize + (iRedo != null ? iRedo.length : 0)];
+
+		final long lsn = lastLsn + 1;
+
+		buffer[0] = STATUS_COMMITTING;
+		buffer[1] = iOperation;
+		OBinaryProtocol.short2bytes((short) iReqId, buffer, 2);
+		OBinaryProtocol.int2bytes(iTxId, buffer, 4);
+		OBinaryProtocol.short2bytes((short) iClusterId, buffer, 8);
+		OBinaryProtocol.long2bytes(iPosition, buffer, 10);
+		OBinaryProtocol.short2bytes((short) iDataSegment, buffer, 18);
+		OBinaryProtocol.long2bytes(iDataOffset, buffer, 20);
+		buffer[28] = iRecordType;
+		OBinaryProtocol.int2bytes(iVersion, buffer, 29);
+		OBinaryProtocol.long2bytes(lsn, buffer, 33);
+		OBinaryProtocol.int2bytes(iUndo != null ? iUndo.length : -1, buffer, 41);
+		OBinaryProtocol.int2bytes(iRedo != null ? iRedo.length : -1, buffer, 45);
+
+		if (iUndo != null)
+			System.arraycopy(iUndo, 0, buffer, RECORD_FIX_SIZE, iUndo.length);
+		if (iRedo != null)
+			System.arraycopy(iRedo, 0, buffer, RECORD_FIX_SIZE + undoSize, iRedo.length);
+
+		final long offset = file.allocateSpace(buffer.length);
+		file.write(offset, buffer);
+
+		if (iOperation != OPERATION_COMMIT) {
+			final Long txKey = getTxKey(iReqId, iTxId);
+			List<Long> txEntries = pendingEntries.get(txKey);
+			if (txEntries == null) {
+				txEntries = new ArrayList<Long>();
+				pendingEntries.put(txKey, txEntries);
+			}
+			txEntries.add(offset);
+		}
+
+		totalEntries++;
+		lastLsn = lsn;
+
+		return lsn;
+	}
+
+	/**
+	 * Removes from the log the transactions committed before the last checkpoint and the entries rolled back. Must be called inside
+	 * the exclusive lock.
+	 */
+	private void compact() throws IOException {
+		final long timer = OProfiler.getInstance().startChrono();
+
+		final long lsn = checkpointLsn;
+		final List<OTxLogEntry> entries = readEntries();
+
+		final Set<Long> savedTxs = new HashSet<Long>();
+		for (OTxLogEntry entry : entries)
+			if (entry.operation == OPERATION_COMMIT && entry.lsn <= lsn)
+				savedTxs.add(getTxKey(entry.reqId, entry.txId));
+
+		final Map<Long, List<Long>> newPendingEntries = new HashMap<Long, List<Long>>();
+
+		long offset = 0;
+		int kept = 0;
+		Long txKey;
+		List<Long> txEntries;
+		for (OTxLogEntry entry : entries) {
+			txKey = getTxKey(entry.reqId, entry.txId);
+			if (entry.status == STATUS_FREE || savedTxs.contains(txKey))
+				continue;
+
+			if (entry.offset != offset)
+				// MOVE THE ENTRY BACK
+				file.write(offset, entry.content);
+
+			if (entry.operation != OPERATION_COMMIT && pendingEntries.containsKey(txKey)) {
+				txEntries = newPendingEntries.get(txKey);
+				if (txEntries == null) {
+					txEntries = new ArrayList<Long>();
+					newPendingEntries.put(txKey, txEntries);
+				}
+				txEntries.add(offset);
+			}
+
+			offset += entry.content.length;
+			kept++;
+		}
+
+		file.shrink(offset);
+
+		pendingEntries.clear();
+		pendingEntries.putAll(newPendingEntries);
+		totalEntries = kept;
+		compactedLsn = lsn;
+
+		OProfiler.getInstance().stopChrono("OTxSegment.compact", timer);
+	}
+
+	private List<OTxLogEntry> readEntries() throws IOException {
+		final List<OTxLogEntry> entries = new ArrayList<OTxLogEntry>();
+
+		long offset = 0;
+		OTxLogEntry entry;
+		while (offset < file.getFilledUpTo()) {
+			entry = readEntry(offset);
+			if (entry == null) {
+				// PARTIALLY WRITTEN ENTRY: IGNORE THE REST OF THE LOG
+				OLogManager.instance().warn(this, "Found invalid entry in the transaction log at offset %d: the log will be truncated",
+						offset);
+				break;
+			}
+
+			entries.add(entry);
+			offset += entry.content.length;
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Reads the entry at the offset received.
+	 *
+	 * @return The entry read or null if it's invalid or partially written
+	 */
+	private OTxLogEntry readEntry(final long iOffset) throws IOException {
+		final long filled = file.getFilledUpTo();
+		if (iOffset + RECORD_FIX_SIZE > filled)
+			return null;
+
+		final byte[] header = new byte[RECORD_FIX_SIZE];
+		file.read(iOffset, header, RECORD_FIX_SIZE);
+
+		final int undoSize = OBinaryProtocol.bytes2int(header, 41);
+		final int redoSize = OBinaryProtocol.bytes2int(header, 45);
+
+		if ((header[0] != STATUS_FREE && header[0] != STATUS_COMMITTING) || header[1] < OPERATION_CREATE
+				|| header[1] > OPERATION_COMMIT || undoSize < -1 || redoSize < -1)
+			return null;
+
+		final long size = RECORD_FIX_SIZE + (long) Math.max(undoSize, 0) + Math.max(redoSize, 0);
+		if (iOffset + size > filled)
+			return null;
+
+		final OTxLogEntry entry = new OTxLogEntry();
+		entry.offset = iOffset;
+		entry.content = new byte[(int) size];
+		System.arraycopy(header, 0, entry.content, 0, RECORD_FIX_SIZE);
+		if (size > RECORD_FIX_SIZE) {
+			final byte[] images = new byte[(int) size - RECORD_FIX_SIZE];
+			file.read(iOffset + RECORD_FIX_SIZE, images, images.length);
+			System.arraycopy(images, 0, entry.content, RECORD_FIX_SIZE, images.length);
+		}
+
+		entry.status = header[0];
+		entry.operation = header[1];
+		entry.reqId = OBinaryProtocol.bytes2short(header, 2);
+		entry.txId = OBinaryProtocol.bytes2int(header, 4);
+		entry.clusterId = OBinaryProtocol.bytes2short(header, 8);
+		entry.clusterPosition = OBinaryProtocol.bytes2long(header, 10);
+		entry.dataSegment = OBinaryProtocol.bytes2short(header, 18);
+		entry.dataOffset = OBinaryProtocol.bytes2long(header, 20);
+		entry.recordType = header[28];
+		entry.version = OBinaryProtocol.bytes2int(header, 29);
+		entry.lsn = OBinaryProtocol.bytes2long(header, 33);
+
+		if (undoSize > -1) {
+			entry.undo = new byte[undoSize];
+			System.arraycopy(entry.content, RECORD_FIX_SIZE, entry.undo, 0, undoSize);
+		}
+		if (redoSize > -1) {
+			entry.redo = new byte[redoSize];
+			System.arraycopy(entry.content, RECORD_FIX_SIZE + Math.max(undoSize, 0), entry.redo, 0, redoSize);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Recovers the storage after a brute shutdown: replays in LSN order the changes of the transactions committed after the last
+	 * checkpoint, then rolls back in reverse LSN order the changes of the transactions never committed, restoring the image before
+	 * each change.
+	 */
 	private void recoverTransactions() throws IOException {
+		final long timer = OProfiler.getInstance().startChrono();
+
+		final List<OTxLogEntry> entries = readEntries();
+
 		OLogManager.instance().debug(
 				this,
-				"Started the recovering of pending transactions after a brute shutdown. Found " + getTotalLogCount()
+				"Started the recovering of transactions after a brute shutdown. Found " + entries.size() + " entry logs after LSN "
+						+ checkpointLsn + ". Scanning...");
+
+		// FIND THE COMMITTED TRANSACTIONS
+		final Map<Long, Long> committedTxs = new HashMap<Long, Long>();
+		for (OTxLogEntry entry : entries) {
+			if (entry.lsn > lastLsn)
+				lastLsn = entry.lsn;
+
+			if (entry.operation == OPERATION_COMMIT)
+				committedTxs.put(getTxKey(entry.reqId, entry.txId), entry.lsn);
+		}
+
+		// SPLIT THE CHANGES BETWEEN COMMITTED AND NOT COMMITTED TRANSACTIONS
+		final List<OTxLogEntry> toRedo = new ArrayList<OTxLogEntry>();
+		final List<OTxLogEntry> toUndo = new ArrayList<OTxLogEntry>();
+		final Set<Long> notCommittedTxs = new HashSet<Long>();
+
+		Long txKey;
+		Long commitLsn;
+		for (OTxLogEntry entry : entries) {
+			if (entry.operation == OPERATION_COMMIT || entry.status == STATUS_FREE)
+				continue;
+
+			txKey = getTxKey(entry.reqId, entry.txId);
+			commitLsn = committedTxs.get(txKey);
+
+			if (commitLsn == null) {
+				notCommittedTxs.add(txKey);
+				toUndo.add(entry);
+			} else if (commitLsn > checkpointLsn)
+				toRedo.add(entry);
+		}
+
+		final Comparator<OTxLogEntry> lsnOrder = new Comparator<OTxLogEntry>() {
+			public int compare(final OTxLogEntry o1, final OTxLogEntry o2) {
+				return o1.lsn < o2.lsn ? -1 : (o1.lsn == o2.lsn ? 0 : 1);
+			}
+		};
+		Collections.sort(toRedo, lsnOrder);
+		Collections.sort(toUndo, Collections.reverseOrder(lsnOrder));
+
+		// REDO ALL THE COMMITTED CHANGES FIRST: A NOT COMMITTED CHANGE CAN FOLLOW A COMMITTED ONE ON THE SAME RECORD
+		int redone = 0;
+		for (OTxLogEntry entry : toRedo)
+			if (redoEntry(entry))
+				redone++;
+
+		int undone = 0;
+		for (OTxLogEntry entry : toUndo)
+			if (undoEntry(entry))
+				undone++;
+
+		if (!storage.getMode().equals("r")) {
+			// WRITE THE RECOVERED STORAGE TO THE DISK AND EMPTY THE LOG
+			storage.synch();
+
+			file.shrink(0);
+			totalEntries = 0;
+			checkpointLsn = lastLsn;
+			compactedLsn = lastLsn;
+			file.writeHeaderLong(HEADER_CHECKPOINT_OFFSET, checkpointLsn);
+			file.synch();
+		} else
+			totalEntries = entries.size();
+
+		OProfiler.getInstance().stopChrono("OTxSegment.recover", timer);
+
+		if (redone > 0 || undone > 0) {
+			OLogManager.instance().info(this, "Recovering successfully completed:");
+			OLogManager.instance().info(this, "- Redone Records......: " + redone);
+			OLogManager.instance().info(this, "- Rolled back Tx......: " + notCommittedTxs.size());
+			OLogManager.instance().info(this, "- Rolled back Records.: " + undone);
+		} else
+			OLogManager.instance().debug(this, "Recovering successfully completed: no records to recover.");
+	}
+
+	/**
+	 * Brings the record to the image after the change of the entry, unless the record is already in that state or it has been changed
+	 * later.
+	 *
+	 * @return true if the record has been restored
+	 */
+	private boolean redoEntry(final OTxLogEntry iEntry) throws IOException {
+		final OClusterLocal cluster = getLocalCluster(iEntry.clusterId);
+		if (cluster == null || !cluster.isAllocated(iEntry.clusterPosition)) {
+			OLogManager.instance().warn(this, "Can't redo the change of the record #%d:%d because its position was lost",
+					iEntry.clusterId, iEntry.clusterPosition);
+			return false;
+		}
+
+		final OPhysicalPosition ppos = cluster.getPhysicalPosition(iEntry.clusterPosition, new OPhysicalPosition());
+
+		switch (iEntry.operation) {
+		case OPERATION_CREATE:
+		case OPERATION_UPDATE:
+			final int version = iEntry.operation == OPERATION_CREATE ? 0 : iEntry.version + 1;
+
+			if (ppos.version > version)
+				// CHANGED AFTER THE COMMIT
+				return false;
+
+			if (ppos.version == version && isValidData(ppos, iEntry))
+				// ALREADY ON DISK
+				return false;
+
+			if (ppos.version < 0 && cluster.isHole(iEntry.clusterPosition))
+				// DELETED AFTER THE COMMIT
+				return false;
+
+			restoreRecord(cluster, ppos, iEntry, iEntry.redo, version);
+			return true;
+
+		case OPERATION_DELETE:
+			if (ppos.version != iEntry.version)
+				// ALREADY DELETED OR REUSED
+				return false;
+
+			removeRecord(cluster, ppos, iEntry);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Brings the record to the image before the change of the entry, unless it has been changed later.
+	 *
+	 * @return true if the record has been restored
+	 */
+	private boolean undoEntry(final OTxLogEntry iEntry) throws IOException {
+		final OClusterLocal cluster = getLocalCluster(iEntry.clusterId);
+		if (cluster == null || !cluster.isAllocated(iEntry.clusterPosition))
+			return false;
+
+		final OPhysicalPosition ppos = cluster.getPhysicalPosition(iEntry.clusterPosition, new OPhysicalPosition());
+
+		switch (iEntry.operation) {
+		case OPERATION_CREATE:
+			if (ppos.version > 0)
+				// CHANGED LATER
+				return false;
+
+			removeRecord(cluster, ppos, iEntry);
+			return true;
+
+		case OPERATION_UPDATE:
+			if (ppos.version > iEntry.version + 1 || iEntry.undo == null)
+				// CHANGED LATER
+				return false;
+
+			restoreRecord(cluster, ppos, iEntry, iEntry.undo, iEntry.version);
+			return true;
+
+		case OPERATION_DELETE:
+			if (ppos.version > -1 || iEntry.undo == null)
+				// POSITION REUSED
+				return false;
+
+			restoreRecord(cluster, ppos, iEntry, iEntry.undo, iEntry.version);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes the content as the record at the cluster position of the entry. The current data are overwritten only if they belong to
+	 * the record, otherwise a new record is created in the data segment.
+	 */
+	private void restoreRecord(final OClusterLocal iCluster, final OPhysicalPosition iPPosition, final OTxLogEntry iEntry,
+			final byte[] iContent, final int iVersion) throws IOException {
+		if (iContent == null)
+			return;
+
+		if (iPPosition.version > -1 && isValidData(iPPosition, iEntry)) {
+			// OVERWRITE THE CURRENT RECORD
+			final ODataLocal data = storage.getDataSegment(iPPosition.dataSegment);
+			final int oldSize = data.getRecordSize(iPPosition.dataPosition);
+			final long dataOffset = data.setRecord(iPPosition.dataPosition, iEntry.clusterId, iEntry.clusterPosition, iContent);
+			iCluster.getStatistics().recordUpdated(oldSize, iContent.length);
+
+			if (dataOffset != iPPosition.dataPosition || iPPosition.type != iEntry.recordType)
+				iCluster.setPhysicalPosition(iEntry.clusterPosition, iPPosition.dataSegment, dataOffset, iEntry.recordType);
+
+			iCluster.updateVersion(iEntry.clusterPosition, iVersion);
+			return;
+		}
+
+		final int dataSegment = iEntry.dataSegment > -1 && iEntry.dataSegment < storage.getDataSegments().length ? iEntry.dataSegment
+				: 0;
+		final long dataOffset = storage.getDataSegment(dataSegment).addRecord(iEntry.clusterId, iEntry.clusterPosition, iContent);
+
+		if (iPPosition.version < 0) {
+			iCluster.restorePhysicalPosition(iEntry.clusterPosition, dataSegment, dataOffset, iEntry.recordType, iVersion);
+			iCluster.getStatistics().recordCreated(iContent.length);
+		} else {
+			iCluster.setPhysicalPosition(iEntry.clusterPosition, dataSegment, dataOffset, iEntry.recordType);
+			iCluster.updateVersion(iEntry.clusterPosition, iVersion);
+		}
+	}
+
+	/**
+	 * Deletes the record at the cluster position of the entry. The data are released only if they belong to the record.
+	 */
+	private void removeRecord(final OClusterLocal iCluster, final OPhysicalPosition iPPosition, final OTxLogEntry iEntry)
+			throws IOException {
+		if (iPPosition.version < 0)
+			// ALREADY DELETED
+			return;
+
+		final boolean validData = isValidData(iPPosition, iEntry);
+
+		iCluster.removePhysicalPosition(iEntry.clusterPosition, iPPosition);
+
+		if (validData) {
+			final int size = storage.getDataSegment(iPPosition.dataSegment).deleteRecord(iPPosition.dataPosition);
+			if (size > -1)
+				iCluster.getStatistics().recordDeleted(size);
+		}
+	}
+
+	private boolean isValidData(final OPhysicalPosition iPPosition, final OTxLogEntry iEntry) throws IOException {
+		return iPPosition.dataSegment > -1 && iPPosition.dataSegment < storage.getDataSegments().length
+				&& storage.getDataSegment(iPPosition.dataSegment).isRecordOf(iPPosition.dataPosition, iEntry.clusterId, iEntry.clusterPosition);
+	}
+
+	private OClusterLocal getLocalCluster(final int iClusterId) {
+		if (iClusterId < 0)
+			return null;
+
+		final OCluster cluster;
+		try {
+			cluster = storage.getClusterById(iClusterId);
+		} catch (RuntimeException e) {
+			return null;
+		}
+
+		return cluster instanceof OClusterLocal ? (OClusterLocal) cluster : null;
+	}
+
+	/**
+	 * Recovers the log written by the previous releases, made of 26 bytes entries without the images of the records.
+	 */
+	private void recoverLegacyTransactions() throws IOException {
+		OLogManager.instance().debug(
+				this,
+				"Started the recovering of pending transactions after a brute shutdown. Found " + file.getFilledUpTo() / LEGACY_RECORD_SIZE
 						+ " entry logs. Scanning...");
 
 		int recoveredTxs = 0;
@@ -242,9 +900,6 @@ public class OTxSegment extends OSingleFileSegment {
 			}
 		}
 
-		// EMPTY THE FILE
-		file.shrink(0);
-
 		if (recoveredRecords > 0) {
 			OLogManager.instance().info(this, "Recovering successfully completed:");
 			OLogManager.instance().info(this, "- Recovered Tx.....: " + recoveredTxs);
@@ -259,15 +914,15 @@ public class OTxSegment extends OSingleFileSegment {
 		int reqId;
 		int txId;
 
-		int offset;
+		long offset;
 
 		// SCAN ALL THE FILE SEARCHING FOR THE TRANSACTIONS TO RECOVER
 		Map<Integer, Integer> txToRecover = new HashMap<Integer, Integer>();
 		Map<Integer, Integer> txToNotRecover = new HashMap<Integer, Integer>();
 
-		int size = (file.getFilledUpTo() / RECORD_SIZE);
+		int size = (int) (file.getFilledUpTo() / LEGACY_RECORD_SIZE);
 		for (int i = 0; i < size; ++i) {
-			offset = i * RECORD_SIZE;
+			offset = (long) i * LEGACY_RECORD_SIZE;
 
 			status = file.readByte(offset);
 			offset += OConstants.SIZE_BYTE;
@@ -276,7 +931,7 @@ public class OTxSegment extends OSingleFileSegment {
 			reqId = file.readShort(offset);
 			offset += OConstants.SIZE_SHORT;
 
-			txId = file.readShort(offset);
+			txId = file.readInt(offset);
 
 			switch (status) {
 			case STATUS_FREE:
@@ -306,12 +961,12 @@ public class OTxSegment extends OSingleFileSegment {
 	}
 
 	/**
-	 * Recover a transaction.
-	 * 
+	 * Recover a transaction of the log written by the previous releases.
+	 *
 	 * @param iReqId
 	 * @param iTxId
 	 * @return Number of records recovered
-	 * 
+	 *
 	 * @throws IOException
 	 */
 	private int recoverTransaction(int iReqId, int iTxId) throws IOException {
@@ -323,14 +978,14 @@ public class OTxSegment extends OSingleFileSegment {
 		long clusterOffset;
 		long oldDataOffset;
 
-		int offset;
+		long offset;
 		OPhysicalPosition ppos = new OPhysicalPosition();
 
-		int size = (file.getFilledUpTo() / RECORD_SIZE);
+		int size = (int) (file.getFilledUpTo() / LEGACY_RECORD_SIZE);
 		int recordsRecovered = 0;
 
 		for (int i = 0; i < size; ++i) {
-			offset = i * RECORD_SIZE;
+			offset = (long) i * LEGACY_RECORD_SIZE;
 
 			status = file.readByte(offset);
 			offset += OConstants.SIZE_BYTE;
@@ -364,7 +1019,7 @@ public class OTxSegment extends OSingleFileSegment {
 						recordsRecovered++;
 
 						// CLEAR THE ENTRY BY WRITING '0'
-						file.writeByte(i * RECORD_SIZE + OConstants.SIZE_SHORT + OConstants.SIZE_INT, STATUS_FREE);
+						file.writeByte((long) i * LEGACY_RECORD_SIZE, STATUS_FREE);
 					}
 				}
 			}
@@ -400,7 +1055,6 @@ public class OTxSegment extends OSingleFileSegment {
 			cluster.getPhysicalPosition(clusterOffset, ppos);
 
 			long newPosition = ppos.dataPosition;
-			int newSize = ppos.recordSize;
 
 			// REPLACE THE POSITION OF THE OLD RECORD
 			ppos.dataPosition = oldDataOffset;
@@ -408,8 +1062,8 @@ public class OTxSegment extends OSingleFileSegment {
 			// UPDATE THE PPOS WITH THE COORDS OF THE OLD RECORD
 			storage.getClusterById(clusterId).setPhysicalPosition(clusterOffset, ppos.dataSegment, oldDataOffset, ppos.type);
 
-			// CREATE A HOLE
-			storage.getDataSegment(ppos.dataSegment).createHole(newPosition, newSize);
+			// DELETE THE NEW RECORD CREATING A HOLE OF ITS REAL SIZE
+			storage.getDataSegment(ppos.dataSegment).deleteRecord(newPosition);
 			break;
 
 		case OPERATION_DELETE:
@@ -425,13 +1079,116 @@ public class OTxSegment extends OSingleFileSegment {
 		}
 	}
 
-	private void synchRecord() {
-		if (((OStorageTxConfiguration) config).isSynchRecord())
-			file.synch();
+	/**
+	 * Schedules a checkpoint in background because the log reached the "tx.log.checkpointSize" setting, if not already scheduled.
+	 */
+	private void scheduleCheckpoint() {
+		if (checkpointScheduled)
+			return;
+
+		checkpointScheduled = true;
+
+		Orient.getTimer().schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					executeCheckpoint();
+				} finally {
+					checkpointScheduled = false;
+				}
+			}
+		}, 0);
 	}
 
-	private void synchTx() {
-		if (((OStorageTxConfiguration) config).isSynchTx())
-			file.synch();
+	/**
+	 * Executes the checkpoint from a background thread.
+	 */
+	private void executeCheckpoint() {
+		if (storage.isClosed() || lastLsn <= checkpointLsn)
+			return;
+
+		// REGISTER AS USER TO LOCK THE STORAGE AGAINST THE OTHER THREADS
+		storage.getLock().addUser();
+		try {
+			checkpoint();
+		} catch (Exception e) {
+			OLogManager.instance().error(this, "Error on checkpoint of the transaction log", e);
+		} finally {
+			storage.getLock().removeUser();
+		}
+	}
+
+	/**
+	 * Schedules the background synch of the log if the "interval" mode is configured and the periodic checkpoint.
+	 */
+	private void startTasks() {
+		if (storage.getMode().equals("r"))
+			return;
+
+		if (SYNCH_INTERVAL.equals(synchMode) && ((OStorageTxConfiguration) config).isSynchTx() && synchTask == null) {
+			final int interval = OGlobalConfiguration.TX_LOG_SYNCH_INTERVAL.getValueAsInteger();
+
+			synchTask = new TimerTask() {
+				@Override
+				public void run() {
+					final long lsn = lastLsn;
+
+					synchronized (synchLock) {
+						if (synchedLsn >= lsn || storage.isClosed())
+							// NOTHING TO SYNCH
+							return;
+					}
+
+					// REGISTER AS USER TO LOCK THE STORAGE AGAINST THE OTHER THREADS
+					storage.getLock().addUser();
+					try {
+						synch(lsn);
+					} catch (Exception e) {
+						OLogManager.instance().error(this, "Error on synchronizing the transaction log", e);
+					} finally {
+						storage.getLock().removeUser();
+					}
+				}
+			};
+
+			Orient.getTimer().schedule(synchTask, interval, interval);
+		}
+
+		final int checkpointInterval = OGlobalConfiguration.TX_LOG_CHECKPOINT_INTERVAL.getValueAsInteger();
+		if (checkpointInterval > 0 && checkpointTask == null) {
+			checkpointTask = new TimerTask() {
+				@Override
+				public void run() {
+					executeCheckpoint();
+				}
+			};
+
+			Orient.getTimer().schedule(checkpointTask, checkpointInterval, checkpointInterval);
+		}
+	}
+
+	private static Long getTxKey(final int iReqId, final int iTxId) {
+		return ((long) (short) iReqId << 32) | (iTxId & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Entry of the log read from the file.
+	 */
+	private static class OTxLogEntry {
+		long		offset;
+		byte[]	content;
+		byte		status;
+		byte		operation;
+		int			reqId;
+		int			txId;
+		int			clusterId;
+		long		clusterPosition;
+		int			dataSegment;
+		long		dataOffset;
+		byte		recordType;
+		int			version;
+		long		lsn;
+		byte[]	undo;
+		byte[]	redo;
 	}
 }
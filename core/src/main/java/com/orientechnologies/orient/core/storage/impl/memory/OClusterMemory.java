@@ -16,21 +16,56 @@
 package com.orientechnologies.orient.core.storage.impl.memory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.orientechnologies.common.concur.resource.OSharedResource;
 import com.orientechnologies.orient.core.storage.OCluster;
 import com.orientechnologies.orient.core.storage.OClusterPositionIterator;
+import com.orientechnologies.orient.core.storage.OClusterStatistics;
 import com.orientechnologies.orient.core.storage.OPhysicalPosition;
 
+/**
+ * Memory implementation of cluster. The entries are kept in parallel arrays of primitives instead of one OPhysicalPosition object
+ * per record: 16 bytes per entry without object headers and references to follow for the Garbage Collector. The arrays grow by
+ * half of their size when full. Removed entries are marked by the version.<br/>
+ * Writers are synchronized on the cluster. Readers never lock: every write changes the stamp of the stripe of the position before
+ * and after the change, and the reader retries if the stamp changed while it was reading the entry.<br/>
+ * The OPhysicalPosition objects returned are copies: changes must be applied by the setter methods.
+ */
 public class OClusterMemory extends OSharedResource implements OCluster {
-	public static final String			TYPE		= "MEMORY";
+	public static final String			TYPE				= "MEMORY";
+
+	private static final int				DEF_SIZE		= 16;
+	private static final int				REMOVED			= Integer.MIN_VALUE;
+	private static final int				STRIPES			= 64;
 
 	private int											id;
 	private String									name;
-	private List<OPhysicalPosition>	entries	= new ArrayList<OPhysicalPosition>();
-	private int											removed	= 0;
+	private volatile OEntries				entries			= new OEntries(DEF_SIZE);
+	private volatile int						size				= 0;
+	private volatile int						removed			= 0;
+	private final AtomicIntegerArray	stamps			= new AtomicIntegerArray(STRIPES);
+	private final OClusterStatistics	statistics	= new OClusterStatistics();
+
+	/**
+	 * Arrays of the entries. The data segment and the record type share the same int to be read and written together.
+	 */
+	private static class OEntries {
+		final AtomicIntegerArray	segmentsAndTypes;
+		final AtomicLongArray			dataPositions;
+		final AtomicIntegerArray	versions;
+
+		OEntries(final int iSize) {
+			segmentsAndTypes = new AtomicIntegerArray(iSize);
+			dataPositions = new AtomicLongArray(iSize);
+			versions = new AtomicIntegerArray(iSize);
+		}
+
+		int length() {
+			return versions.length();
+		}
+	}
 
 	public OClusterMemory(final int id, final String name) {
 		this.id = id;
@@ -45,9 +80,8 @@ public class OClusterMemory extends OSharedResource implements OCluster {
 		return new OClusterPositionIterator(this, iBeginRange, iEndRange);
 	}
 
-	public void close() {
-		entries.clear();
-		removed = 0;
+	public synchronized void close() {
+		clear();
 	}
 
 	public void open() throws IOException {
@@ -58,24 +92,27 @@ public class OClusterMemory extends OSharedResource implements OCluster {
 
 	public void delete() throws IOException {
 		close();
-		entries.clear();
 	}
 
-	public void truncate() throws IOException {
-		entries.clear();
-		removed = 0;
+	public synchronized void truncate() throws IOException {
+		clear();
+		statistics.reset();
+	}
+
+	public OClusterStatistics getStatistics() {
+		return statistics;
 	}
 
 	public long getEntries() {
-		return entries.size() - removed;
+		return size - removed;
 	}
 
 	public long getFirstEntryPosition() {
-		return entries.size() == 0 ? -1 : 0;
+		return size == 0 ? -1 : 0;
 	}
 
 	public long getLastEntryPosition() {
-		return entries.size() - 1;
+		return size - 1;
 	}
 
 	public int getId() {
@@ -87,37 +124,136 @@ public class OClusterMemory extends OSharedResource implements OCluster {
 	}
 
 	public long getAvailablePosition() throws IOException {
-		return entries.size();
+		return size;
 	}
 
-	public long addPhysicalPosition(final int iDataSegmentId, final long iRecordPosition, final byte iRecordType) {
-		entries.add(new OPhysicalPosition(iDataSegmentId, iRecordPosition, iRecordType));
-		return entries.size() - 1;
+	public synchronized long addPhysicalPosition(final int iDataSegmentId, final long iRecordPosition, final byte iRecordType) {
+		final int pos = size;
+		if (pos == entries.length())
+			grow();
+
+		// THE ENTRY IS NOT VISIBLE TO THE READERS UNTIL THE SIZE IS INCREMENTED
+		final OEntries e = entries;
+		e.segmentsAndTypes.set(pos, pack(iDataSegmentId, iRecordType));
+		e.dataPositions.set(pos, iRecordPosition);
+		e.versions.set(pos, 0);
+		size = pos + 1;
+		return pos;
 	}
 
-	public void updateRecordType(final long iPosition, final byte iRecordType) throws IOException {
-		entries.get((int) iPosition).type = iRecordType;
+	public synchronized void updateRecordType(final long iPosition, final byte iRecordType) throws IOException {
+		final int pos = checkPosition(iPosition);
+		final OEntries e = entries;
+
+		beginWrite(pos);
+		e.segmentsAndTypes.set(pos, pack(getDataSegment(e.segmentsAndTypes.get(pos)), iRecordType));
+		endWrite(pos);
 	}
 
-	public void updateVersion(long iPosition, int iVersion) throws IOException {
-		entries.get((int) iPosition).version = iVersion;
+	public synchronized void updateVersion(long iPosition, int iVersion) throws IOException {
+		final int pos = checkPosition(iPosition);
+
+		beginWrite(pos);
+		entries.versions.set(pos, iVersion);
+		endWrite(pos);
 	}
 
-	public OPhysicalPosition getPhysicalPosition(final long iPosition, final OPhysicalPosition iPPosition) {
-		return entries.get((int) iPosition);
+	public OPhysicalPosition getPhysicalPosition(final long iPosition, OPhysicalPosition iPPosition) {
+		if (iPosition < 0 || iPosition >= size)
+			return null;
+
+		final int pos = (int) iPosition;
+		final int stripe = pos & (STRIPES - 1);
+
+		int stamp;
+		int segmentAndType;
+		long dataPosition;
+		int version;
+		while (true) {
+			stamp = stamps.get(stripe);
+			if ((stamp & 1) == 1)
+				// WRITE IN PROGRESS
+				continue;
+
+			final OEntries e = entries;
+			if (pos >= e.length())
+				// TRUNCATED IN THE MEANWHILE
+				return null;
+
+			segmentAndType = e.segmentsAndTypes.get(pos);
+			dataPosition = e.dataPositions.get(pos);
+			version = e.versions.get(pos);
+
+			if (stamps.get(stripe) == stamp)
+				break;
+		}
+
+		if (version == REMOVED)
+			return null;
+
+		if (iPPosition == null)
+			iPPosition = new OPhysicalPosition();
+
+		iPPosition.dataSegment = getDataSegment(segmentAndType);
+		iPPosition.dataPosition = dataPosition;
+		iPPosition.type = (byte) segmentAndType;
+		iPPosition.version = version;
+		return iPPosition;
 	}
 
-	public void removePhysicalPosition(final long iPosition, OPhysicalPosition iPPosition) {
-		if (entries.set((int) iPosition, null) != null)
+	public int getPhysicalPositions(final long iPosition, final OPhysicalPosition[] ioPPositions) {
+		final int last = size;
+
+		int count = 0;
+		OPhysicalPosition ppos;
+		for (long position = iPosition; count < ioPPositions.length && position < last; ++position, ++count) {
+			if (ioPPositions[count] == null)
+				ioPPositions[count] = new OPhysicalPosition();
+
+			ppos = getPhysicalPosition(position, ioPPositions[count]);
+			if (ppos == null)
+				ioPPositions[count] = null;
+		}
+		return count;
+	}
+
+	public synchronized void removePhysicalPosition(final long iPosition, OPhysicalPosition iPPosition) {
+		final int pos = checkPosition(iPosition);
+		if (entries.versions.get(pos) != REMOVED) {
+			beginWrite(pos);
+			entries.versions.set(pos, REMOVED);
+			endWrite(pos);
+
 			// ADD A REMOVED
 			removed++;
+		}
+	}
+
+	public synchronized void setPhysicalPosition(final long iPosition, final int iDataId, final long iDataPosition,
+			final byte iRecordType) {
+		final int pos = checkPosition(iPosition);
+		final OEntries e = entries;
+
+		beginWrite(pos);
+		e.segmentsAndTypes.set(pos, pack(iDataId, iRecordType));
+		e.dataPositions.set(pos, iDataPosition);
+		endWrite(pos);
 	}
 
-	public void setPhysicalPosition(final long iPosition, final int iDataId, final long iDataPosition, final byte iRecordType) {
-		final OPhysicalPosition ppos = entries.get((int) iPosition);
-		ppos.dataSegment = iDataId;
-		ppos.dataPosition = iDataPosition;
-		ppos.type = iRecordType;
+	/**
+	 * Changes the position of the record content and the version at once, so the readers never see the new content with the old
+	 * version.
+	 */
+	public synchronized void setPhysicalPosition(final long iPosition, final int iDataId, final long iDataPosition,
+			final byte iRecordType, final int iVersion) {
+		final int pos = checkPosition(iPosition);
+		final OEntries e = entries;
+
+		beginWrite(pos);
+		e.segmentsAndTypes.set(pos, pack(iDataId, iRecordType));
+		e.dataPositions.set(pos, iDataPosition);
+		e.versions.set(pos, iVersion);
+		endWrite(pos);
 	}
 
 	public void synch() {
@@ -137,6 +273,50 @@ public class OClusterMemory extends OSharedResource implements OCluster {
 
 	@Override
 	public String toString() {
-		return "OClusterMemory [name=" + name + ", id=" + id + ", entries=" + entries.size() + ", removed=" + removed + "]";
+		return "OClusterMemory [name=" + name + ", id=" + id + ", entries=" + size + ", removed=" + removed + "]";
+	}
+
+	private void beginWrite(final int iPosition) {
+		// ODD STAMP: THE READERS OF THE STRIPE WAIT THE END OF THE WRITE
+		stamps.incrementAndGet(iPosition & (STRIPES - 1));
+	}
+
+	private void endWrite(final int iPosition) {
+		stamps.incrementAndGet(iPosition & (STRIPES - 1));
+	}
+
+	private int checkPosition(final long iPosition) {
+		if (iPosition < 0 || iPosition >= size)
+			throw new IndexOutOfBoundsException("Position " + iPosition + " is out of the range of the cluster " + name + ": 0-"
+					+ (size - 1));
+		return (int) iPosition;
+	}
+
+	private static int pack(final int iDataSegment, final byte iRecordType) {
+		return iDataSegment << 8 | (iRecordType & 0xFF);
+	}
+
+	private static int getDataSegment(final int iSegmentAndType) {
+		return iSegmentAndType >> 8;
+	}
+
+	private void grow() {
+		final OEntries old = entries;
+		final OEntries e = new OEntries(old.length() + (old.length() >> 1));
+
+		for (int i = 0; i < size; ++i) {
+			e.segmentsAndTypes.set(i, old.segmentsAndTypes.get(i));
+			e.dataPositions.set(i, old.dataPositions.get(i));
+			e.versions.set(i, old.versions.get(i));
+		}
+
+		// THE VALUES CAN'T CHANGE DURING THE COPY SINCE THE WRITERS ARE SYNCHRONIZED
+		entries = e;
+	}
+
+	private void clear() {
+		size = 0;
+		removed = 0;
+		entries = new OEntries(DEF_SIZE);
 	}
 }
@@ -15,37 +15,369 @@
  */
 package com.orientechnologies.orient.core.storage.impl.memory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+
+/**
+ * Memory implementation of data segment. The content of the records is copied in pages of "storage.memory.pageSize" bytes
+ * allocated as an arena: the Garbage Collector sees a few big arrays instead of one array per record, or nothing at all if
+ * "storage.memory.offHeap" is true since the pages are direct buffers. The space is reserved in chunks rounded to size classes
+ * that waste at most 12.5% of the space. Every chunk starts with the size of the content. The chunks of deleted records are reused
+ * by the next records of the same class. Chunks bigger than a quarter of the page have a dedicated page freed on delete.<br/>
+ * The position of a record is the index of its slot in the array with the addresses of the chunks. The slots of the deleted
+ * records are reused.<br/>
+ * Writers are synchronized. Readers never lock: a chunk is never changed once written, the updates write the content in a new
+ * slot. The deleted chunks and slots are retired and reused only after all the readers that could see them have finished: every
+ * reader is counted in the epoch it started, the writer switches the epoch and waits for the readers of the previous one.
+ */
 public class ODataSegmentMemory {
-	private List<byte[]>	entries	= new ArrayList<byte[]>();
+	private static final int									MIN_CHUNK					= 16;
+	private static final int									DEF_SLOTS					= 16;
+	private static final long									FREE							= -1;
+	private static final int									HEADER_SIZE				= 4;
+	private static final int									STRIPES						= 32;
+	private static final int									PADDING						= 16;
+	private static final int									RECLAIM_THRESHOLD	= 256;
+
+	private final int													pageSize;
+	private final boolean											offHeap;
+
+	private volatile ByteBuffer[]							pages;
+	private int																pageCount;
+	private final OIntStack										freePages					= new OIntStack();
+	private int																currentPage;
+	private int																currentOffset;
+	private final Map<Integer, OLongStack>	freeChunks				= new HashMap<Integer, OLongStack>();
+
+	private volatile AtomicLongArray					slots;
+	private volatile int											slotCount;
+	private final OIntStack										freeSlots					= new OIntStack();
+
+	private volatile int											epoch;
+	private final AtomicIntegerArray					readers						= new AtomicIntegerArray(2 * STRIPES * PADDING);
+	private final OLongStack									retiredChunks			= new OLongStack();
+	private final OIntStack										retiredSlots			= new OIntStack();
+
+	private static class OIntStack {
+		private int[]	items	= new int[16];
+		private int		size;
+
+		void push(final int iValue) {
+			if (size == items.length) {
+				final int[] newItems = new int[size << 1];
+				System.arraycopy(items, 0, newItems, 0, size);
+				items = newItems;
+			}
+			items[size++] = iValue;
+		}
+
+		int pop() {
+			return size == 0 ? -1 : items[--size];
+		}
+	}
+
+	private static class OLongStack {
+		private long[]	items	= new long[16];
+		private int			size;
+
+		void push(final long iValue) {
+			if (size == items.length) {
+				final long[] newItems = new long[size << 1];
+				System.arraycopy(items, 0, newItems, 0, size);
+				items = newItems;
+			}
+			items[size++] = iValue;
+		}
+
+		long pop() {
+			return size == 0 ? FREE : items[--size];
+		}
+	}
 
 	public ODataSegmentMemory() {
+		pageSize = Math.max(OGlobalConfiguration.STORAGE_MEMORY_PAGE_SIZE.getValueAsInteger(), MIN_CHUNK * 4);
+		offHeap = OGlobalConfiguration.STORAGE_MEMORY_OFF_HEAP.getValueAsBoolean();
+		clear();
 	}
 
-	public void close() {
-		entries.clear();
+	/**
+	 * Releases the content. Like the deleted records, the pages are released only after the readers that could still see them have
+	 * finished.
+	 */
+	public synchronized void close() {
+		// UNLINK ALL THE RECORDS BEFORE TO SWITCH THE EPOCH
+		slotCount = 0;
+		slots = newSlots(DEF_SLOTS);
+		waitForReaders();
+		clear();
 	}
 
 	public int size() {
-		return entries.size();
+		return slotCount;
 	}
 
-	public long createRecord(byte[] iContent) {
-		entries.add(iContent);
-		return entries.size() - 1;
+	public synchronized long createRecord(final byte[] iContent) {
+		int slot = freeSlots.pop();
+		if (slot == -1) {
+			if (slotCount == slots.length())
+				growSlots();
+			slot = slotCount;
+		}
+
+		// WRITE THE CONTENT BEFORE TO PUBLISH THE ADDRESS
+		slots.set(slot, write(iContent));
+
+		if (slot == slotCount)
+			slotCount = slot + 1;
+
+		return slot;
 	}
 
-	public void deleteRecord(final long iRecordPosition) {
-		entries.set((int) iRecordPosition, null);
+	/**
+	 * Deletes the record.
+	 *
+	 * @return The size of the deleted content, or -1 if the record was already deleted
+	 */
+	public synchronized int deleteRecord(final long iRecordPosition) {
+		final int slot = (int) iRecordPosition;
+		final long address = slots.get(slot);
+		if (address == FREE)
+			return -1;
+
+		final int size = getBuffer(address).getInt();
+		slots.set(slot, FREE);
+		retire(address, slot);
+		return size;
+	}
+
+	/**
+	 * Returns the size of the record content, or -1 if the record is deleted.
+	 */
+	public int getRecordSize(final long iRecordPosition) {
+		final int counter = enter();
+		try {
+			final long address = slots.get((int) iRecordPosition);
+			return address == FREE ? -1 : getBuffer(address).getInt();
+
+		} finally {
+			exit(counter);
+		}
 	}
 
 	public byte[] readRecord(final long iRecordPosition) {
-		return entries.get((int) iRecordPosition);
+		final int counter = enter();
+		try {
+			final AtomicLongArray s = slots;
+			final int slot = (int) iRecordPosition;
+			if (slot < 0 || slot >= s.length())
+				return null;
+
+			final long address = s.get(slot);
+			if (address == FREE)
+				return null;
+
+			final ByteBuffer buffer = getBuffer(address);
+			final byte[] content = new byte[buffer.getInt()];
+			buffer.get(content);
+			return content;
+
+		} finally {
+			exit(counter);
+		}
+	}
+
+	/**
+	 * Writes the new content of the record in a new slot and deletes the old one.
+	 *
+	 * @return The new position of the record
+	 */
+	public synchronized long updateRecord(final long iRecordPosition, final byte[] iContent) {
+		final long newPosition = createRecord(iContent);
+		deleteRecord(iRecordPosition);
+		return newPosition;
+	}
+
+	/**
+	 * Returns the size of the chunk that hosts a content of the requested size.
+	 */
+	private static int getChunkSize(final int iSize) {
+		if (iSize <= MIN_CHUNK)
+			return MIN_CHUNK;
+
+		// ROUND TO AN EIGHTH OF THE HIGHEST POWER OF 2 LOWER THAN THE SIZE, AT LEAST TO 8 BYTES
+		final int step = Math.max(Integer.highestOneBit(iSize - 1) >> 3, 8);
+		return (iSize + step - 1) / step * step;
+	}
+
+	/**
+	 * Enters the reading of a chunk counting the reader in the current epoch.
+	 *
+	 * @return The counter to pass to exit()
+	 */
+	private int enter() {
+		final int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+		while (true) {
+			final int e = epoch;
+			final int counter = e * STRIPES * PADDING + stripe;
+			readers.incrementAndGet(counter);
+
+			if (epoch == e)
+				return counter;
+
+			// THE EPOCH IS CHANGED IN THE MEANWHILE: THE WRITER COULD HAVE ALREADY CHECKED THE COUNTER
+			readers.decrementAndGet(counter);
+		}
+	}
+
+	private void exit(final int iCounter) {
+		readers.decrementAndGet(iCounter);
 	}
 
-	public void updateRecord(final long iRecordPosition, final byte[] iContent) {
-		entries.set((int) iRecordPosition, iContent);
+	private void retire(final long iAddress, final int iSlot) {
+		retiredChunks.push(iAddress);
+		retiredSlots.push(iSlot);
+
+		if (retiredSlots.size >= RECLAIM_THRESHOLD)
+			reclaim();
+	}
+
+	/**
+	 * Switches the epoch, waits for the readers of the previous one and reuses the retired chunks and slots.
+	 */
+	private void reclaim() {
+		waitForReaders();
+
+		long address;
+		while ((address = retiredChunks.pop()) != FREE)
+			release(address);
+
+		int slot;
+		while ((slot = retiredSlots.pop()) != -1)
+			freeSlots.push(slot);
+	}
+
+	/**
+	 * Switches the epoch and waits for the readers of the previous one: the readers that start after can't see what was unlinked
+	 * before.
+	 */
+	private void waitForReaders() {
+		final int previous = epoch;
+		epoch = 1 - previous;
+
+		final int begin = previous * STRIPES * PADDING;
+		for (int i = begin; i < begin + STRIPES * PADDING; i += PADDING)
+			while (readers.get(i) != 0)
+				Thread.yield();
+	}
+
+	private long write(final byte[] iContent) {
+		final int chunk = getChunkSize(HEADER_SIZE + iContent.length);
+		final long address = allocate(chunk);
+
+		final ByteBuffer buffer = getBuffer(address);
+		buffer.putInt(iContent.length);
+		buffer.put(iContent);
+		return address;
+	}
+
+	private long allocate(final int iChunk) {
+		if (isDedicated(iChunk))
+			return (long) newPage(iChunk) << 32;
+
+		final OLongStack free = freeChunks.get(iChunk);
+		if (free != null) {
+			final long address = free.pop();
+			if (address != FREE)
+				// REUSE THE CHUNK OF A DELETED RECORD
+				return address;
+		}
+
+		if (currentPage == -1 || currentOffset + iChunk > pageSize) {
+			// THE REST OF THE PAGE IS LOST
+			currentPage = newPage(pageSize);
+			currentOffset = 0;
+		}
+
+		final long address = (long) currentPage << 32 | currentOffset;
+		currentOffset += iChunk;
+		return address;
+	}
+
+	private void release(final long iAddress) {
+		final int chunk = getChunkSize(HEADER_SIZE + getBuffer(iAddress).getInt());
+
+		if (isDedicated(chunk)) {
+			final int page = (int) (iAddress >>> 32);
+			pages[page] = null;
+			freePages.push(page);
+			return;
+		}
+
+		OLongStack free = freeChunks.get(chunk);
+		if (free == null) {
+			free = new OLongStack();
+			freeChunks.put(chunk, free);
+		}
+		free.push(iAddress);
+	}
+
+	private boolean isDedicated(final int iChunk) {
+		return iChunk > pageSize >> 2;
+	}
+
+	private int newPage(final int iSize) {
+		int page = freePages.pop();
+		if (page == -1) {
+			if (pageCount == pages.length) {
+				final ByteBuffer[] newPages = new ByteBuffer[pageCount << 1];
+				System.arraycopy(pages, 0, newPages, 0, pageCount);
+				pages = newPages;
+			}
+			page = pageCount++;
+		}
+
+		pages[page] = offHeap ? ByteBuffer.allocateDirect(iSize) : ByteBuffer.allocate(iSize);
+		return page;
+	}
+
+	private ByteBuffer getBuffer(final long iAddress) {
+		// DUPLICATE THE PAGE TO HAVE A PRIVATE POSITION
+		final ByteBuffer buffer = pages[(int) (iAddress >>> 32)].duplicate();
+		buffer.position((int) iAddress);
+		return buffer;
+	}
+
+	private void growSlots() {
+		final AtomicLongArray newSlots = newSlots(slotCount + (slotCount >> 1));
+		for (int i = 0; i < slotCount; ++i)
+			newSlots.set(i, slots.get(i));
+		slots = newSlots;
+	}
+
+	private static AtomicLongArray newSlots(final int iSize) {
+		final AtomicLongArray result = new AtomicLongArray(iSize);
+		for (int i = 0; i < iSize; ++i)
+			result.set(i, FREE);
+		return result;
+	}
+
+	private void clear() {
+		slotCount = 0;
+		slots = newSlots(DEF_SLOTS);
+		freeSlots.size = 0;
+		retiredChunks.size = 0;
+		retiredSlots.size = 0;
+
+		pages = new ByteBuffer[16];
+		pageCount = 0;
+		freePages.size = 0;
+		currentPage = -1;
+		currentOffset = 0;
+		freeChunks.clear();
 	}
 }
@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.orientechnologies.common.profiler.OProfiler;
 import com.orientechnologies.orient.core.command.OCommandRequestText;
@@ -48,15 +49,17 @@ import com.orientechnologies.orient.core.tx.OTransactionEntry;
  * Memory implementation of storage. This storage works only in memory and has the following features:
  * <ul>
  * <li>The name is "Memory"</li>
- * <li>Has a unique Data Segment</li>
+ * <li>Has a data segment per cluster, so the writers of different clusters never wait each other</li>
  * </ul>
+ * The records are read without locking: the readers validate the content read against the cluster entry and retry if the record
+ * was changed in the meanwhile.
  * 
  * @author Luca Garulli
  * 
  */
 public class OStorageMemory extends OStorageAbstract {
-	private final ODataSegmentMemory		data							= new ODataSegmentMemory();
-	private final List<OClusterMemory>	clusters					= new ArrayList<OClusterMemory>();
+	private final List<OClusterMemory>			clusters					= new CopyOnWriteArrayList<OClusterMemory>();
+	private final List<ODataSegmentMemory>	dataSegments			= new CopyOnWriteArrayList<ODataSegmentMemory>();
 	private int													defaultClusterId	= 0;
 
 	public OStorageMemory(final String iURL) {
@@ -88,6 +91,8 @@ public class OStorageMemory extends OStorageAbstract {
 			configuration = new OStorageConfiguration(this);
 			configuration.create(0);
 
+			cache.registerProfilerHooks("storage." + name + ".cache.");
+
 			open = true;
 		} catch (IOException e) {
 		} finally {
@@ -102,11 +107,16 @@ public class OStorageMemory extends OStorageAbstract {
 
 			// CLOSE ALL THE CLUSTERS
 			for (OClusterMemory c : clusters)
-				c.close();
+				if (c != null)
+					c.close();
 			clusters.clear();
 
-			// CLOSE THE DATA SEGMENT
-			data.close();
+			// CLOSE THE DATA SEGMENTS
+			for (ODataSegmentMemory d : dataSegments)
+				d.close();
+			dataSegments.clear();
+
+			cache.unregisterProfilerHooks("storage." + name + ".cache.");
 
 			open = false;
 		} finally {
@@ -123,6 +133,7 @@ public class OStorageMemory extends OStorageAbstract {
 		final boolean locked = lock.acquireExclusiveLock();
 		try {
 
+			dataSegments.add(new ODataSegmentMemory());
 			clusters.add(new OClusterMemory(clusters.size(), iClusterName));
 			return clusters.size() - 1;
 		} finally {
@@ -135,9 +146,12 @@ public class OStorageMemory extends OStorageAbstract {
 		final boolean locked = lock.acquireExclusiveLock();
 		try {
 
+			// UNLINK THE CLUSTER BEFORE TO RELEASE IT: CLOSING THE DATA SEGMENT WAITS FOR THE READERS STILL USING IT
 			OCluster c = clusters.get(iClusterId);
-			c.delete();
 			clusters.set(iClusterId, null);
+			c.delete();
+
+			dataSegments.get(iClusterId).close();
 
 		} catch (IOException e) {
 		} finally {
@@ -160,13 +174,17 @@ public class OStorageMemory extends OStorageAbstract {
 	public long createRecord(final int iClusterId, final byte[] iContent, final byte iRecordType) {
 		final long timer = OProfiler.getInstance().startChrono();
 
+		final OCluster cluster = getClusterById(iClusterId);
+
 		final boolean locked = lock.acquireSharedLock();
 		try {
 
-			final long offset = data.createRecord(iContent);
-			final OCluster cluster = getClusterById(iClusterId);
-
-			return cluster.addPhysicalPosition(0, offset, iRecordType);
+			synchronized (cluster) {
+				final long offset = dataSegments.get(iClusterId).createRecord(iContent);
+				final long clusterPosition = cluster.addPhysicalPosition(0, offset, iRecordType);
+				cluster.getStatistics().recordCreated(iContent.length);
+				return clusterPosition;
+			}
 		} catch (IOException e) {
 			throw new OStorageException("Error on create record in cluster: " + iClusterId, e);
 
@@ -178,23 +196,31 @@ public class OStorageMemory extends OStorageAbstract {
 
 	public ORawBuffer readRecord(final ODatabaseRecord<?> iDatabase, final int iRequesterId, final int iClusterId,
 			final long iClusterPosition, String iFetchPlan) {
-		final OCluster cluster = getClusterById(iClusterId);
+		final OClusterMemory cluster = getClusterMemory(iClusterId);
 
 		final long timer = OProfiler.getInstance().startChrono();
 
-		final boolean locked = lock.acquireSharedLock();
 		try {
-			final OPhysicalPosition ppos = cluster.getPhysicalPosition(iClusterPosition, new OPhysicalPosition());
+			final ODataSegmentMemory data = dataSegments.get(iClusterId);
 
-			if (ppos == null)
-				return null;
+			OPhysicalPosition ppos = cluster.getPhysicalPosition(iClusterPosition, new OPhysicalPosition());
+			OPhysicalPosition check;
+			byte[] content;
 
-			return new ORawBuffer(data.readRecord(ppos.dataPosition), ppos.version, ppos.type);
-		} catch (IOException e) {
-			throw new OStorageException("Error on read record in cluster: " + iClusterId, e);
+			while (ppos != null) {
+				content = data.readRecord(ppos.dataPosition);
+
+				// CHECK THE RECORD WASN'T CHANGED OR DELETED WHILE READING THE CONTENT, OTHERWISE RETRY
+				check = cluster.getPhysicalPosition(iClusterPosition, new OPhysicalPosition());
+				if (content != null && check != null && check.dataPosition == ppos.dataPosition && check.version == ppos.version)
+					return new ORawBuffer(content, ppos.version, ppos.type);
+
+				ppos = check;
+			}
+
+			return null;
 
 		} finally {
-			lock.releaseSharedLock(locked);
 			OProfiler.getInstance().stopChrono("OStorageMemory.readRecord", timer);
 		}
 	}
@@ -203,27 +229,32 @@ public class OStorageMemory extends OStorageAbstract {
 			final int iVersion, final byte iRecordType) {
 		final long timer = OProfiler.getInstance().startChrono();
 
-		final OCluster cluster = getClusterById(iClusterId);
+		final OClusterMemory cluster = getClusterMemory(iClusterId);
 
 		final boolean locked = lock.acquireSharedLock();
 		try {
-			OPhysicalPosition ppos = cluster.getPhysicalPosition(iClusterPosition, new OPhysicalPosition());
-			if (ppos == null)
-				return -1;
-
-			// MVCC TRANSACTION: CHECK IF VERSION IS THE SAME
-			if (iVersion > -1 && ppos.version != iVersion)
-				throw new OConcurrentModificationException(
-						"Can't update record #"
-								+ ORecordId.generateString(iClusterId, iClusterPosition)
-								+ " because it was modified by another user in the meanwhile of current transaction. Use pessimistic locking instead of optimistic or simply re-execute the transaction");
-
-			data.updateRecord(ppos.dataPosition, iContent);
-
-			return ++(ppos.version);
-
-		} catch (IOException e) {
-			throw new OStorageException("Error on update record in cluster: " + iClusterId, e);
+			synchronized (cluster) {
+				OPhysicalPosition ppos = cluster.getPhysicalPosition(iClusterPosition, new OPhysicalPosition());
+				if (ppos == null)
+					return -1;
+
+				// MVCC TRANSACTION: CHECK IF VERSION IS THE SAME
+				if (iVersion > -1 && ppos.version != iVersion)
+					throw new OConcurrentModificationException(
+							"Can't update record #"
+									+ ORecordId.generateString(iClusterId, iClusterPosition)
+									+ " because it was modified by another user in the meanwhile of current transaction. Use pessimistic locking instead of optimistic or simply re-execute the transaction");
+
+				final ODataSegmentMemory data = dataSegments.get(iClusterId);
+				final int oldSize = data.getRecordSize(ppos.dataPosition);
+				final long dataPosition = data.updateRecord(ppos.dataPosition, iContent);
+				cluster.getStatistics().recordUpdated(oldSize, iContent.length);
+
+				// THE POSITION IS A COPY: WRITE THE NEW CONTENT POSITION AND VERSION IN THE CLUSTER AT ONCE
+				cluster.setPhysicalPosition(iClusterPosition, ppos.dataSegment, dataPosition, iRecordType, ++ppos.version);
+				fireRecordChanged(iClusterId, iClusterPosition, ppos.version);
+				return ppos.version;
+			}
 
 		} finally {
 			lock.releaseSharedLock(locked);
@@ -238,22 +269,27 @@ public class OStorageMemory extends OStorageAbstract {
 
 		final boolean locked = lock.acquireSharedLock();
 		try {
-			OPhysicalPosition ppos = cluster.getPhysicalPosition(iClusterPosition, new OPhysicalPosition());
-
-			if (ppos == null)
-				return false;
-
-			// MVCC TRANSACTION: CHECK IF VERSION IS THE SAME
-			if (iVersion > -1 && ppos.version != iVersion)
-				throw new OConcurrentModificationException(
-						"Can't update record #"
-								+ ORecordId.generateString(iClusterId, iClusterPosition)
-								+ " because it was modified by another user in the meanwhile of current transaction. Use pessimistic locking instead of optimistic or simply re-execute the transaction");
-
-			cluster.removePhysicalPosition(iClusterPosition, null);
-			data.deleteRecord(ppos.dataPosition);
-
-			return true;
+			synchronized (cluster) {
+				OPhysicalPosition ppos = cluster.getPhysicalPosition(iClusterPosition, new OPhysicalPosition());
+
+				if (ppos == null)
+					return false;
+
+				// MVCC TRANSACTION: CHECK IF VERSION IS THE SAME
+				if (iVersion > -1 && ppos.version != iVersion)
+					throw new OConcurrentModificationException(
+							"Can't update record #"
+									+ ORecordId.generateString(iClusterId, iClusterPosition)
+									+ " because it was modified by another user in the meanwhile of current transaction. Use pessimistic locking instead of optimistic or simply re-execute the transaction");
+
+				cluster.removePhysicalPosition(iClusterPosition, null);
+				final int size = dataSegments.get(iClusterId).deleteRecord(ppos.dataPosition);
+				if (size > -1)
+					cluster.getStatistics().recordDeleted(size);
+
+				fireRecordChanged(iClusterId, iClusterPosition, ppos.version + 1);
+				return true;
+			}
 
 		} catch (IOException e) {
 			throw new OStorageException("Error on delete record in cluster: " + iClusterId, e);
@@ -430,6 +466,26 @@ public class OStorageMemory extends OStorageAbstract {
 		return clusters.get(iClusterId);
 	}
 
+	/**
+	 * Returns the cluster read and written without the storage lock.
+	 * 
+	 * @throws OStorageException
+	 *           if the cluster doesn't exist
+	 */
+	private OClusterMemory getClusterMemory(final int iClusterId) {
+		final OClusterMemory cluster;
+		try {
+			// THE LIST CAN CHANGE IN THE MEANWHILE: THE RANGE IS CHECKED BY THE LIST ITSELF
+			cluster = clusters.get(iClusterId);
+		} catch (IndexOutOfBoundsException e) {
+			throw new OStorageException("Cluster #" + iClusterId + " doesn't exist", e);
+		}
+
+		if (cluster == null)
+			throw new OStorageException("Cluster #" + iClusterId + " doesn't exist");
+		return cluster;
+	}
+
 	public Collection<? extends OCluster> getClusters() {
 		return Collections.unmodifiableCollection(clusters);
 	}
@@ -447,7 +503,7 @@ public class OStorageMemory extends OStorageAbstract {
 		if (ppos.dataSegment > 0)
 			return false;
 
-		if (ppos.dataPosition >= data.size())
+		if (ppos.dataPosition < 0)
 			return false;
 
 		return true;
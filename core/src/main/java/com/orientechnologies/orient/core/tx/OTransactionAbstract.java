@@ -22,6 +22,7 @@ import com.orientechnologies.orient.core.db.ODatabaseListener;
 import com.orientechnologies.orient.core.db.raw.ODatabaseRaw;
 import com.orientechnologies.orient.core.db.record.ODatabaseRecordTx;
 import com.orientechnologies.orient.core.exception.OTransactionException;
+import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.ORecord;
 import com.orientechnologies.orient.core.record.ORecordInternal;
 import com.orientechnologies.orient.core.storage.ORawBuffer;
@@ -52,22 +53,13 @@ public abstract class OTransactionAbstract<REC extends ORecordInternal<?>> imple
 
 	public static void updateCacheFromEntries(final OStorage iStorage, final OTransaction<?> iTx,
 			final Iterable<? extends OTransactionEntry<?>> iEntries) throws IOException {
-		String rid;
-		ORawBuffer cachedBuffer;
+		ORID rid;
 		for (OTransactionEntry<? extends ORecord<?>> txEntry : iEntries) {
-			rid = txEntry.getRecord().getIdentity().toString();
+			rid = txEntry.getRecord().getIdentity();
 
-			cachedBuffer = iStorage.getCache().getRecord(rid);
-
-			if (cachedBuffer != null) {
-				// UPDATE CACHE
-				cachedBuffer.buffer = txEntry.getRecord().toStream();
-				cachedBuffer.version = txEntry.getRecord().getVersion();
-				cachedBuffer.recordType = txEntry.getRecord().getRecordType();
-
-			} else if (txEntry.getRecord().isPinned())
-				// INSERT NEW ENTRY IN THE CACHE
-				iStorage.getCache().pushRecord(rid,
+			if (iStorage.getCache().peekRecord(rid.getClusterId(), rid.getClusterPosition()) != null || txEntry.getRecord().isPinned())
+				// UPDATE THE CACHED ENTRY OR INSERT A NEW ONE. THE BUFFER IS REPLACED SINCE OTHER THREADS COULD BE READING IT
+				iStorage.getCache().pushRecord(rid.getClusterId(), rid.getClusterPosition(),
 						new ORawBuffer(txEntry.getRecord().toStream(), txEntry.getRecord().getVersion(), txEntry.getRecord().getRecordType()));
 		}
 	}
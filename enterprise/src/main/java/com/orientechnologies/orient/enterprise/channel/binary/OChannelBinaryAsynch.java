@@ -17,6 +17,7 @@ package com.orientechnologies.orient.enterprise.channel.binary;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.orientechnologies.orient.core.config.OContextConfiguration;
@@ -30,6 +31,7 @@ import com.orientechnologies.orient.core.config.OContextConfiguration;
 public class OChannelBinaryAsynch extends OChannelBinary {
 	private final ReentrantLock	lockRead		= new ReentrantLock();
 	private final ReentrantLock	lockWrite		= new ReentrantLock();
+	private final Condition			readCondition	= lockRead.newCondition();
 	private boolean							channelRead	= false;
 	private byte								currentStatus;
 	private int									currentTxId;
@@ -40,9 +42,8 @@ public class OChannelBinaryAsynch extends OChannelBinary {
 
 	public int beginResponse(final int iRequesterId) throws IOException {
 		// WAIT FOR THE RESPONSE
+		lockRead.lock();
 		do {
-			lockRead.lock();
-
 			if (!channelRead) {
 				channelRead = true;
 				currentStatus = readByte();
@@ -53,13 +54,13 @@ public class OChannelBinaryAsynch extends OChannelBinary {
 				// IT'S FOR ME
 				break;
 
-			lockRead.unlock();
+			// WAKE UP THE OWNER AND WAIT RELEASING THE LOCK ATOMICALLY, SO A RESPONSE ENDED IN THE MEANWHILE IS NEVER LOST
+			readCondition.signalAll();
+			readCondition.awaitUninterruptibly();
 
-			synchronized (this) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-				}
+			if (socket != null && socket.isClosed()) {
+				lockRead.unlock();
+				throw new IOException("Channel closed while waiting for the response " + iRequesterId);
 			}
 		} while (true);
 
@@ -70,12 +71,10 @@ public class OChannelBinaryAsynch extends OChannelBinary {
 
 	public void endResponse() {
 		channelRead = false;
-		lockRead.unlock();
 
 		// WAKE UP ALL THE WAITING THREADS
-		synchronized (this) {
-			notifyAll();
-		}
+		readCondition.signalAll();
+		lockRead.unlock();
 	}
 
 	public ReentrantLock getLockRead() {
@@ -88,11 +87,15 @@ public class OChannelBinaryAsynch extends OChannelBinary {
 
 	@Override
 	public void close() {
-		synchronized (this) {
-			notifyAll();
-		}
-
 		super.close();
+
+		if (lockRead.tryLock())
+			try {
+				// WAKE UP THE WAITING THREADS: THEY WILL FAIL READING FROM THE CLOSED SOCKET
+				readCondition.signalAll();
+			} finally {
+				lockRead.unlock();
+			}
 	}
 
 	@Override
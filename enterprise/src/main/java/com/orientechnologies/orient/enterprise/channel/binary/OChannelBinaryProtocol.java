@@ -67,9 +67,14 @@ public class OChannelBinaryProtocol {
 	public static final byte	RESPONSE_STATUS_ERROR					= 1;
 	public static final byte	PUSH_DATA											= 3;
 
+	// SENT BY THE SERVER WITH THE PUSH_DATA STATUS
+	public static final int		PUSH_REQUESTER_ID							= -10;
+	public static final byte	PUSH_RECORDS_INVALIDATION			= 101;
+	public static final byte	PUSH_CACHE_CLEAR							= 102;
+
 	// CONSTANTS
 	public static final int		RECORD_NULL										= -2;
-	public static final int		CURRENT_PROTOCOL_VERSION			= 2;	// SENT AS SHORT AS FIRST PACKET AFTER SOCKET CONNECTION
+	public static final int		CURRENT_PROTOCOL_VERSION			= 3;	// SENT AS SHORT AS FIRST PACKET AFTER SOCKET CONNECTION
 
 	public static void checkProtocolVersion(final OChannelBinary iNetwork) throws IOException {
 		// SEND PROTOCOL VERSION
@@ -0,0 +1,240 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.orientechnologies.common.log.OLogManager;
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.common.thread.OSoftThread;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.storage.ORecordChangeListener;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.enterprise.channel.binary.OChannelBinary;
+import com.orientechnologies.orient.enterprise.channel.binary.OChannelBinaryProtocol;
+
+/**
+ * Keeps the caches of the remote clients up to date. Listens the updates and the deletions of the records of the storages opened
+ * by the clients that asked for it, and pushes the changed records to the clients that have received at least one record of the
+ * same cluster, with the PUSH_DATA status. Every change is sent as cluster id, position and minimum valid version, so a client
+ * never removes the copy already updated by itself.<br/>
+ * The changes are collected by the threads that write the records in a bounded queue per client and sent in batches by this
+ * thread, so the writers are never blocked by the network. A client busy with a request is skipped and retried later. If its queue
+ * is full the changes are dropped and the client is asked to clear its whole cache.
+ */
+public class OClientCacheInvalidator extends OSoftThread implements ORecordChangeListener {
+	private static final int														MAX_BATCH			= 1000;
+	private static final int														RETRY_DELAY		= 10;
+	private static OClientCacheInvalidator							instance;
+
+	private final Map<OClientConnection, OClientQueue>	queues				= new ConcurrentHashMap<OClientConnection, OClientQueue>();
+	private final Object																signal				= new Object();
+	private boolean																			changed;
+	private boolean																			pending;
+
+	private static class OInvalidation {
+		final int		clusterId;
+		final long	clusterPosition;
+		final int		version;
+
+		OInvalidation(final int iClusterId, final long iClusterPosition, final int iVersion) {
+			clusterId = iClusterId;
+			clusterPosition = iClusterPosition;
+			version = iVersion;
+		}
+	}
+
+	/**
+	 * Changes waiting to be sent to a client. When full the changes are dropped and the whole cache of the client is cleared.
+	 */
+	private static class OClientQueue {
+		final OClientConnection						connection;
+		final BlockingQueue<OInvalidation>	invalidations;
+		volatile boolean									overflow;
+
+		OClientQueue(final OClientConnection iConnection, final int iSize) {
+			connection = iConnection;
+			invalidations = new ArrayBlockingQueue<OInvalidation>(iSize);
+		}
+
+		void push(final OInvalidation iInvalidation) {
+			if (!invalidations.offer(iInvalidation))
+				synchronized (this) {
+					overflow = true;
+					invalidations.clear();
+				}
+		}
+
+		boolean isEmpty() {
+			return !overflow && invalidations.isEmpty();
+		}
+	}
+
+	private OClientCacheInvalidator() {
+		super("OrientDB Client Cache Invalidator");
+	}
+
+	/**
+	 * Returns the invalidator, starting it the first time.
+	 */
+	public static synchronized OClientCacheInvalidator instance() {
+		if (instance == null) {
+			instance = new OClientCacheInvalidator();
+			instance.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts to send to the client the changes of the records of its database.
+	 */
+	public void register(final OClientConnection iConnection) {
+		iConnection.database.getStorage().addRecordChangeListener(this);
+		if (!queues.containsKey(iConnection))
+			queues.put(iConnection, new OClientQueue(iConnection,
+					OGlobalConfiguration.NETWORK_BINARY_CACHE_INVALIDATION_QUEUE_SIZE.getValueAsInteger()));
+	}
+
+	public void unregister(final OClientConnection iConnection) {
+		queues.remove(iConnection);
+	}
+
+	/**
+	 * Unregisters the connection without starting the invalidator if not used.
+	 */
+	public static synchronized void onClientDisconnection(final OClientConnection iConnection) {
+		if (instance != null)
+			instance.unregister(iConnection);
+	}
+
+	public void onRecordChanged(final OStorage iStorage, final int iClusterId, final long iClusterPosition, final int iVersion) {
+		if (queues.isEmpty())
+			return;
+
+		OInvalidation invalidation = null;
+		for (OClientQueue q : queues.values()) {
+			final OClientConnection c = q.connection;
+			if (c.database == null || c.database.getStorage() != iStorage || !c.isClusterSent(iClusterId))
+				continue;
+
+			if (invalidation == null)
+				invalidation = new OInvalidation(iClusterId, iClusterPosition, iVersion);
+			q.push(invalidation);
+		}
+
+		if (invalidation != null)
+			synchronized (signal) {
+				changed = true;
+				signal.notify();
+			}
+	}
+
+	@Override
+	protected void execute() throws Exception {
+		synchronized (signal) {
+			try {
+				// THE CLIENTS SKIPPED BECAUSE BUSY ARE RETRIED SOON
+				if (!changed)
+					signal.wait(pending ? RETRY_DELAY : 1000);
+			} catch (InterruptedException e) {
+				// SHUTDOWN
+				return;
+			}
+			changed = false;
+		}
+
+		boolean skipped = false;
+		for (OClientQueue q : queues.values())
+			if (!q.isEmpty() && !send(q))
+				skipped = true;
+
+		synchronized (signal) {
+			pending = skipped;
+		}
+	}
+
+	/**
+	 * Sends a batch of the changes waiting for the client, or the clear of its cache if some changes have been dropped.
+	 * 
+	 * @return false if the client was busy or has more changes to receive
+	 */
+	private boolean send(final OClientQueue iQueue) {
+		final OClientConnection connection = iQueue.connection;
+		if (!(connection.protocol.getChannel() instanceof OChannelBinary) || connection.database == null
+				|| connection.database.isClosed()) {
+			iQueue.invalidations.clear();
+			return true;
+		}
+
+		final OChannelBinary ch = (OChannelBinary) connection.protocol.getChannel();
+
+		// THE LOCK IS HELD ALSO BY THE PROTOCOL WHILE IT EXECUTES A REQUEST: NEVER WAIT FOR IT
+		if (!ch.tryAcquireExclusiveLock())
+			return false;
+
+		try {
+			final boolean clear;
+			synchronized (iQueue) {
+				clear = iQueue.overflow;
+				if (clear) {
+					iQueue.overflow = false;
+					iQueue.invalidations.clear();
+				}
+			}
+
+			final List<OInvalidation> batch = new ArrayList<OInvalidation>();
+			if (!clear) {
+				iQueue.invalidations.drainTo(batch, MAX_BATCH);
+				if (batch.isEmpty())
+					return true;
+			}
+
+			ch.writeByte(OChannelBinaryProtocol.PUSH_DATA);
+			ch.writeInt(OChannelBinaryProtocol.PUSH_REQUESTER_ID);
+			if (clear) {
+				ch.writeByte(OChannelBinaryProtocol.PUSH_CACHE_CLEAR);
+				OProfiler.getInstance().updateCounter("OClientCacheInvalidator.clearedCaches", +1);
+			} else {
+				ch.writeByte(OChannelBinaryProtocol.PUSH_RECORDS_INVALIDATION);
+				ch.writeInt(batch.size());
+				for (OInvalidation i : batch) {
+					ch.writeShort((short) i.clusterId);
+					ch.writeLong(i.clusterPosition);
+					ch.writeInt(i.version);
+				}
+				OProfiler.getInstance().updateCounter("OClientCacheInvalidator.invalidatedRecords", batch.size());
+			}
+			ch.flush();
+
+		} catch (IOException e) {
+			// THE CLIENT HAS BEEN DISCONNECTED
+			OLogManager.instance().debug(this, "Error on sending the changed records to the client %s: %s", connection, e.toString());
+			unregister(connection);
+			return true;
+
+		} finally {
+			ch.releaseExclusiveLock();
+		}
+
+		return iQueue.isEmpty();
+	}
+}
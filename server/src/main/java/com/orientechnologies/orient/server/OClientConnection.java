@@ -17,6 +17,7 @@ package com.orientechnologies.orient.server;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.BitSet;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.server.network.protocol.ONetworkProtocol;
@@ -26,6 +27,8 @@ public class OClientConnection {
 	public ONetworkProtocol			protocol;
 	public long									since;
 	public ODatabaseDocumentTx	database;
+	// CLUSTERS OF THE RECORDS SENT TO THE CLIENT, THAT COULD HAVE THEM IN CACHE
+	private final BitSet				sentClusters	= new BitSet();
 
 	public OClientConnection(final int iId, final Socket iSocket, final ONetworkProtocol iProtocol) throws IOException {
 		this.id = iId;
@@ -33,6 +36,21 @@ public class OClientConnection {
 		this.since = System.currentTimeMillis();
 	}
 
+	public void recordSent(final int iClusterId) {
+		if (iClusterId < 0)
+			return;
+
+		synchronized (sentClusters) {
+			sentClusters.set(iClusterId);
+		}
+	}
+
+	public boolean isClusterSent(final int iClusterId) {
+		synchronized (sentClusters) {
+			return iClusterId > -1 && sentClusters.get(iClusterId);
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "OClientConnection [id=" + id + ", source="
@@ -571,7 +571,7 @@ public class ODistributedServerManager extends OServerHandlerAbstract {
 				ch.acquireExclusiveLock();
 				try {
 					ch.writeByte(OChannelBinaryProtocol.PUSH_DATA);
-					ch.writeInt(-10);
+					ch.writeInt(OChannelBinaryProtocol.PUSH_REQUESTER_ID);
 					ch.writeByte(OChannelDistributedProtocol.PUSH_DISTRIBUTED_CONFIG);
 					ch.writeBytes(clusterDbConfigurations.get(iDatabaseName).toStream());
 
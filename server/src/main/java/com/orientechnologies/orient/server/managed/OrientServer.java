@@ -15,11 +15,16 @@
  */
 package com.orientechnologies.orient.server.managed;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 import com.orientechnologies.orient.core.Orient;
+import com.orientechnologies.orient.core.storage.OCluster;
 import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.ODataLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
 import com.orientechnologies.orient.server.OClientConnection;
 import com.orientechnologies.orient.server.OClientConnectionManager;
 import com.orientechnologies.orient.server.network.protocol.ONetworkProtocol;
@@ -47,4 +52,26 @@ public class OrientServer implements OrientServerMBean {
 		handlers.toArray(output);
 		return output;
 	}
+
+	public String[] getStorageStatistics(final String iStorageName) {
+		for (OStorage stg : Orient.instance().getStorages()) {
+			if (!stg.getName().equals(iStorageName))
+				continue;
+
+			final List<String> output = new ArrayList<String>();
+			for (OCluster cluster : stg.getClusters())
+				if (cluster != null)
+					output.add("cluster " + cluster.getName() + ": entries=" + stg.count(cluster.getId())
+							+ (cluster instanceof OClusterLocal ? ", deleted=" + ((OClusterLocal) cluster).getHoles() : "") + ", "
+							+ cluster.getStatistics());
+
+			if (stg instanceof OStorageLocal)
+				for (ODataLocal data : ((OStorageLocal) stg).getDataSegments())
+					output.add("data " + data.getName() + ": filled=" + data.getFilledUpTo() + ", holes=" + data.getHoles() + ", holesSize="
+							+ data.getHolesSize());
+
+			return output.toArray(new String[output.size()]);
+		}
+		return null;
+	}
 }
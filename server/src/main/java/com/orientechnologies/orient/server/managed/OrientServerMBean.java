@@ -25,4 +25,9 @@ public interface OrientServerMBean {
 	public OClientConnection[] getConnections();
 
 	public ONetworkProtocol[] getProtocols();
+
+	/**
+	 * Returns the statistics of the clusters and of the data segments of an opened storage, one per line.
+	 */
+	public String[] getStorageStatistics(String iStorageName);
 }
@@ -62,10 +62,12 @@ import com.orientechnologies.orient.core.storage.OStorage;
 import com.orientechnologies.orient.core.storage.impl.local.ODictionaryLocal;
 import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
 import com.orientechnologies.orient.core.storage.impl.memory.OStorageMemory;
+import com.orientechnologies.orient.core.tx.OTransactionEntry;
 import com.orientechnologies.orient.enterprise.channel.OChannel;
 import com.orientechnologies.orient.enterprise.channel.binary.OChannelBinaryProtocol;
 import com.orientechnologies.orient.enterprise.channel.binary.OChannelBinaryServer;
 import com.orientechnologies.orient.enterprise.channel.binary.ONetworkProtocolException;
+import com.orientechnologies.orient.server.OClientCacheInvalidator;
 import com.orientechnologies.orient.server.OClientConnection;
 import com.orientechnologies.orient.server.OClientConnectionManager;
 import com.orientechnologies.orient.server.OServerMain;
@@ -116,10 +118,15 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 
 		lastClientTxId = 0;
 
+		boolean locked = false;
 		try {
 			lastRequestType = channel.readByte();
 			lastClientTxId = channel.readInt();
 
+			// AVOID TO MIX THE RESPONSE WITH THE DATA PUSHED BY OTHER THREADS
+			channel.acquireExclusiveLock();
+			locked = true;
+
 			++data.totalRequests;
 
 			data.lastCommandReceived = System.currentTimeMillis();
@@ -153,6 +160,9 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 				OLogManager.instance().debug(this, "Error on send data over the network", t);
 			}
 
+			if (locked)
+				channel.releaseExclusiveLock();
+
 			OSerializationThreadLocal.INSTANCE.get().clear();
 
 			data.lastCommandExecutionTime = System.currentTimeMillis() - data.lastCommandReceived;
@@ -213,6 +223,7 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 
 			user = channel.readString();
 			passwd = channel.readString();
+			final boolean cacheInvalidation = channel.readByte() == 1;
 
 			connection.database = openDatabase(dbName, user, passwd);
 
@@ -234,6 +245,9 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 				if (getClass().equals(ONetworkProtocolBinary.class))
 					// NO EXTENSIONS (CLUSTER): SEND NULL DOCUMENT
 					channel.writeBytes(null);
+
+				if (cacheInvalidation)
+					OClientCacheInvalidator.instance().register(connection);
 			}
 
 			break;
@@ -350,6 +364,8 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 			sendOk(lastClientTxId);
 
 			if (buffer != null) {
+				connection.recordSent(clusterId);
+
 				// SEND THE ROOT BUFFER
 				channel.writeByte((byte) 1);
 				channel.writeBytes(buffer.buffer);
@@ -409,8 +425,11 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 		case OChannelBinaryProtocol.REQUEST_RECORD_CREATE:
 			data.commandInfo = "Create record";
 
-			final long location = underlyingDatabase.save(channel.readShort(), ORID.CLUSTER_POS_INVALID, channel.readBytes(), -1,
+			final short newClusterId = channel.readShort();
+			final long location = underlyingDatabase.save(newClusterId, ORID.CLUSTER_POS_INVALID, channel.readBytes(), -1,
 					channel.readByte());
+			// THE CLIENT KEEPS THE NEW RECORD IN CACHE
+			connection.recordSent(newClusterId);
 			sendOk(lastClientTxId);
 			channel.writeLong(location);
 			break;
@@ -422,6 +441,7 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 			final long position = channel.readLong();
 
 			long newVersion = underlyingDatabase.save(clusterId, position, channel.readBytes(), channel.readInt(), channel.readByte());
+			connection.recordSent(clusterId);
 
 			// TODO: Handle it by using triggers
 			if (connection.database.getMetadata().getSchema().getDocument().getIdentity().getClusterId() == clusterId
@@ -636,6 +656,10 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 
 			((OStorageLocal) connection.database.getStorage()).commit(connection.database.getId(), tx);
 
+			// THE CLIENT KEEPS THE RECORDS OF THE TRANSACTION IN CACHE
+			for (OTransactionEntry<OTransactionRecordProxy> entry : tx.getEntries())
+				connection.recordSent(entry.getRecord().getIdentity().getClusterId());
+
 			sendOk(lastClientTxId);
 
 			// SEND BACK ALL THE NEW VERSIONS FOR THE UPDATED RECORDS
@@ -708,6 +732,8 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 
 	@Override
 	public void shutdown() {
+		OClientCacheInvalidator.onClientDisconnection(connection);
+
 		sendShutdown();
 		channel.close();
 
@@ -792,6 +818,8 @@ public class ONetworkProtocolBinary extends ONetworkProtocol {
 		if (iRecord == null) {
 			channel.writeInt(OChannelBinaryProtocol.RECORD_NULL);
 		} else {
+			connection.recordSent(iRecord.getIdentity().getClusterId());
+
 			channel
 					.writeInt((iRecord instanceof ORecordSchemaAware<?> && ((ORecordSchemaAware<?>) iRecord).getSchemaClass() != null ? ((ORecordSchemaAware<?>) iRecord)
 							.getSchemaClass().getId() : -1));
@@ -0,0 +1,118 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.server.network.protocol.http.command.get;
+
+import java.io.StringWriter;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.serialization.serializer.OJSONWriter;
+import com.orientechnologies.orient.core.storage.OCluster;
+import com.orientechnologies.orient.core.storage.OClusterStatistics;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.ODataLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.server.db.OSharedDocumentDatabase;
+import com.orientechnologies.orient.server.network.protocol.http.OHttpRequest;
+import com.orientechnologies.orient.server.network.protocol.http.OHttpUtils;
+import com.orientechnologies.orient.server.network.protocol.http.command.OServerCommandAuthenticatedDbAbstract;
+
+/**
+ * Returns the statistics of the clusters and of the data segments of the database. They are kept updated by the storage, so no
+ * file is scanned.
+ */
+public class OServerCommandGetStatistics extends OServerCommandAuthenticatedDbAbstract {
+	private static final String[]	NAMES	= { "GET|statistics/*" };
+
+	public void execute(final OHttpRequest iRequest) throws Exception {
+		String[] urlParts = checkSyntax(iRequest.url, 2, "Syntax error: statistics/<database>[/<cluster-name>]");
+
+		iRequest.data.commandInfo = "Statistics";
+		iRequest.data.commandDetail = urlParts[1];
+
+		ODatabaseDocumentTx db = null;
+
+		try {
+			db = getProfiledDatabaseInstance(iRequest, urlParts[1]);
+
+			final String clusterName = urlParts.length > 2 ? urlParts[2] : null;
+			if (clusterName != null && db.getClusterIdByName(clusterName) == -1)
+				throw new IllegalArgumentException("Invalid cluster '" + clusterName + "'");
+
+			final StringWriter buffer = new StringWriter();
+			final OJSONWriter json = new OJSONWriter(buffer);
+
+			json.beginObject();
+
+			json.beginCollection(1, false, "clusters");
+			for (OCluster cluster : db.getStorage().getClusters()) {
+				if (cluster == null || clusterName != null && !clusterName.equals(cluster.getName()))
+					continue;
+
+				final OClusterStatistics stats = cluster.getStatistics();
+
+				json.beginObject(2, true, null);
+				json.writeAttribute(3, false, "id", cluster.getId());
+				json.writeAttribute(3, false, "name", cluster.getName());
+				json.writeAttribute(3, false, "type", cluster.getType());
+				json.writeAttribute(3, false, "records", cluster.getEntries());
+				json.writeAttribute(3, false, "deleted", cluster instanceof OClusterLocal ? ((OClusterLocal) cluster).getHoles() : 0);
+				json.writeAttribute(3, false, "recordsSize", stats.getRecordsSize());
+				json.writeAttribute(3, false, "averageRecordSize", stats.getAverageRecordSize());
+				json.writeAttribute(3, false, "exact", stats.isExact());
+
+				final long[] histogram = stats.getHistogram();
+				final int[] limits = new int[histogram.length];
+				for (int i = 0; i < limits.length; ++i)
+					limits[i] = OClusterStatistics.getRangeLimit(i);
+				json.writeAttribute(3, false, "sizeLimits", limits);
+				json.writeAttribute(3, false, "sizeHistogram", histogram);
+				json.endObject(2, false);
+			}
+			json.endCollection(1, true);
+
+			if (clusterName == null && db.getStorage() instanceof OStorageLocal) {
+				json.beginCollection(1, false, "dataSegments");
+				for (ODataLocal data : ((OStorageLocal) db.getStorage()).getDataSegments()) {
+					final long filled = data.getFilledUpTo();
+					final long holesSize = data.getHolesSize();
+
+					json.beginObject(2, true, null);
+					json.writeAttribute(3, false, "id", data.getId());
+					json.writeAttribute(3, false, "name", data.getName());
+					json.writeAttribute(3, false, "size", data.getSize());
+					json.writeAttribute(3, false, "filled", filled);
+					json.writeAttribute(3, false, "holes", data.getHoles());
+					json.writeAttribute(3, false, "holesSize", holesSize);
+					json.writeAttribute(3, false, "waste", filled > 0 ? holesSize * 100 / filled : 0);
+					json.endObject(2, false);
+				}
+				json.endCollection(1, true);
+			}
+
+			json.endObject();
+			json.flush();
+
+			sendTextContent(iRequest, OHttpUtils.STATUS_OK_CODE, "OK", null, OHttpUtils.CONTENT_JSON, buffer.toString());
+		} finally {
+			if (db != null)
+				OSharedDocumentDatabase.release(db);
+		}
+	}
+
+	public String[] getNames() {
+		return NAMES;
+	}
+}
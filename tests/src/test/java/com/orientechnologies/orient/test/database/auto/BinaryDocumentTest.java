@@ -0,0 +1,417 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.command.OCommandOutputListener;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
+import com.orientechnologies.orient.core.db.tool.ODatabaseMigrate;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.serialization.serializer.record.string.ORecordSerializerDocument2Binary;
+import com.orientechnologies.orient.core.serialization.serializer.record.string.ORecordSerializerSchemaAware2CSV;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+
+/**
+ * Checks the binary format of the documents: the round trip of every type, the conversion of the strings assigned to typed
+ * properties, the lazy read of single fields and of the class, the databases containing both the CSV and the binary formats and
+ * the migration between them.
+ */
+@Test(groups = "storage")
+public class BinaryDocumentTest {
+	private static final int		RECORDS	= 50;
+	private static final String	TEXT		= "h\u00e9llo \"x\", [y]";
+	private final String				url;
+	private ODatabaseDocumentTx	database;
+	private ODocument						link;
+	private ORID								binaryRid;
+	private final List<ORID>		csvRids	= new ArrayList<ORID>();
+
+	@Parameters(value = "testPath")
+	public BinaryDocumentTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/binary-document";
+	}
+
+	/**
+	 * Tells if the fields have not been unmarshalled yet. The generic methods of ORecord are inherited as ODocument declares them.
+	 */
+	@SuppressWarnings("unchecked")
+	public static class LazyDocument extends ODocument {
+		public LazyDocument(final ODatabaseRecord<?> iDatabase) {
+			super(iDatabase);
+		}
+
+		public boolean isLazy() {
+			return isBinaryNotUnmarshalled();
+		}
+	}
+
+	public void testAllTypes() {
+		final Map<OType, Object> values = new HashMap<OType, Object>();
+		values.put(OType.BOOLEAN, true);
+		values.put(OType.BYTE, (byte) 7);
+		values.put(OType.SHORT, (short) -3);
+		values.put(OType.INTEGER, 123456);
+		values.put(OType.LONG, 1l << 40);
+		values.put(OType.FLOAT, 1.5f);
+		values.put(OType.DOUBLE, Math.PI);
+		values.put(OType.DATE, new Date(1000000l));
+		values.put(OType.STRING, TEXT);
+		values.put(OType.BINARY, new byte[] { 0, 1, 2, -1 });
+		values.put(OType.EMBEDDED, new ODocument().field("x", 1).field("y", "z"));
+		values.put(OType.EMBEDDEDLIST, new ArrayList<Object>(Arrays.<Object> asList(1, "two", 3.0, null)));
+		values.put(OType.EMBEDDEDSET, new HashSet<Object>(Arrays.<Object> asList("a", "b")));
+		final Map<String, Object> embeddedMap = new HashMap<String, Object>();
+		embeddedMap.put("k", 5l);
+		embeddedMap.put("n", "v");
+		values.put(OType.EMBEDDEDMAP, embeddedMap);
+		values.put(OType.LINK, new ORecordId(5, 0));
+		values.put(OType.LINKLIST, new ArrayList<Object>(Arrays.asList(new ORecordId(5, 0), new ORecordId(5, 1))));
+		values.put(OType.LINKSET, new HashSet<Object>(Arrays.asList(new ORecordId(5, 2))));
+		final Map<String, Object> linkMap = new HashMap<String, Object>();
+		linkMap.put("a", new ORecordId(5, 3));
+		values.put(OType.LINKMAP, linkMap);
+
+		final ODocument doc = new ODocument();
+		for (OType type : OType.values()) {
+			Assert.assertTrue(values.containsKey(type), "type " + type + " not checked");
+			doc.field(type.name(), values.get(type), type);
+		}
+		doc.field("null", (Object) null);
+
+		final byte[] stream = ORecordSerializerDocument2Binary.INSTANCE.toStream(null, doc);
+		Assert.assertTrue(ORecordSerializerDocument2Binary.isBinary(stream));
+
+		final ODocument loaded = new ODocument();
+		loaded.fromStream(stream);
+		Assert.assertEquals(loaded.fieldNames().size(), OType.values().length + 1);
+
+		Assert.assertEquals(loaded.field("BOOLEAN"), Boolean.TRUE);
+		Assert.assertEquals(loaded.field("BYTE"), (byte) 7);
+		Assert.assertEquals(loaded.field("SHORT"), (short) -3);
+		Assert.assertEquals(loaded.field("INTEGER"), 123456);
+		Assert.assertEquals(loaded.field("LONG"), 1l << 40);
+		Assert.assertEquals(loaded.field("FLOAT"), 1.5f);
+		Assert.assertEquals(loaded.field("DOUBLE"), Math.PI);
+		Assert.assertEquals(loaded.field("DATE"), new Date(1000000l));
+		Assert.assertEquals(loaded.field("STRING"), TEXT);
+		Assert.assertTrue(Arrays.equals((byte[]) loaded.field("BINARY"), new byte[] { 0, 1, 2, -1 }));
+
+		final ODocument embedded = loaded.field("EMBEDDED");
+		Assert.assertEquals(embedded.field("x"), 1);
+		Assert.assertEquals(embedded.field("y"), "z");
+
+		Assert.assertEquals(new ArrayList<Object>((Collection<?>) loaded.field("EMBEDDEDLIST")), values.get(OType.EMBEDDEDLIST));
+		Assert.assertEquals(new HashSet<Object>((Collection<?>) loaded.field("EMBEDDEDSET")), values.get(OType.EMBEDDEDSET));
+		Assert.assertEquals(new HashMap<Object, Object>((Map<?, ?>) loaded.field("EMBEDDEDMAP")), embeddedMap);
+
+		Assert.assertEquals(loaded.field("LINK").toString(), "5:0");
+		Assert.assertEquals(((List<?>) loaded.field("LINKLIST")).size(), 2);
+		Assert.assertEquals(((Collection<?>) loaded.field("LINKSET")).size(), 1);
+		Assert.assertEquals(((Map<?, ?>) loaded.field("LINKMAP")).size(), 1);
+
+		Assert.assertNull(loaded.field("null"));
+		Assert.assertTrue(loaded.containsField("null"));
+	}
+
+	public void testStringConversions() throws Exception {
+		database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		final OClass clazz = database.getMetadata().getSchema().createClass("Converted");
+		clazz.createProperty("integer", OType.INTEGER);
+		clazz.createProperty("long", OType.LONG);
+		clazz.createProperty("boolean", OType.BOOLEAN);
+		clazz.createProperty("date", OType.DATE);
+		clazz.createProperty("binary", OType.BINARY);
+		clazz.createProperty("invalid", OType.INTEGER);
+		clazz.createProperty("overflow", OType.INTEGER);
+		database.getMetadata().getSchema().save();
+
+		final Object format = OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.getValue();
+		OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.setValue(ORecordSerializerDocument2Binary.NAME);
+		try {
+			// STRINGS ASSIGNED TO TYPED PROPERTIES ARE CONVERTED, THE ONES NOT VALID ARE KEPT AS STRINGS
+			final ODocument doc = new ODocument(database, "Converted");
+			doc.field("integer", " 42").field("long", "-7").field("boolean", "TRUE").field("date", "2011-03-04");
+			doc.field("binary", "\"AAEC/w==\"").field("invalid", "abc").field("overflow", "99999999999");
+			doc.save();
+
+			database.getStorage().getCache().clear();
+			final ODocument loaded = database.load(doc.getIdentity());
+			Assert.assertTrue(ORecordSerializerDocument2Binary.isBinary(loaded.toStream()));
+
+			Assert.assertEquals(loaded.field("integer"), 42);
+			Assert.assertEquals(loaded.field("long"), -7l);
+			Assert.assertEquals(loaded.field("boolean"), Boolean.TRUE);
+			Assert.assertEquals(loaded.field("date"), new SimpleDateFormat("yyyy-MM-dd").parse("2011-03-04"));
+			Assert.assertTrue(Arrays.equals((byte[]) loaded.field("binary"), new byte[] { 0, 1, 2, -1 }));
+			Assert.assertEquals(loaded.field("invalid"), "abc");
+			Assert.assertEquals(loaded.field("overflow"), "99999999999");
+
+		} finally {
+			OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.setValue(format);
+		}
+	}
+
+	@Test(dependsOnMethods = "testStringConversions")
+	public void testLazyRead() {
+		final OClass clazz = database.getMetadata().getSchema().createClass("T");
+		clazz.createProperty("decl", OType.INTEGER);
+		database.getMetadata().getSchema().save();
+
+		link = new ODocument(database, "T").field("name", "target");
+		link.save();
+
+		for (int i = 0; i < RECORDS; ++i) {
+			final ODocument doc = fill(false);
+			doc.save();
+			csvRids.add(doc.getIdentity().copy());
+		}
+
+		final Object format = OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.getValue();
+		OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.setValue(ORecordSerializerDocument2Binary.NAME);
+		try {
+			final ODocument doc = fill(true);
+			doc.save();
+			binaryRid = doc.getIdentity().copy();
+			final byte[] stream = doc.toStream();
+			Assert.assertTrue(ORecordSerializerDocument2Binary.isBinary(stream));
+
+			// THE CLASS IS READ FROM THE HEADER WITHOUT UNMARSHALLING THE FIELDS
+			LazyDocument lazy = new LazyDocument(database);
+			lazy.fromStream(stream);
+			Assert.assertTrue(lazy.isLazy());
+			Assert.assertEquals(lazy.getSchemaClass().getName(), "T");
+			Assert.assertEquals(lazy.getClassName(), "T");
+			Assert.assertTrue(lazy.isLazy());
+
+			// A SINGLE FIELD IS READ WITHOUT THE OTHERS
+			Assert.assertEquals(((Number) lazy.field("i")).intValue(), 123456);
+			Assert.assertEquals(lazy.field("str"), TEXT);
+			Assert.assertNull(lazy.field("missing"));
+			Assert.assertEquals(((Number) lazy.field("emb.x")).intValue(), 1);
+			Assert.assertTrue(lazy.isLazy());
+			Assert.assertFalse(lazy.isDirty());
+
+			// THE OTHER FIELDS ARE READ ON THE FIRST ACCESS TO ALL OF THEM
+			Assert.assertEquals(lazy.fieldNames().size(), 20);
+			Assert.assertFalse(lazy.isLazy());
+			verify(lazy);
+
+			// A CHANGE AFTER A PARTIAL READ KEEPS THE FIELDS NOT READ
+			database.getStorage().getCache().clear();
+			ODocument loaded = database.load(binaryRid);
+			Assert.assertEquals(((Number) loaded.field("i")).intValue(), 123456);
+			loaded.field("i", 7);
+			loaded.save();
+
+			database.getStorage().getCache().clear();
+			loaded = database.load(binaryRid);
+			Assert.assertEquals(((Number) loaded.field("i")).intValue(), 7);
+			Assert.assertEquals(loaded.field("str"), TEXT);
+			Assert.assertEquals(loaded.fieldNames().size(), 20);
+
+			// THE CHANGE OF AN EMBEDDED DOCUMENT IS SAVED WITH ITS OWNER
+			final ODocument embedded = loaded.field("emb");
+			embedded.field("x", 99);
+			loaded.save();
+
+			database.getStorage().getCache().clear();
+			loaded = database.load(binaryRid);
+			Assert.assertEquals(((Number) loaded.field("emb.x")).intValue(), 99);
+
+			loaded.field("i", 123456);
+			((ODocument) loaded.field("emb")).field("x", 1);
+			loaded.save();
+
+		} finally {
+			OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.setValue(format);
+		}
+	}
+
+	@Test(dependsOnMethods = "testLazyRead")
+	public void testMixedFormats() {
+		for (String format : new String[] { ORecordSerializerSchemaAware2CSV.NAME, ORecordSerializerDocument2Binary.NAME }) {
+			final Object previous = OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.getValue();
+			OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.setValue(format);
+			try {
+				database.close();
+				database.open("admin", "admin");
+				database.getStorage().getCache().clear();
+
+				// EVERY DOCUMENT IS READ IN THE FORMAT IT WAS WRITTEN
+				for (ORID rid : csvRids) {
+					final ODocument doc = database.load(rid);
+					Assert.assertFalse(ORecordSerializerDocument2Binary.isBinary(doc.toStream()));
+					verify(doc);
+				}
+
+				final ODocument binary = database.load(binaryRid);
+				Assert.assertTrue(ORecordSerializerDocument2Binary.isBinary(binary.toStream()));
+				verify(binary);
+
+				// THE QUERIES FILTER THE DOCUMENTS OF BOTH THE FORMATS
+				final List<ODocument> result = database.query(new OSQLSynchQuery<ODocument>("select from T where i = 123456"));
+				Assert.assertEquals(result.size(), RECORDS + 1);
+
+			} finally {
+				OGlobalConfiguration.DB_DOCUMENT_SERIALIZER.setValue(previous);
+			}
+		}
+	}
+
+	@Test(dependsOnMethods = "testMixedFormats")
+	public void testMigrate() {
+		final StringBuilder output = new StringBuilder();
+		final OCommandOutputListener listener = new OCommandOutputListener() {
+			public void onMessage(final String iText) {
+				output.append(iText);
+			}
+		};
+
+		new ODatabaseMigrate(database, ORecordSerializerDocument2Binary.NAME, listener).migrateDatabase();
+		Assert.assertTrue(output.indexOf("Rewritten") > -1);
+
+		database.close();
+		database.open("admin", "admin");
+		database.getStorage().getCache().clear();
+
+		for (ORID rid : csvRids) {
+			final ODocument doc = database.load(rid);
+			Assert.assertTrue(ORecordSerializerDocument2Binary.isBinary(doc.toStream()));
+			verify(doc);
+		}
+		Assert.assertEquals(database.query(new OSQLSynchQuery<ODocument>("select from T where i = 123456")).size(), RECORDS + 1);
+
+		// THE DOCUMENTS ALREADY IN THE FORMAT ARE SKIPPED
+		output.setLength(0);
+		new ODatabaseMigrate(database, ORecordSerializerDocument2Binary.NAME, listener).migrateDatabase();
+		Assert.assertTrue(output.indexOf("Rewritten 0 documents") > -1, output.toString());
+
+		// BACK TO CSV
+		new ODatabaseMigrate(database, ORecordSerializerSchemaAware2CSV.NAME, listener).migrateDatabase();
+		database.getStorage().getCache().clear();
+
+		for (ORID rid : csvRids) {
+			final ODocument doc = database.load(rid);
+			Assert.assertFalse(ORecordSerializerDocument2Binary.isBinary(doc.toStream()));
+			verify(doc);
+		}
+		// THE COLLECTIONS WITH ITEMS OF DIFFERENT TYPES CAN'T BE WRITTEN IN CSV: THE DOCUMENT STAYS BINARY
+		Assert.assertTrue(output.indexOf(binaryRid + " left in binary format") > -1, output.toString());
+		final ODocument binary = database.load(binaryRid);
+		Assert.assertTrue(ORecordSerializerDocument2Binary.isBinary(binary.toStream()));
+		verify(binary);
+
+		database.delete();
+	}
+
+	/**
+	 * Creates a document with a field of every type. The mixed one has collections and maps with items of different types.
+	 */
+	private ODocument fill(final boolean iMixed) {
+		final ODocument doc = new ODocument(database, "T");
+		doc.field("b", true).field("by", (byte) 7).field("s", (short) -3).field("i", 123456).field("l", 1l << 40);
+		doc.field("f", 1.5f).field("d", Math.PI).field("dt", new Date(1000000l)).field("str", TEXT);
+		doc.field("bin", new byte[] { 0, 1, 2, -1 }).field("nul", (Object) null).field("link", link);
+		doc.field("ll", new ArrayList<Object>(Arrays.asList(link, link)));
+		doc.field("ls", new HashSet<Object>(Arrays.asList(link)));
+
+		final Map<String, Object> linkMap = new HashMap<String, Object>();
+		linkMap.put("a", link);
+		doc.field("lm", linkMap);
+
+		final ODocument embedded = new ODocument(database);
+		embedded.field("x", 1).field("y", "z");
+		embedded.setOwner(doc);
+		doc.field("emb", embedded, OType.EMBEDDED);
+
+		doc.field("el", new ArrayList<Object>(iMixed ? Arrays.<Object> asList(1, "two", 3.0, null) : Arrays.<Object> asList(1, 2, 3)));
+		doc.field("es", new HashSet<Object>(Arrays.<Object> asList("a", "b")));
+
+		final Map<String, Object> embeddedMap = new HashMap<String, Object>();
+		embeddedMap.put("k", 5l);
+		embeddedMap.put("n", iMixed ? "v" : 6l);
+		doc.field("em", embeddedMap);
+
+		// DECLARED AS INTEGER IN THE SCHEMA
+		doc.field("decl", "42");
+		return doc;
+	}
+
+	private void verify(final ODocument iDocument) {
+		Assert.assertEquals(iDocument.getClassName(), "T");
+		Assert.assertEquals(iDocument.field("b"), Boolean.TRUE);
+		Assert.assertEquals(((Number) iDocument.field("by")).byteValue(), 7);
+		Assert.assertEquals(((Number) iDocument.field("s")).shortValue(), -3);
+		Assert.assertEquals(((Number) iDocument.field("l")).longValue(), 1l << 40);
+		Assert.assertEquals(((Number) iDocument.field("f")).floatValue(), 1.5f);
+		Assert.assertEquals(((Number) iDocument.field("d")).doubleValue(), Math.PI);
+
+		final Object date = iDocument.field("dt");
+		Assert.assertEquals(date instanceof Date ? ((Date) date).getTime() : ((Number) date).longValue(), 1000000l);
+
+		Assert.assertEquals(iDocument.field("str"), TEXT);
+		Assert.assertTrue(Arrays.equals((byte[]) iDocument.field("bin", OType.BINARY), new byte[] { 0, 1, 2, -1 }));
+		Assert.assertNull(iDocument.field("nul"));
+		Assert.assertTrue(iDocument.containsField("nul"));
+
+		Assert.assertEquals(((ODocument) iDocument.field("link")).getIdentity(), link.getIdentity());
+		Assert.assertEquals(((List<?>) iDocument.field("ll")).size(), 2);
+		Assert.assertEquals(((Collection<?>) iDocument.field("ls")).size(), 1);
+		Assert.assertEquals(((Map<?, ?>) iDocument.field("lm")).size(), 1);
+
+		final ODocument embedded = iDocument.field("emb");
+		Assert.assertEquals(((Number) embedded.field("x")).intValue(), 1);
+		Assert.assertEquals(embedded.field("y"), "z");
+
+		final List<?> embeddedList = iDocument.field("el");
+		Assert.assertEquals(((Number) embeddedList.get(0)).intValue(), 1);
+		if (embeddedList.size() == 4) {
+			Assert.assertEquals(embeddedList.get(1), "two");
+			Assert.assertNull(embeddedList.get(3));
+		} else
+			Assert.assertEquals(embeddedList.size(), 3);
+
+		Assert.assertTrue(((Collection<?>) iDocument.field("es")).contains("b"));
+		final Map<?, ?> embeddedMap = iDocument.field("em");
+		Assert.assertEquals(((Number) embeddedMap.get("k")).longValue(), 5l);
+		Assert.assertEquals(embeddedMap.size(), 2);
+
+		Assert.assertEquals(((Number) iDocument.field("decl")).intValue(), 42);
+	}
+}
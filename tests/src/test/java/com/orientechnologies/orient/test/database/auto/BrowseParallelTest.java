@@ -0,0 +1,167 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.ORecordInternal;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import com.orientechnologies.orient.core.storage.ORecordBrowsingListener;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks the parallel browsing of the clusters: the records are the same of the sequential browsing, in the same order, and the
+ * listener is called only by the caller thread.
+ */
+@Test(groups = "storage")
+public class BrowseParallelTest {
+	private static final int		RECORDS	= 2000;
+	private ODatabaseDocumentTx	database;
+	private int									parallelism;
+	private int									range;
+
+	@Parameters(value = "testPath")
+	public BrowseParallelTest(final String iTestPath) {
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/browse-parallel");
+	}
+
+	public void testSameRecordsOfSequential() {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		parallelism = OGlobalConfiguration.STORAGE_BROWSE_PARALLELISM.getValueAsInteger();
+		range = OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE.getValueAsInteger();
+		OGlobalConfiguration.STORAGE_BROWSE_PARALLELISM.setValue(4);
+		OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE.setValue(37);
+
+		database.getMetadata().getSchema().createClass("Parallel");
+		database.getMetadata().getSchema().save();
+
+		final List<ODocument> docs = new ArrayList<ODocument>();
+		ODocument doc;
+		for (int i = 0; i < RECORDS; ++i) {
+			doc = new ODocument(database, "Parallel").field("i", i);
+			doc.save();
+			docs.add(doc);
+		}
+		for (int i = 0; i < RECORDS; i += 5)
+			docs.get(i).delete();
+
+		final List<ORID> sequential = browse(false, -1);
+		Assert.assertEquals(sequential.size(), RECORDS - RECORDS / 5);
+		Assert.assertEquals(browse(true, -1), sequential);
+	}
+
+	@Test(dependsOnMethods = "testSameRecordsOfSequential")
+	public void testEarlyStop() {
+		final List<ORID> sequential = browse(false, -1);
+		Assert.assertEquals(browse(true, 100), sequential.subList(0, 100));
+	}
+
+	@Test(dependsOnMethods = "testEarlyStop")
+	public void testQuery() {
+		final List<ODocument> result = database.query(new OSQLSynchQuery<ODocument>("select from Parallel where i < 1000"));
+		final List<Integer> values = new ArrayList<Integer>();
+		for (ODocument d : result)
+			values.add(((Number) d.field("i")).intValue());
+
+		final List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; ++i)
+			if (i % 5 != 0)
+				expected.add(i);
+		Assert.assertEquals(values, expected);
+
+		Assert.assertEquals(database.query(new OSQLSynchQuery<ODocument>("select from Parallel limit 10")).size(), 10);
+	}
+
+	@Test(dependsOnMethods = "testQuery")
+	public void testRangeMemory() {
+		final Object memory = OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE_MEMORY.getValue();
+		OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE_MEMORY.setValue(1);
+		try {
+			// A RECORD PER READ AHEAD: THE REST OF EVERY RANGE IS READ BY THE CALLER
+			final List<ORID> sequential = browse(false, -1);
+			Assert.assertEquals(browse(true, -1), sequential);
+			Assert.assertEquals(browse(true, 50), sequential.subList(0, 50));
+		} finally {
+			OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE_MEMORY.setValue(memory);
+		}
+	}
+
+	@Test(dependsOnMethods = "testRangeMemory")
+	public void testErrorReleasesLock() throws InterruptedException {
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		try {
+			storage.browseParallel(database.getId(), new int[] { database.getClusterIdByName("Parallel") }, null, null,
+					new ORecordBrowsingListener() {
+						public boolean foreach(final ORecordInternal<?> iRecord) {
+							throw new IllegalStateException("listener error");
+						}
+					}, new ODocument(database), false);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+
+		// THE EXCLUSIVE OPERATIONS DON'T WAIT FOR THE SHARED LOCK OF THE BROWSING
+		final Thread exclusive = new Thread() {
+			public void run() {
+				storage.addCluster("afterError", OStorage.CLUSTER_TYPE.PHYSICAL);
+			}
+		};
+		exclusive.start();
+		exclusive.join(30000);
+		Assert.assertFalse(exclusive.isAlive(), "storage lock not released");
+		Assert.assertTrue(database.getClusterIdByName("afterError") > -1);
+	}
+
+	@Test(dependsOnMethods = "testErrorReleasesLock", alwaysRun = true)
+	public void close() {
+		OGlobalConfiguration.STORAGE_BROWSE_PARALLELISM.setValue(parallelism);
+		OGlobalConfiguration.STORAGE_BROWSE_PARALLEL_RANGE.setValue(range);
+		database.close();
+	}
+
+	private List<ORID> browse(final boolean iParallel, final int iMax) {
+		final Thread caller = Thread.currentThread();
+		final List<ORID> found = new ArrayList<ORID>();
+		final ORecordBrowsingListener listener = new ORecordBrowsingListener() {
+			public boolean foreach(final ORecordInternal<?> iRecord) {
+				Assert.assertSame(Thread.currentThread(), caller);
+				found.add(iRecord.getIdentity().copy());
+				return iMax < 0 || found.size() < iMax;
+			}
+		};
+
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		final int[] clusterIds = new int[] { database.getClusterIdByName("Parallel") };
+		if (iParallel)
+			storage.browseParallel(database.getId(), clusterIds, null, null, listener, new ODocument(database), false);
+		else
+			storage.browse(database.getId(), clusterIds, null, null, listener, new ODocument(database), false);
+		return found;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.common.concur.lock.OLockException;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.ORecordBulkLoader;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocalBulkLoader;
+
+/**
+ * Checks the bulk loader: the records loaded in blocks, the entries reserved and not written given back as holes after a crash and
+ * the timeout on the lock of the storage.
+ */
+@Test(groups = "storage")
+public class BulkLoaderTest {
+	private static final int		CHUNK	= 100;
+	private String							url;
+	private ODatabaseDocumentTx	database;
+
+	@Parameters(value = "testPath")
+	public BulkLoaderTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/bulk-loader";
+	}
+
+	/**
+	 * Opens the database, loads the records in the bulk cluster and stops the JVM without closing the loader.
+	 */
+	public static class Crash {
+		public static void main(final String[] iArgs) {
+			OGlobalConfiguration.STORAGE_BULK_LOAD_CLUSTER_CHUNK.setValue(CHUNK);
+
+			final ODatabaseDocumentTx db = new ODatabaseDocumentTx(iArgs[0]).open("admin", "admin");
+			final OStorageLocalBulkLoader loader = ((OStorageLocal) db.getStorage()).bulkLoad();
+			final int clusterId = db.getClusterIdByName("bulk");
+			for (int i = 0; i < Integer.parseInt(iArgs[1]); ++i)
+				loader.addRecord(clusterId, new ODocument(db).field("crash", i).toStream(), ODocument.RECORD_TYPE);
+			Runtime.getRuntime().halt(0);
+		}
+	}
+
+	public void testLoad() {
+		database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		getStorage().addCluster("bulk", OStorage.CLUSTER_TYPE.PHYSICAL);
+
+		final int dataHoles = getStorage().getDataSegment(0).getHoles();
+		final int chunk = OGlobalConfiguration.STORAGE_BULK_LOAD_CLUSTER_CHUNK.getValueAsInteger();
+		OGlobalConfiguration.STORAGE_BULK_LOAD_CLUSTER_CHUNK.setValue(CHUNK);
+		try {
+			final ORecordBulkLoader<ODocument> loader = new ORecordBulkLoader<ODocument>(database);
+			for (int i = 0; i < CHUNK * 2 + 50; ++i)
+				loader.add(new ODocument(database).field("i", i), "bulk");
+			loader.close();
+		} finally {
+			OGlobalConfiguration.STORAGE_BULK_LOAD_CLUSTER_CHUNK.setValue(chunk);
+		}
+
+		Assert.assertEquals(database.countClusterElements("bulk"), CHUNK * 2 + 50);
+		Assert.assertEquals(getCluster().getHoles(), CHUNK - 50);
+
+		// THE FULL CLUSTER BLOCKS DON'T CLOSE THE DATA BLOCK: ONLY ITS TAIL IS GIVEN BACK AT THE END
+		Assert.assertTrue(getStorage().getDataSegment(0).getHoles() <= dataHoles + 1);
+
+		int i = 0;
+		for (ODocument doc : database.browseCluster("bulk"))
+			Assert.assertEquals(((Number) doc.field("i")).intValue(), i++);
+		Assert.assertEquals(i, CHUNK * 2 + 50);
+	}
+
+	@Test(dependsOnMethods = "testLoad")
+	public void testReservedRecoveredAfterCrash() throws Exception {
+		final long holes = getCluster().getHoles();
+		database.close();
+
+		final List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Crash.class.getName());
+		command.add(url);
+		command.add(String.valueOf(CHUNK + 50));
+
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		while (process.getInputStream().read() > -1)
+			;
+		Assert.assertEquals(process.waitFor(), 0);
+
+		database = new ODatabaseDocumentTx(url).open("admin", "admin");
+
+		// THE FIRST BLOCK WAS WRITTEN, THE ENTRIES OF THE SECOND ONE ARE GIVEN BACK AS HOLES
+		Assert.assertEquals(database.countClusterElements("bulk"), CHUNK * 3 + 50);
+		Assert.assertEquals(getCluster().getHoles(), holes + CHUNK);
+
+		int crashed = 0;
+		for (ODocument doc : database.browseCluster("bulk"))
+			if (doc.field("crash") != null)
+				Assert.assertEquals(((Number) doc.field("crash")).intValue(), crashed++);
+		Assert.assertEquals(crashed, CHUNK);
+	}
+
+	@Test(dependsOnMethods = "testReservedRecoveredAfterCrash")
+	public void testLockTimeout() throws Exception {
+		final int timeout = OGlobalConfiguration.STORAGE_BULK_LOAD_LOCK_TIMEOUT.getValueAsInteger();
+		OGlobalConfiguration.STORAGE_BULK_LOAD_LOCK_TIMEOUT.setValue(200);
+
+		// A SECOND USER ENABLES THE LOCK OF THE STORAGE
+		final ODatabaseDocumentTx other = new ODatabaseDocumentTx(url).open("admin", "admin");
+		final Object sync = new Object();
+		final boolean[] release = new boolean[1];
+		final Thread holder = new Thread() {
+			public void run() {
+				final boolean locked = getStorage().getLock().acquireSharedLock();
+				try {
+					synchronized (sync) {
+						sync.notifyAll();
+						while (!release[0])
+							sync.wait();
+					}
+				} catch (InterruptedException e) {
+				} finally {
+					getStorage().getLock().releaseSharedLock(locked);
+				}
+			}
+		};
+
+		try {
+			synchronized (sync) {
+				holder.start();
+				sync.wait();
+			}
+
+			final long start = System.currentTimeMillis();
+			try {
+				getStorage().bulkLoad();
+				Assert.fail("Lock acquired while held by another thread");
+			} catch (OLockException e) {
+			}
+			Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+
+		} finally {
+			synchronized (sync) {
+				release[0] = true;
+				sync.notifyAll();
+			}
+			holder.join();
+			OGlobalConfiguration.STORAGE_BULK_LOAD_LOCK_TIMEOUT.setValue(timeout);
+		}
+
+		// THE LOCK IS FREE AGAIN
+		getStorage().bulkLoad().close();
+
+		other.close();
+		database.close();
+	}
+
+	private OClusterLocal getCluster() {
+		return (OClusterLocal) getStorage().getClusterById(database.getClusterIdByName("bulk"));
+	}
+
+	private OStorageLocal getStorage() {
+		return (OStorageLocal) database.getStorage();
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OContextConfiguration;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.enterprise.channel.OChannel;
+import com.orientechnologies.orient.enterprise.channel.binary.OChannelBinaryProtocol;
+import com.orientechnologies.orient.enterprise.channel.binary.OChannelBinaryServer;
+import com.orientechnologies.orient.server.OClientCacheInvalidator;
+import com.orientechnologies.orient.server.OClientConnection;
+import com.orientechnologies.orient.server.network.protocol.ONetworkProtocol;
+
+/**
+ * Checks the changes of the records pushed by the server to the caches of the clients: the records sent in batches, the clear of
+ * the whole cache when the queue of a client is full, and the clients busy with a request that never block the writers nor the
+ * other clients.
+ */
+@Test(groups = "storage")
+public class ClientCacheInvalidatorTest {
+	private static final int		RECORDS	= 100;
+	private final String				url;
+	private ODatabaseDocumentTx	database;
+	private ServerSocket				server;
+	private List<ODocument>			records;
+	private int									clusterId;
+
+	@Parameters(value = "testPath")
+	public ClientCacheInvalidatorTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/cache-invalidator";
+	}
+
+	/**
+	 * Protocol that only gives the channel to the invalidator.
+	 */
+	private static class OProtocolStub extends ONetworkProtocol {
+		private final OChannel	channel;
+
+		OProtocolStub(final OChannel iChannel) {
+			super(Thread.currentThread().getThreadGroup(), "ProtocolStub");
+			channel = iChannel;
+		}
+
+		@Override
+		public void config(final Socket iSocket, final OClientConnection iConnection, final OContextConfiguration iConfiguration) {
+		}
+
+		@Override
+		public OChannel getChannel() {
+			return channel;
+		}
+
+		@Override
+		protected void execute() {
+		}
+	}
+
+	/**
+	 * Client connected to the invalidator by a local socket, that has received the records of the cluster.
+	 */
+	private class Client {
+		final Socket								socket;
+		final OChannelBinaryServer	channel;
+		final DataInputStream				in;
+		final OClientConnection			connection;
+
+		Client(final int iId) throws IOException {
+			socket = new Socket("localhost", server.getLocalPort());
+			socket.setSoTimeout(30000);
+			channel = new OChannelBinaryServer(server.accept(), new OContextConfiguration());
+			in = new DataInputStream(socket.getInputStream());
+
+			connection = new OClientConnection(iId, channel.socket, new OProtocolStub(channel));
+			connection.database = database;
+			connection.recordSent(clusterId);
+			OClientCacheInvalidator.instance().register(connection);
+		}
+
+		/**
+		 * Reads the next data pushed.
+		 *
+		 * @return the positions of the records invalidated, or null if the client has been asked to clear its cache
+		 */
+		List<Long> read() throws IOException {
+			Assert.assertEquals(in.readByte(), OChannelBinaryProtocol.PUSH_DATA);
+			Assert.assertEquals(in.readInt(), OChannelBinaryProtocol.PUSH_REQUESTER_ID);
+
+			final byte request = in.readByte();
+			if (request == OChannelBinaryProtocol.PUSH_CACHE_CLEAR)
+				return null;
+
+			Assert.assertEquals(request, OChannelBinaryProtocol.PUSH_RECORDS_INVALIDATION);
+			final List<Long> positions = new ArrayList<Long>();
+			for (int i = in.readInt(); i > 0; --i) {
+				Assert.assertEquals(in.readShort(), clusterId);
+				positions.add(in.readLong());
+				Assert.assertTrue(in.readInt() > 0);
+			}
+			return positions;
+		}
+
+		/**
+		 * Reads the data pushed until all the records expected have been invalidated.
+		 */
+		void readAll(final Set<Long> iExpected) throws IOException {
+			final Set<Long> positions = new HashSet<Long>();
+			while (positions.size() < iExpected.size()) {
+				final List<Long> read = read();
+				Assert.assertNotNull(read, "cache cleared");
+				positions.addAll(read);
+			}
+			Assert.assertEquals(positions, iExpected);
+		}
+
+		void close() throws IOException {
+			OClientCacheInvalidator.onClientDisconnection(connection);
+			channel.close();
+			socket.close();
+		}
+	}
+
+	public void testInvalidation() throws IOException {
+		database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		server = new ServerSocket(0);
+		clusterId = database.getDefaultClusterId();
+		records = new ArrayList<ODocument>();
+		for (int i = 0; i < RECORDS; ++i) {
+			final ODocument doc = new ODocument(database).field("value", i);
+			doc.save();
+			records.add(doc);
+		}
+
+		final Client client = new Client(1);
+		try {
+			// THE RECORDS OF THE CLUSTERS NEVER SENT ARE NOT PUSHED
+			database.getMetadata().getSchema().createClass("NotSent");
+			database.getMetadata().getSchema().save();
+			final ODocument notSent = new ODocument(database, "NotSent").field("value", 0);
+			notSent.save();
+			notSent.field("value", 1).save();
+
+			final Set<Long> expected = new HashSet<Long>();
+			for (ODocument doc : records) {
+				doc.field("value", -1).save();
+				expected.add(doc.getIdentity().getClusterPosition());
+			}
+			records.remove(RECORDS - 1).delete();
+
+			client.readAll(expected);
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test(dependsOnMethods = "testInvalidation")
+	public void testCacheClear() throws IOException {
+		final Object size = OGlobalConfiguration.NETWORK_BINARY_CACHE_INVALIDATION_QUEUE_SIZE.getValue();
+		OGlobalConfiguration.NETWORK_BINARY_CACHE_INVALIDATION_QUEUE_SIZE.setValue(10);
+		final Client client;
+		try {
+			client = new Client(2);
+		} finally {
+			OGlobalConfiguration.NETWORK_BINARY_CACHE_INVALIDATION_QUEUE_SIZE.setValue(size);
+		}
+
+		try {
+			// THE CLIENT IS BUSY: THE CHANGES ARE QUEUED UNTIL THE QUEUE IS FULL
+			client.channel.acquireExclusiveLock();
+			try {
+				for (ODocument doc : records)
+					doc.field("value", -2).save();
+			} finally {
+				client.channel.releaseExclusiveLock();
+			}
+
+			// THE CHANGES DROPPED ARE REPLACED BY THE CLEAR OF THE CACHE
+			Assert.assertNull(client.read());
+
+			// THEN THE CHANGES ARE SENT AGAIN ONE BY ONE
+			final ODocument doc = records.get(0);
+			doc.field("value", -3).save();
+			client.readAll(new HashSet<Long>(Arrays.asList(doc.getIdentity().getClusterPosition())));
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test(dependsOnMethods = "testCacheClear")
+	public void testBusyClient() throws IOException {
+		final Client busy = new Client(3);
+		final Client free = new Client(4);
+		try {
+			final Set<Long> expected = new HashSet<Long>();
+
+			// THE OTHER CLIENTS STILL RECEIVE THE CHANGES WHILE A CLIENT IS BUSY
+			busy.channel.acquireExclusiveLock();
+			try {
+				for (int i = 0; i < 5; ++i) {
+					records.get(i).field("value", -4).save();
+					expected.add(records.get(i).getIdentity().getClusterPosition());
+				}
+				free.readAll(expected);
+			} finally {
+				busy.channel.releaseExclusiveLock();
+			}
+
+			// THE BUSY CLIENT RECEIVES THEM WHEN FREE
+			busy.readAll(expected);
+		} finally {
+			busy.close();
+			free.close();
+			server.close();
+			database.delete();
+		}
+	}
+}
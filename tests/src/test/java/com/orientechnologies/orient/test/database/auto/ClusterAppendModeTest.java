@@ -0,0 +1,191 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks the append mode of the physical clusters: concurrent inserts, the positions reserved and not used given back as holes when
+ * the cluster leaves the append mode and after a crash.
+ */
+@Test(groups = "storage")
+public class ClusterAppendModeTest {
+	private static final int		THREADS	= 4;
+	private static final int		RECORDS	= 500;
+	private String							url;
+	private ODatabaseDocumentTx	database;
+	private long								expected;
+
+	@Parameters(value = "testPath")
+	public ClusterAppendModeTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/append-mode";
+	}
+
+	/**
+	 * Opens the database, adds the records in the append cluster and stops the JVM without closing it.
+	 */
+	public static class Crash {
+		public static void main(final String[] iArgs) {
+			final ODatabaseDocumentTx db = new ODatabaseDocumentTx(iArgs[0]).open("admin", "admin");
+			for (int i = 0; i < Integer.parseInt(iArgs[1]); ++i) {
+				final ODocument doc = new ODocument(db).field("crash", i);
+				doc.save("applog");
+			}
+			Runtime.getRuntime().halt(0);
+		}
+	}
+
+	public void testConcurrentInserts() throws Exception {
+		database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		getStorage().addCluster("applog", OStorage.CLUSTER_TYPE.PHYSICAL);
+		getStorage().setClusterAppendMode("applog", true);
+		Assert.assertTrue(getCluster().isAppendMode());
+
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final Set<ORID> rids = new HashSet<ORID>();
+		final Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					final ODatabaseDocumentTx db = new ODatabaseDocumentTx(url).open("admin", "admin");
+					try {
+						for (int i = 0; i < RECORDS; ++i) {
+							final ODocument doc = new ODocument(db).field("i", i);
+							doc.save("applog");
+							synchronized (rids) {
+								rids.add(doc.getIdentity().copy());
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					} finally {
+						db.close();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		Assert.assertTrue(errors.isEmpty(), errors.toString());
+		Assert.assertEquals(rids.size(), THREADS * RECORDS);
+		Assert.assertEquals(database.countClusterElements("applog"), THREADS * RECORDS);
+
+		int browsed = 0;
+		for (ODocument doc : database.browseCluster("applog")) {
+			Assert.assertTrue(rids.contains(doc.getIdentity()));
+			browsed++;
+		}
+		Assert.assertEquals(browsed, THREADS * RECORDS);
+		expected = THREADS * RECORDS;
+	}
+
+	@Test(dependsOnMethods = "testConcurrentInserts")
+	public void testReservedGivenBackOnClose() {
+		database.close();
+		database = new ODatabaseDocumentTx(url).open("admin", "admin");
+
+		Assert.assertTrue(getCluster().isAppendMode());
+		Assert.assertEquals(database.countClusterElements("applog"), expected);
+		Assert.assertTrue(getCluster().getHoles() > 0);
+	}
+
+	@Test(dependsOnMethods = "testReservedGivenBackOnClose")
+	public void testReservedRecoveredAfterCrash() throws Exception {
+		final long holes = getCluster().getHoles();
+		database.close();
+
+		final List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Crash.class.getName());
+		command.add(url);
+		command.add("10");
+
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		while (process.getInputStream().read() > -1)
+			;
+		Assert.assertEquals(process.waitFor(), 0);
+
+		database = new ODatabaseDocumentTx(url).open("admin", "admin");
+		expected += 10;
+		Assert.assertEquals(database.countClusterElements("applog"), expected);
+
+		int crashed = 0;
+		for (ODocument doc : database.browseCluster("applog"))
+			if (doc.field("crash") != null)
+				crashed++;
+		Assert.assertEquals(crashed, 10);
+
+		// THE BLOCK RESERVED BY THE CRASHED PROCESS IS GIVEN BACK EXCEPT THE 10 POSITIONS USED
+		Assert.assertEquals(getCluster().getHoles(), holes + OGlobalConfiguration.STORAGE_CLUSTER_APPEND_RESERVE.getValueAsInteger()
+				- 10);
+	}
+
+	@Test(dependsOnMethods = "testReservedRecoveredAfterCrash")
+	public void testHolesReusedOutOfAppendMode() {
+		getStorage().setClusterAppendMode("applog", false);
+		Assert.assertFalse(getCluster().isAppendMode());
+
+		final long holes = getCluster().getHoles();
+		final long size = getCluster().getFilledUpTo();
+		for (int i = 0; i < 10; ++i) {
+			final ODocument doc = new ODocument(database).field("after", i);
+			doc.save("applog");
+		}
+		expected += 10;
+
+		Assert.assertEquals(getCluster().getHoles(), holes - 10);
+		Assert.assertEquals(getCluster().getFilledUpTo(), size);
+		Assert.assertEquals(database.countClusterElements("applog"), expected);
+
+		database.close();
+	}
+
+	private OClusterLocal getCluster() {
+		return (OClusterLocal) getStorage().getClusterById(database.getClusterIdByName("applog"));
+	}
+
+	private OStorageLocal getStorage() {
+		return (OStorageLocal) database.getStorage();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.ORecordInternal;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OCluster;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import com.orientechnologies.orient.core.storage.ORecordBrowsingListener;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks the batched read of the cluster entries: the batches return the same positions of the single reads and the browsing of the
+ * storage finds all and only the live records with any batch size.
+ */
+@Test(groups = "storage")
+public class ClusterBatchReadTest {
+	private static final int		RECORDS	= 1000;
+	private ODatabaseDocumentTx	database;
+	private Map<ORID, Integer>	live		= new HashMap<ORID, Integer>();
+
+	@Parameters(value = "testPath")
+	public ClusterBatchReadTest(final String iTestPath) {
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/cluster-batch");
+	}
+
+	public void testBatchMatchesSingleReads() throws IOException {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		for (int i = 0; i < RECORDS; ++i) {
+			final ODocument doc = new ODocument(database).field("i", i);
+			doc.save();
+			live.put(doc.getIdentity().copy(), i);
+		}
+		for (ORID rid : live.keySet().toArray(new ORID[0]))
+			if (rid.getClusterPosition() % 7 == 0) {
+				database.load(rid).delete();
+				live.remove(rid);
+			}
+
+		final OCluster cluster = getCluster();
+		final OPhysicalPosition[] batch = new OPhysicalPosition[64];
+		long position = 0;
+		int read;
+		while ((read = cluster.getPhysicalPositions(position, batch)) > 0) {
+			for (int i = 0; i < read; ++i, ++position) {
+				final OPhysicalPosition single = cluster.getPhysicalPosition(position, new OPhysicalPosition());
+				Assert.assertEquals(batch[i].dataSegment, single.dataSegment, "Position " + position);
+				Assert.assertEquals(batch[i].dataPosition, single.dataPosition, "Position " + position);
+				Assert.assertEquals(batch[i].type, single.type, "Position " + position);
+				Assert.assertEquals(batch[i].version, single.version, "Position " + position);
+			}
+		}
+
+		Assert.assertEquals(position, cluster.getLastEntryPosition() + 1);
+		Assert.assertEquals(cluster.getPhysicalPositions(position, batch), 0);
+	}
+
+	@Test(dependsOnMethods = "testBatchMatchesSingleReads")
+	public void testBrowseSmallBatches() {
+		final int batchSize = OGlobalConfiguration.STORAGE_BROWSE_BATCH_SIZE.getValueAsInteger();
+		OGlobalConfiguration.STORAGE_BROWSE_BATCH_SIZE.setValue(7);
+		try {
+			Assert.assertEquals(browse(null, null, false), live);
+			Assert.assertEquals(browse(null, null, true), live);
+
+			// RANGE NOT ALIGNED TO THE BATCHES
+			final int clusterId = database.getDefaultClusterId();
+			final Map<ORID, Integer> expected = new HashMap<ORID, Integer>();
+			for (Map.Entry<ORID, Integer> entry : live.entrySet())
+				if (entry.getKey().getClusterPosition() >= 10 && entry.getKey().getClusterPosition() <= 500)
+					expected.put(entry.getKey(), entry.getValue());
+			Assert.assertEquals(browse(new ORecordId(clusterId, 10), new ORecordId(clusterId, 500), false), expected);
+		} finally {
+			OGlobalConfiguration.STORAGE_BROWSE_BATCH_SIZE.setValue(batchSize);
+		}
+
+		database.close();
+	}
+
+	private Map<ORID, Integer> browse(final ORecordId iBegin, final ORecordId iEnd, final boolean iLockEntireCluster) {
+		final Map<ORID, Integer> found = new HashMap<ORID, Integer>();
+		((OStorageLocal) database.getStorage()).browse(database.getId(), new int[] { database.getDefaultClusterId() }, iBegin, iEnd,
+				new ORecordBrowsingListener() {
+					public boolean foreach(final ORecordInternal<?> iRecord) {
+						Assert.assertNull(found.put(iRecord.getIdentity().copy(), ((Number) ((ODocument) iRecord).field("i")).intValue()));
+						return true;
+					}
+				}, new ODocument(database), iLockEntireCluster);
+		return found;
+	}
+
+	private OCluster getCluster() {
+		return ((OStorageLocal) database.getStorage()).getClusterById(database.getDefaultClusterId());
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks the holes of the physical clusters: the positions of the deleted records are recycled by the new records, also after the
+ * reopening of the database, and a hole can be removed from the middle of the hole file.
+ */
+@Test(groups = "storage")
+public class ClusterHoleIndexTest {
+	private static final int		RECORDS	= 500;
+	private ODatabaseDocumentTx	database;
+	private List<ORID>					rids		= new ArrayList<ORID>();
+
+	@Parameters(value = "testPath")
+	public ClusterHoleIndexTest(final String iTestPath) {
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/cluster-holes");
+	}
+
+	public void testRecyclePositions() {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		for (int i = 0; i < RECORDS; ++i)
+			rids.add(new ODocument(database).field("i", i).save().getIdentity().copy());
+
+		final OClusterLocal cluster = getCluster();
+		final long holes = cluster.getHoles();
+
+		final Set<Long> deleted = new HashSet<Long>();
+		for (int i = 0; i < RECORDS; i += 3) {
+			database.load(rids.get(i)).delete();
+			deleted.add(rids.get(i).getClusterPosition());
+		}
+
+		Assert.assertEquals(cluster.getHoles(), holes + deleted.size());
+		for (Long position : deleted)
+			Assert.assertTrue(cluster.isHole(position));
+
+		// THE NEW RECORDS TAKE ALL AND ONLY THE DELETED POSITIONS
+		final Set<Long> recycled = new HashSet<Long>();
+		for (int i = 0; i < deleted.size(); ++i)
+			recycled.add(new ODocument(database).field("i", -i).save().getIdentity().getClusterPosition());
+
+		Assert.assertEquals(recycled, deleted);
+		Assert.assertEquals(cluster.getHoles(), holes);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testRecyclePositions")
+	public void testRecycleAfterReopen() {
+		database.open("admin", "admin");
+
+		final Set<Long> deleted = new HashSet<Long>();
+		for (int i = 1; i < RECORDS; i += 5) {
+			database.load(rids.get(i)).delete();
+			deleted.add(rids.get(i).getClusterPosition());
+		}
+
+		database.close();
+		database.open("admin", "admin");
+
+		final OClusterLocal cluster = getCluster();
+		for (Long position : deleted)
+			Assert.assertTrue(cluster.isHole(position));
+
+		final Set<Long> recycled = new HashSet<Long>();
+		for (int i = 0; i < deleted.size(); ++i)
+			recycled.add(new ODocument(database).field("i", -i).save().getIdentity().getClusterPosition());
+		Assert.assertEquals(recycled, deleted);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testRecycleAfterReopen")
+	public void testRemoveHole() throws IOException {
+		database.open("admin", "admin");
+
+		final OClusterLocal cluster = getCluster();
+		final long holes = cluster.getHoles();
+
+		final long first = rids.get(2).getClusterPosition();
+		final long middle = rids.get(5).getClusterPosition();
+		final long last = rids.get(8).getClusterPosition();
+		database.load(rids.get(2)).delete();
+		database.load(rids.get(5)).delete();
+		database.load(rids.get(8)).delete();
+
+		// THE LAST HOLE TAKES THE PLACE OF THE REMOVED ONE
+		Assert.assertTrue(cluster.removeHole(middle));
+		Assert.assertFalse(cluster.removeHole(middle));
+		Assert.assertFalse(cluster.isHole(middle));
+		Assert.assertTrue(cluster.isHole(first));
+		Assert.assertTrue(cluster.isHole(last));
+		Assert.assertEquals(cluster.getHoles(), holes + 2);
+
+		database.close();
+		database.open("admin", "admin");
+
+		Assert.assertTrue(getCluster().isHole(first));
+		Assert.assertTrue(getCluster().isHole(last));
+		Assert.assertFalse(getCluster().isHole(middle));
+
+		database.close();
+	}
+
+	private OClusterLocal getCluster() {
+		return (OClusterLocal) ((OStorageLocal) database.getStorage()).getClusterById(database.getDefaultClusterId());
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ORecordBytes;
+import com.orientechnologies.orient.core.storage.OClusterStatistics;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+
+/**
+ * Checks the statistics of the clusters: the histogram of the record sizes, their incremental update on create, update and delete,
+ * the values saved on close and marked as not exact after a crash, and their publication in the profiler.
+ */
+@Test(groups = "storage")
+public class ClusterStatisticsTest {
+	private static final String	CLUSTER	= "stats";
+	private final String				url;
+	private ODatabaseDocumentTx	database;
+
+	@Parameters(value = "testPath")
+	public ClusterStatisticsTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/cluster-stats";
+	}
+
+	/**
+	 * Creates records without closing the database, then halts the JVM.
+	 */
+	public static class Crash {
+		public static void main(final String[] iArgs) {
+			final ODatabaseDocumentTx db = new ODatabaseDocumentTx(iArgs[0]).open("admin", "admin");
+			final int clusterId = db.getClusterIdByName(CLUSTER);
+			for (int i = 0; i < Integer.parseInt(iArgs[1]); ++i)
+				db.getStorage().createRecord(clusterId, new byte[50], ORecordBytes.RECORD_TYPE);
+			Runtime.getRuntime().halt(0);
+		}
+	}
+
+	public void testHistogram() {
+		final OClusterStatistics stats = new OClusterStatistics();
+
+		stats.recordCreated(1);
+		stats.recordCreated(32);
+		stats.recordCreated(33);
+		stats.recordCreated(64);
+		stats.recordCreated(65);
+		stats.recordCreated(10 * 1024 * 1024);
+
+		final long[] histogram = stats.getHistogram();
+		Assert.assertEquals(histogram[0], 2);
+		Assert.assertEquals(histogram[1], 2);
+		Assert.assertEquals(histogram[2], 1);
+		Assert.assertEquals(histogram[OClusterStatistics.RANGES - 1], 1);
+		Assert.assertEquals(stats.getRecords(), 6);
+		Assert.assertEquals(stats.getRecordsSize(), 1 + 32 + 33 + 64 + 65 + 10 * 1024 * 1024);
+
+		Assert.assertEquals(OClusterStatistics.getRangeLimit(0), 32);
+		Assert.assertEquals(OClusterStatistics.getRangeLimit(1), 64);
+		Assert.assertEquals(OClusterStatistics.getRangeLimit(OClusterStatistics.RANGES - 1), Integer.MAX_VALUE);
+
+		// AN UPDATE MOVES THE RECORD TO ANOTHER RANGE ONLY IF NEEDED
+		stats.recordUpdated(1, 20);
+		Assert.assertEquals(stats.getHistogram()[0], 2);
+		stats.recordUpdated(20, 100);
+		Assert.assertEquals(stats.getHistogram()[0], 1);
+		Assert.assertEquals(stats.getHistogram()[2], 2);
+
+		stats.recordDeleted(10 * 1024 * 1024);
+		Assert.assertEquals(stats.getHistogram()[OClusterStatistics.RANGES - 1], 0);
+		Assert.assertEquals(stats.getRecords(), 5);
+		Assert.assertEquals(stats.getRecordsSize(), 100 + 32 + 33 + 64 + 65);
+		Assert.assertEquals(stats.getAverageRecordSize(), (100 + 32 + 33 + 64 + 65) / 5);
+
+		// THE VALUES SAVED ARE LOADED BACK AS THEY WERE
+		final OClusterStatistics loaded = new OClusterStatistics();
+		loaded.fromArray(stats.toArray());
+		Assert.assertEquals(loaded.getRecordsSize(), stats.getRecordsSize());
+		Assert.assertTrue(Arrays.equals(loaded.getHistogram(), stats.getHistogram()));
+
+		loaded.setExact(false);
+		loaded.reset();
+		Assert.assertEquals(loaded.getRecords(), 0);
+		Assert.assertEquals(loaded.getRecordsSize(), 0);
+		Assert.assertTrue(loaded.isExact());
+	}
+
+	@Test(dependsOnMethods = "testHistogram")
+	public void testIncrementalUpdate() {
+		database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		final OStorage storage = database.getStorage();
+		final int clusterId = storage.addCluster(CLUSTER, OStorage.CLUSTER_TYPE.PHYSICAL);
+		final OClusterStatistics stats = storage.getClusterById(clusterId).getStatistics();
+
+		Assert.assertEquals(stats.getRecords(), 0);
+		Assert.assertTrue(stats.isExact());
+
+		final long small = storage.createRecord(clusterId, new byte[10], ORecordBytes.RECORD_TYPE);
+		final long position = storage.createRecord(clusterId, new byte[100], ORecordBytes.RECORD_TYPE);
+		storage.createRecord(clusterId, new byte[1000], ORecordBytes.RECORD_TYPE);
+
+		Assert.assertEquals(stats.getRecords(), 3);
+		Assert.assertEquals(stats.getRecordsSize(), 1110);
+
+		storage.updateRecord(0, clusterId, position, new byte[2000], -1, ORecordBytes.RECORD_TYPE);
+		Assert.assertEquals(stats.getRecords(), 3);
+		Assert.assertEquals(stats.getRecordsSize(), 3010);
+
+		storage.deleteRecord(0, clusterId, small, -1);
+		Assert.assertEquals(stats.getRecords(), 2);
+		Assert.assertEquals(stats.getRecordsSize(), 3000);
+		Assert.assertEquals(stats.getAverageRecordSize(), 1500);
+		Assert.assertEquals(((OClusterLocal) storage.getClusterById(clusterId)).getHoles(), 1);
+
+		// THE PROFILER READS THE CURRENT VALUES WHEN ASKED
+		final String prefix = "storage." + storage.getName() + ".cluster." + CLUSTER + ".";
+		Assert.assertEquals(OProfiler.getInstance().getHookValues().get(prefix + "records"), 2l);
+		Assert.assertEquals(OProfiler.getInstance().getHookValues().get(prefix + "recordsSize"), 3000l);
+		Assert.assertEquals(OProfiler.getInstance().getHookValues().get(prefix + "holes"), 1l);
+
+		storage.createRecord(clusterId, new byte[500], ORecordBytes.RECORD_TYPE);
+		Assert.assertEquals(OProfiler.getInstance().getHookValues().get(prefix + "records"), 3l);
+
+		// AN EMPTY RECORD IS COUNTED AND UNCOUNTED AS THE OTHERS
+		final long empty = storage.createRecord(clusterId, new byte[0], ORecordBytes.RECORD_TYPE);
+		Assert.assertEquals(stats.getRecords(), 4);
+		storage.deleteRecord(0, clusterId, empty, -1);
+		Assert.assertEquals(stats.getRecords(), 3);
+		Assert.assertEquals(stats.getRecordsSize(), 3500);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testIncrementalUpdate")
+	public void testSavedOnClose() {
+		database = new ODatabaseDocumentTx(url).open("admin", "admin");
+
+		final OClusterStatistics stats = getStatistics();
+		Assert.assertTrue(stats.isExact());
+		Assert.assertEquals(stats.getRecords(), 3);
+		Assert.assertEquals(stats.getRecordsSize(), 3500);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testSavedOnClose")
+	public void testNotExactAfterCrash() throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Crash.class.getName());
+		command.add(url);
+		command.add("5");
+
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		while (process.getInputStream().read() > -1)
+			;
+		Assert.assertEquals(process.waitFor(), 0);
+
+		database = new ODatabaseDocumentTx(url).open("admin", "admin");
+
+		// THE LAST VALUES SAVED ARE LOADED, BUT THEY DON'T COUNT THE RECORDS CREATED BEFORE THE CRASH
+		final OClusterStatistics stats = getStatistics();
+		Assert.assertFalse(stats.isExact());
+		Assert.assertEquals(stats.getRecords(), 3);
+		Assert.assertEquals(database.countClusterElements(CLUSTER), 8);
+
+		// STILL NOT EXACT AFTER A CLEAN CLOSE
+		database.close();
+		database = new ODatabaseDocumentTx(url).open("admin", "admin");
+		Assert.assertFalse(getStatistics().isExact());
+
+		// AN EMPTY CLUSTER IS EXACT AGAIN
+		database.getStorage().getClusterById(database.getClusterIdByName(CLUSTER)).truncate();
+		Assert.assertTrue(getStatistics().isExact());
+		Assert.assertEquals(getStatistics().getRecords(), 0);
+
+		database.close();
+	}
+
+	public void testMemoryStorage() {
+		final ODatabaseDocumentTx memory = new ODatabaseDocumentTx("memory:cluster-stats");
+		if (memory.exists())
+			memory.delete();
+		memory.create();
+
+		try {
+			final OStorage storage = memory.getStorage();
+			final int clusterId = storage.addCluster(CLUSTER, OStorage.CLUSTER_TYPE.MEMORY);
+			final OClusterStatistics stats = storage.getClusterById(clusterId).getStatistics();
+
+			final long pos = storage.createRecord(clusterId, new byte[40], ORecordBytes.RECORD_TYPE);
+			storage.createRecord(clusterId, new byte[60], ORecordBytes.RECORD_TYPE);
+			Assert.assertEquals(stats.getRecords(), 2);
+			Assert.assertEquals(stats.getRecordsSize(), 100);
+
+			storage.updateRecord(0, clusterId, pos, new byte[4], -1, ORecordBytes.RECORD_TYPE);
+			Assert.assertEquals(stats.getRecordsSize(), 64);
+			Assert.assertEquals(stats.getHistogram()[0], 1);
+
+			storage.deleteRecord(0, clusterId, pos, -1);
+			Assert.assertEquals(stats.getRecords(), 1);
+			Assert.assertEquals(stats.getRecordsSize(), 60);
+
+			final long empty = storage.createRecord(clusterId, new byte[0], ORecordBytes.RECORD_TYPE);
+			Assert.assertEquals(stats.getRecords(), 2);
+			storage.deleteRecord(0, clusterId, empty, -1);
+			Assert.assertEquals(stats.getRecords(), 1);
+		} finally {
+			memory.delete();
+		}
+	}
+
+	private OClusterStatistics getStatistics() {
+		return database.getStorage().getClusterById(database.getClusterIdByName(CLUSTER)).getStatistics();
+	}
+}
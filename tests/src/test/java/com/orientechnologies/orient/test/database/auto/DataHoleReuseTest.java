@@ -0,0 +1,128 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.impl.local.ODataLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks that the space of the deleted records is reused by the new records of the same or smaller size, that adjacent holes are
+ * merged and that the holes survive the reopening of the database.
+ */
+@Test(groups = "storage")
+public class DataHoleReuseTest {
+	private static final int		RECORDS	= 200;
+	private ODatabaseDocumentTx	database;
+	private List<ORID>					rids		= new ArrayList<ORID>();
+
+	@Parameters(value = "testPath")
+	public DataHoleReuseTest(final String iTestPath) {
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/data-holes");
+	}
+
+	public void testReuseHoles() {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		for (int i = 0; i < RECORDS; ++i)
+			rids.add(new ODocument(database).field("name", name(i)).save().getIdentity());
+
+		final ODataLocal data = getDataSegment();
+		final long filled = data.getFilledUpTo();
+		final int holes = data.getHoles();
+
+		// DELETE ONE RECORD EVERY TWO: THE HOLES CAN'T BE MERGED
+		for (int i = 0; i < RECORDS; i += 2)
+			database.load(rids.get(i)).delete();
+
+		Assert.assertEquals(data.getHoles(), holes + RECORDS / 2);
+		Assert.assertEquals(data.getFilledUpTo(), filled);
+
+		// SAME SIZE: ALL THE NEW RECORDS FIT IN THE HOLES
+		for (int i = 0; i < RECORDS; i += 2)
+			rids.set(i, new ODocument(database).field("name", name(i + 1000)).save().getIdentity());
+
+		Assert.assertEquals(data.getHoles(), holes);
+		Assert.assertEquals(data.getFilledUpTo(), filled);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testReuseHoles")
+	public void testMergeAdjacentHoles() {
+		database.open("admin", "admin");
+
+		final ODocument first = new ODocument(database).field("name", name(5000));
+		first.save();
+		final ODocument second = new ODocument(database).field("name", name(5001));
+		second.save();
+		new ODocument(database).field("name", name(5002)).save();
+
+		final ODataLocal data = getDataSegment();
+		final int holes = data.getHoles();
+
+		first.delete();
+		second.delete();
+
+		// THE SPACE OF THE TWO RECORDS IS A SINGLE HOLE
+		Assert.assertEquals(data.getHoles(), holes + 1);
+
+		// A RECORD AS BIG AS THE TWO DELETED ONES FILLS THE MERGED HOLE
+		final long filled = data.getFilledUpTo();
+		final StringBuilder bigger = new StringBuilder(name(0));
+		while (bigger.length() < name(0).length() * 2)
+			bigger.append('x');
+		new ODocument(database).field("name", bigger.toString()).save();
+		Assert.assertEquals(data.getFilledUpTo(), filled);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testMergeAdjacentHoles")
+	public void testReopen() {
+		database.open("admin", "admin");
+
+		for (int i = 0; i < RECORDS; ++i) {
+			final ODocument doc = database.load(rids.get(i));
+			Assert.assertEquals(doc.field("name"), name(i % 2 == 0 ? i + 1000 : i));
+		}
+
+		database.close();
+	}
+
+	private ODataLocal getDataSegment() {
+		return ((OStorageLocal) database.getStorage()).getDataSegment(0);
+	}
+
+	private static String name(final int i) {
+		final String value = "Record number " + i;
+		final StringBuilder buffer = new StringBuilder(value);
+		while (buffer.length() < 100)
+			buffer.append('.');
+		return buffer.toString();
+	}
+}
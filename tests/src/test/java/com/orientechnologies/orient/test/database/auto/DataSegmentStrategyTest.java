@@ -0,0 +1,205 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.exception.OConfigurationException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OCluster;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.ODataSegmentStrategy;
+import com.orientechnologies.orient.core.storage.impl.local.ODataSegmentStrategyFactory;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks the strategies that choose the data segment of the new records, their persistence in the configuration and the data
+ * segments placed in another directory.
+ */
+@Test(groups = "storage")
+public class DataSegmentStrategyTest {
+	private String							testPath;
+	private ODatabaseDocumentTx	database;
+	private List<ORID>					roundRobin	= new ArrayList<ORID>();
+
+	public static class OddStrategy extends ODataSegmentStrategy {
+		@Override
+		public int getDataSegment(final OCluster iCluster, final byte[] iContent) {
+			return dataSegments[dataSegments.length - 1];
+		}
+	}
+
+	@Parameters(value = "testPath")
+	public DataSegmentStrategyTest(final String iTestPath) {
+		testPath = iTestPath;
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/data-strategy");
+	}
+
+	public void testRoundRobin() throws IOException {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		final OStorageLocal storage = getStorage();
+		Assert.assertEquals(storage.addDataSegment("ds1"), 1);
+		Assert.assertEquals(storage.addDataSegment("ds2", new File(testPath + "/data-strategy-other/ds2").getAbsolutePath()), 2);
+		Assert.assertTrue(new File(testPath + "/data-strategy-other").isDirectory());
+
+		storage.addCluster("rr", OStorage.CLUSTER_TYPE.PHYSICAL);
+		storage.setDataSegmentStrategy("rr", "round-robin", "default", "ds1", "ds2");
+
+		for (int i = 0; i < 30; ++i)
+			roundRobin.add(newRecord(i, "rr"));
+
+		final int[] counts = countBySegment(roundRobin);
+		Assert.assertEquals(counts[0], 10);
+		Assert.assertEquals(counts[1], 10);
+		Assert.assertEquals(counts[2], 10);
+	}
+
+	@Test(dependsOnMethods = "testRoundRobin")
+	public void testPersistedOnReopen() throws IOException {
+		database.close();
+		database = new ODatabaseDocumentTx("local:" + testPath + "/data-strategy");
+		database.open("admin", "admin");
+
+		for (int i = 0; i < roundRobin.size(); ++i)
+			Assert.assertEquals(((Number) database.<ODocument> load(roundRobin.get(i)).field("i")).intValue(), i);
+
+		// THE STRATEGY IS STILL ROUND-ROBIN AFTER THE REOPEN
+		final List<ORID> more = new ArrayList<ORID>();
+		for (int i = 0; i < 9; ++i)
+			more.add(newRecord(i, "rr"));
+		final int[] counts = countBySegment(more);
+		Assert.assertEquals(counts[0], 3);
+		Assert.assertEquals(counts[1], 3);
+		Assert.assertEquals(counts[2], 3);
+	}
+
+	@Test(dependsOnMethods = "testPersistedOnReopen")
+	public void testAffinity() throws IOException {
+		final OStorageLocal storage = getStorage();
+		storage.addCluster("aff", OStorage.CLUSTER_TYPE.PHYSICAL);
+		storage.setDataSegmentStrategy("aff", "affinity", "ds1", "ds2");
+
+		final List<ORID> rids = new ArrayList<ORID>();
+		for (int i = 0; i < 20; ++i)
+			rids.add(newRecord(i, "aff"));
+
+		final int[] counts = countBySegment(rids);
+		Assert.assertEquals(counts[0], 0);
+		Assert.assertEquals(counts[1] + counts[2], 20);
+		Assert.assertTrue(counts[1] == 0 || counts[2] == 0);
+	}
+
+	@Test(dependsOnMethods = "testAffinity")
+	public void testRecordSize() throws IOException {
+		final int largeSize = OGlobalConfiguration.STORAGE_DATA_SEGMENT_LARGE_RECORD.getValueAsInteger();
+		OGlobalConfiguration.STORAGE_DATA_SEGMENT_LARGE_RECORD.setValue(1000);
+		try {
+			final OStorageLocal storage = getStorage();
+			storage.addCluster("size", OStorage.CLUSTER_TYPE.PHYSICAL);
+			storage.setDataSegmentStrategy("size", "record-size", "default", "ds2");
+
+			final ODocument small = new ODocument(database).field("v", "small");
+			small.save("size");
+			final StringBuilder buffer = new StringBuilder();
+			for (int i = 0; i < 2000; ++i)
+				buffer.append('x');
+			final ODocument large = new ODocument(database).field("v", buffer.toString());
+			large.save("size");
+
+			Assert.assertEquals(getPhysicalPosition(small.getIdentity()).dataSegment, 0);
+			Assert.assertEquals(getPhysicalPosition(large.getIdentity()).dataSegment, 2);
+		} finally {
+			OGlobalConfiguration.STORAGE_DATA_SEGMENT_LARGE_RECORD.setValue(largeSize);
+		}
+	}
+
+	@Test(dependsOnMethods = "testRecordSize")
+	public void testLeastFilled() throws IOException {
+		final OStorageLocal storage = getStorage();
+		storage.addDataSegment("ds3");
+		storage.addCluster("least", OStorage.CLUSTER_TYPE.PHYSICAL);
+		storage.setDataSegmentStrategy("least", "least-filled", "ds1", "ds3");
+
+		// THE NEW DATA SEGMENT IS EMPTY: THE FIRST RECORDS GO THERE UNTIL IT REACHES THE OTHER
+		final ORID rid = newRecord(0, "least");
+		Assert.assertEquals(getPhysicalPosition(rid).dataSegment, 3);
+
+		final List<ORID> rids = new ArrayList<ORID>();
+		for (int i = 0; i < 200; ++i)
+			rids.add(newRecord(i, "least"));
+		final int[] counts = countBySegment(rids);
+		Assert.assertTrue(counts[1] > 0, "ds1 never chosen");
+		Assert.assertTrue(counts[3] > counts[1]);
+
+		final long used1 = storage.getDataSegment(1).getFilledUpTo() - storage.getDataSegment(1).getHolesSize();
+		final long used3 = storage.getDataSegment(3).getFilledUpTo() - storage.getDataSegment(3).getHolesSize();
+		Assert.assertTrue(Math.abs(used1 - used3) < 200, "ds1=" + used1 + " ds3=" + used3);
+	}
+
+	@Test(dependsOnMethods = "testLeastFilled")
+	public void testCustomAndUnknown() throws IOException {
+		final OStorageLocal storage = getStorage();
+		storage.addCluster("custom", OStorage.CLUSTER_TYPE.PHYSICAL);
+
+		try {
+			storage.setDataSegmentStrategy("custom", "odd", "ds1", "ds2");
+			Assert.fail("Unknown strategy accepted");
+		} catch (OConfigurationException e) {
+		}
+
+		ODataSegmentStrategyFactory.register("odd", OddStrategy.class);
+		storage.setDataSegmentStrategy("custom", "odd", "ds1", "ds2");
+		Assert.assertEquals(getPhysicalPosition(newRecord(0, "custom")).dataSegment, 2);
+
+		database.close();
+	}
+
+	private ORID newRecord(final int i, final String iCluster) {
+		final ODocument doc = new ODocument(database).field("i", i);
+		doc.save(iCluster);
+		return doc.getIdentity().copy();
+	}
+
+	private int[] countBySegment(final List<ORID> iRids) throws IOException {
+		final int[] counts = new int[5];
+		for (ORID rid : iRids)
+			counts[getPhysicalPosition(rid).dataSegment]++;
+		return counts;
+	}
+
+	private OPhysicalPosition getPhysicalPosition(final ORID iRid) throws IOException {
+		return getStorage().getClusterById(iRid.getClusterId()).getPhysicalPosition(iRid.getClusterPosition(),
+				new OPhysicalPosition());
+	}
+
+	private OStorageLocal getStorage() {
+		return (OStorageLocal) database.getStorage();
+	}
+}
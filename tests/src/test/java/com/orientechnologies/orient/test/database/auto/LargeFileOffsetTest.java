@@ -0,0 +1,185 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.storage.fs.OFile;
+import com.orientechnologies.orient.core.storage.fs.OFileClassic;
+import com.orientechnologies.orient.core.storage.fs.OFileMMap;
+
+/**
+ * Checks the 64-bit offsets of the files: content written after the first 2GB (the files are sparse, so the test doesn't need the
+ * disk space) and upgrade of the old headers with 32-bit sizes.
+ */
+@Test(groups = "storage")
+public class LargeFileOffsetTest {
+	private static final long	GB	= 1024l * 1024l * 1024l;
+	private String						testPath;
+
+	@Parameters(value = "testPath")
+	public LargeFileOffsetTest(final String iTestPath) {
+		testPath = iTestPath;
+	}
+
+	public void testClassicBeyond2GB() throws IOException {
+		checkBeyond2GB("classic", new OFileClassic(getFileName("large-classic.test"), "rw"));
+	}
+
+	public void testMMapBeyond2GB() throws IOException {
+		checkBeyond2GB("mmap", new OFileMMap(getFileName("large-mmap.test"), "rw"));
+	}
+
+	public void testLegacyHeaderUpgrade() throws IOException {
+		final String fileName = getFileName("legacy-header.test");
+
+		OFile file = new OFileMMap(fileName, "rw");
+		file.create(10000);
+		file.allocateSpace(100);
+		file.writeLong(50, 123456789l);
+		file.close();
+
+		// REWRITE THE HEADER IN THE OLD FORMAT: VERSION 0 AND SIZES AS INTS AT THE BEGINNING
+		final RandomAccessFile raw = new RandomAccessFile(fileName, "rw");
+		try {
+			raw.seek(0);
+			raw.writeInt(10000);
+			raw.writeInt(100);
+			raw.seek(9);
+			raw.writeByte(0);
+			raw.seek(16);
+			raw.writeLong(0);
+			raw.writeLong(0);
+		} finally {
+			raw.close();
+		}
+
+		file = new OFileMMap(fileName, "rw");
+		file.open();
+		Assert.assertEquals(file.getFileSize(), 10000);
+		Assert.assertEquals(file.getFilledUpTo(), 100);
+		Assert.assertEquals(file.readLong(50), 123456789l);
+		file.close();
+
+		// THE HEADER HAS BEEN UPGRADED TO THE 64-BIT FORMAT
+		final RandomAccessFile check = new RandomAccessFile(fileName, "r");
+		try {
+			check.seek(9);
+			Assert.assertEquals(check.readByte(), 1);
+			check.seek(16);
+			Assert.assertEquals(check.readLong(), 10000);
+			Assert.assertEquals(check.readLong(), 100);
+		} finally {
+			check.close();
+		}
+	}
+
+	public void testClassicLegacyLayout() throws IOException {
+		final String fileName = getFileName("legacy-classic.test");
+
+		// OLD CLASSIC FILE: SIZES AS INTS AT THE BEGINNING, CONTENT FROM OFFSET 0 AND FILE AS BIG AS THE SIZE
+		final RandomAccessFile raw = new RandomAccessFile(fileName, "rw");
+		try {
+			raw.setLength(10000);
+			raw.writeInt(10000);
+			raw.writeInt(7008);
+			raw.seek(9);
+			// CONTENT THAT LOOKS LIKE THE CURRENT HEADER VERSION
+			raw.writeByte(1);
+			raw.seek(50);
+			raw.writeLong(123456789l);
+			raw.seek(7000);
+			raw.writeLong(987654321l);
+		} finally {
+			raw.close();
+		}
+
+		OFile file = new OFileClassic(fileName, "rw");
+		file.open();
+		Assert.assertEquals(file.getFileSize(), 10000);
+		Assert.assertEquals(file.getFilledUpTo(), 7008);
+		Assert.assertEquals(file.readByte(9), 1);
+		Assert.assertEquals(file.readLong(50), 123456789l);
+		Assert.assertEquals(file.readLong(7000), 987654321l);
+		file.writeLong(100, 55l);
+		file.close();
+
+		// THE CONTENT HAS BEEN MOVED AFTER THE HEADER
+		final RandomAccessFile check = new RandomAccessFile(fileName, "r");
+		try {
+			Assert.assertEquals(check.length(), 1024 + 10000);
+			check.seek(0);
+			Assert.assertEquals(check.readInt(), 0);
+			check.seek(1024 + 7000);
+			Assert.assertEquals(check.readLong(), 987654321l);
+		} finally {
+			check.close();
+		}
+
+		file = new OFileClassic(fileName, "rw");
+		file.open();
+		try {
+			Assert.assertEquals(file.getFilledUpTo(), 7008);
+			Assert.assertEquals(file.readLong(50), 123456789l);
+			Assert.assertEquals(file.readLong(100), 55l);
+			Assert.assertEquals(file.readLong(7000), 987654321l);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void checkBeyond2GB(final String iName, OFile iFile) throws IOException {
+		final String fileName = iFile.getOsFile().getPath();
+
+		iFile.create(10000);
+		iFile.setIncrementSize((int) GB);
+		for (int i = 0; i < 3; ++i)
+			iFile.allocateSpace((int) GB);
+
+		Assert.assertTrue(iFile.getFilledUpTo() > Integer.MAX_VALUE, iName);
+
+		final long offset = 2 * GB + GB / 2;
+		iFile.writeLong(offset, Long.MAX_VALUE - 1);
+		iFile.writeInt(3 * GB - 4, 77);
+		Assert.assertEquals(iFile.readLong(offset), Long.MAX_VALUE - 1, iName);
+		iFile.synch();
+		iFile.close();
+
+		iFile = iFile instanceof OFileMMap ? new OFileMMap(fileName, "rw") : new OFileClassic(fileName, "rw");
+		iFile.open();
+		try {
+			Assert.assertEquals(iFile.getFilledUpTo(), 3 * GB, iName);
+			Assert.assertEquals(iFile.readLong(offset), Long.MAX_VALUE - 1, iName);
+			Assert.assertEquals(iFile.readInt(3 * GB - 4), 77, iName);
+		} finally {
+			iFile.delete();
+		}
+	}
+
+	private String getFileName(final String iName) {
+		final File f = new File(testPath + "/" + iName);
+		f.getParentFile().mkdirs();
+		if (f.exists())
+			f.delete();
+		return f.getPath();
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.record.impl.ORecordBytes;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLogicalPaged;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OTxSegment;
+
+/**
+ * Checks the paged logical clusters: the tree of pages grows over more levels and is reloaded at the reopening, and a change of the
+ * pages interrupted by a crash is rolled back by the recovery of the transaction log.
+ */
+@Test(groups = "storage")
+public class LogicalClusterPagedTest {
+	private static final String	CLUSTER	= "paged";
+	private static final int		RECORDS	= 20000;
+	private ODatabaseDocumentTx	database;
+
+	@Parameters(value = "testPath")
+	public LogicalClusterPagedTest(final String iTestPath) {
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/logical-paged");
+	}
+
+	public void testGrowth() {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		database.addLogicalCluster(CLUSTER, database.getDefaultClusterId());
+
+		// MORE THAN A LEAF AND MORE THAN A NODE OF LEAVES: THE TREE GROWS TWICE
+		for (int i = 0; i < RECORDS; ++i)
+			new ODocument(database).field("id", i).save(CLUSTER);
+
+		Assert.assertEquals(database.countClusterElements(CLUSTER), RECORDS);
+
+		// THE REMOVED RECORDS ARE NOT BROWSED ANYMORE
+		for (ODocument doc : database.browseCluster(CLUSTER))
+			if (((Number) doc.field("id")).intValue() % 10 == 0)
+				doc.delete();
+
+		Assert.assertEquals(database.countClusterElements(CLUSTER), RECORDS - RECORDS / 10);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testGrowth")
+	public void testReopen() {
+		database.open("admin", "admin");
+
+		Assert.assertEquals(database.countClusterElements(CLUSTER), RECORDS - RECORDS / 10);
+
+		final Set<Integer> ids = new HashSet<Integer>();
+		for (ODocument doc : database.browseCluster(CLUSTER)) {
+			final int id = ((Number) doc.field("id")).intValue();
+			Assert.assertTrue(id % 10 != 0);
+			Assert.assertTrue(ids.add(id));
+		}
+		Assert.assertEquals(ids.size(), RECORDS - RECORDS / 10);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testReopen")
+	public void testCrashDuringPageWrite() throws IOException {
+		database.open("admin", "admin");
+
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		final int clusterId = database.getClusterIdByName(CLUSTER);
+		final OClusterLogicalPaged cluster = (OClusterLogicalPaged) storage.getClusterById(clusterId);
+		final long entries = cluster.getEntries();
+
+		// THE ROOT IS WRITTEN AS THE CLUSTER DOES, BUT THE CRASH HAPPENS BEFORE THE COMMIT OF THE LOG
+		final ORID root = cluster.getRID();
+		final OClusterLocal container = (OClusterLocal) storage.getClusterById(root.getClusterId());
+		final OPhysicalPosition ppos = container.getPhysicalPosition(root.getClusterPosition(), new OPhysicalPosition());
+		final byte[] before = storage.getDataSegment(ppos.dataSegment).getRecord(ppos.dataPosition);
+		final byte[] after = new byte[before.length];
+
+		final OTxSegment txSegment = storage.getTxManager().getTxSegment();
+		txSegment.addLog(OTxSegment.OPERATION_UPDATE, -1, clusterId, root.getClusterId(), root.getClusterPosition(), ppos.dataSegment,
+				ppos.dataPosition, ORecordBytes.RECORD_TYPE, ppos.version, before, after);
+		storage.updateRecord(0, root.getClusterId(), root.getClusterPosition(), after, -1, ORecordBytes.RECORD_TYPE);
+
+		database.close();
+		Assert.assertTrue(txSegment.getTotalLogCount() > 0);
+
+		database.open("admin", "admin");
+		Assert.assertEquals(((OStorageLocal) database.getStorage()).getTxManager().getTxSegment().getTotalLogCount(), 0);
+
+		// THE ROOT HAS BEEN RESTORED AND RELOADED
+		Assert.assertEquals(database.countClusterElements(CLUSTER), entries);
+		int browsed = 0;
+		for (ODocument doc : database.browseCluster(CLUSTER)) {
+			Assert.assertTrue(((Number) doc.field("id")).intValue() % 10 != 0);
+			browsed++;
+		}
+		Assert.assertEquals(browsed, entries);
+
+		// THE CLUSTER IS STILL USABLE
+		new ODocument(database).field("id", RECORDS).save(CLUSTER);
+		Assert.assertEquals(database.countClusterElements(CLUSTER), entries + 1);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testCrashDuringPageWrite")
+	public void testTruncate() throws IOException {
+		database.open("admin", "admin");
+
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		storage.getClusterById(database.getClusterIdByName(CLUSTER)).truncate();
+		Assert.assertEquals(database.countClusterElements(CLUSTER), 0);
+
+		new ODocument(database).field("id", 0).save(CLUSTER);
+		database.close();
+
+		database.open("admin", "admin");
+		Assert.assertEquals(database.countClusterElements(CLUSTER), 1);
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testTruncate")
+	public void testRootNotWritten() throws IOException {
+		database.open("admin", "admin");
+
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		final int clusterId = database.getClusterIdByName(CLUSTER);
+		final OClusterLogicalPaged cluster = (OClusterLogicalPaged) storage.getClusterById(clusterId);
+		final ORID root = cluster.getRID();
+		final OClusterLocal container = (OClusterLocal) storage.getClusterById(root.getClusterId());
+		final int version = container.getPhysicalPosition(root.getClusterPosition(), new OPhysicalPosition()).version;
+
+		// THE RECORDS FIT IN THE LEAF ALREADY CREATED: THE ROOT IS NOT WRITTEN
+		for (int i = 1; i < 10; ++i)
+			new ODocument(database).field("id", i).save(CLUSTER);
+		final ODocument removed = database.browseCluster(CLUSTER).next();
+		removed.delete();
+
+		Assert.assertEquals(container.getPhysicalPosition(root.getClusterPosition(), new OPhysicalPosition()).version, version);
+		Assert.assertEquals(cluster.getEntries(), 9);
+		Assert.assertEquals(cluster.getLastEntryPosition(), 9);
+		database.close();
+
+		// THE COUNTERS ARE REBUILT FROM THE LEAVES
+		database.open("admin", "admin");
+		final OClusterLogicalPaged reopened = (OClusterLogicalPaged) database.getStorage().getClusterById(clusterId);
+		Assert.assertEquals(reopened.getEntries(), 9);
+		Assert.assertEquals(reopened.getLastEntryPosition(), 9);
+		Assert.assertEquals(database.countClusterElements(CLUSTER), 9);
+
+		new ODocument(database).field("id", 10).save(CLUSTER);
+		Assert.assertEquals(reopened.getLastEntryPosition(), 10);
+		database.close();
+	}
+}
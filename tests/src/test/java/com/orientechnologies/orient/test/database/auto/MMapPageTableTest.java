@@ -0,0 +1,152 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.OConstants;
+import com.orientechnologies.orient.core.storage.fs.OFileMMap;
+import com.orientechnologies.orient.core.storage.fs.OMMapManager;
+
+/**
+ * Checks the page tables of the memory mapped files: values crossing the pages, concurrent access and remapping of the pages mapped
+ * when the file was smaller.
+ */
+@Test(groups = "storage")
+public class MMapPageTableTest {
+	private static final int	PAGES	= 5;
+	private String						fileName;
+
+	@Parameters(value = "testPath")
+	public MMapPageTableTest(final String iTestPath) {
+		fileName = iTestPath + "/mmap-page-table.test";
+	}
+
+	public void testValuesAcrossPages() throws IOException {
+		final OFileMMap file = createFile();
+		try {
+			final long size = (long) OMMapManager.DEF_BLOCK_SIZE * PAGES;
+			file.allocateSpace((int) size);
+
+			// LONGS STARTING 3 BYTES BEFORE EVERY PAGE END
+			for (int i = 1; i < PAGES; ++i)
+				file.writeLong((long) OMMapManager.DEF_BLOCK_SIZE * i - 3, i * 1000000000000l);
+
+			final byte[] content = new byte[OMMapManager.DEF_BLOCK_SIZE + 100];
+			for (int i = 0; i < content.length; ++i)
+				content[i] = (byte) i;
+			file.write(OMMapManager.DEF_BLOCK_SIZE * 2 + 50, content);
+
+			final byte[] read = new byte[content.length];
+			file.read(OMMapManager.DEF_BLOCK_SIZE * 2 + 50, read, read.length);
+			Assert.assertEquals(read, content);
+
+			Assert.assertEquals(file.readLong((long) OMMapManager.DEF_BLOCK_SIZE - 3), 1000000000000l);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test(dependsOnMethods = "testValuesAcrossPages")
+	public void testConcurrentAccess() throws Exception {
+		final OFileMMap file = createFile();
+		try {
+			final int valuesPerThread = OMMapManager.DEF_BLOCK_SIZE / OConstants.SIZE_INT;
+			final int threads = 4;
+			file.allocateSpace(valuesPerThread * OConstants.SIZE_INT * threads);
+
+			final List<Throwable> errors = new ArrayList<Throwable>();
+			final List<Thread> workers = new ArrayList<Thread>();
+			for (int t = 0; t < threads; ++t) {
+				final int thread = t;
+				workers.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							// INTERLEAVED OFFSETS: EVERY THREAD TOUCHES ALL THE PAGES
+							for (int i = 0; i < valuesPerThread; ++i)
+								file.writeInt((long) (i * threads + thread) * OConstants.SIZE_INT, i + thread);
+							for (int i = 0; i < valuesPerThread; ++i)
+								if (file.readInt((long) (i * threads + thread) * OConstants.SIZE_INT) != i + thread)
+									throw new AssertionError("Wrong value at position " + i + " of thread " + thread);
+						} catch (Throwable e) {
+							synchronized (errors) {
+								errors.add(e);
+							}
+						}
+					}
+				});
+			}
+			for (Thread w : workers)
+				w.start();
+			for (Thread w : workers)
+				w.join();
+
+			Assert.assertTrue(errors.isEmpty(), errors.toString());
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test(dependsOnMethods = "testConcurrentAccess")
+	public void testRemapAfterGrowth() throws IOException {
+		final OFileMMap file = createFile();
+		try {
+			// MAP THE FIRST PAGE WHILE THE FILE IS SMALLER THAN A PAGE
+			file.allocateSpace(OConstants.SIZE_INT);
+			file.writeInt(0, 7);
+
+			file.allocateSpace(OMMapManager.DEF_BLOCK_SIZE);
+			file.writeInt(OMMapManager.DEF_BLOCK_SIZE - OConstants.SIZE_INT, 8);
+
+			Assert.assertEquals(file.readInt(0), 7);
+			Assert.assertEquals(file.readInt(OMMapManager.DEF_BLOCK_SIZE - OConstants.SIZE_INT), 8);
+
+			file.synch();
+		} finally {
+			file.close();
+		}
+
+		// THE CONTENT WRITTEN IN BOTH THE MAPPINGS IS ON DISK
+		final OFileMMap reopened = new OFileMMap(fileName, "rw");
+		try {
+			reopened.open();
+			Assert.assertEquals(reopened.readInt(0), 7);
+			Assert.assertEquals(reopened.readInt(OMMapManager.DEF_BLOCK_SIZE - OConstants.SIZE_INT), 8);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	private OFileMMap createFile() throws IOException {
+		final File f = new File(fileName);
+		f.getParentFile().mkdirs();
+		if (f.exists())
+			f.delete();
+
+		final OFileMMap file = new OFileMMap(fileName, "rw");
+		file.create(OConstants.SIZE_INT);
+		file.setIncrementSize(OMMapManager.DEF_BLOCK_SIZE);
+		return file;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.OConstants;
+import com.orientechnologies.orient.core.storage.fs.OFileMMap;
+import com.orientechnologies.orient.core.storage.fs.OMMapBufferEntry;
+import com.orientechnologies.orient.core.storage.fs.OMMapManager;
+import com.orientechnologies.orient.core.storage.fs.OWriteAheadLog;
+
+/**
+ * Checks the dirty blocks of the memory mapped files: the log is written up to the LSN of the changes before the block, and the
+ * dirty blocks are all written to the disk while other threads write and the pages are remapped.
+ */
+@Test(groups = "storage")
+public class MMapWriteAheadTest {
+	private String	fileName;
+
+	@Parameters(value = "testPath")
+	public MMapWriteAheadTest(final String iTestPath) {
+		fileName = iTestPath + "/mmap-write-ahead.test";
+	}
+
+	public void testLogBeforeBlock() throws IOException {
+		final OFileMMap file = createFile();
+		try {
+			file.allocateSpace(OMMapManager.DEF_BLOCK_SIZE * 2);
+
+			final List<Long> synched = new ArrayList<Long>();
+			final OWriteAheadLog log = new OWriteAheadLog() {
+				public void synch(final long iLsn) {
+					synched.add(iLsn);
+				}
+			};
+
+			// CHANGES WITHOUT LSN DON'T TOUCH THE LOG
+			file.writeInt(0, 1);
+			file.synch();
+			Assert.assertTrue(synched.isEmpty());
+
+			OMMapManager.setWriteLsn(log, 10);
+			file.writeInt(0, 2);
+			OMMapManager.setWriteLsn(log, 12);
+			file.writeInt(4, 3);
+			OMMapManager.setWriteLsn(null, 0);
+
+			// THE BLOCK CONTAINS THE CHANGES UP TO LSN 12
+			file.synch();
+			Assert.assertEquals(synched.size(), 1);
+			Assert.assertEquals(synched.get(0).longValue(), 12l);
+
+			// THE BLOCK IS CLEAN: NO MORE LOG WRITES
+			file.synch();
+			Assert.assertEquals(synched.size(), 1);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test(dependsOnMethods = "testLogBeforeBlock")
+	public void testNoDirtyBlockLost() throws Exception {
+		final OFileMMap file = createFile();
+		try {
+			final int valuesPerThread = OMMapManager.DEF_BLOCK_SIZE / OConstants.SIZE_INT;
+			final int threads = 4;
+
+			final List<Throwable> errors = new ArrayList<Throwable>();
+			final List<Thread> workers = new ArrayList<Thread>();
+			for (int t = 0; t < threads; ++t) {
+				final int thread = t;
+				workers.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int i = 0; i < valuesPerThread; ++i) {
+								file.writeInt((long) (i * threads + thread) * OConstants.SIZE_INT, i + thread);
+								if (i % 512 == 0)
+									// WRITE THE BLOCKS WHILE THE OTHER THREADS CHANGE THEM
+									file.synch();
+							}
+						} catch (Throwable e) {
+							synchronized (errors) {
+								errors.add(e);
+							}
+						}
+					}
+				});
+			}
+
+			// MAP THE FIRST PAGE WHILE THE FILE IS SMALLER THAN A PAGE: THE WRITERS WILL REMAP IT
+			file.allocateSpace(OConstants.SIZE_INT);
+			file.writeInt(0, 0);
+			file.allocateSpace(valuesPerThread * threads * OConstants.SIZE_INT - OConstants.SIZE_INT);
+
+			for (Thread w : workers)
+				w.start();
+			for (Thread w : workers)
+				w.join();
+
+			Assert.assertTrue(errors.isEmpty(), errors.toString());
+
+			file.synch();
+			for (OMMapBufferEntry entry : OMMapManager.getDirtyPages())
+				Assert.assertFalse(entry.toString().contains(new File(fileName).getName()), "Dirty block left: " + entry);
+
+			for (int t = 0; t < threads; ++t)
+				for (int i = 0; i < valuesPerThread; ++i)
+					Assert.assertEquals(file.readInt((long) (i * threads + t) * OConstants.SIZE_INT), i + t);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test(dependsOnMethods = "testNoDirtyBlockLost")
+	public void testDirtyCountOnClose() throws IOException {
+		final OFileMMap file = createFile();
+		file.allocateSpace(OMMapManager.DEF_BLOCK_SIZE * 3);
+
+		for (int i = 0; i < 3; ++i)
+			file.writeInt((long) i * OMMapManager.DEF_BLOCK_SIZE, i);
+		Assert.assertTrue(OMMapManager.getDirtyPageCount() > 0);
+
+		// THE BLOCKS OF THE FILE CLOSED WITHOUT SYNCH ARE NOT COUNTED ANYMORE
+		file.close();
+		Assert.assertEquals(OMMapManager.getDirtyPageCount(), OMMapManager.getDirtyPages().size());
+	}
+
+	private OFileMMap createFile() throws IOException {
+		final File f = new File(fileName);
+		f.getParentFile().mkdirs();
+		if (f.exists())
+			f.delete();
+
+		final OFileMMap file = new OFileMMap(fileName, "rw");
+		file.create(OConstants.SIZE_INT);
+		file.setIncrementSize(OMMapManager.DEF_BLOCK_SIZE);
+		return file;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
+import com.orientechnologies.orient.core.exception.OStorageException;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.ORawBuffer;
+import com.orientechnologies.orient.core.storage.impl.memory.OStorageMemory;
+
+/**
+ * Checks the reads without locks of the memory storage: while the records are updated, created and deleted by other threads, the
+ * readers always see a content consistent with its version and never miss a record that exists.
+ */
+@Test(groups = "storage")
+public class MemoryConcurrentReadTest {
+	private static final int	RECORDS		= 200;
+	private static final int	SIZE			= 100;
+	private static final int	READERS		= 4;
+	private static final long	DURATION	= 3000;
+
+	public void testConsistentReads() throws Exception {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx("memory:memory-concurrent-read");
+		database.create();
+
+		try {
+			final OStorageMemory storage = (OStorageMemory) database.getStorage();
+			final int clusterId = database.getDefaultClusterId();
+
+			for (int i = 0; i < RECORDS; ++i)
+				Assert.assertEquals(storage.createRecord(clusterId, newContent(0, SIZE), ODocument.RECORD_TYPE), i);
+
+			final AtomicBoolean stop = new AtomicBoolean();
+			final AtomicLong reads = new AtomicLong();
+			final AtomicLong updates = new AtomicLong();
+			final List<Throwable> errors = new ArrayList<Throwable>();
+			final List<Thread> threads = new ArrayList<Thread>();
+
+			// UPDATE THE RECORDS WRITING THE NEXT VERSION IN ALL THE BYTES OF THE CONTENT, OF A DIFFERENT SIZE
+			for (int w = 0; w < 2; ++w)
+				threads.add(new Thread() {
+					public void run() {
+						final Random random = new Random();
+						try {
+							while (!stop.get()) {
+								final int position = random.nextInt(RECORDS);
+								final ORawBuffer buffer = storage.readRecord(null, 0, clusterId, position, null);
+								try {
+									storage.updateRecord(0, clusterId, position, newContent(buffer.version + 1, SIZE + random.nextInt(SIZE)),
+											buffer.version, ODocument.RECORD_TYPE);
+									updates.incrementAndGet();
+								} catch (OConcurrentModificationException e) {
+									// UPDATED BY THE OTHER WRITER: RETRY
+								}
+							}
+						} catch (Throwable e) {
+							addError(errors, e);
+						}
+					}
+				});
+
+			// CREATE AND DELETE RECORDS IN THE SAME CLUSTER TO REUSE THE SPACE AND THE SLOTS
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						while (!stop.get()) {
+							final long position = storage.createRecord(clusterId, newContent(-1, SIZE * 3), ODocument.RECORD_TYPE);
+							Assert.assertTrue(storage.deleteRecord(0, clusterId, position, -1));
+						}
+					} catch (Throwable e) {
+						addError(errors, e);
+					}
+				}
+			});
+
+			for (int r = 0; r < READERS; ++r)
+				threads.add(new Thread() {
+					public void run() {
+						final Random random = new Random();
+						try {
+							while (!stop.get()) {
+								final int position = random.nextInt(RECORDS);
+								final ORawBuffer buffer = storage.readRecord(null, 0, clusterId, position, null);
+								Assert.assertNotNull(buffer, "Record #" + position + " not found");
+								for (byte b : buffer.buffer)
+									if (b != (byte) buffer.version)
+										Assert.fail("Record #" + position + " v." + buffer.version + " has content of v." + b);
+								reads.incrementAndGet();
+							}
+						} catch (Throwable e) {
+							addError(errors, e);
+						}
+					}
+				});
+
+			for (Thread t : threads)
+				t.start();
+			Thread.sleep(DURATION);
+			stop.set(true);
+			for (Thread t : threads)
+				t.join();
+
+			Assert.assertTrue(errors.isEmpty(), errors.toString());
+			Assert.assertTrue(reads.get() > 0);
+			Assert.assertTrue(updates.get() > 0);
+			Assert.assertEquals(storage.count(clusterId), RECORDS);
+
+		} finally {
+			database.delete();
+		}
+	}
+
+	public void testMissingCluster() {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx("memory:memory-missing-cluster");
+		database.create();
+
+		try {
+			final OStorageMemory storage = (OStorageMemory) database.getStorage();
+			final int clusterId = storage.addCluster("removed", null);
+			storage.createRecord(clusterId, newContent(0, SIZE), ODocument.RECORD_TYPE);
+			storage.removeCluster(clusterId);
+
+			for (int id : new int[] { -1, clusterId, clusterId + 1 }) {
+				try {
+					storage.readRecord(null, 0, id, 0, null);
+					Assert.fail("Read from the missing cluster " + id);
+				} catch (OStorageException e) {
+				}
+				try {
+					storage.updateRecord(0, id, 0, newContent(1, SIZE), -1, ODocument.RECORD_TYPE);
+					Assert.fail("Updated in the missing cluster " + id);
+				} catch (OStorageException e) {
+				}
+			}
+
+		} finally {
+			database.delete();
+		}
+	}
+
+	public void testRemoveClusterWhileReading() throws Exception {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx("memory:memory-remove-cluster");
+		database.create();
+
+		try {
+			final OStorageMemory storage = (OStorageMemory) database.getStorage();
+			final List<Throwable> errors = new ArrayList<Throwable>();
+
+			for (int round = 0; round < 20; ++round) {
+				final int clusterId = storage.addCluster("removed" + round, null);
+				final byte value = (byte) round;
+				for (int i = 0; i < RECORDS; ++i)
+					storage.createRecord(clusterId, newContent(value, SIZE), ODocument.RECORD_TYPE);
+
+				// THE READERS SEE THE WHOLE CONTENT OR THE CLUSTER REMOVED, NEVER A RELEASED SEGMENT
+				final AtomicBoolean removed = new AtomicBoolean();
+				final List<Thread> threads = new ArrayList<Thread>();
+				for (int r = 0; r < READERS; ++r)
+					threads.add(new Thread() {
+						public void run() {
+							final Random random = new Random();
+							try {
+								while (true) {
+									final int position = random.nextInt(RECORDS);
+									final ORawBuffer buffer;
+									try {
+										buffer = storage.readRecord(null, 0, clusterId, position, null);
+									} catch (OStorageException e) {
+										Assert.assertTrue(removed.get(), e.toString());
+										return;
+									}
+									if (buffer != null) {
+										Assert.assertEquals(buffer.buffer.length, SIZE);
+										for (byte b : buffer.buffer)
+											Assert.assertEquals(b, value);
+									}
+								}
+							} catch (Throwable e) {
+								addError(errors, e);
+							}
+						}
+					});
+
+				for (Thread t : threads)
+					t.start();
+				Thread.sleep(20);
+				removed.set(true);
+				storage.removeCluster(clusterId);
+				for (Thread t : threads)
+					t.join();
+			}
+
+			Assert.assertTrue(errors.isEmpty(), errors.toString());
+
+		} finally {
+			database.delete();
+		}
+	}
+
+	private static byte[] newContent(final int iVersion, final int iSize) {
+		final byte[] content = new byte[iSize];
+		for (int i = 0; i < iSize; ++i)
+			content[i] = (byte) iVersion;
+		return content;
+	}
+
+	private static void addError(final List<Throwable> iErrors, final Throwable iError) {
+		synchronized (iErrors) {
+			iErrors.add(iError);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import com.orientechnologies.orient.core.storage.impl.memory.OClusterMemory;
+import com.orientechnologies.orient.core.storage.impl.memory.ODataSegmentMemory;
+
+/**
+ * Checks the compact layout of the memory storage: the record content in the pages of the data segment, on heap and off heap, with
+ * the reuse of the space and of the slots of the deleted records, and the entries of the clusters in arrays.
+ */
+@Test(groups = "storage")
+public class MemoryDataSegmentTest {
+	private static final int	RECORDS		= 3000;
+	private static final int	PAGE_SIZE	= 1024;
+
+	public void testOnHeap() {
+		checkDataSegment(false);
+	}
+
+	public void testOffHeap() {
+		checkDataSegment(true);
+	}
+
+	public void testClusterEntries() {
+		final OClusterMemory cluster = new OClusterMemory(0, "entries");
+		for (int i = 0; i < RECORDS; ++i)
+			Assert.assertEquals(cluster.addPhysicalPosition(0, i * 10, (byte) 'd'), i);
+
+		for (int i = 0; i < RECORDS; i += 2)
+			cluster.removePhysicalPosition(i, null);
+		Assert.assertEquals(cluster.getEntries(), RECORDS / 2);
+
+		final OPhysicalPosition ppos = new OPhysicalPosition();
+		for (int i = 0; i < RECORDS; ++i)
+			if (i % 2 == 0)
+				Assert.assertNull(cluster.getPhysicalPosition(i, new OPhysicalPosition()));
+			else {
+				Assert.assertSame(cluster.getPhysicalPosition(i, ppos), ppos);
+				Assert.assertEquals(ppos.dataPosition, i * 10);
+				Assert.assertEquals(ppos.type, (byte) 'd');
+				Assert.assertEquals(ppos.version, 0);
+			}
+
+		cluster.setPhysicalPosition(1, 0, 12345, (byte) 'd', 7);
+		Assert.assertEquals(cluster.getPhysicalPosition(1, ppos).dataPosition, 12345);
+		Assert.assertEquals(ppos.version, 7);
+
+		// THE POSITION RETURNED IS A COPY
+		ppos.dataPosition = -5;
+		Assert.assertEquals(cluster.getPhysicalPosition(1, new OPhysicalPosition()).dataPosition, 12345);
+	}
+
+	public void testMemoryDatabase() {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx("memory:memory-data-segment");
+		database.create();
+		try {
+			final Map<ORID, String> values = new HashMap<ORID, String>();
+			ODocument doc;
+			for (int i = 0; i < 1000; ++i) {
+				doc = new ODocument(database).field("v", pad(i % 300, i));
+				doc.save();
+				values.put(doc.getIdentity().copy(), pad(i % 300, i));
+			}
+
+			int i = 0;
+			for (ORID rid : values.keySet().toArray(new ORID[0])) {
+				doc = database.load(rid);
+				if (i % 3 == 0) {
+					doc.delete();
+					values.remove(rid);
+				} else if (i % 3 == 1) {
+					doc.field("v", pad(i % 500, -i));
+					doc.save();
+					values.put(rid, pad(i % 500, -i));
+				}
+				i++;
+			}
+
+			database.getCache().clear();
+
+			long count = 0;
+			for (ODocument d : database.browseCluster(database.getClusterNameById(database.getDefaultClusterId()))) {
+				Assert.assertEquals(d.field("v"), values.get(d.getIdentity()));
+				count++;
+			}
+			Assert.assertEquals(count, values.size());
+			Assert.assertEquals(database.countClusterElements(database.getDefaultClusterId()), values.size());
+
+		} finally {
+			database.delete();
+		}
+	}
+
+	private void checkDataSegment(final boolean iOffHeap) {
+		final int pageSize = OGlobalConfiguration.STORAGE_MEMORY_PAGE_SIZE.getValueAsInteger();
+		final boolean offHeap = OGlobalConfiguration.STORAGE_MEMORY_OFF_HEAP.getValueAsBoolean();
+		OGlobalConfiguration.STORAGE_MEMORY_PAGE_SIZE.setValue(PAGE_SIZE);
+		OGlobalConfiguration.STORAGE_MEMORY_OFF_HEAP.setValue(iOffHeap);
+		final ODataSegmentMemory data;
+		try {
+			data = new ODataSegmentMemory();
+		} finally {
+			OGlobalConfiguration.STORAGE_MEMORY_PAGE_SIZE.setValue(pageSize);
+			OGlobalConfiguration.STORAGE_MEMORY_OFF_HEAP.setValue(offHeap);
+		}
+
+		// SIZES UP TO MORE THAN A QUARTER OF THE PAGE TO HAVE ALSO DEDICATED PAGES
+		final Random random = new Random(42);
+		final Map<Long, byte[]> contents = new HashMap<Long, byte[]>();
+		for (long i = 0; i < RECORDS; ++i) {
+			contents.put(i, newContent(random, (int) i));
+			Assert.assertEquals(data.createRecord(contents.get(i)), i);
+		}
+
+		for (long i = 0; i < RECORDS; ++i)
+			Assert.assertEquals(data.readRecord(i), contents.get(i));
+
+		for (long i = 0; i < RECORDS; i += 3) {
+			Assert.assertEquals(data.deleteRecord(i), contents.get(i).length);
+			Assert.assertEquals(data.deleteRecord(i), -1);
+			Assert.assertNull(data.readRecord(i));
+			Assert.assertEquals(data.getRecordSize(i), -1);
+			contents.remove(i);
+		}
+
+		// THE SLOTS OF THE DELETED RECORDS ARE REUSED ONCE RECLAIMED, EVERY 256 DELETES
+		int newSlots = 0;
+		for (int i = 0; i < RECORDS / 3; ++i) {
+			final byte[] content = newContent(random, i);
+			final long position = data.createRecord(content);
+			if (position >= RECORDS)
+				newSlots++;
+			Assert.assertNull(contents.put(position, content));
+		}
+		Assert.assertTrue(newSlots < 256, "Slots not reused: " + newSlots);
+		Assert.assertEquals(data.size(), RECORDS + newSlots);
+
+		// THE UPDATE MOVES THE CONTENT IN ANOTHER SLOT
+		for (long i = 1; i < RECORDS; i += 3) {
+			final byte[] content = newContent(random, (int) -i);
+			final long position = data.updateRecord(i, content);
+			contents.remove(i);
+			Assert.assertNull(contents.put(position, content));
+		}
+
+		for (Map.Entry<Long, byte[]> entry : contents.entrySet()) {
+			Assert.assertEquals(data.readRecord(entry.getKey()), entry.getValue());
+			Assert.assertEquals(data.getRecordSize(entry.getKey()), entry.getValue().length);
+		}
+
+		data.close();
+		Assert.assertEquals(data.size(), 0);
+	}
+
+	private static byte[] newContent(final Random iRandom, final int iSeed) {
+		final byte[] content = new byte[iRandom.nextInt(PAGE_SIZE / 2)];
+		for (int i = 0; i < content.length; ++i)
+			content[i] = (byte) (iSeed + i);
+		return content;
+	}
+
+	private static String pad(final int iLength, final int iValue) {
+		final StringBuilder buffer = new StringBuilder().append(iValue);
+		while (buffer.length() < iLength)
+			buffer.append('.');
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.fs.OFileCached;
+import com.orientechnologies.orient.core.storage.fs.OPageCache;
+import com.orientechnologies.orient.core.storage.fs.OPageCacheEntry;
+
+/**
+ * Checks the files of type "cached": the content written through the page cache, the eviction of the pages when the cache is full
+ * and a database created with all the files of this type.
+ */
+@Test(groups = "storage")
+public class PageCacheTest {
+	private String	testPath;
+
+	@Parameters(value = "testPath")
+	public PageCacheTest(final String iTestPath) {
+		testPath = iTestPath;
+	}
+
+	public void testWriteThrough() throws IOException {
+		final String fileName = getFileName("page-cache.test");
+
+		OFileCached file = createFile(fileName);
+		try {
+			file.allocateSpace(OPageCache.PAGE_SIZE * 4);
+
+			// LONG CROSSING THE FIRST PAGE AND BYTES CROSSING THE SECOND ONE
+			file.writeLong(OPageCache.PAGE_SIZE - 3, 1234567890123l);
+			final byte[] content = new byte[OPageCache.PAGE_SIZE + 10];
+			for (int i = 0; i < content.length; ++i)
+				content[i] = (byte) (i % 100);
+			file.write(OPageCache.PAGE_SIZE * 2 - 5, content);
+
+			Assert.assertEquals(file.readLong(OPageCache.PAGE_SIZE - 3), 1234567890123l);
+
+			// THE PAGES READ ARE CACHED: A SECOND READ DOESN'T MISS
+			final byte[] read = new byte[content.length];
+			file.read(OPageCache.PAGE_SIZE * 2 - 5, read, read.length);
+			final long misses = OPageCache.getMisses();
+			file.read(OPageCache.PAGE_SIZE * 2 - 5, read, read.length);
+			Assert.assertEquals(OPageCache.getMisses(), misses);
+			Assert.assertEquals(read, content);
+
+			// A WRITE UPDATES THE CACHED PAGE
+			file.writeInt(OPageCache.PAGE_SIZE * 2, 77);
+			Assert.assertEquals(file.readInt(OPageCache.PAGE_SIZE * 2), 77);
+		} finally {
+			file.close();
+		}
+
+		file = new OFileCached(fileName, "rw");
+		file.open();
+		try {
+			Assert.assertEquals(file.readLong(OPageCache.PAGE_SIZE - 3), 1234567890123l);
+			Assert.assertEquals(file.readInt(OPageCache.PAGE_SIZE * 2), 77);
+			Assert.assertEquals(file.readByte(OPageCache.PAGE_SIZE * 3 + 4), (byte) ((OPageCache.PAGE_SIZE + 9) % 100));
+		} finally {
+			file.close();
+		}
+	}
+
+	public void testEviction() throws IOException {
+		final int maxPages = OGlobalConfiguration.FILE_CACHE_MAX_MEMORY.getValueAsInteger() / OPageCache.PAGE_SIZE;
+		final int pages = maxPages + maxPages / 4;
+
+		final OFileCached file = createFile(getFileName("page-cache-eviction.test"));
+		try {
+			file.setIncrementSize(OPageCache.PAGE_SIZE * 64);
+			file.allocateSpace(OPageCache.PAGE_SIZE * pages);
+			for (int i = 0; i < pages; ++i)
+				file.writeInt((long) i * OPageCache.PAGE_SIZE, i);
+
+			final long evictions = OPageCache.getEvictions();
+			for (int round = 0; round < 2; ++round)
+				for (int i = 0; i < pages; ++i)
+					Assert.assertEquals(file.readInt((long) i * OPageCache.PAGE_SIZE), i);
+
+			// MORE PAGES THAN THE CACHE CAN HOLD: THE MEMORY STAYS UNDER THE LIMIT
+			Assert.assertTrue(OPageCache.getEvictions() > evictions);
+			Assert.assertTrue(OPageCache.getTotalMemory() <= (long) Math.max(maxPages, 16) * OPageCache.PAGE_SIZE);
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testAllPinned() throws IOException {
+		final int maxPages = Math.max(OGlobalConfiguration.FILE_CACHE_MAX_MEMORY.getValueAsInteger() / OPageCache.PAGE_SIZE, 16);
+		final int pages = maxPages + 4;
+
+		final OFileCached file = createFile(getFileName("page-cache-pinned.test"));
+		try {
+			file.setIncrementSize(OPageCache.PAGE_SIZE * 64);
+			file.allocateSpace(OPageCache.PAGE_SIZE * (pages + 4));
+			for (int i = 0; i < pages + 4; ++i)
+				file.writeInt((long) i * OPageCache.PAGE_SIZE, i);
+
+			// ALL THE PAGES PINNED: THE CACHE GOES OVER THE LIMIT
+			final List<OPageCacheEntry> pinned = new ArrayList<OPageCacheEntry>();
+			for (int i = 0; i < pages; ++i)
+				pinned.add(OPageCache.pin(file, (long) i * OPageCache.PAGE_SIZE));
+			Assert.assertTrue(OPageCache.getTotalMemory() > (long) maxPages * OPageCache.PAGE_SIZE);
+			for (OPageCacheEntry entry : pinned)
+				entry.unpin();
+
+			// THE NEXT PAGES REUSE THE BUFFERS EVICTED AND THE PAGES OVER THE LIMIT ARE RELEASED
+			for (int i = pages; i < pages + 4; ++i)
+				Assert.assertEquals(file.readInt((long) i * OPageCache.PAGE_SIZE), i);
+			Assert.assertTrue(OPageCache.getTotalMemory() <= (long) maxPages * OPageCache.PAGE_SIZE);
+
+			// A PAGE PINNED WHILE THE FILE IS CLOSED IS NOT RECYCLED
+			final OPageCacheEntry entry = OPageCache.pin(file, 0);
+			final long memory = OPageCache.getTotalMemory();
+			file.close();
+			Assert.assertEquals(OPageCache.getTotalMemory(), memory - OPageCache.PAGE_SIZE);
+			Assert.assertFalse(entry.pin());
+			entry.unpin();
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testCachedStorage() {
+		final String fileType = OGlobalConfiguration.FILE_DEFAULT_TYPE.getValueAsString();
+		OGlobalConfiguration.FILE_DEFAULT_TYPE.setValue("cached");
+		try {
+			final ODatabaseDocumentTx database = new ODatabaseDocumentTx("local:" + testPath + "/page-cache");
+			if (database.exists())
+				database.delete();
+			database.create();
+
+			final List<ORID> rids = new ArrayList<ORID>();
+			for (int i = 0; i < 1000; ++i) {
+				final ODocument doc = new ODocument(database).field("i", i);
+				doc.save();
+				rids.add(doc.getIdentity().copy());
+			}
+			for (int i = 0; i < rids.size(); i += 2) {
+				final ODocument doc = database.load(rids.get(i));
+				doc.field("i", -i);
+				doc.save();
+			}
+			database.close();
+
+			database.open("admin", "admin");
+			for (int i = 0; i < rids.size(); ++i)
+				Assert.assertEquals(((Number) database.load(rids.get(i)).field("i")).intValue(), i % 2 == 0 ? -i : i);
+			database.close();
+		} finally {
+			OGlobalConfiguration.FILE_DEFAULT_TYPE.setValue(fileType);
+		}
+	}
+
+	private OFileCached createFile(final String iFileName) throws IOException {
+		final OFileCached file = new OFileCached(iFileName, "rw");
+		file.create(OPageCache.PAGE_SIZE);
+		file.setIncrementSize(OPageCache.PAGE_SIZE);
+		return file;
+	}
+
+	private String getFileName(final String iName) {
+		final File f = new File(testPath + "/" + iName);
+		f.getParentFile().mkdirs();
+		if (f.exists())
+			f.delete();
+		return f.getPath();
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ORecordBytes;
+import com.orientechnologies.orient.core.storage.fs.OFile;
+import com.orientechnologies.orient.core.storage.fs.OFileFactory;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocalPreallocator;
+
+/**
+ * Checks the background preallocation of the files: the sparse enlargement of a file, its resize lock against the concurrent
+ * allocations and the enlargement of the segments of a storage while the storage is locked by another thread.
+ */
+@Test(groups = "storage")
+public class PreallocationTest {
+	private static final int	THREADS	= 4;
+	private static final int	RECORDS	= 2000;
+	private final String			path;
+
+	@Parameters(value = "testPath")
+	public PreallocationTest(final String iTestPath) {
+		path = iTestPath + "/preallocation";
+	}
+
+	/**
+	 * Gives access to a single run of the preallocation.
+	 */
+	public static class Preallocator extends OStorageLocalPreallocator {
+		public Preallocator(final OStorageLocal iStorage) {
+			super(iStorage);
+		}
+
+		public long preallocateOnce() {
+			return preallocate();
+		}
+	}
+
+	public void testSparseEnlargement() throws Exception {
+		new File(path).mkdirs();
+		final OFile file = OFileFactory.create(OFileFactory.MMAP, path + "/sparse.test", "rw");
+		file.create(1000);
+		try {
+			file.allocateSpace(100);
+			Assert.assertEquals(file.getFilledUpTo(), 100);
+
+			final long added = file.preallocate(100000);
+			Assert.assertTrue(added > 0);
+			Assert.assertTrue(file.getFreeSpace() >= 100000);
+			Assert.assertEquals(file.getFilledUpTo(), 100);
+			Assert.assertTrue(file.getOsFile().length() >= file.getFileSize());
+
+			// ALREADY ENOUGH FREE SPACE
+			Assert.assertEquals(file.preallocate(100000), 0);
+
+			// THE ALLOCATIONS USE THE SPACE WITHOUT ENLARGING THE FILE
+			final long size = file.getFileSize();
+			file.allocateSpace(50000);
+			Assert.assertEquals(file.getFileSize(), size);
+
+			// NEVER OVER THE MAX SIZE
+			file.setMaxSize(size + 1000);
+			file.preallocate(size * 10);
+			Assert.assertEquals(file.getFileSize(), size + 1000);
+
+		} finally {
+			file.delete();
+		}
+
+		// A CLOSED FILE IS NOT ENLARGED
+		Assert.assertEquals(file.preallocate(100000), 0);
+	}
+
+	@Test(dependsOnMethods = "testSparseEnlargement")
+	public void testConcurrentAllocations() throws Exception {
+		final OFile file = OFileFactory.create(OFileFactory.MMAP, path + "/concurrent.test", "rw");
+		file.create(1000);
+
+		final List<Long> offsets = Collections.synchronizedList(new ArrayList<Long>());
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch done = new CountDownLatch(THREADS);
+
+		final Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < RECORDS; ++i)
+							offsets.add(file.allocateSpace(17));
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		// ENLARGE THE FILE WHILE THE OTHER THREADS ALLOCATE
+		while (done.getCount() > 0)
+			file.preallocate(file.getFilledUpTo() + 4096);
+
+		for (Thread t : threads)
+			t.join();
+
+		Assert.assertTrue(errors.isEmpty(), errors.toString());
+
+		// EVERY ALLOCATION HAS ITS OWN SPACE
+		Collections.sort(offsets);
+		Assert.assertEquals(offsets.size(), THREADS * RECORDS);
+		for (int i = 0; i < offsets.size(); ++i)
+			Assert.assertEquals(offsets.get(i).longValue(), i * 17l);
+
+		final long size = file.getFileSize();
+		file.close();
+
+		// THE HEADER KEEPS THE LAST FILLED SPACE AND SIZE
+		final OFile reopened = OFileFactory.create(OFileFactory.MMAP, path + "/concurrent.test", "rw");
+		reopened.open();
+		try {
+			Assert.assertEquals(reopened.getFilledUpTo(), THREADS * RECORDS * 17l);
+			Assert.assertEquals(reopened.getFileSize(), size);
+		} finally {
+			reopened.delete();
+		}
+	}
+
+	@Test(dependsOnMethods = "testConcurrentAllocations")
+	public void testStorageNotLocked() throws Exception {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx("local:" + path + "/db");
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		final int clusterId = storage.getDefaultClusterId();
+		final Preallocator preallocator = new Preallocator(storage);
+
+		// THE FIRST RUN MEASURES THE FILLED SPACE, THE SECOND ONE THE GROWTH
+		preallocator.preallocateOnce();
+		for (int i = 0; i < 500; ++i)
+			storage.createRecord(clusterId, new byte[10000], ORecordBytes.RECORD_TYPE);
+
+		// ANOTHER THREAD KEEPS THE STORAGE LOCKED
+		storage.addUser();
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread locker = new Thread() {
+			public void run() {
+				final boolean acquired = storage.getLock().acquireExclusiveLock();
+				locked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				} finally {
+					storage.getLock().releaseExclusiveLock(acquired);
+				}
+			}
+		};
+		locker.start();
+		locked.await();
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<Long> enlarged = executor.submit(new Callable<Long>() {
+				public Long call() {
+					return preallocator.preallocateOnce();
+				}
+			});
+
+			// THE PREALLOCATION DOESN'T WAIT FOR THE LOCK OF THE STORAGE
+			Assert.assertTrue(enlarged.get(30, TimeUnit.SECONDS) > 0);
+
+		} finally {
+			release.countDown();
+			locker.join();
+			storage.removeUser();
+			executor.shutdown();
+		}
+
+		// THE RECORDS ARE STILL THERE AFTER THE REOPENING
+		for (int i = 0; i < 100; ++i)
+			storage.createRecord(clusterId, new byte[10000], ORecordBytes.RECORD_TYPE);
+		database.close();
+
+		database.open("admin", "admin");
+		Assert.assertEquals(database.countClusterElements(clusterId), 600);
+		database.delete();
+	}
+}
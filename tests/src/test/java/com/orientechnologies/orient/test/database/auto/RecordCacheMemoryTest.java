@@ -0,0 +1,238 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.common.collection.OLongIntHashMap;
+import com.orientechnologies.orient.core.cache.OCacheOffHeapTier;
+import com.orientechnologies.orient.core.cache.OCacheRecord;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.storage.ORawBuffer;
+
+/**
+ * Checks the record cache bounded by bytes and its off-heap tier: the primitive map of the index, the ring of slabs, the content of
+ * the records against a plain map under random operations and the records copied back from the off-heap tier.
+ */
+@Test(groups = "storage")
+public class RecordCacheMemoryTest {
+	private static final int	MAX_MEMORY	= 500000;
+
+	public void testLongIntHashMap() {
+		final OLongIntHashMap map = new OLongIntHashMap(4);
+		final Map<Long, Integer> model = new HashMap<Long, Integer>();
+		final Random random = new Random(11);
+
+		for (int i = 0; i < 200000; ++i) {
+			// KEYS WITH THE SAME LOW BITS TO FORCE LONG PROBING SEQUENCES
+			final long key = ((long) random.nextInt(2000) << 32) | (random.nextInt(4) << 20);
+			final int operation = random.nextInt(3);
+
+			if (operation == 0) {
+				final Integer previous = model.put(key, i);
+				Assert.assertEquals(map.put(key, i), previous != null ? previous : OLongIntHashMap.NOT_FOUND);
+			} else if (operation == 1) {
+				final Integer removed = model.remove(key);
+				Assert.assertEquals(map.remove(key), removed != null ? removed : OLongIntHashMap.NOT_FOUND);
+			} else {
+				final Integer value = model.get(key);
+				Assert.assertEquals(map.get(key), value != null ? value : OLongIntHashMap.NOT_FOUND);
+			}
+
+			Assert.assertEquals(map.size(), model.size());
+		}
+
+		for (Map.Entry<Long, Integer> entry : model.entrySet())
+			Assert.assertEquals(map.get(entry.getKey()), entry.getValue().intValue());
+
+		map.clear();
+		Assert.assertTrue(map.isEmpty());
+		Assert.assertEquals(map.get(model.keySet().iterator().next()), OLongIntHashMap.NOT_FOUND);
+	}
+
+	public void testOffHeapTier() {
+		final OCacheOffHeapTier tier = new OCacheOffHeapTier(4096, 1024);
+
+		tier.put(1, buffer(100, 1));
+		checkBuffer(tier.pop(1), 1, 100);
+		Assert.assertNull(tier.pop(1));
+
+		// BIGGER THAN A SLAB: NOT KEPT
+		Assert.assertFalse(tier.put(2, buffer(2000, 2)));
+		Assert.assertNull(tier.pop(2));
+
+		// THE RING IS FULL AFTER 4 SLABS: THE OLDEST RECORDS ARE EVICTED FIRST
+		for (int i = 0; i < 100; ++i)
+			Assert.assertTrue(tier.put(i, buffer(200, i)));
+		Assert.assertTrue(tier.size() < 100);
+		Assert.assertNull(tier.pop(0));
+		checkBuffer(tier.pop(99), 99, 200);
+		Assert.assertEquals(tier.getMemory(), 4096);
+
+		// A RECORD WRITTEN AGAIN SURVIVES THE EMPTYING OF THE SLAB OF ITS OLD COPY
+		tier.clear();
+		tier.put(1000, buffer(200, 1));
+		tier.put(1000, buffer(200, 2));
+		for (int i = 0; i < 8; ++i)
+			tier.put(i, buffer(200, i));
+		checkBuffer(tier.pop(1000), 2, 200);
+
+		tier.clear();
+		Assert.assertEquals(tier.size(), 0);
+	}
+
+	public void testBoundedByBytes() {
+		checkAgainstMap(createCache(1000, 16, MAX_MEMORY, 0));
+	}
+
+	public void testBoundedByBytesWithOffHeap() {
+		final OCacheRecord cache = createCache(1000, 16, MAX_MEMORY, 2000000);
+		checkAgainstMap(cache);
+		Assert.assertTrue(cache.getOffHeapHits() > 0);
+		Assert.assertTrue(cache.getOffHeapMemory() > 0);
+		Assert.assertTrue(cache.getOffHeapMemory() <= 2000000);
+	}
+
+	public void testBigRecord() {
+		final OCacheRecord cache = createCache(100, 1, 10000, 0);
+
+		cache.pushRecord(1, 1, buffer(100, 1));
+		cache.pushRecord(1, 2, buffer(20000, 2));
+		Assert.assertNull(cache.getRecord(1, 2));
+		Assert.assertNotNull(cache.getRecord(1, 1));
+		Assert.assertEquals(cache.getMemory(), 100);
+
+		// THE MEMORY IS FREED BY REMOVE AND CLEAR
+		cache.removeRecord(1, 1);
+		Assert.assertEquals(cache.getMemory(), 0);
+		cache.pushRecord(1, 3, buffer(300, 3));
+		cache.clear();
+		Assert.assertEquals(cache.getMemory(), 0);
+		Assert.assertEquals(cache.size(), 0);
+	}
+
+	public void testCopyBackFromOffHeap() {
+		final OCacheRecord cache = createCache(10, 1, 0, 1000000);
+
+		for (int i = 0; i < 100; ++i)
+			cache.pushRecord(1, i, buffer(50, i));
+		Assert.assertTrue(cache.size() <= 10);
+
+		// THE RECORDS EVICTED FROM THE HEAP ARE STILL IN CACHE
+		final long offHeapHits = cache.getOffHeapHits();
+		for (int i = 0; i < 100; ++i)
+			checkBuffer(cache.getRecord(1, i), i, 50);
+		Assert.assertTrue(cache.getOffHeapHits() > offHeapHits);
+
+		// A NEW VERSION REPLACES THE OFF-HEAP COPY
+		cache.pushRecord(1, 0, buffer(50, 1000));
+		for (int i = 100; i < 200; ++i)
+			cache.pushRecord(1, i, buffer(50, i));
+		checkBuffer(cache.getRecord(1, 0), 1000, 50);
+
+		// A DELETE REMOVES BOTH THE COPIES
+		cache.removeRecord(1, 0);
+		Assert.assertNull(cache.getRecord(1, 0));
+	}
+
+	/**
+	 * Executes random operations checking the records found have the last content pushed and the cache stays in its bounds.
+	 */
+	private void checkAgainstMap(final OCacheRecord iCache) {
+		final Map<Long, int[]> model = new HashMap<Long, int[]>();
+		final Random random = new Random(7);
+		int version = 1;
+
+		for (int i = 0; i < 300000; ++i) {
+			final int clusterId = random.nextInt(3);
+			final long position = random.nextInt(4000);
+			final long key = ((long) clusterId << 48) | position;
+			final int operation = random.nextInt(10);
+
+			if (operation < 4) {
+				final int size = random.nextInt(10) == 0 ? 2 + random.nextInt(60000) : 2 + random.nextInt(300);
+				version++;
+				iCache.pushRecord(clusterId, position, buffer(size, version));
+				model.put(key, new int[] { version, size });
+			} else if (operation < 9) {
+				final ORawBuffer buffer = iCache.getRecord(clusterId, position);
+				if (buffer != null) {
+					final int[] expected = model.get(key);
+					Assert.assertNotNull(expected, "deleted record found");
+					checkBuffer(buffer, expected[0], expected[1]);
+				}
+			} else {
+				iCache.removeRecord(clusterId, position);
+				model.remove(key);
+			}
+
+			Assert.assertTrue(iCache.getMemory() <= MAX_MEMORY, iCache.toString());
+			Assert.assertTrue(iCache.size() <= 1000, iCache.toString());
+		}
+
+		iCache.clear();
+		Assert.assertEquals(iCache.size(), 0);
+		Assert.assertEquals(iCache.getMemory(), 0);
+		Assert.assertNull(iCache.getRecord(0, 1));
+	}
+
+	/**
+	 * Returns a record whose first and last bytes depend on the version.
+	 */
+	private static ORawBuffer buffer(final int iSize, final int iVersion) {
+		final byte[] content = new byte[iSize];
+		Arrays.fill(content, (byte) iVersion);
+		content[iSize - 1] = (byte) (iVersion >> 8);
+		return new ORawBuffer(content, iVersion, (byte) 'd');
+	}
+
+	private static void checkBuffer(final ORawBuffer iBuffer, final int iVersion, final int iSize) {
+		Assert.assertNotNull(iBuffer);
+		Assert.assertEquals(iBuffer.version, iVersion);
+		Assert.assertEquals(iBuffer.recordType, (byte) 'd');
+		Assert.assertEquals(iBuffer.buffer.length, iSize);
+		Assert.assertEquals(iBuffer.buffer[0], (byte) iVersion);
+		Assert.assertEquals(iBuffer.buffer[iSize - 1], (byte) (iVersion >> 8));
+	}
+
+	/**
+	 * Creates a cache with the settings received, leaving the global configuration as it was.
+	 */
+	private static OCacheRecord createCache(final int iSize, final int iStripes, final int iMaxMemory, final int iOffHeapMemory) {
+		final OGlobalConfiguration[] settings = { OGlobalConfiguration.STORAGE_CACHE_SIZE, OGlobalConfiguration.STORAGE_CACHE_STRIPES,
+				OGlobalConfiguration.STORAGE_CACHE_MAX_MEMORY, OGlobalConfiguration.STORAGE_CACHE_OFF_HEAP_MEMORY,
+				OGlobalConfiguration.STORAGE_CACHE_OFF_HEAP_SLAB_SIZE };
+		final Object[] values = { iSize, iStripes, iMaxMemory, iOffHeapMemory, 65536 };
+
+		final Object[] previous = new Object[settings.length];
+		try {
+			for (int i = 0; i < settings.length; ++i) {
+				previous[i] = settings[i].getValue();
+				settings[i].setValue(values[i]);
+			}
+			return new OCacheRecord();
+		} finally {
+			for (int i = 0; i < settings.length; ++i)
+				settings[i].setValue(previous[i]);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.cache.OCacheRecord;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.config.OStorageClusterCacheConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.ORawBuffer;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks the cache policies of the clusters (disabled, pinned, not scan resistant) and the warm-up of the cache at the opening of
+ * the storage, from the clusters configured and from the snapshot of the records cached at the last close.
+ */
+@Test(groups = "storage")
+public class RecordCachePolicyTest {
+	private static final int		RECORDS	= 300;
+	private final String				url;
+	private ODatabaseDocumentTx	database;
+	private int									warmCluster;
+	private int									hotCluster;
+
+	@Parameters(value = "testPath")
+	public RecordCachePolicyTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/cache-policy";
+	}
+
+	public void testPolicies() {
+		final OCacheRecord cache = createCache(100);
+		cache.setClusterConfiguration(1, new OStorageClusterCacheConfiguration(true, 0, true, true, false));
+		cache.setClusterConfiguration(2, new OStorageClusterCacheConfiguration(false, 0, false, true, false));
+		cache.setClusterConfiguration(4, new OStorageClusterCacheConfiguration(true, 0, false, false, false));
+
+		for (int i = 0; i < 20; ++i)
+			cache.pushRecord(1, i, buffer());
+
+		// DISABLED: NEVER CACHED
+		cache.pushRecord(2, 0, buffer());
+		Assert.assertNull(cache.getRecord(2, 0));
+
+		// A SCAN OF ANOTHER CLUSTER DOESN'T EVICT THE PINNED RECORDS
+		for (int i = 0; i < 5000; ++i) {
+			cache.getRecord(3, i);
+			cache.pushRecord(3, i, buffer());
+		}
+		for (int i = 0; i < 20; ++i)
+			Assert.assertNotNull(cache.getRecord(1, i), "pinned record " + i + " evicted");
+
+		// NOT SCAN RESISTANT: ADMITTED EVEN IF NEVER READ BEFORE
+		cache.pushRecord(4, 7, buffer());
+		Assert.assertNotNull(cache.peekRecord(4, 7));
+		Assert.assertTrue(cache.size() <= 100);
+
+		// THE CHANGE OF THE POLICY DROPS THE RECORDS OF THE CLUSTER
+		cache.setClusterConfiguration(1, null);
+		Assert.assertNull(cache.peekRecord(1, 0));
+	}
+
+	public void testAllPinned() {
+		final OCacheRecord cache = createCache(100);
+		cache.setClusterConfiguration(5, new OStorageClusterCacheConfiguration(true, 3, true, true, false));
+
+		for (int i = 0; i < 150; ++i)
+			cache.pushRecord(5, i, buffer());
+
+		// THE NEW RECORDS ARE NOT CACHED, BUT THE CACHE KEEPS WORKING
+		cache.pushRecord(6, 0, buffer());
+		Assert.assertEquals(cache.size(), 100);
+		Assert.assertNull(cache.peekRecord(6, 0));
+
+		cache.removeCluster(5);
+		Assert.assertEquals(cache.size(), 0);
+		cache.pushRecord(6, 0, buffer());
+		Assert.assertNotNull(cache.peekRecord(6, 0));
+	}
+
+	public void testWarmUpConfiguration() {
+		database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		database.getMetadata().getSchema().createClass("Warm");
+		database.getMetadata().getSchema().createClass("Hot");
+		database.getMetadata().getSchema().save();
+
+		for (int i = 0; i < RECORDS; ++i) {
+			new ODocument(database, "Warm").field("i", i).save();
+			new ODocument(database, "Hot").field("i", i).save();
+		}
+
+		warmCluster = database.getMetadata().getSchema().getClass("Warm").getDefaultClusterId();
+		hotCluster = database.getMetadata().getSchema().getClass("Hot").getDefaultClusterId();
+
+		((OStorageLocal) database.getStorage()).setClusterCacheConfiguration(warmCluster, new OStorageClusterCacheConfiguration(true,
+				2, false, true, true));
+		database.close();
+
+		database.open("admin", "admin");
+
+		// ALL THE RECORDS OF THE CLUSTER ARE LOADED AT THE OPENING
+		final OCacheRecord cache = database.getStorage().getCache();
+		for (int i = 0; i < RECORDS; ++i)
+			Assert.assertNotNull(cache.peekRecord(warmCluster, i), "record " + i + " not loaded");
+
+		// THE POLICY IS STORED IN THE CONFIGURATION
+		final OStorageClusterCacheConfiguration config = database.getStorage().getConfiguration().clusters.get(warmCluster)
+				.getCacheConfiguration();
+		Assert.assertTrue(config.warmUp);
+		Assert.assertEquals(config.priority, 2);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testWarmUpConfiguration")
+	public void testWarmUpSnapshot() {
+		final Object snapshot = OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.getValue();
+		OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.setValue(true);
+		try {
+			database.open("admin", "admin");
+
+			// THE RECORDS READ BEFORE THE CLOSE ARE SAVED IN THE SNAPSHOT
+			database.getStorage().getCache().clear();
+			for (int i = 0; i < 10; ++i)
+				database.load(new ORecordId(hotCluster, i));
+			database.close();
+
+			database.open("admin", "admin");
+
+			final OCacheRecord cache = database.getStorage().getCache();
+			for (int i = 0; i < 10; ++i)
+				Assert.assertNotNull(cache.peekRecord(hotCluster, i), "record " + i + " not loaded from the snapshot");
+			for (int i = 0; i < RECORDS; ++i)
+				Assert.assertNotNull(cache.peekRecord(warmCluster, i));
+
+			database.close();
+
+		} finally {
+			OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.setValue(snapshot);
+		}
+	}
+
+	@Test(dependsOnMethods = "testWarmUpSnapshot")
+	public void testWarmUpTruncatedSnapshot() throws IOException {
+		final Object snapshot = OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.getValue();
+		OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.setValue(true);
+		try {
+			// THE SNAPSHOT DECLARES MORE RECORDS THAN IT CONTAINS
+			final File file = new File(((OStorageLocal) database.getStorage()).getStoragePath() + "/cache.ocs");
+			final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			try {
+				raw.setLength(10);
+			} finally {
+				raw.close();
+			}
+
+			database.open("admin", "admin");
+
+			// THE CLUSTERS ARE WARMED UP ANYWAY
+			final OCacheRecord cache = database.getStorage().getCache();
+			for (int i = 0; i < RECORDS; ++i)
+				Assert.assertNotNull(cache.peekRecord(warmCluster, i), "record " + i + " not loaded");
+
+			database.close();
+
+		} finally {
+			OGlobalConfiguration.STORAGE_CACHE_WARM_UP_SNAPSHOT.setValue(snapshot);
+		}
+	}
+
+	@Test(dependsOnMethods = "testWarmUpTruncatedSnapshot")
+	public void testWarmUpFull() {
+		final OCacheRecord cache = createCache(1000);
+		cache.setClusterConfiguration(1, new OStorageClusterCacheConfiguration(true, 0, false, true, true));
+
+		for (int i = 0; i < 2000; ++i)
+			cache.pushRecord(1, i, buffer());
+
+		// THE CACHE FULL REFUSES THE RECORDS OF THE WARM-UP WITHOUT EVICTING THE ONES LOADED
+		final int size = cache.size();
+		Assert.assertFalse(cache.pushRecordIfRoom(2, 0, buffer()));
+		Assert.assertEquals(cache.size(), size);
+		Assert.assertNull(cache.peekRecord(2, 0));
+
+		// A CACHE BOUND BY BYTES STOPS THE WARM-UP AT THE FIRST RECORD THAT DOESN'T FIT
+		final OCacheRecord bytes = createCache(1000, 1000);
+		int loaded = 0;
+		while (bytes.pushRecordIfRoom(3, loaded, new ORawBuffer(new byte[100], 0, (byte) 'd')))
+			loaded++;
+		Assert.assertEquals(loaded, 10);
+		Assert.assertEquals(bytes.getMemory(), 1000);
+		for (int i = 0; i < loaded; ++i)
+			Assert.assertNotNull(bytes.peekRecord(3, i));
+	}
+
+	private static ORawBuffer buffer() {
+		return new ORawBuffer(new byte[] { 1 }, 0, (byte) 'd');
+	}
+
+	/**
+	 * Creates a cache of one stripe, leaving the global configuration as it was.
+	 */
+	private static OCacheRecord createCache(final int iSize) {
+		return createCache(iSize, 0);
+	}
+
+	private static OCacheRecord createCache(final int iSize, final int iMaxMemory) {
+		final Object size = OGlobalConfiguration.STORAGE_CACHE_SIZE.getValue();
+		final Object stripes = OGlobalConfiguration.STORAGE_CACHE_STRIPES.getValue();
+		final Object memory = OGlobalConfiguration.STORAGE_CACHE_MAX_MEMORY.getValue();
+		try {
+			OGlobalConfiguration.STORAGE_CACHE_SIZE.setValue(iSize);
+			OGlobalConfiguration.STORAGE_CACHE_STRIPES.setValue(1);
+			OGlobalConfiguration.STORAGE_CACHE_MAX_MEMORY.setValue(iMaxMemory);
+			return new OCacheRecord();
+		} finally {
+			OGlobalConfiguration.STORAGE_CACHE_SIZE.setValue(size);
+			OGlobalConfiguration.STORAGE_CACHE_STRIPES.setValue(stripes);
+			OGlobalConfiguration.STORAGE_CACHE_MAX_MEMORY.setValue(memory);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.common.profiler.OProfiler;
+import com.orientechnologies.orient.core.cache.OCacheRecord;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.ORawBuffer;
+
+/**
+ * Checks the striped record cache: the content against a plain map under random operations, the bound on the entries, the
+ * resistance to the scans, the concurrent access and the hits counted for the profiler.
+ */
+@Test(groups = "storage")
+public class RecordCacheTest {
+	private static final int	THREADS	= 4;
+	private final String			url;
+
+	@Parameters(value = "testPath")
+	public RecordCacheTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/record-cache";
+	}
+
+	public void testAgainstMap() {
+		final OCacheRecord cache = createCache(1000, 16);
+		final Map<Long, ORawBuffer> model = new HashMap<Long, ORawBuffer>();
+		final Random random = new Random(3);
+
+		for (int i = 0; i < 500000; ++i) {
+			final int clusterId = random.nextInt(5);
+			final long position = random.nextInt(3000);
+			final long key = ((long) clusterId << 48) | position;
+			final int operation = random.nextInt(10);
+
+			if (operation < 4) {
+				final ORawBuffer buffer = new ORawBuffer(new byte[] { 1 }, i, (byte) 'd');
+				cache.pushRecord(clusterId, position, buffer);
+				model.put(key, buffer);
+			} else if (operation < 8) {
+				// A CACHED RECORD IS ALWAYS THE LAST PUSHED
+				final ORawBuffer buffer = cache.getRecord(clusterId, position);
+				if (buffer != null)
+					Assert.assertSame(buffer, model.get(key));
+			} else {
+				cache.removeRecord(clusterId, position);
+				model.remove(key);
+			}
+
+			Assert.assertTrue(cache.size() <= 1000);
+		}
+	}
+
+	public void testStringKeys() {
+		final OCacheRecord cache = createCache(100, 4);
+
+		cache.pushRecord("3:7", new ORawBuffer(new byte[] { 2 }, 1, (byte) 'd'));
+		Assert.assertNotNull(cache.getRecord(3, 7));
+		Assert.assertEquals(cache.getRecord("3:7").buffer[0], 2);
+
+		cache.removeRecords(Arrays.asList(new ORecordId(3, 7)));
+		Assert.assertNull(cache.getRecord("3:7"));
+
+		cache.pushRecord(5, 1, new ORawBuffer(new byte[] { 3 }, 1, (byte) 'd'));
+		Assert.assertEquals(cache.popRecord("5:1").buffer[0], 3);
+		Assert.assertNull(cache.peekRecord(5, 1));
+	}
+
+	public void testLimits() {
+		OCacheRecord cache = createCache(0, 16);
+		cache.pushRecord(1, 1, new ORawBuffer(new byte[] { 1 }, 0, (byte) 'd'));
+		Assert.assertNull(cache.getRecord(1, 1));
+		Assert.assertEquals(cache.size(), 0);
+
+		// LESS ENTRIES THAN STRIPES
+		cache = createCache(3, 16);
+		for (int i = 0; i < 100; ++i)
+			cache.pushRecord(1, i, new ORawBuffer(new byte[] { 1 }, 0, (byte) 'd'));
+		Assert.assertTrue(cache.size() <= 3);
+		Assert.assertTrue(cache.size() > 0);
+
+		cache.clear();
+		Assert.assertEquals(cache.size(), 0);
+	}
+
+	public void testScanResistance() {
+		final OCacheRecord cache = createCache(1000, 16);
+
+		// A HOT SET OF 500 RECORDS READ OFTEN
+		for (int round = 0; round < 5; ++round)
+			for (int i = 0; i < 500; ++i)
+				read(cache, 1, i);
+
+		// A SCAN OF 100000 RECORDS WHILE THE HOT SET IS STILL READ
+		int hits = 0;
+		for (int i = 0; i < 100000; ++i) {
+			read(cache, 2, i);
+			for (int j = 0; j < 2; ++j)
+				if (read(cache, 1, (i * 2 + j) % 500) && i >= 90000)
+					hits++;
+		}
+
+		// THE SCAN CAN'T FLUSH THE HOT SET
+		Assert.assertTrue(hits > 20000 * 8 / 10, "hot hits " + hits + "/20000");
+	}
+
+	public void testConcurrentAccess() throws InterruptedException {
+		final OCacheRecord cache = createCache(1000, 16);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		final Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++t) {
+			final int clusterId = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						final Random random = new Random(clusterId);
+						for (int i = 0; i < 200000; ++i) {
+							final int position = random.nextInt(5000);
+
+							// THE VERSION IS THE POSITION: A RECORD OF ANOTHER KEY WOULD HAVE A DIFFERENT ONE
+							final ORawBuffer buffer = cache.getRecord(clusterId, position);
+							if (buffer != null)
+								Assert.assertEquals(buffer.version, position);
+							else
+								cache.pushRecord(clusterId, position, new ORawBuffer(new byte[] { 1 }, position, (byte) 'd'));
+
+							if (random.nextInt(20) == 0)
+								cache.removeRecord(clusterId, position);
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (Thread t : threads)
+			t.join();
+
+		Assert.assertTrue(errors.isEmpty(), errors.toString());
+		Assert.assertTrue(cache.size() <= 1000);
+		Assert.assertTrue(cache.getHits() > 0);
+	}
+
+	public void testHitsOfDatabase() {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		try {
+			final ODocument doc = new ODocument(database).field("name", "cached");
+			doc.save();
+			final ORID rid = doc.getIdentity().copy();
+
+			final OCacheRecord cache = database.getStorage().getCache();
+			cache.clear();
+
+			final long hits = cache.getHits();
+			final long misses = cache.getMisses();
+
+			// THE FIRST READ LOADS THE RECORD IN CACHE, THE SECOND ONE FINDS IT
+			database.load(rid);
+			Assert.assertEquals(cache.getMisses(), misses + 1);
+			Assert.assertNotNull(cache.peekRecord(rid.getClusterId(), rid.getClusterPosition()));
+
+			final ODocument loaded = database.load(rid);
+			Assert.assertEquals(loaded.field("name"), "cached");
+			Assert.assertEquals(cache.getHits(), hits + 1);
+
+			final String prefix = "storage." + database.getStorage().getName() + ".cache.";
+			Assert.assertEquals(OProfiler.getInstance().getHookValues().get(prefix + "hits"), cache.getHits());
+			Assert.assertEquals(OProfiler.getInstance().getHookValues().get(prefix + "misses"), cache.getMisses());
+
+			// THE DELETE REMOVES THE RECORD FROM THE CACHE
+			loaded.delete();
+			Assert.assertNull(cache.peekRecord(rid.getClusterId(), rid.getClusterPosition()));
+
+		} finally {
+			database.delete();
+		}
+	}
+
+	/**
+	 * Reads the record and pushes it if not found.
+	 *
+	 * @return true if it was in cache
+	 */
+	private static boolean read(final OCacheRecord iCache, final int iClusterId, final long iPosition) {
+		if (iCache.getRecord(iClusterId, iPosition) != null)
+			return true;
+
+		iCache.pushRecord(iClusterId, iPosition, new ORawBuffer(new byte[] { 1 }, 0, (byte) 'd'));
+		return false;
+	}
+
+	/**
+	 * Creates a cache with the settings received, leaving the global configuration as it was.
+	 */
+	private static OCacheRecord createCache(final int iSize, final int iStripes) {
+		final Object size = OGlobalConfiguration.STORAGE_CACHE_SIZE.getValue();
+		final Object stripes = OGlobalConfiguration.STORAGE_CACHE_STRIPES.getValue();
+		try {
+			OGlobalConfiguration.STORAGE_CACHE_SIZE.setValue(iSize);
+			OGlobalConfiguration.STORAGE_CACHE_STRIPES.setValue(iStripes);
+			return new OCacheRecord();
+		} finally {
+			OGlobalConfiguration.STORAGE_CACHE_SIZE.setValue(size);
+			OGlobalConfiguration.STORAGE_CACHE_STRIPES.setValue(stripes);
+		}
+	}
+}
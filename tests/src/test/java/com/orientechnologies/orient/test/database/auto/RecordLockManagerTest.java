@@ -0,0 +1,240 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.common.concur.lock.OLockException;
+import com.orientechnologies.common.concur.lock.OLockManager;
+import com.orientechnologies.common.concur.lock.OLockManager.LOCK;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+
+/**
+ * Checks the record locks: shared and exclusive modes, timeout, deadlock detection and the release of the storage lock when the
+ * record lock can't be acquired.
+ */
+@Test(groups = "storage")
+public class RecordLockManagerTest {
+	private String	url;
+
+	@Parameters(value = "testPath")
+	public RecordLockManagerTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/record-locks";
+	}
+
+	public void testSharedAndExclusive() throws InterruptedException {
+		final OLockManager<String, Thread> manager = new OLockManager<String, Thread>(16, 0);
+
+		final Thread main = Thread.currentThread();
+		manager.acquireLock(main, "r", LOCK.SHARED);
+
+		// ANOTHER READER ENTERS, A WRITER WAITS FOR BOTH
+		final CountDownLatch otherReader = new CountDownLatch(1);
+		final Thread reader = new Thread() {
+			@Override
+			public void run() {
+				manager.acquireLock(this, "r", LOCK.SHARED);
+				otherReader.countDown();
+				manager.releaseLock(this, "r", LOCK.SHARED);
+			}
+		};
+		reader.start();
+		Assert.assertTrue(otherReader.await(5, TimeUnit.SECONDS));
+		reader.join();
+
+		final AtomicInteger written = new AtomicInteger();
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				manager.acquireLock(this, "r", LOCK.EXCLUSIVE);
+				written.incrementAndGet();
+				manager.releaseLock(this, "r", LOCK.EXCLUSIVE);
+			}
+		};
+		writer.start();
+		writer.join(300);
+		Assert.assertEquals(written.get(), 0);
+
+		manager.releaseLock(main, "r", LOCK.SHARED);
+		writer.join(5000);
+		Assert.assertEquals(written.get(), 1);
+		Assert.assertFalse(manager.isLocked("r"));
+		Assert.assertEquals(manager.getLockedResources(), 0);
+	}
+
+	public void testTimeout() throws InterruptedException {
+		final OLockManager<String, Thread> manager = new OLockManager<String, Thread>(16, 0);
+
+		final Thread owner = lockInThread(manager, "r", LOCK.EXCLUSIVE);
+		try {
+			final long begin = System.currentTimeMillis();
+			try {
+				manager.acquireLock(Thread.currentThread(), "r", LOCK.SHARED, 300);
+				Assert.fail("Lock acquired on a resource locked by another thread");
+			} catch (OLockException e) {
+			}
+			Assert.assertTrue(System.currentTimeMillis() - begin >= 300);
+		} finally {
+			owner.interrupt();
+			owner.join();
+		}
+
+		// RELEASED BY THE OWNER: NOW IT CAN BE ACQUIRED
+		manager.acquireLock(Thread.currentThread(), "r", LOCK.EXCLUSIVE, 300);
+		manager.releaseLock(Thread.currentThread(), "r", LOCK.EXCLUSIVE);
+	}
+
+	public void testDeadlockDetection() throws InterruptedException {
+		final OLockManager<String, Thread> manager = new OLockManager<String, Thread>(16, 0);
+
+		final CountDownLatch locked = new CountDownLatch(2);
+		final AtomicInteger deadlocks = new AtomicInteger();
+		final AtomicInteger acquired = new AtomicInteger();
+
+		final Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; ++i) {
+			final String first = i == 0 ? "a" : "b";
+			final String second = i == 0 ? "b" : "a";
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					manager.acquireLock(this, first, LOCK.EXCLUSIVE);
+					try {
+						locked.countDown();
+						locked.await();
+
+						// EACH THREAD WAITS FOR THE RESOURCE OF THE OTHER ONE
+						manager.acquireLock(this, second, LOCK.EXCLUSIVE);
+						acquired.incrementAndGet();
+						manager.releaseLock(this, second, LOCK.EXCLUSIVE);
+					} catch (OLockException e) {
+						deadlocks.incrementAndGet();
+					} catch (InterruptedException e) {
+					} finally {
+						manager.releaseLock(this, first, LOCK.EXCLUSIVE);
+					}
+				}
+			};
+		}
+
+		final long begin = System.currentTimeMillis();
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join(10000);
+
+		// WITHOUT TIMEOUT ONLY THE DETECTION CAN BREAK THE CYCLE
+		Assert.assertEquals(deadlocks.get() + acquired.get(), 2);
+		Assert.assertTrue(deadlocks.get() >= 1);
+		Assert.assertTrue(System.currentTimeMillis() - begin < 10000);
+		Assert.assertEquals(manager.getLockedResources(), 0);
+	}
+
+	public void testStorageLockReleasedOnLockFailure() throws InterruptedException {
+		final int timeout = OGlobalConfiguration.STORAGE_RECORD_LOCK_TIMEOUT.getValueAsInteger();
+		OGlobalConfiguration.STORAGE_RECORD_LOCK_TIMEOUT.setValue(200);
+
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx(url);
+		final ODatabaseDocumentTx second;
+		try {
+			if (database.exists())
+				database.delete();
+			database.create();
+
+			// TWO USERS: THE STORAGE LOCKS ARE REALLY ACQUIRED
+			second = new ODatabaseDocumentTx(url).open("admin", "admin");
+		} finally {
+			OGlobalConfiguration.STORAGE_RECORD_LOCK_TIMEOUT.setValue(timeout);
+		}
+
+		final ODocument doc = new ODocument(database).field("name", "locked");
+		doc.save();
+		final ORecordId rid = (ORecordId) doc.getIdentity().copy();
+
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		final Thread owner = lockInThread(storage.getLockManager(), rid, LOCK.EXCLUSIVE);
+		try {
+			final byte[] content = doc.toStream();
+			try {
+				storage.updateRecord(database.getId(), rid.getClusterId(), rid.getClusterPosition(), content, -1, ODocument.RECORD_TYPE);
+				Assert.fail("Record updated while locked by another thread");
+			} catch (OLockException e) {
+			}
+			try {
+				storage.deleteRecord(database.getId(), rid.getClusterId(), rid.getClusterPosition(), -1);
+				Assert.fail("Record deleted while locked by another thread");
+			} catch (OLockException e) {
+			}
+		} finally {
+			owner.interrupt();
+			owner.join();
+		}
+
+		// A NEW USER NEEDS THE EXCLUSIVE LOCK OF THE STORAGE: IT WOULD WAIT FOREVER IF THE SHARED LOCK HAD LEAKED
+		final AtomicInteger opened = new AtomicInteger();
+		final Thread user = new Thread() {
+			@Override
+			public void run() {
+				new ODatabaseDocumentTx(url).open("admin", "admin").close();
+				opened.incrementAndGet();
+			}
+		};
+		user.setDaemon(true);
+		user.start();
+		user.join(10000);
+		Assert.assertEquals(opened.get(), 1);
+
+		Assert.assertEquals(database.load(rid).field("name"), "locked");
+
+		second.close();
+		database.close();
+	}
+
+	/**
+	 * Locks the resource in a new thread that keeps the lock until it's interrupted.
+	 */
+	private static <T> Thread lockInThread(final OLockManager<T, Thread> iManager, final T iResource, final LOCK iLockType)
+			throws InterruptedException {
+		final CountDownLatch locked = new CountDownLatch(1);
+		final Thread owner = new Thread() {
+			@Override
+			public void run() {
+				iManager.acquireLock(this, iResource, iLockType);
+				locked.countDown();
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+				} finally {
+					iManager.releaseLock(this, iResource, iLockType);
+				}
+			}
+		};
+		owner.setDaemon(true);
+		owner.start();
+		locked.await();
+		return owner;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.impl.local.ODataLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocalDefrag;
+
+/**
+ * Checks the defragmentation of the data segments: synchronous, and in background while other records are inserted. The content
+ * of the records is checked after every step and after the reopening of the database.
+ */
+@Test(groups = "storage")
+public class StorageDefragTest {
+	private static final int		RECORDS	= 3000;
+	private ODatabaseDocumentTx	database;
+	private Map<ORID, Integer>	live		= new HashMap<ORID, Integer>();
+	private Random							random	= new Random(7);
+
+	@Parameters(value = "testPath")
+	public StorageDefragTest(final String iTestPath) {
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/defrag");
+	}
+
+	public void testDefrag() throws IOException {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		final List<ORID> rids = new ArrayList<ORID>();
+		for (int i = 0; i < RECORDS; ++i)
+			rids.add(createRecord(i));
+
+		for (ORID rid : rids)
+			if (random.nextInt(10) < 6) {
+				database.load(rid).delete();
+				live.remove(rid);
+			}
+
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		final ODataLocal data = storage.getDataSegment(0);
+		final long filledBefore = data.getFilledUpTo();
+
+		Assert.assertTrue(storage.defrag(null));
+
+		// 60% OF THE RECORDS HAVE BEEN DELETED
+		Assert.assertTrue(data.getFilledUpTo() < filledBefore * 0.6, "Filled " + data.getFilledUpTo() + " of " + filledBefore);
+		checkRecords();
+
+		database.close();
+		database.open("admin", "admin");
+		checkRecords();
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testDefrag")
+	public void testBackgroundDefrag() throws InterruptedException {
+		database.open("admin", "admin");
+
+		for (ORID rid : new ArrayList<ORID>(live.keySet()))
+			if (random.nextInt(3) == 0) {
+				database.load(rid).delete();
+				live.remove(rid);
+			}
+
+		final OStorageLocalDefrag defrag = ((OStorageLocal) database.getStorage()).startDefrag(null);
+		defrag.pauseDefrag();
+		Assert.assertTrue(defrag.isPaused());
+		defrag.resumeDefrag();
+
+		// INSERT WHILE THE RECORDS ARE MOVED
+		int i = RECORDS;
+		while (defrag.isAlive())
+			createRecord(i++);
+		defrag.join();
+
+		Assert.assertTrue(defrag.getMovedRecords() > 0);
+		checkRecords();
+
+		database.close();
+		database.open("admin", "admin");
+		checkRecords();
+		database.close();
+	}
+
+	private ORID createRecord(final int i) {
+		final StringBuilder pad = new StringBuilder();
+		for (int k = 0; k < (i * 7) % 700; ++k)
+			pad.append('x');
+
+		final ORID rid = new ODocument(database).field("i", i).field("pad", pad.toString()).save().getIdentity().copy();
+		live.put(rid, i);
+		return rid;
+	}
+
+	private void checkRecords() {
+		for (Map.Entry<ORID, Integer> entry : live.entrySet()) {
+			final ODocument doc = database.load(entry.getKey());
+			Assert.assertNotNull(doc, "Missing record " + entry.getKey());
+
+			final int i = entry.getValue();
+			Assert.assertEquals(((Number) doc.field("i")).intValue(), i);
+			Assert.assertEquals(((String) doc.field("pad")).length(), (i * 7) % 700);
+		}
+		Assert.assertEquals(database.countClusterElements(database.getDefaultClusterId()), live.size());
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OTxSegment;
+import com.orientechnologies.orient.core.tx.OTransaction.TXTYPE;
+
+/**
+ * Checks the group commit of the transaction log: the transactions committed by concurrent threads are all durable and the log is
+ * emptied at close, with the synchronization at every commit and on the background timer.
+ */
+@Test(groups = "storage")
+public class TxLogGroupCommitTest {
+	private static final int	THREADS				= 8;
+	private static final int	TXS						= 30;
+	private static final int	RECORDS_PER_TX	= 3;
+	private String						url;
+	private long							expected;
+
+	@Parameters(value = "testPath")
+	public TxLogGroupCommitTest(final String iTestPath) {
+		url = "local:" + iTestPath + "/tx-group-commit";
+	}
+
+	public void testConcurrentCommits() throws Exception {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx(url);
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		Assert.assertEquals(getTxSegment(database).getSynchMode(), OTxSegment.SYNCH_COMMIT);
+		final long lsn = getTxSegment(database).getLastLsn();
+
+		commitConcurrently();
+
+		// EVERY RECORD AND EVERY COMMIT HAS ITS OWN ENTRY
+		Assert.assertTrue(getTxSegment(database).getLastLsn() >= lsn + expected + THREADS * TXS);
+		database.close();
+
+		checkRecords();
+	}
+
+	@Test(dependsOnMethods = "testConcurrentCommits")
+	public void testIntervalSynch() throws Exception {
+		final String synchMode = OGlobalConfiguration.TX_LOG_SYNCH.getValueAsString();
+		OGlobalConfiguration.TX_LOG_SYNCH.setValue(OTxSegment.SYNCH_INTERVAL);
+		try {
+			final ODatabaseDocumentTx database = new ODatabaseDocumentTx(url).open("admin", "admin");
+			Assert.assertEquals(getTxSegment(database).getSynchMode(), OTxSegment.SYNCH_INTERVAL);
+
+			commitConcurrently();
+			database.close();
+		} finally {
+			OGlobalConfiguration.TX_LOG_SYNCH.setValue(synchMode);
+		}
+
+		checkRecords();
+	}
+
+	@Test(dependsOnMethods = "testIntervalSynch")
+	public void testSynchWhileWriting() throws Exception {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx(url).open("admin", "admin");
+		final OTxSegment txSegment = getTxSegment(database);
+
+		// THE SYNCH RUNS WITHOUT THE LOCK OF THE LOG: THE COMMITS GO ON DURING IT
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final Thread synchronizer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!stop.get())
+						txSegment.synch(txSegment.getLastLsn());
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			}
+		};
+		synchronizer.start();
+		try {
+			commitConcurrently();
+		} finally {
+			stop.set(true);
+			synchronizer.join();
+		}
+		Assert.assertTrue(errors.isEmpty(), errors.toString());
+
+		// A SYNCH ALREADY COVERED BY THE PREVIOUS ONE RETURNS AT ONCE
+		txSegment.synch(txSegment.getLastLsn());
+		txSegment.synch(txSegment.getLastLsn());
+		database.close();
+
+		checkRecords();
+	}
+
+	private void commitConcurrently() throws InterruptedException {
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; ++t) {
+			final int thread = t;
+			workers.add(new Thread() {
+				@Override
+				public void run() {
+					final ODatabaseDocumentTx db = new ODatabaseDocumentTx(url).open("admin", "admin");
+					try {
+						for (int i = 0; i < TXS; ++i) {
+							db.begin(TXTYPE.OPTIMISTIC);
+							for (int r = 0; r < RECORDS_PER_TX; ++r)
+								new ODocument(db).field("thread", thread).field("tx", i).save();
+							db.commit();
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					} finally {
+						db.close();
+					}
+				}
+			});
+		}
+		for (Thread w : workers)
+			w.start();
+		for (Thread w : workers)
+			w.join();
+
+		Assert.assertTrue(errors.isEmpty(), errors.toString());
+		expected += THREADS * TXS * RECORDS_PER_TX;
+	}
+
+	private void checkRecords() {
+		final ODatabaseDocumentTx database = new ODatabaseDocumentTx(url).open("admin", "admin");
+		try {
+			// THE LOG HAS BEEN EMPTIED BY THE CLEAN CLOSE
+			Assert.assertEquals(getTxSegment(database).getTotalLogCount(), 0);
+			Assert.assertEquals(database.countClusterElements(database.getDefaultClusterId()), expected);
+		} finally {
+			database.close();
+		}
+	}
+
+	private OTxSegment getTxSegment(final ODatabaseDocumentTx iDatabase) {
+		return ((OStorageLocal) iDatabase.getStorage()).getTxManager().getTxSegment();
+	}
+}
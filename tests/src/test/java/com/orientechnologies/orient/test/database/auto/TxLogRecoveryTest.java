@@ -0,0 +1,136 @@
+/*
+ * Copyright 1999-2010 Luca Garulli (l.garulli--at--orientechnologies.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orientechnologies.orient.test.database.auto;
+
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.storage.OPhysicalPosition;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OTxSegment;
+import com.orientechnologies.orient.core.tx.OTransaction.TXTYPE;
+
+/**
+ * Checks the recovery of the transaction log after a brute shutdown. The changes of a transaction never committed are written to
+ * the log and to the storage as the transaction executer does, then the storage is closed without emptying the log: at the
+ * reopening the committed changes must be kept and the not committed ones rolled back.
+ */
+@Test(groups = "storage")
+public class TxLogRecoveryTest {
+	private static final int		TX_ID	= 1000000;
+	private ODatabaseDocumentTx	database;
+
+	@Parameters(value = "testPath")
+	public TxLogRecoveryTest(final String iTestPath) {
+		database = new ODatabaseDocumentTx("local:" + iTestPath + "/tx-recovery");
+	}
+
+	public void testUndoAfterCommittedChange() throws IOException {
+		if (database.exists())
+			database.delete();
+		database.create();
+
+		final ODocument doc = new ODocument(database).field("value", 0);
+		doc.save();
+		for (int i = 1; i < 6; ++i) {
+			doc.field("value", i);
+			doc.save();
+		}
+		Assert.assertEquals(doc.getVersion(), 5);
+
+		// COMMITTED TX A: v5 -> v6
+		database.begin(TXTYPE.OPTIMISTIC);
+		doc.field("value", "A");
+		doc.save();
+		database.commit();
+		Assert.assertEquals(doc.getVersion(), 6);
+
+		final ORID rid = doc.getIdentity().copy();
+
+		// NOT COMMITTED TX B: v6 -> v7, WRITTEN TO THE DISK BEFORE THE CRASH
+		updateNotCommitted(rid, "B");
+
+		crashAndReopen();
+
+		final ODocument recovered = database.load(rid);
+		Assert.assertEquals(recovered.field("value"), "A");
+		Assert.assertEquals(recovered.getVersion(), 6);
+
+		database.close();
+	}
+
+	@Test(dependsOnMethods = "testUndoAfterCommittedChange")
+	public void testUndoInReverseOrder() throws IOException {
+		database.open("admin", "admin");
+
+		final ODocument doc = new ODocument(database).field("value", "committed");
+		doc.save();
+		final ORID rid = doc.getIdentity().copy();
+		final int version = doc.getVersion();
+
+		// TWO CHANGES OF THE SAME NOT COMMITTED TX: THE FIRST IMAGE MUST BE RESTORED
+		updateNotCommitted(rid, "first");
+		updateNotCommitted(rid, "second");
+
+		crashAndReopen();
+
+		final ODocument recovered = database.load(rid);
+		Assert.assertEquals(recovered.field("value"), "committed");
+		Assert.assertEquals(recovered.getVersion(), version);
+
+		database.close();
+	}
+
+	/**
+	 * Updates the record as the transaction executer does: logs the images before and after the change, then updates the record.
+	 */
+	private void updateNotCommitted(final ORID iRid, final Object iValue) throws IOException {
+		final OStorageLocal storage = (OStorageLocal) database.getStorage();
+		final OClusterLocal cluster = (OClusterLocal) storage.getClusterById(iRid.getClusterId());
+		final OPhysicalPosition ppos = cluster.getPhysicalPosition(iRid.getClusterPosition(), new OPhysicalPosition());
+		final byte[] before = storage.getDataSegment(ppos.dataSegment).getRecord(ppos.dataPosition);
+
+		final ODocument doc = database.load(iRid);
+		doc.field("value", iValue);
+		final byte[] after = doc.toStream();
+
+		storage.getTxManager().getTxSegment().addLog(OTxSegment.OPERATION_UPDATE, 0, TX_ID, iRid.getClusterId(),
+				iRid.getClusterPosition(), ppos.dataSegment, ppos.dataPosition, ODocument.RECORD_TYPE, ppos.version, before, after);
+		storage.updateRecord(0, iRid.getClusterId(), iRid.getClusterPosition(), after, ppos.version, ODocument.RECORD_TYPE);
+	}
+
+	/**
+	 * Closes the storage while the transaction is still running: the files are written to the disk but the log keeps its entries as
+	 * after a crash.
+	 */
+	private void crashAndReopen() {
+		final OTxSegment txSegment = ((OStorageLocal) database.getStorage()).getTxManager().getTxSegment();
+		database.close();
+		Assert.assertTrue(txSegment.getTotalLogCount() > 0);
+
+		database.open("admin", "admin");
+
+		// THE RECOVERY EMPTIES THE LOG
+		Assert.assertEquals(((OStorageLocal) database.getStorage()).getTxManager().getTxSegment().getTotalLogCount(), 0);
+	}
+}
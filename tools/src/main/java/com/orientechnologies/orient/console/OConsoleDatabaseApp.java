@@ -47,6 +47,7 @@ import com.orientechnologies.orient.core.db.tool.ODatabaseExport;
 import com.orientechnologies.orient.core.db.tool.ODatabaseExportException;
 import com.orientechnologies.orient.core.db.tool.ODatabaseImport;
 import com.orientechnologies.orient.core.db.tool.ODatabaseImportException;
+import com.orientechnologies.orient.core.db.tool.ODatabaseMigrate;
 import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.iterator.ORecordIterator;
 import com.orientechnologies.orient.core.metadata.schema.OClass;
@@ -65,7 +66,12 @@ import com.orientechnologies.orient.core.serialization.serializer.record.string.
 import com.orientechnologies.orient.core.sql.OCommandSQL;
 import com.orientechnologies.orient.core.sql.query.OSQLAsynchQuery;
 import com.orientechnologies.orient.core.storage.OCluster;
+import com.orientechnologies.orient.core.storage.OClusterStatistics;
 import com.orientechnologies.orient.core.storage.OStorage;
+import com.orientechnologies.orient.core.storage.impl.local.OClusterLocal;
+import com.orientechnologies.orient.core.storage.impl.local.ODataLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocal;
+import com.orientechnologies.orient.core.storage.impl.local.OStorageLocalDefrag;
 import com.orientechnologies.orient.enterprise.command.script.OCommandScript;
 
 public class OConsoleDatabaseApp extends OrientConsole implements OCommandOutputListener, OProgressListener {
@@ -271,6 +277,30 @@ public class OConsoleDatabaseApp extends OrientConsole implements OCommandOutput
 		}
 	}
 
+	@ConsoleCommand(description = "Defragment the current database moving the records into the holes and releasing the free space at the end of the files")
+	public void defragDatabase() {
+		checkCurrentDatabase();
+
+		if (!(currentDatabase.getStorage() instanceof OStorageLocal)) {
+			out.println("Defragmentation is supported only by local databases");
+			return;
+		}
+
+		out.println("Defragmenting database " + currentDatabaseName + "...");
+		try {
+			final long start = System.currentTimeMillis();
+
+			final OStorageLocalDefrag defrag = new OStorageLocalDefrag((OStorageLocal) currentDatabase.getStorage(), this);
+			defrag.defrag();
+
+			out.printf("\nMoved %d record(s), reclaimed %d bytes and removed %d hole entries in %f sec(s).\n",
+					defrag.getMovedRecords(), defrag.getReclaimedBytes(), defrag.getRemovedHoles(),
+					(float) (System.currentTimeMillis() - start) / 1000);
+		} catch (Exception e) {
+			printError(e);
+		}
+	}
+
 	@ConsoleCommand(description = "Load a record in memory and set it as the current one")
 	public void loadRecord(
 			@ConsoleParameter(name = "record-id", description = "The unique Record Id of the record to load. If you don't have the Record Id execute a query first") String iRecordId) {
@@ -539,6 +569,47 @@ public class OConsoleDatabaseApp extends OrientConsole implements OCommandOutput
 			out.println("No database selected yet.");
 	}
 
+	@ConsoleCommand(description = "Display the statistics of the clusters and of the data segments of the current database")
+	public void storageStatistics() {
+		checkCurrentDatabase();
+
+		if (currentDatabase.getStorage() instanceof OStorageRemote) {
+			out.println("Statistics are not available for remote databases: use the HTTP command statistics/<database>");
+			return;
+		}
+
+		out.println("\nCLUSTERS (* = statistics not exact since the cluster was not closed correctly):");
+		out.println("------------------------------+------+------------+------------+---------------+------------+");
+		out.println(" NAME                         |  ID  | RECORDS    | DELETED    | SIZE          | AVG SIZE   |");
+		out.println("------------------------------+------+------------+------------+---------------+------------+");
+
+		for (OCluster cluster : currentDatabase.getStorage().getClusters()) {
+			try {
+				final OClusterStatistics stats = cluster.getStatistics();
+				out.printf(" %-29s|%6d|%11d |%11d |%14d |%11d%s|\n", cluster.getName(), cluster.getId(), cluster.getEntries(),
+						cluster instanceof OClusterLocal ? ((OClusterLocal) cluster).getHoles() : 0, stats.getRecordsSize(),
+						stats.getAverageRecordSize(), stats.isExact() ? " " : "*");
+			} catch (Exception e) {
+			}
+		}
+		out.println("------------------------------+------+------------+------------+---------------+------------+");
+
+		if (currentDatabase.getStorage() instanceof OStorageLocal) {
+			out.println("\nDATA SEGMENTS:");
+			out.println("------------------------------+---------------+------------+---------------+-------+");
+			out.println(" NAME                         | FILLED        | HOLES      | HOLES SIZE    | WASTE |");
+			out.println("------------------------------+---------------+------------+---------------+-------+");
+
+			for (ODataLocal data : ((OStorageLocal) currentDatabase.getStorage()).getDataSegments()) {
+				final long filled = data.getFilledUpTo();
+				final long holesSize = data.getHolesSize();
+				out.printf(" %-29s|%14d |%11d |%14d |%5d%% |\n", data.getName(), filled, data.getHoles(), holesSize,
+						filled > 0 ? holesSize * 100 / filled : 0);
+			}
+			out.println("------------------------------+---------------+------------+---------------+-------+");
+		}
+	}
+
 	@ConsoleCommand(description = "Display all the configured classes")
 	public void classes() {
 		if (currentDatabaseName != null) {
@@ -688,6 +759,20 @@ public class OConsoleDatabaseApp extends OrientConsole implements OCommandOutput
 		}
 	}
 
+	@ConsoleCommand(description = "Rewrite the documents of the current database in another format")
+	public void migrateDatabase(
+			@ConsoleParameter(name = "format", description = "Format of the documents: 'ORecordDocument2csv' or 'ORecordDocument2binary'") final String iFormat) {
+		checkCurrentDatabase();
+
+		out.println("Migrating the documents of database " + currentDatabaseName + " to format " + iFormat + "...");
+
+		try {
+			new ODatabaseMigrate(currentDatabase, iFormat, this).migrateDatabase();
+		} catch (Exception e) {
+			printError(e);
+		}
+	}
+
 	@ConsoleCommand(description = "Export the current record in the requested format")
 	public void exportRecord(@ConsoleParameter(name = "format", description = "Format, such as 'json'") final String iFormat)
 			throws IOException {